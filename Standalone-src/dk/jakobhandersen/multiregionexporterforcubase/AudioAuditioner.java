@@ -0,0 +1,220 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays ranges of the input audio file, so regions can be auditioned without exporting them.
+ * 
+ * The file is read through a MappedAudioFile and written to a SourceDataLine in small chunks through a buffer reused for the whole range.
+ * The line is opened once (with a short buffer) and kept open between auditions, so starting an audition only means 
+ * mapping the range and writing the first chunk. No temporary files or external processes are involved.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class AudioAuditioner
+{
+	/**
+	 * Number of frames written to the line at a time
+	 */
+	private static final int chunkFrames = 512;
+	
+	/**
+	 * Size in frames of the line's buffer. Short, so playback starts and stops quickly
+	 */
+	private static final int lineBufferFrames = 4 * chunkFrames;
+	
+	/**
+	 * Number of frames mapped at a time
+	 */
+	private static final int mapFrames = 1 << 18;
+	
+	/**
+	 * Thread playing one range
+	 * @author Jakob Hougaard Andersen
+	 *
+	 */
+	private class PlayThread extends Thread
+	{
+		/**
+		 * Next frame to play
+		 */
+		private long position;
+		
+		/**
+		 * Frame after the last frame to play
+		 */
+		private long endFrame;
+		
+		/**
+		 * Set to stop playing
+		 */
+		private volatile boolean stopped = false;
+		
+		/**
+		 * Buffer holding one converted chunk. Each thread has its own, since a stopped thread may still be finishing its last chunk
+		 * when the next one starts
+		 */
+		private byte[] buffer = new byte[chunkFrames * outputChannels * 2];
+		
+		/**
+		 * Constructor
+		 * @param startFrame
+		 * @param endFrame
+		 */
+		PlayThread(long startFrame, long endFrame)
+		{
+			this.position = startFrame;
+			this.endFrame = endFrame;
+			setDaemon(true);
+		}
+		
+		public void run()
+		{
+			try
+			{
+				while (position < endFrame && !stopped)
+				{
+					int windowFrames = (int)Math.min(mapFrames, endFrame - position);
+					ByteBuffer window = file.map(position, windowFrames);
+					int done = 0;
+					while (done < windowFrames && !stopped)
+					{
+						int n = Math.min(chunkFrames, windowFrames - done);
+						file.convertTo16Bit(window, n, outputChannels, buffer);
+						line.write(buffer, 0, n * outputChannels * 2);
+						done += n;
+					}
+					position += windowFrames;
+				}
+				if (!stopped)
+				{
+					line.drain();
+				}
+			}
+			catch (IOException e)
+			{
+				Debug.log(LogLevel.ERROR, "Exception caught while auditioning:");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * The audio file played from
+	 */
+	private MappedAudioFile file;
+	
+	/**
+	 * The open output line
+	 */
+	private SourceDataLine line;
+	
+	/**
+	 * Number of channels played (1 or 2)
+	 */
+	private int outputChannels;
+	
+	/**
+	 * The thread currently playing, if any
+	 */
+	private PlayThread currentlyPlaying = null;
+	
+	/**
+	 * Constructor. Opens the audio file and the output line.
+	 * @param fileName full path to an uncompressed WAV or AIFF file
+	 * @throws IOException if the file can't be used
+	 * @throws LineUnavailableException if no output line can be opened
+	 */
+	public AudioAuditioner(String fileName) throws IOException, LineUnavailableException
+	{
+		file = new MappedAudioFile(fileName);
+		try
+		{
+			outputChannels = Math.min(file.getChannels(), 2);
+			AudioFormat format = new AudioFormat(file.getSampleRate(), 16, outputChannels, true, false);
+			line = AudioSystem.getSourceDataLine(format);
+			line.open(format, lineBufferFrames * outputChannels * 2);
+			line.start();
+		}
+		catch (LineUnavailableException | RuntimeException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Stops playing and closes the line and the file
+	 */
+	public synchronized void close()
+	{
+		stop();
+		line.stop();
+		line.close();
+		file.close();
+	}
+	
+	/**
+	 * Plays a range of the file. Anything already playing is stopped first.
+	 * @param startSec
+	 * @param endSec
+	 */
+	public synchronized void play(double startSec, double endSec)
+	{
+		stop();
+		long startFrame = Math.max(0, Math.round(startSec * file.getSampleRate()));
+		long endFrame = Math.min(file.getFrames(), Math.round(endSec * file.getSampleRate()));
+		if (endFrame <= startFrame)
+		{
+			return;
+		}
+		currentlyPlaying = new PlayThread(startFrame, endFrame);
+		currentlyPlaying.start();
+	}
+	
+	/**
+	 * Stops playing, if playing.
+	 * Waits a short while for the playing thread to end. If it is held up (e.g. reading from a slow disk), it ends by itself after its current chunk
+	 */
+	public synchronized void stop()
+	{
+		if (currentlyPlaying != null)
+		{
+			currentlyPlaying.stopped = true;
+			//Discard what is queued, which also releases a write() or drain() waiting for room
+			line.flush();
+			try
+			{
+				currentlyPlaying.join(500);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			line.flush();
+			currentlyPlaying = null;
+		}
+	}
+}
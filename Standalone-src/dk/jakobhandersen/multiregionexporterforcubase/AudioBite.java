@@ -73,6 +73,11 @@ public class AudioBite
 	 */
 	private boolean nameSetNormally = false;
 	
+	/**
+	 * The type of XML element (in the Cubase track XML) this AudioBite was read from
+	 */
+	private ElementType elementType = ElementType.None;
+	
 	/**
 	 * Has the start value been set?
 	 */
@@ -142,7 +147,7 @@ public class AudioBite
 	            }
 	            else
 	            {
-	                Debug.log("Error: lenghtValue of AudioBite was defined in midi ticks but startValue was not");
+	                Debug.log(LogLevel.ERROR, "lenghtValue of AudioBite was defined in midi ticks but startValue was not");
 	                startAndEndSecCalculated = false;
 	            }
 	            break;
@@ -161,6 +166,14 @@ public class AudioBite
 		
 	}
 	
+	/**
+	 * @return the type of XML element this AudioBite was read from
+	 */
+	public ElementType getElementType()
+	{
+		return elementType;
+	}
+	
 	/**
 	 * @return end time in seconds
 	 */
@@ -174,7 +187,7 @@ public class AudioBite
 	{
 		if (! functionalEndSet)
 		{
-			Debug.log("Error! GetFunctionalEnd() called but functionalEnd is not set");
+			Debug.log(LogLevel.ERROR, "GetFunctionalEnd() called but functionalEnd is not set");
 		}
 		return functionalEndSec;
 	}
@@ -196,6 +209,14 @@ public class AudioBite
 		return startSec;
 	}
 	
+	/**
+	 * @return true if both start and length are given in seconds, so the start and end can be calculated without the tempo and sample rate of the project
+	 */
+	public boolean isInSeconds()
+	{
+		return (startValueFormat == TimeFormat.SECONDS) && (lengthValueFormat == TimeFormat.SECONDS);
+	}
+	
 	/**
 	 * @return true if this AudioBite is properly set up
 	 */
@@ -204,6 +225,14 @@ public class AudioBite
 		return (startAndEndSecCalculated);
 	}
 	
+	/**
+	 * @param elementType the type of XML element this AudioBite was read from
+	 */
+	public void setElementType(ElementType elementType)
+	{
+		this.elementType = elementType;
+	}
+	
 	/**
 	 * @param endTime the functional end time in seconds (including trailing time and clamped to length of audio file).
 	 */
@@ -247,6 +276,19 @@ public class AudioBite
 		}
 	}
 	
+	/**
+	 * Sets the start and end time in seconds directly, for an AudioBite that has been calculated before (see TrackSnapshotCache).
+	 * The AudioBite is then properly set up.
+	 * @param startSec start time in seconds
+	 * @param endSec end time in seconds
+	 */
+	public void setStartAndEndSec(double startSec, double endSec)
+	{
+		this.startSec = startSec;
+		this.endSec = endSec;
+		this.startAndEndSecCalculated = true;
+	}
+	
 	/**
 	 * @param startValue start time value
 	 * @param format the TimeFormat in which the start value is specified
@@ -0,0 +1,36 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Receives AudioBites from CubaseTrackXMLSaxParseHandler one at a time, as soon as each region element has been read,
+ * instead of getting the whole list when the parsing is done (see StreamingOutputter).
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public interface AudioBiteReceiver
+{
+	/**
+	 * Called by the parse handler (on the parsing thread) at the end tag of each region element.
+	 * The start and end in seconds have not been calculated yet, since the tempo and sample rate may not have been read at this point.
+	 * @param bite the AudioBite read from the element
+	 * @throws SAXException to stop the parsing
+	 */
+	public void audioBiteParsed(AudioBite bite) throws SAXException;
+}
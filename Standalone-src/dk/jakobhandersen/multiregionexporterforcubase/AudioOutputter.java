@@ -20,14 +20,101 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 /**
- * (Thread) Class that does the actual outputting of file extracted from the input file.
+ * A task (run by a TaskRunner) that does the actual outputting of file extracted from the input file.
  * Uses SoX for splitting audio and FFMPEG for optional conversion.
+ * The files are output by a number of output workers in parallel, in the order given by an OutputScheduler.
  * @author Jakob Hougaard Andersen
  *
  */
-public class AudioOutputter extends Thread
+public class AudioOutputter implements CancellableTask<Integer>
 {
+	/**
+	 * Task taking jobs from a queue shared with the other output workers and outputting them, until the queue is empty.
+	 * Takes a permit from the ConcurrencyController before each job
+	 * @author Jakob Hougaard Andersen
+	 *
+	 */
+	private class OutputWorker implements CancellableTask<Void>
+	{
+		/**
+		 * The jobs not yet taken by an output worker, in output order
+		 */
+		private Queue<OutputJob> jobs;
+		
+		/**
+		 * Constructor
+		 * @param jobs the queue shared by the output workers
+		 */
+		private OutputWorker(Queue<OutputJob> jobs)
+		{
+			this.jobs = jobs;
+		}
+		
+		@Override
+		public Void run(CancellationToken token) throws CancellationException
+		{
+			while (true)
+			{
+				try
+				{
+					concurrency.acquire();
+				}
+				catch (InterruptedException e)
+				{
+					Debug.log("Task cancelled. Exiting.");
+					throw new CancellationException();
+				}
+				OutputJob job = jobs.poll();
+				if (job == null)
+				{
+					concurrency.release();
+					return null;
+				}
+				AudioBite b = job.getBite();
+				int started = startedFiles.incrementAndGet();
+				if (convertWithFfmpeg)
+				{
+					caller.audioOutputterProcessTextCallback("Extracting and converting file "+started+" out of "+audioBites.size());
+				}
+				else
+				{
+					caller.audioOutputterProcessTextCallback("Extracting file "+started+" out of "+audioBites.size());
+				}
+				try
+				{
+					if (token.isCancelled())
+					{
+						concurrency.release();
+						Debug.log("Task cancelled. Exiting.");
+						throw new CancellationException();
+					}
+					if (outputJob(job))
+					{
+						successes.incrementAndGet();
+					}
+				}
+				catch (InterruptedException e)
+				{
+					Debug.log("Task cancelled. Exiting.");
+					throw new CancellationException();
+				}
+				catch (IOException e)
+				{
+					Debug.log(LogLevel.ERROR, "Exception caught while trying write audio file for AudioBite with name "+ b.getName() +":");
+					e.printStackTrace();
+				}
+				caller.audioOutputterFileDoneCallback();
+			}
+		}
+	}
+	
 	/**
 	 * The list of AudioBites that the inputFile should be split according to
 	 */
@@ -44,7 +131,7 @@ public class AudioOutputter extends Thread
 	private String outputFolder;
 	
 	/**
-	 * The MultiRegionExporterForCubase to call when done splitting
+	 * The ExporterEngine to report progress to
 	 */
 	private ExporterEngine caller;
 	
@@ -89,9 +176,45 @@ public class AudioOutputter extends Thread
 	private String fixedName;
 	
 	/*
-	 * If errors occur with conversion with ffmpeg, this will be set to true
+	 * If errors occur with conversion with ffmpeg, this will be set to true.
+	 * Volatile since outputAudioBite() may be called from several threads.
 	 */
-	private boolean ffmpegError = false;
+	private volatile boolean ffmpegError = false;
+	
+	/**
+	 * Errors of failed regions, up to Constants.maxReportedRegionErrors. Concurrent since outputAudioBite() may be called from several threads.
+	 */
+	private Queue<RegionOutputError> regionErrors = new ConcurrentLinkedQueue<RegionOutputError>();
+	
+	/**
+	 * Number of failed regions (including the ones not kept in regionErrors)
+	 */
+	private AtomicInteger failedRegions = new AtomicInteger(0);
+	
+	/**
+	 * Decides the order in which run() outputs the AudioBites
+	 */
+	private OutputScheduler scheduler;
+	
+	/**
+	 * Runs the output workers of run()
+	 */
+	private TaskRunner taskRunner;
+	
+	/**
+	 * Decides how many output workers may output at the same time
+	 */
+	private ConcurrencyController concurrency = new ConcurrencyController(Constants.outputWorkers, Constants.minOutputWorkers, Constants.maxOutputWorkers);
+	
+	/**
+	 * Number of files started by the output workers of run()
+	 */
+	private AtomicInteger startedFiles = new AtomicInteger(0);
+	
+	/**
+	 * Number of files successfully written by the output workers of run()
+	 */
+	private AtomicInteger successes = new AtomicInteger(0);
 	
 	/**
 	 * Constructor
@@ -105,9 +228,11 @@ public class AudioOutputter extends Thread
 	 * @param convertWithFfmpegFileEnding if converting with ffmpeg, this is the file ending (suffix) of the output files
 	 * @param useCubaseNames should Cubase names/descriptions be used for naming output files?
 	 * @param fixedName If useCubaseNames == false, this string will be used for naming the output audio files
-	 * @param caller the MultiRegionExporterForCubase to call when done splitting
+	 * @param caller the ExporterEngine to report progress to
+	 * @param schedulingPolicy decides the order in which the regions are output
+	 * @param taskRunner runs the output workers
 	 */
-	public AudioOutputter(InputAudioFile inputFile, List<AudioBite> audioBites, String outputFolder, String soxPath, String ffmpegPath, String temporaryFolderPath, boolean convertWithFfmpeg, String convertWithFfmpegArguments, String convertWithFfmpegFileEnding, boolean useCubaseNames, String fixedName, ExporterEngine caller)
+	public AudioOutputter(InputAudioFile inputFile, List<AudioBite> audioBites, String outputFolder, String soxPath, String ffmpegPath, String temporaryFolderPath, boolean convertWithFfmpeg, String convertWithFfmpegArguments, String convertWithFfmpegFileEnding, boolean useCubaseNames, String fixedName, ExporterEngine caller, SchedulingPolicy schedulingPolicy, TaskRunner taskRunner)
 	{
 		this.audioBites = audioBites;
 		this.inputFile = inputFile;
@@ -135,137 +260,201 @@ public class AudioOutputter extends Thread
 		this.convertWithFfmpegFileEnding = convertWithFfmpegFileEnding;
 		this.useCubaseNames = useCubaseNames;
 		this.fixedName = fixedName;
+		this.scheduler = new OutputScheduler(schedulingPolicy, inputFile, convertWithFfmpeg);
+		this.taskRunner = taskRunner;
+	}
+	
+	/**
+	 * @return true if errors occurred while converting with ffmpeg
+	 */
+	public boolean getFfmpegError()
+	{
+		return ffmpegError;
 	}
 	
-	public void run() 
+	/**
+	 * @return the ConcurrencyController deciding how many output workers may output at the same time
+	 */
+	public ConcurrencyController getConcurrencyController()
+	{
+		return concurrency;
+	}
+	
+	/**
+	 * @return the scheduler deciding the order in which the regions are output
+	 */
+	public OutputScheduler getScheduler()
+	{
+		return scheduler;
+	}
+	
+	/**
+	 * Gets the full path of the output file of an AudioBite
+	 * @param b the AudioBite
+	 * @param index used for naming when ! useCubaseNames
+	 * @return
+	 */
+	public String getOutputFileName(AudioBite b, int index)
 	{
-		Debug.log("Running AudioOutputter thread");
-		int successes = 0;
+		String name = b.getName();
+		if (!useCubaseNames)
+		{
+			name = fixedName+"_"+String.format("%04d", index+1);
+		}
 		if (convertWithFfmpeg)
 		{
-			
-			for (int i = 0; i < audioBites.size(); i++)
+			return outputFolder+"/"+name+"."+this.convertWithFfmpegFileEnding;
+		}
+		return outputFolder+"/"+name+"."+inputFile.getFileExtension();
+	}
+	
+	/**
+	 * Writes the audio file of a single AudioBite: splits it out of the input file with SoX and converts it with FFMPEG if set up to.
+	 * Used by run(), but can also be called from other threads without running this task (see StreamingOutputter).
+	 * Processes are started with the ProcessSupervisor of the caller, so they are stopped if the application is closed.
+	 * @param b the AudioBite to be extracted
+	 * @param index used for naming when ! useCubaseNames
+	 * @return true if the file was successfully written
+	 * @throws InterruptedException if the calling thread is interrupted (which the TaskRunner does when the task is cancelled)
+	 * @throws IOException if a process could not be started
+	 */
+	public boolean outputAudioBite(AudioBite b, int index) throws InterruptedException, IOException
+	{
+		ArrayList<String> soxCmdAndArgs = getSoxCommand(b,index);
+		if (! convertWithFfmpeg)
+		{
+			return runProcess(soxCmdAndArgs, b, soxCmdAndArgs.get(2)) == 0;
+		}
+		
+		String tempFileName = soxCmdAndArgs.get(2);//The split file to be converted
+		try
+		{
+			if (runProcess(soxCmdAndArgs, b, tempFileName) != 0)
 			{
-				caller.audioOutputterProcessTextCallback("Extracting and converting file "+(i+1)+" out of "+audioBites.size());
-				AudioBite b = audioBites.get(i);
-				try
-				{
-					if (this.isInterrupted())
-					{
-						Debug.log("Thread interrupted. Exiting.");
-						return;
-					}
-					
-					ArrayList<String> soxCmdAndArgs = getSoxCommand(b,i);
-					
-					String tempFileName = soxCmdAndArgs.get(2);//The split file to be converted
-					
-					ProcessBuilder soxPB = new ProcessBuilder(soxCmdAndArgs);
-					
-					Process soxP = soxPB.start();
-					
-					caller.registerStartedProcess(soxP);
-					
-					int soxResult = soxP.waitFor();
-					
-					caller.unregisterStartedProcess(soxP);
-					
-					if (this.isInterrupted())
-					{
-						//Try to delete temp file
-						Utils.deleteFile(tempFileName);
-						Debug.log("Thread interrupted. Exiting.");
-						return;
-					}
-					
-					if (soxResult == 0)//Success running sox command
-					{
-						//Then convert with ffmpeg
-						ArrayList<String> ffmpegCmdAndArgs = getFFMPEGCommand(tempFileName,b,i);
-						
-						ProcessBuilder ffmpegPB = new ProcessBuilder(ffmpegCmdAndArgs);
-						
-						Process ffmpegP = ffmpegPB.start();
-						
-						caller.registerStartedProcess(ffmpegP);
-						
-						int ffmpegResult = ffmpegP.waitFor();
-						
-						caller.unregisterStartedProcess(ffmpegP);
-						
-						if (ffmpegResult == 0)//Success running FFMPEG command
-						{
-							successes += 1;
-						}
-						else
-						{
-						    ffmpegError = true;
-						}
-					}
-					
-					//Try to delete temp file
-					Utils.deleteFile(tempFileName);
-					
-				}
-				catch (InterruptedException e)
-				{
-					Debug.log("Thread interrupted. Exiting.");
-					return;
-				}
-				catch (Exception e)
-				{
-					Debug.log("Exception caught while trying write audio file for AudioBite with name "+ b.getName() +":");
-					e.printStackTrace();
-				}
-				caller.audioOutputterPercentageCallback((int)(((float)(i+1)/(float)audioBites.size())*100));
+				return false;
 			}
-			
+			if (Thread.currentThread().isInterrupted())
+			{
+				throw new InterruptedException();
+			}
+			//Then convert with ffmpeg
+			if (runProcess(getFFMPEGCommand(tempFileName,b,index), b, getOutputFileName(b,index)) == 0)//Success running FFMPEG command
+			{
+				return true;
+			}
+			ffmpegError = true;
+			return false;
 		}
-		else //Don't convert, just split
+		finally
 		{
-			for (int i = 0; i < audioBites.size(); i++)
+			//Try to delete temp file
+			Utils.deleteFile(tempFileName);
+		}
+	}
+	
+	/**
+	 * Outputs the file of a job (see outputAudioBite()) with a permit taken from the ConcurrencyController,
+	 * and gives the permit back with the size and time of the region.
+	 * Before starting, the estimated disk traffic of the region is taken from the BandwidthThrottle of the caller:
+	 * the region is read and written once, and once more (the temporary file) when converting with FFMPEG.
+	 * The time spent waiting for the throttle is not counted as time of the region.
+	 * If interrupted while waiting for the throttle, the permit is given back without counting the region
+	 * @param job
+	 * @return true if the file was successfully written
+	 * @throws InterruptedException if the calling thread is interrupted
+	 * @throws IOException if a process could not be started
+	 */
+	public boolean outputJob(OutputJob job) throws InterruptedException, IOException
+	{
+		long start = 0;
+		boolean started = false;
+		boolean success = false;
+		try
+		{
+			caller.getThrottle().acquire(getAudioBytes(job.getBite()) * (convertWithFfmpeg ? 4 : 2));
+			start = System.nanoTime();
+			started = true;
+			success = outputAudioBite(job.getBite(), job.getIndex());
+			return success;
+		}
+		finally
+		{
+			if (started)
 			{
-				caller.audioOutputterProcessTextCallback("Extracting file "+(i+1)+" out of "+audioBites.size());
-				AudioBite b = audioBites.get(i);
-				try
-				{
-					if (this.isInterrupted())
-					{
-						Debug.log("Thread interrupted. Exiting.");
-						return;
-					}
-					
-					ArrayList<String> cmdAndArgs = getSoxCommand(b,i);
-					ProcessBuilder pb = new ProcessBuilder(cmdAndArgs);
-					
-					Process p = pb.start();
-					
-					caller.registerStartedProcess(p);
-					
-					int result = p.waitFor();
-					
-					caller.unregisterStartedProcess(p);
-					
-					
-					if (result == 0)
-					{
-						successes += 1;
-					}
-				}
-				catch (InterruptedException e)
-				{
-					Debug.log("Thread interrupted. Exiting.");
-					return;
-				}
-				catch (Exception e)
-				{
-					Debug.log("Exception caught while trying write audio file for AudioBite with name "+ b.getName() +":");
-					e.printStackTrace();
-				}
-				caller.audioOutputterPercentageCallback((int)(((float)(i+1)/(float)audioBites.size())*100));
+				concurrency.regionDone(success ? getAudioBytes(job.getBite()) : 0, System.nanoTime() - start);
+			}
+			else
+			{
+				concurrency.release();
+			}
+		}
+	}
+	
+	/**
+	 * Describes the failed regions (up to Constants.maxReportedRegionErrors) to the user.
+	 * Called when done outputting, by run() or by the StreamingOutputter using this AudioOutputter
+	 */
+	public void reportRegionErrors()
+	{
+		for (RegionOutputError error : regionErrors)
+		{
+			caller.sendMessageToUser(UserMessageType.ERROR, error.toString());
+		}
+		int notReported = failedRegions.get() - regionErrors.size();
+		if (notReported > 0)
+		{
+			caller.sendMessageToUser(UserMessageType.ERROR, notReported + " more region(s) failed. See the log file for details");
+		}
+	}
+	
+	/**
+	 * Outputs the files of all the AudioBites with a number of output workers, in the order given by the scheduler.
+	 * A worker is started for each place up to the ceiling of the ConcurrencyController, which decides how many of them output at the same time.
+	 * If cancelled, it returns when the workers have destroyed their processes and deleted the files they were writing
+	 * (or after Constants.cancelTimeout ms)
+	 * @return the number of successfully created files
+	 * @throws CancellationException if token is cancelled
+	 * @throws Exception thrown by an output worker. The other workers finish their regions first
+	 */
+	@Override
+	public Integer run(CancellationToken token) throws Exception
+	{
+		Debug.log("Running AudioOutputter task");
+		List<OutputJob> jobs = scheduler.order(audioBites);
+		int workers = Math.max(1, Math.min(concurrency.getCeiling(), jobs.size()));
+		int initialWorkers = Math.min(concurrency.getLimit(), workers);
+		Debug.log(String.format(Locale.ROOT, "Outputting %d file(s) in %s with up to %d output worker(s), %d at first. Estimated time %.1f s",
+				jobs.size(), scheduler.getPolicy().getDisplayName().toLowerCase(Locale.ROOT), workers, initialWorkers, OutputScheduler.estimateMakespan(jobs, initialWorkers)));
+		
+		Queue<OutputJob> queue = new ConcurrentLinkedQueue<OutputJob>(jobs);
+		CompletableFuture<?>[] outputWorkers = new CompletableFuture<?>[workers];
+		for (int i = 0; i < outputWorkers.length; i++)
+		{
+			outputWorkers[i] = taskRunner.submitProcessUntilEnded(new OutputWorker(queue), token, Constants.cancelTimeout);
+		}
+		try
+		{
+			CompletableFuture.allOf(outputWorkers).get();
+		}
+		catch (InterruptedException | ExecutionException | CancellationException e)
+		{
+			TaskRunner.awaitEnded(outputWorkers);
+			Throwable failure = TaskRunner.getFailure(e);
+			if (failure == null)
+			{
+				Debug.log("Task cancelled. Exiting.");
+				throw new CancellationException();
 			}
+			Debug.log(LogLevel.ERROR, "Output worker failed: {}", failure);
+			reportRegionErrors();
+			if (failure instanceof Error)
+			{
+				throw (Error)failure;
+			}
+			throw (Exception)failure;
 		}
-		if (successes == audioBites.size())
+		
+		if (successes.get() == audioBites.size())
 		{
 			caller.audioOutputterProcessTextCallback("Finished successfully");
 		}
@@ -278,8 +467,22 @@ public class AudioOutputter extends Thread
 		{
 		    caller.sendMessageToUser(UserMessageType.ERROR, "Error(s) occurred while converting with FFmpeg. Check arguments and filename extension");
 		}
+		reportRegionErrors();
 		
-		caller.audioOutputterDoneCallback(successes, audioBites.size(),this);
+		return successes.get();
+	}
+	
+	/**
+	 * Calculates the number of bytes of uncompressed audio in the functional length of an AudioBite.
+	 * Used for measuring throughput, so it is the same whatever the output format
+	 * @param b
+	 * @return number of bytes
+	 */
+	private long getAudioBytes(AudioBite b)
+	{
+		double seconds = Math.max(0, b.getFunctionalEndSec() - b.getStartSec());
+		int bytesPerSample = (inputFile.getBitDepth() > 0) ? (inputFile.getBitDepth() + 7) / 8 : 2;
+		return (long)(seconds * inputFile.getSampleRate()) * Math.max(1, inputFile.getChannels()) * bytesPerSample;
 	}
 	
 	/**
@@ -306,12 +509,7 @@ public class AudioOutputter extends Thread
 		
 		cmdAndArgs.add("-y");
 		
-		String name = b.getName();
-		if (!useCubaseNames)
-		{
-			name = fixedName+"_"+String.format("%04d", index+1);
-		}
-		cmdAndArgs.add(outputFolder+"/"+name+"."+this.convertWithFfmpegFileEnding);
+		cmdAndArgs.add(getOutputFileName(b,index));
 		
 		/*for (int i = 0; i < cmdAndArgs.size(); i++)
 		{
@@ -351,12 +549,7 @@ public class AudioOutputter extends Thread
 		}
 		else
 		{
-			String name = b.getName();
-			if (!useCubaseNames)
-			{
-				name = fixedName+"_"+String.format("%04d", index+1);
-			}
-			cmdAndArgs.add(outputFolder+"/"+name+"."+inputFile.getFileExtension());
+			cmdAndArgs.add(getOutputFileName(b,index));
 		}
 		
 		cmdAndArgs.add("trim");
@@ -366,4 +559,60 @@ public class AudioOutputter extends Thread
 		return cmdAndArgs;
 	}
 	
+	/**
+	 * Keeps the error of a failed region for reportRegionErrors() and logs it with the full kept output of the program
+	 * @param error
+	 */
+	private void regionFailed(RegionOutputError error)
+	{
+		if (failedRegions.incrementAndGet() <= Constants.maxReportedRegionErrors)
+		{
+			regionErrors.add(error);
+		}
+		Debug.log(LogLevel.ERROR, error.toString() + ". Output on stderr:\n" + error.getErrorOutput().getText());
+	}
+	
+	/**
+	 * Starts a process with the ProcessSupervisor of the caller and waits for it to finish.
+	 * Nothing useful is written to stdout, so it is discarded. stderr is drained while the process runs,
+	 * so a chatty FFMPEG can't stall on a full pipe, and its end is kept for the error report if the process fails
+	 * @param cmdAndArgs
+	 * @param b the AudioBite the process is run for
+	 * @param outputFileName the file written by the process. Deleted if the process is destroyed before it is done, since it is then incomplete
+	 * @return the exit value of the process
+	 * @throws InterruptedException if the calling thread is interrupted. The process and its descendants have then been destroyed
+	 * @throws IOException
+	 */
+	private int runProcess(ArrayList<String> cmdAndArgs, AudioBite b, String outputFileName) throws InterruptedException, IOException
+	{
+		ProcessBuilder pb = new ProcessBuilder(cmdAndArgs);
+		
+		pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+		
+		ProcessSupervisor supervisor = caller.getProcessSupervisor();
+		
+		Process p = supervisor.start(pb);
+		
+		ProcessOutputTail errorOutput = supervisor.drain(p.getErrorStream(), Constants.processErrorTailBytes);
+		
+		int result;
+		try
+		{
+			result = supervisor.waitFor(p);
+		}
+		catch (InterruptedException e)
+		{
+			Utils.deleteFile(outputFileName);
+			throw e;
+		}
+		
+		if (result != 0)
+		{
+			errorOutput.awaitEnd(Constants.processOutputEndTimeout);
+			regionFailed(new RegionOutputError(b.getName(), new File(cmdAndArgs.get(0)).getName(), result, errorOutput));
+		}
+		
+		return result;
+	}
+	
 }
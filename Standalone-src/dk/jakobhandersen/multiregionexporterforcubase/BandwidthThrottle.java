@@ -0,0 +1,132 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+/**
+ * Token bucket limiting the disk bandwidth used by the ExporterEngine in QoS mode, so an export (or waveform generation)
+ * running next to a DAW uses leftover capacity instead of causing dropouts.
+ * 
+ * Tokens are bytes. They are added at the rate of the limit, up to one burstTime worth of bytes, and acquire() takes
+ * the bytes of a read or write before it is done, waiting while the bucket is in debt. A request larger than the bucket is allowed
+ * and puts the bucket in debt, so the following requests wait until it is paid back. This way a whole region can be let through
+ * to SoX/FFMPEG at once and still be counted at the limit over time.
+ * 
+ * The limit can be changed at any time (waiting threads are woken up), and a limit of 0 turns throttling off.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class BandwidthThrottle
+{
+	/**
+	 * Seconds of bandwidth the bucket can hold, i.e. the longest burst allowed after an idle period
+	 */
+	private static final double burstTime = 0.25;
+	
+	/**
+	 * The limit in bytes per second. 0 for no limit. Guarded by this, like the following fields
+	 */
+	private long bytesPerSecond = 0;
+	
+	/**
+	 * Bytes in the bucket. Negative when in debt
+	 */
+	private double tokens = 0;
+	
+	/**
+	 * System.nanoTime() of the last refill of the bucket
+	 */
+	private long lastRefill = System.nanoTime();
+	
+	/**
+	 * Total number of bytes let through
+	 */
+	private long totalBytes = 0;
+	
+	/**
+	 * Total nanoseconds threads have waited in acquire()
+	 */
+	private long totalWaitTime = 0;
+	
+	/**
+	 * Takes a number of bytes from the bucket, first waiting while it is in debt.
+	 * Returns right away if there is no limit
+	 * @param bytes number of bytes about to be read or written
+	 * @throws InterruptedException if interrupted while waiting (which the TaskRunner does when a task is cancelled)
+	 */
+	public synchronized void acquire(long bytes) throws InterruptedException
+	{
+		long start = System.nanoTime();
+		refill(start);
+		while (bytesPerSecond > 0 && tokens < 0)
+		{
+			long waitMillis = (long)Math.ceil((-tokens * 1000) / bytesPerSecond);
+			wait(Math.max(1, waitMillis));
+			refill(System.nanoTime());
+		}
+		if (bytesPerSecond > 0)
+		{
+			tokens -= bytes;
+		}
+		totalBytes += bytes;
+		totalWaitTime += System.nanoTime() - start;
+	}
+	
+	/**
+	 * @return the limit in bytes per second. 0 for no limit
+	 */
+	public synchronized long getLimit()
+	{
+		return bytesPerSecond;
+	}
+	
+	/**
+	 * @return one line describing the bytes let through and the time spent waiting
+	 */
+	public synchronized String getSummary()
+	{
+		return String.format("Bandwidth throttle: %.1f MB let through, %.1f s spent waiting", totalBytes / 1e6, totalWaitTime / 1e9);
+	}
+	
+	/**
+	 * Sets the limit. Can be called at any time, also while threads are waiting
+	 * @param bytesPerSecond the limit in bytes per second. 0 for no limit
+	 */
+	public synchronized void setLimit(long bytesPerSecond)
+	{
+		refill(System.nanoTime());
+		boolean wasLimited = this.bytesPerSecond > 0;
+		this.bytesPerSecond = Math.max(0, bytesPerSecond);
+		double capacity = this.bytesPerSecond * burstTime;
+		//Start from a full bucket when a limit is set. When the limit is changed any debt is kept, so it is paid back at the new rate
+		tokens = wasLimited ? Math.min(tokens, capacity) : capacity;
+		notifyAll();
+	}
+	
+	/**
+	 * Adds the tokens earned since the last refill. Called with the lock held
+	 * @param now System.nanoTime()
+	 */
+	private void refill(long now)
+	{
+		if (bytesPerSecond > 0)
+		{
+			double capacity = bytesPerSecond * burstTime;
+			tokens = Math.min(capacity, tokens + ((now - lastRefill) / 1e9) * bytesPerSecond);
+		}
+		lastRefill = now;
+	}
+}
@@ -0,0 +1,35 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+/**
+ * A piece of work that can be run by a TaskRunner and cancelled through a CancellationToken
+ * @author Jakob Hougaard Andersen
+ *
+ * @param <T> type of the result
+ */
+public interface CancellableTask<T>
+{
+	/**
+	 * Does the work. Should check token.isCancelled() between steps and stop as soon as possible when it is cancelled.
+	 * The running thread is also interrupted when the token is cancelled, so blocking waits end with an InterruptedException.
+	 * @param token the token the task is cancelled through
+	 * @return the result
+	 * @throws Exception if the work failed. The exception is passed on through the CompletableFuture of the task
+	 */
+	public T run(CancellationToken token) throws Exception;
+}
@@ -0,0 +1,132 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cooperative cancellation of one operation of the ExporterEngine (loading an audio file, generating a waveform, outputting files etc).
+ * 
+ * The engine creates a token for each operation it starts and cancels it when the operation is no longer wanted.
+ * The task doing the work checks isCancelled() between steps, and listeners (added with addListener()) can stop what
+ * can't check by itself, like a running process. Cancelling can be done from any thread and only has effect once.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class CancellationToken
+{
+	/**
+	 * Has the token been cancelled?
+	 */
+	private volatile boolean cancelled = false;
+	
+	/**
+	 * Listeners to be run when the token is cancelled. Guarded by this
+	 */
+	private List<Runnable> listeners = new ArrayList<Runnable>();
+	
+	/**
+	 * Adds a listener to be run (on the cancelling thread) when the token is cancelled.
+	 * If the token has already been cancelled, the listener is run right away on the calling thread.
+	 * @param listener
+	 */
+	public void addListener(Runnable listener)
+	{
+		synchronized (this)
+		{
+			if (! cancelled)
+			{
+				listeners.add(listener);
+				return;
+			}
+		}
+		runListener(listener);
+	}
+	
+	/**
+	 * Cancels the token and runs its listeners. Does nothing if already cancelled
+	 */
+	public void cancel()
+	{
+		List<Runnable> toRun;
+		synchronized (this)
+		{
+			if (cancelled)
+			{
+				return;
+			}
+			cancelled = true;
+			toRun = listeners;
+			listeners = new ArrayList<Runnable>();
+		}
+		for (Runnable listener : toRun)
+		{
+			runListener(listener);
+		}
+	}
+	
+	/**
+	 * @return true if the token has been cancelled
+	 */
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+	
+	/**
+	 * Removes a listener added with addListener(). Should be done when the work it stops is done
+	 * @param listener
+	 */
+	public void removeListener(Runnable listener)
+	{
+		synchronized (this)
+		{
+			listeners.remove(listener);
+		}
+	}
+	
+	/**
+	 * Throws CancellationException if the token has been cancelled
+	 * @throws CancellationException
+	 */
+	public void throwIfCancelled() throws CancellationException
+	{
+		if (cancelled)
+		{
+			throw new CancellationException();
+		}
+	}
+	
+	/**
+	 * Runs a listener, making sure an exception in it doesn't keep the other listeners from running
+	 * @param listener
+	 */
+	private void runListener(Runnable listener)
+	{
+		try
+		{
+			listener.run();
+		}
+		catch (Exception e)
+		{
+			Debug.log(LogLevel.ERROR, "Exception caught while running cancellation listener:");
+			e.printStackTrace();
+		}
+	}
+}
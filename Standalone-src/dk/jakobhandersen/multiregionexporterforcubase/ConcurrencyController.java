@@ -0,0 +1,318 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.util.Locale;
+
+/**
+ * Adjusts the number of output workers allowed to output a region at the same time, while outputting.
+ * 
+ * The best number depends on what limits the export: encoding MP3s is bound by the CPU, while copying WAV files to a network drive
+ * is bound by I/O, and a fixed number is wrong for one of them. So an export starts a worker for each possible slot (up to the ceiling),
+ * and each worker gets a permit here (acquire()) before taking a region and gives it back with the size and time of the region
+ * (regionDone()). The number of permits (the limit) starts at Constants.outputWorkers.
+ * 
+ * The throughput (bytes of audio per second) and latency (time per region, and time per byte) are measured over windows of at least minWindowTime
+ * and at least as many regions as the limit. After each window the limit is adjusted by hill-climbing with additive increase and multiplicative decrease:
+ * <ul>
+ * <li>The first window probes upwards.</li>
+ * <li>If throughput dropped clearly since the previous window, the limit is cut by decreaseFactor (or raised by one, if the drop followed a decrease).</li>
+ * <li>If the previous window added a worker and throughput didn't rise clearly (or latency rose sharply), the extra worker only added waiting,
+ * so the limit steps back by one and stays there until the next probe.</li>
+ * <li>If throughput rose clearly, the last change is repeated (one worker more, or one less if the last change was a decrease).</li>
+ * <li>If throughput is flat but the time per byte is well above the lowest seen, the regions mostly wait, so the limit is lowered by one.</li>
+ * <li>Otherwise the limit is kept, probing upwards after probeInterval steady windows.</li>
+ * </ul>
+ * The limit is kept between a floor and a ceiling. All decisions are logged.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class ConcurrencyController
+{
+	/**
+	 * Minimum number of milliseconds in a measuring window
+	 */
+	private static final long minWindowTime = 500;
+	
+	/**
+	 * Throughput must rise by this factor from one window to the next to count as an improvement
+	 */
+	private static final double increaseThreshold = 1.05;
+	
+	/**
+	 * Throughput below this fraction of the previous window counts as a drop
+	 */
+	private static final double dropThreshold = 0.85;
+	
+	/**
+	 * The limit is multiplied by this when throughput drops
+	 */
+	private static final double decreaseFactor = 0.75;
+	
+	/**
+	 * Time per byte above this factor of the previous window, after adding a worker, means the extra worker only added waiting
+	 */
+	private static final double latencyThreshold = 1.5;
+	
+	/**
+	 * Time per byte above this factor of the lowest seen (with flat throughput) means the regions mostly wait for the CPU, disk or network,
+	 * so fewer workers are tried
+	 */
+	private static final double congestionThreshold = 2.0;
+	
+	/**
+	 * Number of steady windows after which one more worker is tried
+	 */
+	private static final int probeInterval = 4;
+	
+	/**
+	 * Minimum number of workers allowed to output at the same time
+	 */
+	private int floor;
+	
+	/**
+	 * Maximum number of workers allowed to output at the same time
+	 */
+	private int ceiling;
+	
+	/**
+	 * Number of workers allowed to output at the same time. Guarded by this, like all the following fields
+	 */
+	private int limit;
+	
+	/**
+	 * Number of permits given out
+	 */
+	private int active = 0;
+	
+	/**
+	 * System.nanoTime() when the current window started
+	 */
+	private long windowStart = System.nanoTime();
+	
+	/**
+	 * Bytes of audio output in the current window
+	 */
+	private long windowBytes = 0;
+	
+	/**
+	 * Summed latency in nanoseconds of the regions done in the current window
+	 */
+	private long windowLatency = 0;
+	
+	/**
+	 * Number of regions done in the current window
+	 */
+	private int windowRegions = 0;
+	
+	/**
+	 * Throughput (bytes per second) of the previous window. Negative before the first window
+	 */
+	private double previousThroughput = -1;
+	
+	/**
+	 * Time per byte (nanoseconds of latency per byte of audio) of the previous window.
+	 * Latency is compared per byte, since the regions of different windows have different lengths
+	 */
+	private double previousTimePerByte = 0;
+	
+	/**
+	 * The lowest time per byte of any window so far
+	 */
+	private double minTimePerByte = Double.MAX_VALUE;
+	
+	/**
+	 * The change of the limit after the previous window (+1, 0 or -1 for an increase, no change or a decrease)
+	 */
+	private int lastChange = 0;
+	
+	/**
+	 * Did the limit step back after the previous window (see adjust())?
+	 */
+	private boolean steppedBack = false;
+	
+	/**
+	 * Number of windows in a row without a change of the limit
+	 */
+	private int steadyWindows = 0;
+	
+	/**
+	 * Constructor
+	 * @param initial the number of workers allowed at first
+	 * @param floor minimum number of workers allowed
+	 * @param ceiling maximum number of workers allowed
+	 */
+	public ConcurrencyController(int initial, int floor, int ceiling)
+	{
+		this.floor = Math.max(1, floor);
+		this.ceiling = Math.max(this.floor, ceiling);
+		this.limit = Math.min(this.ceiling, Math.max(this.floor, initial));
+	}
+	
+	/**
+	 * Waits until fewer workers than the limit are outputting, and takes a permit.
+	 * The permit must be given back with regionDone() or release()
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void acquire() throws InterruptedException
+	{
+		while (active >= limit)
+		{
+			wait();
+		}
+		active += 1;
+	}
+	
+	/**
+	 * @return maximum number of workers allowed to output at the same time. An export needs this many workers to use all permits
+	 */
+	public int getCeiling()
+	{
+		return ceiling;
+	}
+	
+	/**
+	 * @return number of workers allowed to output at the same time right now
+	 */
+	public synchronized int getLimit()
+	{
+		return limit;
+	}
+	
+	/**
+	 * Gives back a permit after outputting a region, and adds the region to the measurements
+	 * @param bytes bytes of audio in the region. 0 if it failed
+	 * @param latency nanoseconds it took to output the region
+	 */
+	public synchronized void regionDone(long bytes, long latency)
+	{
+		active -= 1;
+		windowBytes += bytes;
+		windowLatency += latency;
+		windowRegions += 1;
+		long now = System.nanoTime();
+		if (windowRegions >= limit && (now - windowStart) >= (minWindowTime * 1000000))
+		{
+			adjust(now);
+		}
+		notifyAll();
+	}
+	
+	/**
+	 * Gives back a permit without outputting a region (e.g. when the worker stops)
+	 */
+	public synchronized void release()
+	{
+		active -= 1;
+		notifyAll();
+	}
+	
+	/**
+	 * Ends the current window and adjusts the limit from its measurements. Called with the lock held
+	 * @param now System.nanoTime()
+	 */
+	private void adjust(long now)
+	{
+		double throughput = windowBytes / ((now - windowStart) / 1e9);
+		double latency = (windowLatency / (double)windowRegions) / 1e6;
+		if (windowBytes == 0)
+		{
+			//Only failed regions. Nothing to compare
+			Debug.log(LogLevel.DEBUG, "Output workers kept at {} since no region was output in {} ms", Integer.valueOf(limit), Long.valueOf((now - windowStart) / 1000000));
+			startWindow(now);
+			return;
+		}
+		double timePerByte = windowLatency / (double)windowBytes;
+		minTimePerByte = Math.min(minTimePerByte, timePerByte);
+		int oldLimit = limit;
+		boolean stepBack = false;
+		String reason;
+		if (previousThroughput < 0)
+		{
+			limit += 1;
+			reason = "first measurement, probing upwards";
+		}
+		else if (throughput < previousThroughput * dropThreshold && lastChange < 0)
+		{
+			limit += 1;
+			reason = "throughput dropped after a decrease";
+		}
+		else if (throughput < previousThroughput * dropThreshold)
+		{
+			limit = Math.min(limit - 1, (int)(limit * decreaseFactor));
+			reason = "throughput dropped";
+		}
+		else if (lastChange > 0 && (throughput <= previousThroughput * increaseThreshold || timePerByte > previousTimePerByte * latencyThreshold))
+		{
+			limit -= 1;
+			stepBack = true;
+			reason = "no gain from the last added worker";
+		}
+		else if (throughput > previousThroughput * increaseThreshold && ! steppedBack)
+		{
+			limit += (lastChange < 0) ? -1 : 1;
+			reason = "throughput rose";
+		}
+		else if (timePerByte > minTimePerByte * congestionThreshold)
+		{
+			limit -= 1;
+			reason = String.format(Locale.ROOT, "throughput flat and latency %.1f times the lowest seen", timePerByte / minTimePerByte);
+		}
+		else if (steadyWindows + 1 >= probeInterval)
+		{
+			limit += 1;
+			reason = "steady, probing upwards";
+		}
+		else
+		{
+			reason = "throughput flat";
+		}
+		limit = Math.min(ceiling, Math.max(floor, limit));
+		//Stepping back returns to a known limit. So the next window isn't taken as the result of a move downwards,
+		//and the throughput rising back to where it was isn't taken as an improvement
+		lastChange = stepBack ? 0 : Integer.signum(limit - oldLimit);
+		steppedBack = stepBack;
+		steadyWindows = (limit == oldLimit) ? steadyWindows + 1 : 0;
+		
+		String message = String.format(Locale.ROOT, "Output workers %d -> %d (%s). Throughput %.2f MB/s, latency %.0f ms over %d region(s)",
+				oldLimit, limit, reason, throughput / 1e6, latency, windowRegions);
+		if (limit != oldLimit)
+		{
+			Debug.log(message);
+		}
+		else
+		{
+			Debug.log(LogLevel.DEBUG, message);
+		}
+		
+		previousThroughput = throughput;
+		previousTimePerByte = timePerByte;
+		startWindow(now);
+	}
+	
+	/**
+	 * Starts a new measuring window. Called with the lock held
+	 * @param now System.nanoTime()
+	 */
+	private void startWindow(long now)
+	{
+		windowStart = now;
+		windowBytes = 0;
+		windowLatency = 0;
+		windowRegions = 0;
+	}
+}
@@ -30,6 +30,83 @@ public class Constants
 	 */
 	public static final double midiTicksPerSecPerBPM = 8;
 	
+	/**
+	 * Should Cubase track XML files be read with the pull parser (CubaseTrackXMLStaxParser), which skips irrelevant subtrees?
+	 * If false, the SAXParser is used. Both give the same result
+	 */
+	public static final boolean useStaxTrackParser = true;
+	
+	/**
+	 * Cubase track XML files of at least this size (in bytes) are read with the byte scanner (CubaseTrackXMLByteScanner),
+	 * which is considerably faster on huge files. Smaller files are read as given by useStaxTrackParser
+	 */
+	public static final long byteScannerMinFileSize = 64L * 1024 * 1024;
+	
+	/**
+	 * Should the results of parsing track XML files be saved as snapshots (TrackSnapshotCache), so unchanged files load without parsing?
+	 */
+	public static final boolean useTrackSnapshotCache = true;
+	
+	/**
+	 * Number of regions that can wait in the queue between the parser and the output workers of StreamingOutputter.
+	 * When the queue is full, parsing waits for the output workers to catch up
+	 */
+	public static final int streamingQueueCapacity = 64;
+	
+	/**
+	 * Number of output workers (each running one SoX/FFMPEG process at a time) allowed to output at the same time
+	 * when AudioOutputter and StreamingOutputter start. Adjusted while outputting (see ConcurrencyController)
+	 */
+	public static final int outputWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	
+	/**
+	 * Minimum number of output workers allowed to output at the same time
+	 */
+	public static final int minOutputWorkers = 1;
+	
+	/**
+	 * Default budget in bytes for the buffers that audio and process output pass through (see MemoryGovernor)
+	 */
+	public static final long memoryBudget = 64L * 1024 * 1024;
+	
+	/**
+	 * Maximum number of output workers allowed to output at the same time.
+	 * More would only wait for the ProcessSupervisor (see maxRunningProcesses)
+	 */
+	public static final int maxOutputWorkers = Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * The order in which the output workers output the regions, until the user chooses another (see SchedulingPolicy)
+	 */
+	public static final SchedulingPolicy defaultSchedulingPolicy = SchedulingPolicy.LONGEST_FIRST;
+	
+	/**
+	 * Maximum number of external processes (SoX, SoXi, FFMPEG) running at the same time. See ProcessSupervisor
+	 */
+	public static final int maxRunningProcesses = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * Number of bytes kept of what an external process writes to stderr, for error reports (see ProcessOutputTail)
+	 */
+	public static final int processErrorTailBytes = 4096;
+	
+	/**
+	 * Maximum number of milliseconds to wait for the output of an ended process to be read, before reporting it.
+	 * Normally the output ends right away, but a child process of the process may keep the pipe open
+	 */
+	public static final long processOutputEndTimeout = 1000;
+	
+	/**
+	 * Maximum number of failed regions that are described to the user (see RegionOutputError) after outputting files. The rest are only logged
+	 */
+	public static final int maxReportedRegionErrors = 5;
+	
+	/**
+	 * Maximum number of milliseconds ExporterEngine.cleanUp() waits for cancelled tasks to destroy their processes and delete the files they were writing.
+	 * Also the longest time a cancelled export waits for its output workers to do so before DONE_OUTPUTTING_FILES is sent
+	 */
+	public static final long cancelTimeout = 200;
+	
 	/**
 	 * String representation of this version of the program
 	 */
@@ -0,0 +1,884 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Hand-written scanner for very large Cubase track XML files.
+ * 
+ * The file is memory mapped and scanned directly as UTF-8 bytes. Tags and attributes are located by byte positions only,
+ * and element and attribute names are turned into Strings through a small table, so each distinct name is decoded once.
+ * Attribute values are only decoded when CubaseTrackXMLSaxParseHandler asks for them, and numeric values are parsed directly
+ * from the bytes (NumericAttributes). Subtrees the handler doesn't need (canSkipChildren()) are passed over by looking for '<' and counting depth.
+ * 
+ * It only supports the subset of XML found in the track files: elements, attributes, comments, processing instructions, 
+ * CDATA sections and a DOCTYPE without internal subset. Character data is ignored, since the handler doesn't use it.
+ * Files that are not UTF-8 or are larger than 2 GB are handed to CubaseTrackXMLStaxParser instead.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class CubaseTrackXMLByteScanner
+{
+	/**
+	 * Powers of ten that are exactly representable as doubles
+	 */
+	private static final double[] exactPowersOfTen = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+	
+	/**
+	 * Maximum number of Strings kept in the name table
+	 */
+	private static final int maxNameTableSize = 1 << 16;
+	
+	/**
+	 * NumericAttributes view of the attributes of the current start tag, given as byte positions in the mapped file.
+	 * Only valid during the call to startElement().
+	 * @author Jakob Hougaard Andersen
+	 *
+	 */
+	private class TagAttributes implements NumericAttributes
+	{
+		@Override
+		public double getDoubleValue(String qName)
+		{
+			int i = getIndex(qName);
+			if (i < 0 || valueStarts[i] == valueEnds[i])
+			{
+				return Double.NaN;
+			}
+			return parseDouble(valueStarts[i], valueEnds[i]);
+		}
+		
+		@Override
+		public int getIndex(String qName)
+		{
+			for (int i = 0; i < attributeCount; i++)
+			{
+				if (bytesEqual(nameStarts[i], nameEnds[i], qName))
+				{
+					return i;
+				}
+			}
+			return -1;
+		}
+		
+		@Override
+		public int getIndex(String uri, String localName)
+		{
+			return getIndex(localName);
+		}
+		
+		@Override
+		public int getLength()
+		{
+			return attributeCount;
+		}
+		
+		@Override
+		public String getLocalName(int index)
+		{
+			return getName(nameStarts[index], nameEnds[index]);
+		}
+		
+		@Override
+		public String getQName(int index)
+		{
+			return getLocalName(index);
+		}
+		
+		@Override
+		public String getType(int index)
+		{
+			return "CDATA";
+		}
+		
+		@Override
+		public String getType(String qName)
+		{
+			return getIndex(qName) < 0 ? null : "CDATA";
+		}
+		
+		@Override
+		public String getType(String uri, String localName)
+		{
+			return getType(localName);
+		}
+		
+		@Override
+		public String getURI(int index)
+		{
+			return "";
+		}
+		
+		@Override
+		public String getValue(int index)
+		{
+			return decodeValue(valueStarts[index], valueEnds[index]);
+		}
+		
+		@Override
+		public String getValue(String qName)
+		{
+			int i = getIndex(qName);
+			return i < 0 ? null : getValue(i);
+		}
+		
+		@Override
+		public String getValue(String uri, String localName)
+		{
+			return getValue(localName);
+		}
+	}
+	
+	/**
+	 * The mapped file
+	 */
+	private ByteBuffer buffer;
+	
+	/**
+	 * Size of the mapped file in bytes
+	 */
+	private int limit;
+	
+	/**
+	 * Number of attributes of the current start tag
+	 */
+	private int attributeCount;
+	
+	/**
+	 * Position of the first byte of each attribute name of the current start tag
+	 */
+	private int[] nameStarts = new int[16];
+	
+	/**
+	 * Position after the last byte of each attribute name
+	 */
+	private int[] nameEnds = new int[16];
+	
+	/**
+	 * Position of the first byte of each attribute value (inside the quotes)
+	 */
+	private int[] valueStarts = new int[16];
+	
+	/**
+	 * Position after the last byte of each attribute value
+	 */
+	private int[] valueEnds = new int[16];
+	
+	/**
+	 * The attributes of the current start tag
+	 */
+	private TagAttributes attributes = new TagAttributes();
+	
+	/**
+	 * Byte content of the names in the name table (open addressing, linear probing)
+	 */
+	private byte[][] nameTableKeys = new byte[1024][];
+	
+	/**
+	 * Strings of the names in the name table (same indexing as nameTableKeys)
+	 */
+	private String[] nameTableValues = new String[1024];
+	
+	/**
+	 * Number of names in the name table
+	 */
+	private int nameTableSize = 0;
+	
+	/**
+	 * Parses a Cubase track XML file
+	 * @param file
+	 * @param handler receives the (relevant) elements. Get the result from it afterwards
+	 * @throws IOException if the file can't be read
+	 * @throws SAXException if the file is not well-formed (as far as the scanner checks) or the handler throws it
+	 * @throws XMLStreamException if the file is handed to CubaseTrackXMLStaxParser and is not well-formed XML
+	 */
+	public void parse(File file, CubaseTrackXMLSaxParseHandler handler) throws IOException, SAXException, XMLStreamException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+			{
+				Debug.log("Track XML file larger than 2 GB. Using the pull parser instead of the byte scanner");
+				new CubaseTrackXMLStaxParser().parse(file, handler);
+				return;
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			limit = (int)size;
+		}
+		
+		int pos = 0;
+		if (limit >= 3 && byteAt(0) == 0xef && byteAt(1) == 0xbb && byteAt(2) == 0xbf)
+		{
+			pos = 3; //UTF-8 byte order mark
+		}
+		if (!isUtf8(pos))
+		{
+			Debug.log("Track XML file is not UTF-8. Using the pull parser instead of the byte scanner");
+			buffer = null;
+			new CubaseTrackXMLStaxParser().parse(file, handler);
+			return;
+		}
+		
+		try
+		{
+			handler.startDocument();
+			int depth = 0;
+			while (true)
+			{
+				pos = indexOf('<', pos);
+				if (pos < 0)
+				{
+					break;
+				}
+				pos += 1;
+				int c = byteAt(pos);
+				if (c == '?' || c == '!')
+				{
+					pos = skipSpecial(pos);
+				}
+				else if (c == '/')
+				{
+					int nameEnd = scanName(pos + 1);
+					String name = getName(pos + 1, nameEnd);
+					pos = indexOf('>', nameEnd);
+					if (pos < 0 || depth == 0)
+					{
+						throw error("Unexpected end tag", nameEnd);
+					}
+					pos += 1;
+					depth -= 1;
+					handler.endElement("", name, name);
+				}
+				else
+				{
+					int nameEnd = scanName(pos);
+					if (nameEnd == pos)
+					{
+						throw error("Missing element name", pos);
+					}
+					String name = getName(pos, nameEnd);
+					pos = scanAttributes(nameEnd);
+					boolean empty = byteAt(pos) == '/';
+					pos += empty ? 2 : 1;
+					handler.startElement("", name, name, attributes);
+					if (empty)
+					{
+						handler.endElement("", name, name);
+					}
+					else if (handler.canSkipChildren())
+					{
+						pos = skipChildren(pos);
+						handler.endElement("", name, name);
+					}
+					else
+					{
+						depth += 1;
+					}
+				}
+			}
+			if (depth != 0)
+			{
+				throw error("Unexpected end of file", limit);
+			}
+			handler.endDocument();
+		}
+		finally
+		{
+			buffer = null;
+		}
+	}
+	
+	/**
+	 * @param pos
+	 * @return the byte at pos (0 to 255), or -1 if pos is beyond the end of the file
+	 */
+	private int byteAt(int pos)
+	{
+		return pos < limit ? buffer.get(pos) & 0xff : -1;
+	}
+	
+	/**
+	 * Compares bytes of the file with an ASCII string
+	 * @param start
+	 * @param end
+	 * @param s
+	 * @return true if the bytes from start to end are the characters of s
+	 */
+	private boolean bytesEqual(int start, int end, String s)
+	{
+		if (end - start != s.length())
+		{
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++)
+		{
+			if (buffer.get(start + i) != s.charAt(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Decodes an attribute value: UTF-8, attribute value normalization of tabs and line breaks, and entity and character references
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	private String decodeValue(int start, int end)
+	{
+		boolean plain = true;
+		for (int i = start; i < end; i++)
+		{
+			byte b = buffer.get(i);
+			if (b == '&' || b == '\t' || b == '\n' || b == '\r')
+			{
+				plain = false;
+				break;
+			}
+		}
+		if (plain && end - start <= 64)
+		{
+			return getName(start, end);
+		}
+		String s = decodeUtf8(start, end);
+		if (plain)
+		{
+			return s;
+		}
+		//Line breaks and tabs in attribute values are read as spaces (a CR LF pair as one space)
+		s = s.replace("\r\n", " ").replace('\r', ' ').replace('\n', ' ').replace('\t', ' ');
+		StringBuilder sb = new StringBuilder(s.length());
+		int i = 0;
+		while (i < s.length())
+		{
+			char c = s.charAt(i);
+			int semicolon = (c == '&') ? s.indexOf(';', i) : -1;
+			if (semicolon < 0)
+			{
+				sb.append(c);
+				i += 1;
+				continue;
+			}
+			String entity = s.substring(i + 1, semicolon);
+			if (entity.equals("amp"))
+			{
+				sb.append('&');
+			}
+			else if (entity.equals("lt"))
+			{
+				sb.append('<');
+			}
+			else if (entity.equals("gt"))
+			{
+				sb.append('>');
+			}
+			else if (entity.equals("quot"))
+			{
+				sb.append('"');
+			}
+			else if (entity.equals("apos"))
+			{
+				sb.append('\'');
+			}
+			else if (entity.startsWith("#x") || entity.startsWith("#X"))
+			{
+				sb.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+			}
+			else if (entity.startsWith("#"))
+			{
+				sb.appendCodePoint(Integer.parseInt(entity.substring(1)));
+			}
+			else
+			{
+				sb.append(s, i, semicolon + 1);
+			}
+			i = semicolon + 1;
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * @param start
+	 * @param end
+	 * @return the bytes from start to end decoded as UTF-8
+	 */
+	private String decodeUtf8(int start, int end)
+	{
+		byte[] bytes = new byte[end - start];
+		buffer.get(start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Creates an error for malformed input
+	 * @param message
+	 * @param pos
+	 * @return
+	 */
+	private static SAXException error(String message, int pos)
+	{
+		return new SAXException(message + " at byte " + pos);
+	}
+	
+	/**
+	 * Returns the String of a name (or short value) through the name table, so the same bytes always give the same String instance
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	private String getName(int start, int end)
+	{
+		int hash = 0;
+		for (int i = start; i < end; i++)
+		{
+			hash = (31 * hash) + buffer.get(i);
+		}
+		int mask = nameTableKeys.length - 1;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		while (nameTableKeys[slot] != null)
+		{
+			byte[] key = nameTableKeys[slot];
+			if (key.length == end - start)
+			{
+				boolean equal = true;
+				for (int i = 0; i < key.length; i++)
+				{
+					if (key[i] != buffer.get(start + i))
+					{
+						equal = false;
+						break;
+					}
+				}
+				if (equal)
+				{
+					return nameTableValues[slot];
+				}
+			}
+			slot = (slot + 1) & mask;
+		}
+		String s = decodeUtf8(start, end);
+		if (nameTableSize < maxNameTableSize)
+		{
+			byte[] key = new byte[end - start];
+			buffer.get(start, key);
+			nameTableKeys[slot] = key;
+			nameTableValues[slot] = s;
+			nameTableSize += 1;
+			if (nameTableSize * 2 > nameTableKeys.length)
+			{
+				growNameTable();
+			}
+		}
+		return s;
+	}
+	
+	/**
+	 * Doubles the size of the name table
+	 */
+	private void growNameTable()
+	{
+		byte[][] oldKeys = nameTableKeys;
+		String[] oldValues = nameTableValues;
+		nameTableKeys = new byte[oldKeys.length * 2][];
+		nameTableValues = new String[oldKeys.length * 2];
+		int mask = nameTableKeys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			byte[] key = oldKeys[i];
+			if (key != null)
+			{
+				int hash = 0;
+				for (int j = 0; j < key.length; j++)
+				{
+					hash = (31 * hash) + key[j];
+				}
+				int slot = (hash ^ (hash >>> 16)) & mask;
+				while (nameTableKeys[slot] != null)
+				{
+					slot = (slot + 1) & mask;
+				}
+				nameTableKeys[slot] = key;
+				nameTableValues[slot] = oldValues[i];
+			}
+		}
+	}
+	
+	/**
+	 * @param b
+	 * @param from
+	 * @return position of the first occurrence of byte b at or after from, or -1 if none
+	 */
+	private int indexOf(int b, int from)
+	{
+		for (int i = from; i < limit; i++)
+		{
+			if (buffer.get(i) == b)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param s ASCII string
+	 * @param from
+	 * @return position of the first occurrence of s at or after from, or -1 if none
+	 */
+	private int indexOf(String s, int from)
+	{
+		int first = s.charAt(0);
+		int pos = indexOf(first, from);
+		while (pos >= 0 && pos + s.length() <= limit)
+		{
+			if (bytesEqual(pos, pos + s.length(), s))
+			{
+				return pos;
+			}
+			pos = indexOf(first, pos + 1);
+		}
+		return -1;
+	}
+	
+	/**
+	 * Checks that the encoding given in the XML declaration (if any) is UTF-8 or ASCII and that the file is not UTF-16
+	 * @param pos start of the document (after any byte order mark)
+	 * @return
+	 */
+	private boolean isUtf8(int pos)
+	{
+		if (limit >= pos + 2 && (byteAt(pos) == 0 || byteAt(pos + 1) == 0 || byteAt(pos) >= 0xfe))
+		{
+			return false; //UTF-16 or UTF-32
+		}
+		if (limit >= pos + 5 && bytesEqual(pos, pos + 5, "<?xml"))
+		{
+			int end = indexOf("?>", pos);
+			if (end < 0)
+			{
+				return false;
+			}
+			String declaration = decodeUtf8(pos, end).toLowerCase();
+			int e = declaration.indexOf("encoding");
+			if (e >= 0)
+			{
+				return declaration.indexOf("utf-8", e) >= 0 || declaration.indexOf("utf8", e) >= 0 || declaration.indexOf("ascii", e) >= 0;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param c
+	 * @return true if c is XML white space
+	 */
+	private static boolean isWhiteSpace(int c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+	
+	/**
+	 * Parses a number from the file like Double.parseDouble().
+	 * Decimal numbers with up to 15 significant digits and a small exponent are calculated directly from the digits,
+	 * which gives the correctly rounded result. Anything else is handed to Double.parseDouble().
+	 * @param start
+	 * @param end
+	 * @return
+	 * @throws NumberFormatException
+	 */
+	private double parseDouble(int start, int end)
+	{
+		int i = start;
+		while (i < end && isWhiteSpace(byteAt(i)))
+		{
+			i += 1;
+		}
+		int last = end;
+		while (last > i && isWhiteSpace(byteAt(last - 1)))
+		{
+			last -= 1;
+		}
+		boolean negative = false;
+		if (i < last && (byteAt(i) == '-' || byteAt(i) == '+'))
+		{
+			negative = byteAt(i) == '-';
+			i += 1;
+		}
+		long mantissa = 0;
+		int significantDigits = 0;
+		int digits = 0;
+		int exponent = 0;
+		while (i < last && byteAt(i) >= '0' && byteAt(i) <= '9')
+		{
+			mantissa = (mantissa * 10) + (byteAt(i) - '0');
+			if (mantissa != 0)
+			{
+				significantDigits += 1;
+			}
+			digits += 1;
+			i += 1;
+		}
+		if (i < last && byteAt(i) == '.')
+		{
+			i += 1;
+			while (i < last && byteAt(i) >= '0' && byteAt(i) <= '9')
+			{
+				mantissa = (mantissa * 10) + (byteAt(i) - '0');
+				if (mantissa != 0)
+				{
+					significantDigits += 1;
+				}
+				digits += 1;
+				exponent -= 1;
+				i += 1;
+			}
+		}
+		if (i < last && (byteAt(i) == 'e' || byteAt(i) == 'E'))
+		{
+			i += 1;
+			boolean negativeExponent = false;
+			if (i < last && (byteAt(i) == '-' || byteAt(i) == '+'))
+			{
+				negativeExponent = byteAt(i) == '-';
+				i += 1;
+			}
+			int e = 0;
+			int exponentDigits = 0;
+			while (i < last && byteAt(i) >= '0' && byteAt(i) <= '9' && exponentDigits < 6)
+			{
+				e = (e * 10) + (byteAt(i) - '0');
+				exponentDigits += 1;
+				i += 1;
+			}
+			if (exponentDigits == 0)
+			{
+				i = -1; //Malformed. Let Double.parseDouble() throw
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+		if (i != last || digits == 0 || significantDigits > 15 || exponent < -22 || exponent > 22)
+		{
+			return Double.parseDouble(decodeUtf8(start, end));
+		}
+		double value = (exponent >= 0) ? mantissa * exactPowersOfTen[exponent] : mantissa / exactPowersOfTen[-exponent];
+		return negative ? -value : value;
+	}
+	
+	/**
+	 * Reads the attributes of a start tag into nameStarts, nameEnds, valueStarts and valueEnds
+	 * @param pos position after the element name
+	 * @return position of the '>' or '/>' ending the tag
+	 * @throws SAXException if the tag is malformed
+	 */
+	private int scanAttributes(int pos) throws SAXException
+	{
+		attributeCount = 0;
+		while (true)
+		{
+			int c = byteAt(pos);
+			while (isWhiteSpace(c))
+			{
+				pos += 1;
+				c = byteAt(pos);
+			}
+			if (c == '>' || (c == '/' && byteAt(pos + 1) == '>'))
+			{
+				return pos;
+			}
+			int nameEnd = scanName(pos);
+			if (nameEnd == pos)
+			{
+				throw error("Malformed start tag", pos);
+			}
+			int p = nameEnd;
+			while (isWhiteSpace(byteAt(p)))
+			{
+				p += 1;
+			}
+			if (byteAt(p) != '=')
+			{
+				throw error("Missing '=' in attribute", p);
+			}
+			p += 1;
+			while (isWhiteSpace(byteAt(p)))
+			{
+				p += 1;
+			}
+			int quote = byteAt(p);
+			if (quote != '"' && quote != '\'')
+			{
+				throw error("Missing quote in attribute", p);
+			}
+			int valueEnd = indexOf(quote, p + 1);
+			if (valueEnd < 0)
+			{
+				throw error("Unterminated attribute value", p);
+			}
+			if (attributeCount == nameStarts.length)
+			{
+				nameStarts = java.util.Arrays.copyOf(nameStarts, attributeCount * 2);
+				nameEnds = java.util.Arrays.copyOf(nameEnds, attributeCount * 2);
+				valueStarts = java.util.Arrays.copyOf(valueStarts, attributeCount * 2);
+				valueEnds = java.util.Arrays.copyOf(valueEnds, attributeCount * 2);
+			}
+			nameStarts[attributeCount] = pos;
+			nameEnds[attributeCount] = nameEnd;
+			valueStarts[attributeCount] = p + 1;
+			valueEnds[attributeCount] = valueEnd;
+			attributeCount += 1;
+			pos = valueEnd + 1;
+		}
+	}
+	
+	/**
+	 * @param pos
+	 * @return position after the XML name starting at pos (pos if there is none)
+	 */
+	private int scanName(int pos)
+	{
+		while (pos < limit)
+		{
+			int c = buffer.get(pos) & 0xff;
+			if (isWhiteSpace(c) || c == '>' || c == '/' || c == '=' || c == '<' || c == '"' || c == '\'')
+			{
+				break;
+			}
+			pos += 1;
+		}
+		return pos;
+	}
+	
+	/**
+	 * Skips everything up to and including the end tag matching a start tag
+	 * @param pos position after the start tag
+	 * @return position after the matching end tag
+	 * @throws SAXException if the end of the file is reached
+	 */
+	private int skipChildren(int pos) throws SAXException
+	{
+		int depth = 1;
+		while (true)
+		{
+			pos = indexOf('<', pos);
+			if (pos < 0)
+			{
+				throw error("Unexpected end of file", limit);
+			}
+			pos += 1;
+			int c = byteAt(pos);
+			if (c == '?' || c == '!')
+			{
+				pos = skipSpecial(pos);
+			}
+			else if (c == '/')
+			{
+				pos = indexOf('>', pos);
+				if (pos < 0)
+				{
+					throw error("Unexpected end of file", limit);
+				}
+				pos += 1;
+				depth -= 1;
+				if (depth == 0)
+				{
+					return pos;
+				}
+			}
+			else
+			{
+				//Find the end of the start tag. Attribute values may contain '>'
+				int quote = 0;
+				while (true)
+				{
+					c = byteAt(pos);
+					if (c < 0)
+					{
+						throw error("Unexpected end of file", limit);
+					}
+					if (quote != 0)
+					{
+						if (c == quote)
+						{
+							quote = 0;
+						}
+					}
+					else if (c == '"' || c == '\'')
+					{
+						quote = c;
+					}
+					else if (c == '>')
+					{
+						break;
+					}
+					pos += 1;
+				}
+				if (byteAt(pos - 1) != '/')
+				{
+					depth += 1;
+				}
+				pos += 1;
+			}
+		}
+	}
+	
+	/**
+	 * Skips a processing instruction, comment, CDATA section or DOCTYPE
+	 * @param pos position of the '?' or '!' after '<'
+	 * @return position after it
+	 * @throws SAXException if it is not terminated
+	 */
+	private int skipSpecial(int pos) throws SAXException
+	{
+		String terminator;
+		if (byteAt(pos) == '?')
+		{
+			terminator = "?>";
+		}
+		else if (limit >= pos + 3 && bytesEqual(pos, pos + 3, "!--"))
+		{
+			terminator = "-->";
+		}
+		else if (limit >= pos + 8 && bytesEqual(pos, pos + 8, "![CDATA["))
+		{
+			terminator = "]]>";
+		}
+		else
+		{
+			terminator = ">";
+		}
+		int end = indexOf(terminator, pos);
+		if (end < 0)
+		{
+			throw error("Unterminated markup", pos);
+		}
+		return end + terminator.length();
+	}
+}
@@ -16,11 +16,15 @@
 
 package dk.jakobhandersen.multiregionexporterforcubase;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -33,8 +37,9 @@ import org.xml.sax.helpers.DefaultHandler;
  * Note: I have no previous experience in working with SAX parsing, so this class might not be very elegant.
  * A future task will be to either review and refine this parser or to write another non-SAX parser.
  * 
- * Also, there is currently quite a lot of duplicate code for the different event types that could be encapsulated.
- * And furthermore an idea could be to change from first checking the qName of the element into first checking the relevant attribute.
+ * The element names, class attributes and name attributes are mapped to enums through lookup tables (cached per distinct string),
+ * and what to do inside each content relevant element is described by the fieldRules table.
+ * Attributes are only read when the current state needs them, so most elements of a large file cost a single map lookup.
  * 
  * Inspiration: http://www.journaldev.com/1198/java-sax-parser-example-tutorial-to-parse-xml-to-list-of-objects
  * Inspiration: http://docs.oracle.com/javase/tutorial/jaxp/sax/parsing.html
@@ -44,6 +49,202 @@ import org.xml.sax.helpers.DefaultHandler;
  */
 public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 {
+	/**
+	 * Element names (qName) that are relevant to the parsing
+	 */
+	private enum Tag {OBJ, STRING, FLOAT, INT, MEMBER, OTHER};
+	
+	/**
+	 * Values of the name attribute that are relevant to the parsing
+	 */
+	private enum Member {DESCRIPTION, NAME, START, LENGTH, AUDIOCLIP, SAMPLERATE, BPM, PPQ, FUNC, DOMAIN, TYPE, REHEARSALTEMPO, REHEARSALMODE, OTHER};
+	
+	/**
+	 * What to do with an element found inside a content relevant element. See applyFieldAction()
+	 */
+	private enum FieldAction 
+	{
+		SET_NAME(false), SET_NAME_FROM_CLIP_ID(false), SET_CLIP_NAME(false), SET_START(true), SET_LENGTH(true), SET_LENGTH_SAMPLES(true), 
+		SET_SAMPLE_RATE(true), TEMPO_BPM(true), TEMPO_PPQ(true), TEMPO_FUNC(false);
+		
+		/**
+		 * Does the action use the value attribute as a double?
+		 */
+		final boolean usesDouble;
+		
+		/**
+		 * Constructor
+		 * @param usesDouble
+		 */
+		FieldAction(boolean usesDouble)
+		{
+			this.usesDouble = usesDouble;
+		}
+	};
+	
+	/**
+	 * A FieldAction and the level (below the content relevant element) it applies at
+	 */
+	private static class FieldRule
+	{
+		/**
+		 * Level the rule applies at (1 = children). 0 means any level
+		 */
+		final int level;
+		
+		/**
+		 * The action
+		 */
+		final FieldAction action;
+		
+		/**
+		 * Constructor
+		 * @param level
+		 * @param action
+		 */
+		FieldRule(int level, FieldAction action)
+		{
+			this.level = level;
+			this.action = action;
+		}
+	}
+	
+	/**
+	 * Maps lower case element names to Tag
+	 */
+	private static final Map<String,Tag> tags = new HashMap<String,Tag>();
+	
+	/**
+	 * Maps lower case obj class names to ElementType
+	 */
+	private static final Map<String,ElementType> objClasses = new HashMap<String,ElementType>();
+	
+	/**
+	 * Maps lower case name attribute values to Member
+	 */
+	private static final Map<String,Member> members = new HashMap<String,Member>();
+	
+	/**
+	 * The rules for elements inside content relevant elements. Indexed as [ElementType][Tag][Member].
+	 * fieldRules[e][t] is null if no element with Tag t matters inside ElementType e, so the name attribute isn't even read.
+	 */
+	private static final FieldRule[][][] fieldRules = new FieldRule[ElementType.values().length][Tag.values().length][];
+	
+	/**
+	 * The deepest level (below the content relevant element) with a rule, for each ElementType. Integer.MAX_VALUE if a rule applies at any level.
+	 * Elements below this level can't change anything. See canSkipChildren()
+	 */
+	private static final int[] maxFieldRuleLevels = new int[ElementType.values().length];
+	
+	/**
+	 * Lower case classes of the obj elements inside a track (outside content relevant elements) that can hold regions.
+	 * The regions of a track are in the Events list of its MListNode (and the parts hold regions too).
+	 * Any other obj with a class inside a track, like the track's channel and device settings, can't hold regions, tempo events or project settings. See canSkipChildren()
+	 */
+	private static final Set<String> trackContainerClasses = new HashSet<String>(Arrays.asList("mlistnode", "maudiopart", "mmidipart"));
+	
+	/**
+	 * Maximum number of entries in each of the caches below. Names beyond this are looked up the slow way every time.
+	 */
+	private static final int maxCacheSize = 10000;
+	
+	static
+	{
+		for (Tag t : Tag.values())
+		{
+			tags.put(t.toString().toLowerCase(Locale.ROOT), t);
+		}
+		tags.remove("other");
+		for (Member m : Member.values())
+		{
+			members.put(m.toString().toLowerCase(Locale.ROOT), m);
+		}
+		members.remove("other");
+		for (ElementType e : ElementType.values())
+		{
+			objClasses.put(e.toString().toLowerCase(Locale.ROOT), e);
+		}
+		objClasses.remove("none");
+		
+		addFieldRule(ElementType.MAudioEvent, 1, Tag.STRING, Member.DESCRIPTION, FieldAction.SET_NAME);
+		addFieldRule(ElementType.MAudioEvent, 1, Tag.FLOAT, Member.START, FieldAction.SET_START);
+		addFieldRule(ElementType.MAudioEvent, 1, Tag.FLOAT, Member.LENGTH, FieldAction.SET_LENGTH_SAMPLES);
+		addFieldRule(ElementType.MAudioEvent, 1, Tag.OBJ, Member.AUDIOCLIP, FieldAction.SET_NAME_FROM_CLIP_ID);
+		
+		addFieldRule(ElementType.PAudioClip, 1, Tag.STRING, Member.NAME, FieldAction.SET_CLIP_NAME);
+		
+		addFieldRule(ElementType.MAudioPartEvent, 1, Tag.FLOAT, Member.START, FieldAction.SET_START);
+		addFieldRule(ElementType.MAudioPartEvent, 1, Tag.FLOAT, Member.LENGTH, FieldAction.SET_LENGTH);
+		
+		addFieldRule(ElementType.MAudioPart, 1, Tag.STRING, Member.NAME, FieldAction.SET_NAME);
+		
+		addFieldRule(ElementType.MRangeMarkerEvent, 1, Tag.FLOAT, Member.START, FieldAction.SET_START);
+		addFieldRule(ElementType.MRangeMarkerEvent, 1, Tag.FLOAT, Member.LENGTH, FieldAction.SET_LENGTH);
+		addFieldRule(ElementType.MRangeMarkerEvent, 1, Tag.STRING, Member.NAME, FieldAction.SET_NAME);
+		
+		addFieldRule(ElementType.MMidiPartEvent, 1, Tag.FLOAT, Member.START, FieldAction.SET_START);
+		addFieldRule(ElementType.MMidiPartEvent, 1, Tag.FLOAT, Member.LENGTH, FieldAction.SET_LENGTH);
+		//Note that the name of the MMidiPartEvent is actually set in a sub object called MMidiPart
+		//but it seems that there is always only one MMidiPart within an MMidiPartEvent
+		//so we just treat the whole thing as an MMidiPartEvent and check for indentation (2) to get the name
+		addFieldRule(ElementType.MMidiPartEvent, 2, Tag.STRING, Member.NAME, FieldAction.SET_NAME);
+		
+		addFieldRule(ElementType.PArrangeSetup, 1, Tag.FLOAT, Member.SAMPLERATE, FieldAction.SET_SAMPLE_RATE);
+		
+		//Tempo values are read from any element at any level
+		for (Tag t : Tag.values())
+		{
+			addFieldRule(ElementType.MTempoEvent, 0, t, Member.BPM, FieldAction.TEMPO_BPM);
+			addFieldRule(ElementType.MTempoEvent, 0, t, Member.PPQ, FieldAction.TEMPO_PPQ);
+			addFieldRule(ElementType.MTempoEvent, 0, t, Member.FUNC, FieldAction.TEMPO_FUNC);
+		}
+	}
+	
+	/**
+	 * Adds a rule to fieldRules
+	 * @param element the content relevant element the rule applies inside
+	 * @param level level below element (1 = children). 0 means any level
+	 * @param tag
+	 * @param member
+	 * @param action
+	 */
+	private static void addFieldRule(ElementType element, int level, Tag tag, Member member, FieldAction action)
+	{
+		FieldRule[][] byTag = fieldRules[element.ordinal()];
+		if (byTag[tag.ordinal()] == null)
+		{
+			byTag[tag.ordinal()] = new FieldRule[Member.values().length];
+		}
+		byTag[tag.ordinal()][member.ordinal()] = new FieldRule(level, action);
+		int maxLevel = (level == 0) ? Integer.MAX_VALUE : level;
+		maxFieldRuleLevels[element.ordinal()] = Math.max(maxFieldRuleLevels[element.ordinal()], maxLevel);
+	}
+	
+	/**
+	 * Maps element names as they appear in the file to Tag, so each distinct name is only lower-cased and looked up once
+	 */
+	private Map<String,Tag> tagCache = new HashMap<String,Tag>();
+	
+	/**
+	 * Maps class attribute values as they appear in the file to ElementType
+	 */
+	private Map<String,ElementType> objClassCache = new HashMap<String,ElementType>();
+	
+	/**
+	 * Maps name attribute values as they appear in the file to Member
+	 */
+	private Map<String,Member> memberCache = new HashMap<String,Member>();
+	
+	/**
+	 * Maps class attribute values as they appear in the file to whether they are in trackContainerClasses
+	 */
+	private Map<String,Boolean> trackContainerCache = new HashMap<String,Boolean>();
+	
+	/**
+	 * Is the element just started an obj inside a track (outside content relevant elements) whose class can't hold regions? See canSkipChildren()
+	 */
+	private boolean startedObjCannotHoldRegions = false;
+	
 	/**
 	 * The resulting list of AudioBites.
 	 */
@@ -124,7 +325,42 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 	
 	private TempoSetting tempoSetting;
 	
+	/**
+	 * If set, each finished AudioBite is passed to this at the end tag of its element instead of being kept in audioBites
+	 */
+	private AudioBiteReceiver audioBiteReceiver = null;
 	
+	/**
+	 * If true, only the tempo and project settings are read. Regions are ignored and the contents of tracks can be skipped.
+	 */
+	private boolean timingOnly = false;
+	
+	/**
+	 * Tells whether the children of the element just started (by the last call to startElement()) can be skipped, 
+	 * because nothing inside it can change the result. Used by CubaseTrackXMLStaxParser and CubaseTrackXMLByteScanner.
+	 * This is the case for elements inside a content relevant element (within a track) that are deeper than any of the element's fieldRules,
+	 * and for obj elements inside a track (outside content relevant elements) whose class is not in trackContainerClasses.
+	 * If the children are skipped, endElement() must still be called for the element itself.
+	 * @return true if the children can be skipped
+	 */
+	public boolean canSkipChildren()
+	{
+		if (timingOnly && currentlyWithinTrack != ElementType.None && subTrackNodeLevel == 0)
+		{
+			//A track was just entered. Tempo and project settings are not inside tracks
+			return true;
+		}
+		if (startedObjCannotHoldRegions)
+		{
+			return true;
+		}
+		if (currentlyParsingElement == ElementType.None || currentlyWithinTrack == ElementType.None)
+		{
+			return false;
+		}
+		//The children are one level below the element just started
+		return subElementNodeLevel + 1 > maxFieldRuleLevels[currentlyParsingElement.ordinal()];
+	}
 	
 	@Override
 	public void characters(char ch[], int start, int length) throws SAXException 
@@ -141,19 +377,19 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 	    }
 	    else
 	    {
-	        Debug.log("Error: tempo setting is not properly set up from XML");
+	        Debug.log(LogLevel.ERROR, "Tempo setting is not properly set up from XML");
 	    }
 	    
 	    
 		if (sampleRateSet)
 		{
 			finalizeAudioBites();
-			Debug.log("Number of properly set up audio bites = " +audioBites.size());
+			Debug.log(LogLevel.INFO, "Number of properly set up audio bites = {}", audioBites.size());
 		}
 		else
 		{
 			//Error no sample rate set
-			Debug.log("Error: no sample rate set");
+			Debug.log(LogLevel.ERROR, "No sample rate set");
 		}
 	}
 	
@@ -165,7 +401,7 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 			if (subElementNodeLevel == 0)
 			{
 				//End parsing event
-				Debug.log("Ending parsing "+currentlyParsingElement.toString());
+				Debug.log(LogLevel.DEBUG, "Ending parsing {}", currentlyParsingElement);
 				if ((currentlyParsingElement != ElementType.MAudioPart) && (currentlyParsingElement != ElementType.PAudioClip))
 				{
 				    //If
@@ -178,7 +414,14 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 				    //If we are currently setting up an AudioBite (should not be the case if we are currently parsing a MTempoEvent) finish the setup
 				    if (currentlySettingUpBite != null)
 					{
-						audioBites.add(currentlySettingUpBite);
+				    	if (audioBiteReceiver != null)
+				    	{
+				    		audioBiteReceiver.audioBiteParsed(currentlySettingUpBite);
+				    	}
+				    	else
+				    	{
+				    		audioBites.add(currentlySettingUpBite);
+				    	}
 					}
 					currentlySettingUpBite = null;
 					
@@ -217,7 +460,7 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 			if (subTrackNodeLevel == 0)
 			{
 				//Exiting track
-				Debug.log("Exiting track "+ currentlyWithinTrack.toString());
+				Debug.log(LogLevel.DEBUG, "Exiting track {}", currentlyWithinTrack);
 				currentlyWithinTrack = ElementType.None;
 			}
 			else
@@ -245,6 +488,51 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 		return numRenamedAudioBites;
 	}
 	
+	/**
+	 * @return the project sample rate read from the file. Only valid if getSampleRateSet() returns true
+	 */
+	public double getSampleRate()
+	{
+		return sampleRate;
+	}
+	
+	/**
+	 * @return has the project sample rate been read?
+	 */
+	public boolean getSampleRateSet()
+	{
+		return sampleRateSet;
+	}
+	
+	/**
+	 * @return the tempo setting read from the file. Finalized when the parsing is done
+	 */
+	public TempoSetting getTempoSetting()
+	{
+		return tempoSetting;
+	}
+	
+	/**
+	 * Makes the handler pass each AudioBite to a receiver as soon as its element has been read, instead of collecting them.
+	 * getAudioBites() then returns an empty list. Must be called before parsing.
+	 * @param receiver the receiver, or null to collect the AudioBites as usual
+	 */
+	public void setAudioBiteReceiver(AudioBiteReceiver receiver)
+	{
+		audioBiteReceiver = receiver;
+	}
+	
+	/**
+	 * Makes the handler only read the tempo and project settings (sample rate) and ignore regions.
+	 * With CubaseTrackXMLStaxParser or CubaseTrackXMLByteScanner the contents of all tracks are skipped, so this is much faster than a full parse.
+	 * Must be called before parsing.
+	 * @param timingOnly
+	 */
+	public void setTimingOnly(boolean timingOnly)
+	{
+		this.timingOnly = timingOnly;
+	}
+	
 	@Override
 	public void startDocument()
 	{
@@ -254,6 +542,7 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 		sampleRateSet = false;
 		currentlyWithinTrack = ElementType.None;
 		subTrackNodeLevel = 0;
+		startedObjCannotHoldRegions = false;
 		currentlyParsingElement = ElementType.None;
 		subElementNodeLevel = 0;
 		numRenamedAudioBites = 0;
@@ -265,11 +554,17 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 	@Override
 	public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException 
 	{
-		//Get class attribute, name attribute and value attribute of element (if present)
-		//We might optimize by only getting these when absolutely necessary, but is is easier to manage code-wise by always getting them here
-		String classAttr = attributes.getValue("class");
-		String nameAttr = attributes.getValue("name");
-		String valueAttr = attributes.getValue("value");
+		//Attributes are only read when the current state needs them
+		Tag tag = getTag(qName);
+		String classAttr = null;
+		ElementType objClass = ElementType.None;
+		if (tag == Tag.OBJ && (currentlyWithinTrack == ElementType.None || currentlyParsingElement == ElementType.None 
+				|| currentlyParsingElement == ElementType.MAudioPartEvent || currentlyParsingElement == ElementType.MAudioEvent))
+		{
+			classAttr = attributes.getValue("class");
+			objClass = getObjClass(classAttr);
+		}
+		startedObjCannotHoldRegions = false;
 		
 		boolean justEnteredDomainMember = false;
 		
@@ -277,33 +572,18 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 		//Check for track
 		if (currentlyWithinTrack == ElementType.None)
 		{
-			if (qName.equalsIgnoreCase("obj"))
+			switch (objClass)
 			{
-				if (classAttr != null)
-				{
-					if (classAttr.equalsIgnoreCase("MAudioTrackEvent"))
-					{
-						currentlyWithinTrack = ElementType.MAudioTrackEvent;
-					}
-					else if (classAttr.equalsIgnoreCase("MMarkerTrackEvent"))
-					{
-						currentlyWithinTrack = ElementType.MMarkerTrackEvent;
-						
-					}
-					else if (classAttr.equalsIgnoreCase("MMidiTrackEvent"))
-					{
-					    currentlyWithinTrack = ElementType.MMidiTrackEvent;
-					}
-					else if (classAttr.equalsIgnoreCase("MInstrumentTrackEvent"))
-					{
-					    currentlyWithinTrack = ElementType.MInstrumentTrackEvent;
-					}
-					
-					if (currentlyWithinTrack != ElementType.None)
-					{
-					    Debug.log("Entering track " + currentlyWithinTrack.toString());
-					}
-				}
+			case MAudioTrackEvent:
+			case MMarkerTrackEvent:
+			case MMidiTrackEvent:
+			case MInstrumentTrackEvent:
+				currentlyWithinTrack = objClass;
+				Debug.log(LogLevel.DEBUG, "Entering track {}", currentlyWithinTrack);
+				break;
+				
+			default:
+				break;
 			}
 		}
 		else
@@ -316,397 +596,92 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 		if (currentlyParsingElement != ElementType.None)
 		{
 			subElementNodeLevel += 1;
-			switch (currentlyParsingElement)
+			FieldRule[] rules = fieldRules[currentlyParsingElement.ordinal()][tag.ordinal()];
+			if (rules != null)
 			{
-			case MAudioEvent:
-				if (subElementNodeLevel == 1)
+				Member member = getMember(attributes.getValue("name"));
+				FieldRule rule = rules[member.ordinal()];
+				if (rule != null && (rule.level == 0 || rule.level == subElementNodeLevel))
 				{
-					if (qName.equalsIgnoreCase("string"))
-					{
-						if (nameAttr != null && nameAttr.equalsIgnoreCase("Description"))
-						{
-							if (valueAttr != null && (! valueAttr.isEmpty()))
-							{
-								currentlySettingUpBite.setName(valueAttr);
-							}
-						}
-					}
-					else if (qName.equalsIgnoreCase("float"))
-					{
-						if (nameAttr != null && nameAttr.equalsIgnoreCase("Start"))
-						{
-							if (valueAttr != null && (! valueAttr.isEmpty()))
-							{
-								if (this.currentDomainType == 0)
-								{
-									//Start position is defined in midi ticks
-									currentlySettingUpBite.setStartValue(Double.parseDouble(valueAttr),TimeFormat.MIDI_TICKS);
-								}
-								else if (this.currentDomainType == 1)
-								{
-									//Start position is defined in seconds
-									currentlySettingUpBite.setStartValue(Double.parseDouble(valueAttr),TimeFormat.SECONDS);
-								}
-							}
-						}
-						else if (nameAttr != null && nameAttr.equalsIgnoreCase("Length"))
-						{
-							if (valueAttr != null && (! valueAttr.isEmpty()))
-							{
-								//Length is defined in samples (project sample rate) on audio events
-								currentlySettingUpBite.setLengthValue(Double.parseDouble(valueAttr), TimeFormat.SAMPLES);
-							}
-						}
-					}
-					else if (qName.equalsIgnoreCase("obj"))
-					{
-						if (nameAttr != null && nameAttr.equalsIgnoreCase("AudioClip"))
-						{
-							String IDAttr = attributes.getValue("ID");
-							if (IDAttr != null)
-							{
-								if (audioClipIdNameMap.containsKey(IDAttr))
-								{
-									currentlySettingUpBite.setNameFromAudioFileName(audioClipIdNameMap.get(IDAttr));
-								}
-							}
-						}
-					}
+					applyFieldAction(rule.action, attributes);
 				}
-				break;
-			
-			case PAudioClip:
-				if (subElementNodeLevel == 1)
-				{
-					if (qName.equalsIgnoreCase("string"))
-					{
-						if (nameAttr != null && nameAttr.equalsIgnoreCase("Name"))
-						{
-							if (valueAttr != null && (! valueAttr.isEmpty()))
-							{
-								if (! audioClipIdNameMap.containsKey(currentPAudioClipID))//If we have not met this audio file before. Should always be the case here.
-								{
-									audioClipIdNameMap.put(currentPAudioClipID, valueAttr);
-									currentlySettingUpBite.setNameFromAudioFileName(valueAttr);
-								}
-								else
-								{
-									Debug.log("Error. PAudioClip ID was already in Map");
-								}
-							}
-						}
-					}
-				}
-				break;
-				
-			case MAudioPartEvent:
-				if (subElementNodeLevel == 1)
-				{
-					if (qName.equalsIgnoreCase("float"))
-					{
-						if (nameAttr != null && nameAttr.equalsIgnoreCase("Start"))
-						{
-							if (valueAttr != null && (! valueAttr.isEmpty()))
-							{
-								if (this.currentDomainType == 0)
-								{
-									//Start position is defined in midi ticks
-									currentlySettingUpBite.setStartValue(Double.parseDouble(valueAttr), TimeFormat.MIDI_TICKS);
-								}
-								else if (this.currentDomainType == 1)
-								{
-									//Start position is defined in seconds
-									currentlySettingUpBite.setStartValue(Double.parseDouble(valueAttr), TimeFormat.SECONDS);
-								}
-							}
-						}
-						else if (nameAttr != null && nameAttr.equalsIgnoreCase("Length"))
-						{
-							if (valueAttr != null && (! valueAttr.isEmpty()))
-							{
-								if (this.currentDomainType == 0)
-								{
-									//Length is defined in midi ticks
-									currentlySettingUpBite.setLengthValue(Double.parseDouble(valueAttr), TimeFormat.MIDI_TICKS);
-								}
-								else if (this.currentDomainType == 1)
-								{
-									//Length is defined in seconds
-									currentlySettingUpBite.setLengthValue(Double.parseDouble(valueAttr), TimeFormat.SECONDS);
-								}
-							}
-						}
-					}
-				}
-				break;
-				
-			case MAudioPart:
-				if (subElementNodeLevel == 1)
-				{
-					if (qName.equalsIgnoreCase("string"))
-					{
-						if (nameAttr != null && nameAttr.equalsIgnoreCase("Name"))
-						{
-							if (valueAttr != null && (! valueAttr.isEmpty()))
-							{
-								currentlySettingUpBite.setName(valueAttr);
-							}
-						}
-					}
-				}
-				break;
-				
-			case MRangeMarkerEvent:
-				if (subElementNodeLevel == 1)
-				{
-					if (qName.equalsIgnoreCase("float"))
-					{
-						if (nameAttr != null && nameAttr.equalsIgnoreCase("Start"))
-						{
-							if (valueAttr != null && (! valueAttr.isEmpty()))
-							{
-								if (this.currentDomainType == 0)
-								{
-									//Start position is defined in midi ticks
-									currentlySettingUpBite.setStartValue(Double.parseDouble(valueAttr), TimeFormat.MIDI_TICKS);
-								}
-								else if (this.currentDomainType == 1)
-								{
-									//Start position is defined in seconds
-									currentlySettingUpBite.setStartValue(Double.parseDouble(valueAttr), TimeFormat.SECONDS);
-								}
-							}
-						}
-						else if (nameAttr != null && nameAttr.equalsIgnoreCase("Length"))
-						{
-							if (valueAttr != null && (! valueAttr.isEmpty()))
-							{
-								if (this.currentDomainType == 0)
-								{
-									//Length is defined midi ticks
-									currentlySettingUpBite.setLengthValue(Double.parseDouble(valueAttr), TimeFormat.MIDI_TICKS);
-								}
-								else if (this.currentDomainType == 1)
-								{
-									//Length is defined in seconds
-									currentlySettingUpBite.setLengthValue(Double.parseDouble(valueAttr), TimeFormat.SECONDS);
-								}
-							}
-						}
-					}
-					else if (qName.equalsIgnoreCase("string"))
-					{
-						if (nameAttr != null && nameAttr.equalsIgnoreCase("Name"))
-						{
-							if (valueAttr != null && (! valueAttr.isEmpty()))
-							{
-								currentlySettingUpBite.setName(valueAttr);
-							}
-						}
-					}
-				}
-				break;
-				
-			case MMidiPartEvent:
-			    if (subElementNodeLevel == 1)
-                {
-			        if (qName.equalsIgnoreCase("float"))
-                    {
-                        if (nameAttr != null && nameAttr.equalsIgnoreCase("Start"))
-                        {
-                            if (valueAttr != null && (! valueAttr.isEmpty()))
-                            {
-                                if (this.currentDomainType == 0)
-                                {
-                                    //Start position is defined in midi ticks
-                                    currentlySettingUpBite.setStartValue(Double.parseDouble(valueAttr), TimeFormat.MIDI_TICKS);
-                                }
-                                else if (this.currentDomainType == 1)
-                                {
-                                    //Start position is defined in seconds
-                                    currentlySettingUpBite.setStartValue(Double.parseDouble(valueAttr), TimeFormat.SECONDS);
-                                }
-                            }
-                        }
-                        else if (nameAttr != null && nameAttr.equalsIgnoreCase("Length"))
-                        {
-                            if (valueAttr != null && (! valueAttr.isEmpty()))
-                            {
-                                if (this.currentDomainType == 0)
-                                {
-                                    //Length is defined midi ticks
-                                    currentlySettingUpBite.setLengthValue(Double.parseDouble(valueAttr), TimeFormat.MIDI_TICKS);
-                                }
-                                else if (this.currentDomainType == 1)
-                                {
-                                    //Length is defined in seconds
-                                    currentlySettingUpBite.setLengthValue(Double.parseDouble(valueAttr), TimeFormat.SECONDS);
-                                }
-                            }
-                        }
-                    }
-                }
-			    else if (subElementNodeLevel == 2)
-			    {
-			        //Note that the name of the MMidiPartEvent is actually set in a sub object called MMidiPart
-			        //but it seems that there is always only one MMidiPart within an MMidiPartEvent
-			        //so we just treat the whole thing as an MMidiPartEvent and check for indentation (2) to get the name
-			        if (qName.equalsIgnoreCase("string"))
-                    {
-                        if (nameAttr != null && nameAttr.equalsIgnoreCase("Name"))
-                        {
-                            if (valueAttr != null && (! valueAttr.isEmpty()))
-                            {
-                                currentlySettingUpBite.setName(valueAttr);
-                            }
-                        }
-                    }
-			    }
-			    break;
-				
-			case PArrangeSetup:
-				if (subElementNodeLevel == 1)
-				{
-					if (qName.equalsIgnoreCase("float"))
-					{
-						if (nameAttr != null && nameAttr.equalsIgnoreCase("SampleRate"))
-						{
-							if (valueAttr != null && (! valueAttr.isEmpty()))
-							{
-								sampleRate = Double.parseDouble(valueAttr);
-								sampleRateSet = true;
-								Debug.log("Sample rate = " + sampleRate);
-							}
-						}
-					}
-				}
-				break;
-				
-			case MTempoEvent:
-			    if ((nameAttr != null) && (valueAttr != null) && (! valueAttr.isEmpty()))
-			    {
-			        if (nameAttr.equalsIgnoreCase("BPM"))
-			        {
-			            tempoSetting.currentEventSetBPM(Double.parseDouble(valueAttr));
-			        }
-			        else if (nameAttr.equalsIgnoreCase("PPQ"))
-                    {
-                        tempoSetting.currentEventSetMidiTickPosition(Double.parseDouble(valueAttr));
-                    }
-			        else if (nameAttr.equalsIgnoreCase("Func"))
-                    {
-                        tempoSetting.currentEventSetRamp(Integer.parseInt(valueAttr));
-                    }
-			    }
-			    break;
-				
-			default:
-				//Error, somehow unknown type or None
-				break;
 			}
-				
 		}
 		
 		//If we are not currently parsing content relevant element – check if we are now entering one
 		if (currentlyParsingElement == ElementType.None)
 		{
-			if (qName.equalsIgnoreCase("obj"))
+			if (tag == Tag.OBJ)
 			{
-				if (classAttr != null)
+				switch (objClass)
 				{
-					if (classAttr.equalsIgnoreCase("MAudioEvent"))
-					{
-						if (currentlyWithinTrack != ElementType.None)
-						{
-							currentlySettingUpBite = new AudioBite();
-							currentlyParsingElement = ElementType.MAudioEvent;
-						}
-						else
-						{
-							Debug.log("Discarding MAudioEvent outside track");
-						}
-					}
-					else if (classAttr.equalsIgnoreCase("MAudioPartEvent"))
-					{
-						if (currentlyWithinTrack != ElementType.None)
-						{
-							currentlySettingUpBite = new AudioBite();
-							currentlyParsingElement = ElementType.MAudioPartEvent;
-						}
-						else
-						{
-							Debug.log("Discarding MAudioPartEvent outside track");
-						}
-					}
-					else if (classAttr.equalsIgnoreCase("MRangeMarkerEvent"))
+				case MAudioEvent:
+				case MAudioPartEvent:
+				case MRangeMarkerEvent:
+				case MMidiPartEvent:
+					if (timingOnly)
 					{
-						if (currentlyWithinTrack != ElementType.None)
-						{
-							currentlySettingUpBite = new AudioBite();
-							currentlyParsingElement = ElementType.MRangeMarkerEvent;
-						}
-						else
-						{
-							Debug.log("Discarding MRangeMarkerEvent outside track");
-						}
+						//Regions are ignored
 					}
-					else if (classAttr.equalsIgnoreCase("MMidiPartEvent"))
-                    {
-                        if (currentlyWithinTrack != ElementType.None)
-                        {
-                            currentlySettingUpBite = new AudioBite();
-                            currentlyParsingElement = ElementType.MMidiPartEvent;
-                        }
-                        else
-                        {
-                            Debug.log("Discarding MMidiPartEvent outside track");
-                        }
-                    }
-					else if (classAttr.equalsIgnoreCase("MTempoEvent"))
+					else if (currentlyWithinTrack != ElementType.None)
 					{
-				        tempoSetting.startSettingUpTempoEvent();
-				        currentlyParsingElement = ElementType.MTempoEvent;
+						currentlySettingUpBite = new AudioBite();
+						currentlyParsingElement = objClass;
+						currentlySettingUpBite.setElementType(objClass);
 					}
-					else if (classAttr.equalsIgnoreCase("PArrangeSetup"))
+					else
 					{
-						currentlyParsingElement = ElementType.PArrangeSetup;
+						Debug.log(LogLevel.DEBUG, "Discarding {} outside track", objClass);
 					}
+					break;
+					
+				case MTempoEvent:
+					tempoSetting.startSettingUpTempoEvent();
+					currentlyParsingElement = ElementType.MTempoEvent;
+					break;
+					
+				case PArrangeSetup:
+					currentlyParsingElement = ElementType.PArrangeSetup;
+					break;
+					
+				default:
+					break;
 				}
-				
 			}
 			
-			else
+			else if (tag == Tag.MEMBER || tag == Tag.INT || tag == Tag.FLOAT)
 			{
-				if (nameAttr != null)
+				Member member = getMember(attributes.getValue("name"));
+				if (tag == Tag.MEMBER && member == Member.DOMAIN && (domainMemberSubMemberLevel <= 0) && (currentlyWithinTrack != ElementType.None))
 				{
-					if (qName.equalsIgnoreCase("member") && (nameAttr.equalsIgnoreCase("Domain")) && (domainMemberSubMemberLevel <= 0) && (currentlyWithinTrack != ElementType.None))
-					{
-						domainMemberSubMemberLevel = 1;
-						justEnteredDomainMember = true;
-						//Debug.log("Setting domainMemberSubMemberLevel to "+domainMemberSubMemberLevel);
-					}
-					else if ((domainMemberSubMemberLevel == 1) && qName.equalsIgnoreCase("int") && nameAttr.equalsIgnoreCase("type"))
+					domainMemberSubMemberLevel = 1;
+					justEnteredDomainMember = true;
+					//Debug.log("Setting domainMemberSubMemberLevel to "+domainMemberSubMemberLevel);
+				}
+				else if ((domainMemberSubMemberLevel == 1) && tag == Tag.INT && member == Member.TYPE)
+				{
+					String valueAttr = attributes.getValue("value");
+					if (valueAttr != null && (!valueAttr.isEmpty()))
 					{
-						if (valueAttr != null && (!valueAttr.isEmpty()))
-						{
-							currentDomainType = Integer.parseInt(valueAttr);
-							Debug.log("Domain type set to "+ currentDomainType);
-							
-						}
+						currentDomainType = Integer.parseInt(valueAttr);
+						Debug.log(LogLevel.DEBUG, "Domain type set to {}", currentDomainType);
+						
 					}
-					else if (nameAttr.equalsIgnoreCase("rehearsaltempo") && qName.equalsIgnoreCase("float"))
+				}
+				else if (member == Member.REHEARSALTEMPO && tag == Tag.FLOAT)
+				{
+					String valueAttr = attributes.getValue("value");
+					if (valueAttr != null && (!valueAttr.isEmpty()))
 					{
-						if (valueAttr != null && (!valueAttr.isEmpty()))
-						{
-							tempoSetting.setRehearsalTempo(Double.parseDouble(valueAttr));
-						}
+						tempoSetting.setRehearsalTempo(Double.parseDouble(valueAttr));
 					}
-					else if (nameAttr.equalsIgnoreCase("rehearsalmode") && qName.equalsIgnoreCase("int"))
+				}
+				else if (member == Member.REHEARSALMODE && tag == Tag.INT)
+				{
+					String valueAttr = attributes.getValue("value");
+					if (valueAttr != null && (!valueAttr.isEmpty()))
 					{
-						if (valueAttr != null && (!valueAttr.isEmpty()))
-						{
-							tempoSetting.setRehearsalMode(Integer.parseInt(valueAttr));
-						}
+						tempoSetting.setRehearsalMode(Integer.parseInt(valueAttr));
 					}
 				}
 			}
@@ -715,7 +690,11 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 			if (currentlyParsingElement != ElementType.None)
 			{
 				subElementNodeLevel = 0;
-				Debug.log("Starting to parse "+currentlyParsingElement.toString());
+				Debug.log(LogLevel.DEBUG, "Starting to parse {}", currentlyParsingElement);
+			}
+			else if (tag == Tag.OBJ && classAttr != null && currentlyWithinTrack != ElementType.None && subTrackNodeLevel > 0)
+			{
+				startedObjCannotHoldRegions = !isTrackContainerClass(classAttr);
 			}
 		}
 		
@@ -726,28 +705,22 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 		{
 			if (subElementNodeLevel == 1)
 			{
-				if (qName.equalsIgnoreCase("obj"))
+				if (objClass == ElementType.MAudioPart)
 				{
-					if (classAttr != null)
+					currentlyParsingElement = ElementType.MAudioPart;
+					subElementNodeLevel = 0;
+					Debug.log(LogLevel.DEBUG, "Starting to parse {}", currentlyParsingElement);
+				}
+				else if (objClass == ElementType.PAudioClip)
+				{
+					currentlyParsingElement = ElementType.PAudioClip;
+					subElementNodeLevel = 0;
+					String idAttr = attributes.getValue("ID");
+					if (idAttr != null)
 					{
-						if (classAttr.equalsIgnoreCase("MAudioPart"))
-						{
-							currentlyParsingElement = ElementType.MAudioPart;
-							subElementNodeLevel = 0;
-							Debug.log("Starting to parse "+currentlyParsingElement.toString());
-						}
-						else if (classAttr.equalsIgnoreCase("PAudioClip"))
-						{
-							currentlyParsingElement = ElementType.PAudioClip;
-							subElementNodeLevel = 0;
-							String idAttr = attributes.getValue("ID");
-							if (idAttr != null)
-							{
-								currentPAudioClipID = idAttr;
-							}
-							Debug.log("Starting to parse "+currentlyParsingElement.toString());
-						}
+						currentPAudioClipID = idAttr;
 					}
+					Debug.log(LogLevel.DEBUG, "Starting to parse {}", currentlyParsingElement);
 				}
 			}
 		}
@@ -761,6 +734,122 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 		
 		
 		
+	}
+	
+	/**
+	 * Performs a FieldAction on the AudioBite (or tempo event, or project setting) currently being set up.
+	 * Except for SET_NAME_FROM_CLIP_ID, nothing is done if the element has no (or an empty) value attribute.
+	 * @param action
+	 * @param attributes attributes of the element that triggered the action
+	 */
+	private void applyFieldAction(FieldAction action, Attributes attributes)
+	{
+		if (action == FieldAction.SET_NAME_FROM_CLIP_ID)
+		{
+			String IDAttr = attributes.getValue("ID");
+			if (IDAttr != null)
+			{
+				if (audioClipIdNameMap.containsKey(IDAttr))
+				{
+					currentlySettingUpBite.setNameFromAudioFileName(audioClipIdNameMap.get(IDAttr));
+				}
+			}
+			return;
+		}
+		
+		//Numeric values are parsed directly by NumericAttributes when possible, without creating a String
+		String valueAttr = null;
+		double number = Double.NaN;
+		if (action.usesDouble && attributes instanceof NumericAttributes)
+		{
+			number = ((NumericAttributes)attributes).getDoubleValue("value");
+			if (Double.isNaN(number))
+			{
+				return;
+			}
+		}
+		else
+		{
+			valueAttr = attributes.getValue("value");
+			if (valueAttr == null || valueAttr.isEmpty())
+			{
+				return;
+			}
+			if (action.usesDouble)
+			{
+				number = Double.parseDouble(valueAttr);
+			}
+		}
+		switch (action)
+		{
+		case SET_NAME:
+			currentlySettingUpBite.setName(valueAttr);
+			break;
+			
+		case SET_CLIP_NAME:
+			if (! audioClipIdNameMap.containsKey(currentPAudioClipID))//If we have not met this audio file before. Should always be the case here.
+			{
+				audioClipIdNameMap.put(currentPAudioClipID, valueAttr);
+				currentlySettingUpBite.setNameFromAudioFileName(valueAttr);
+			}
+			else
+			{
+				Debug.log(LogLevel.ERROR, "PAudioClip ID was already in Map");
+			}
+			break;
+			
+		case SET_START:
+			if (this.currentDomainType == 0)
+			{
+				//Start position is defined in midi ticks
+				currentlySettingUpBite.setStartValue(number, TimeFormat.MIDI_TICKS);
+			}
+			else if (this.currentDomainType == 1)
+			{
+				//Start position is defined in seconds
+				currentlySettingUpBite.setStartValue(number, TimeFormat.SECONDS);
+			}
+			break;
+			
+		case SET_LENGTH:
+			if (this.currentDomainType == 0)
+			{
+				//Length is defined in midi ticks
+				currentlySettingUpBite.setLengthValue(number, TimeFormat.MIDI_TICKS);
+			}
+			else if (this.currentDomainType == 1)
+			{
+				//Length is defined in seconds
+				currentlySettingUpBite.setLengthValue(number, TimeFormat.SECONDS);
+			}
+			break;
+			
+		case SET_LENGTH_SAMPLES:
+			//Length is defined in samples (project sample rate) on audio events
+			currentlySettingUpBite.setLengthValue(number, TimeFormat.SAMPLES);
+			break;
+			
+		case SET_SAMPLE_RATE:
+			sampleRate = number;
+			sampleRateSet = true;
+			Debug.log(LogLevel.INFO, "Sample rate = {}", sampleRate);
+			break;
+			
+		case TEMPO_BPM:
+			tempoSetting.currentEventSetBPM(number);
+			break;
+			
+		case TEMPO_PPQ:
+			tempoSetting.currentEventSetMidiTickPosition(number);
+			break;
+			
+		case TEMPO_FUNC:
+			tempoSetting.currentEventSetRamp(Integer.parseInt(valueAttr));
+			break;
+			
+		default:
+			break;
+		}
 	}
 	
 	/**
@@ -786,7 +875,7 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 		//Remove any audio bite that is not properly set up
 		if (unSetupBites.size() > 0)
 		{
-			Debug.log("Error: Removing " + unSetupBites.size() + " audioBite(s) from list, due to unfinished setup.");
+			Debug.log(LogLevel.ERROR, "Removing {} audioBite(s) from list, due to unfinished setup.", unSetupBites.size());
 			for (AudioBite b : unSetupBites)
 			{
 				audioBites.remove(b);
@@ -797,4 +886,100 @@ public class CubaseTrackXMLSaxParseHandler extends DefaultHandler
 		Collections.sort(audioBites, new AudioBiteStartComparator());
 	}
 	
+	/**
+	 * Returns the ElementType of an obj element's class attribute
+	 * @param classAttr value of the class attribute (may be null)
+	 * @return the ElementType, or ElementType.None if the class is not relevant
+	 */
+	private ElementType getObjClass(String classAttr)
+	{
+		if (classAttr == null)
+		{
+			return ElementType.None;
+		}
+		ElementType t = objClassCache.get(classAttr);
+		if (t == null)
+		{
+			t = objClasses.get(classAttr.toLowerCase(Locale.ROOT));
+			if (t == null)
+			{
+				t = ElementType.None;
+			}
+			if (objClassCache.size() < maxCacheSize)
+			{
+				objClassCache.put(classAttr, t);
+			}
+		}
+		return t;
+	}
+	
+	/**
+	 * Tells whether an obj element with a class attribute inside a track can hold regions
+	 * @param classAttr value of the class attribute
+	 * @return true if the class is in trackContainerClasses
+	 */
+	private boolean isTrackContainerClass(String classAttr)
+	{
+		Boolean b = trackContainerCache.get(classAttr);
+		if (b == null)
+		{
+			b = trackContainerClasses.contains(classAttr.toLowerCase(Locale.ROOT));
+			if (trackContainerCache.size() < maxCacheSize)
+			{
+				trackContainerCache.put(classAttr, b);
+			}
+		}
+		return b;
+	}
+	
+	/**
+	 * Returns the Member of a name attribute
+	 * @param nameAttr value of the name attribute (may be null)
+	 * @return the Member, or Member.OTHER if the name is not relevant
+	 */
+	private Member getMember(String nameAttr)
+	{
+		if (nameAttr == null)
+		{
+			return Member.OTHER;
+		}
+		Member m = memberCache.get(nameAttr);
+		if (m == null)
+		{
+			m = members.get(nameAttr.toLowerCase(Locale.ROOT));
+			if (m == null)
+			{
+				m = Member.OTHER;
+			}
+			if (memberCache.size() < maxCacheSize)
+			{
+				memberCache.put(nameAttr, m);
+			}
+		}
+		return m;
+	}
+	
+	/**
+	 * Returns the Tag of an element name
+	 * @param qName
+	 * @return the Tag, or Tag.OTHER if the element name is not relevant
+	 */
+	private Tag getTag(String qName)
+	{
+		Tag t = tagCache.get(qName);
+		if (t == null)
+		{
+			t = tags.get(qName.toLowerCase(Locale.ROOT));
+			if (t == null)
+			{
+				t = Tag.OTHER;
+			}
+			if (tagCache.size() < maxCacheSize)
+			{
+				tagCache.put(qName, t);
+			}
+		}
+		return t;
+	}
+	
 }
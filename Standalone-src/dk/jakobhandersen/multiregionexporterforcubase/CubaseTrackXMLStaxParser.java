@@ -0,0 +1,220 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+/**
+ * Pull (StAX) parser mode for the Cubase track XML file.
+ * 
+ * Feeds the elements to a CubaseTrackXMLSaxParseHandler just like a SAXParser would, so all the interpretation stays in one place.
+ * But after each start element the handler is asked whether anything below the element can matter (CubaseTrackXMLSaxParseHandler.canSkipChildren()).
+ * If not, the parser fast-forwards to the matching end element by counting depth, without reporting the elements 
+ * or reading any of their attributes. This skips e.g. the note data of MIDI parts, which can be most of a large file.
+ * 
+ * Attributes are read directly from the stream reader when the handler asks for them, so no attribute objects are built.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class CubaseTrackXMLStaxParser
+{
+	/**
+	 * org.xml.sax.Attributes view of the attributes of the current element of an XMLStreamReader. 
+	 * Only valid while the reader is at the start element.
+	 * @author Jakob Hougaard Andersen
+	 *
+	 */
+	private static class StreamAttributes implements Attributes
+	{
+		/**
+		 * The reader
+		 */
+		private XMLStreamReader reader;
+		
+		/**
+		 * Constructor
+		 * @param reader
+		 */
+		StreamAttributes(XMLStreamReader reader)
+		{
+			this.reader = reader;
+		}
+		
+		@Override
+		public int getIndex(String qName)
+		{
+			for (int i = 0; i < reader.getAttributeCount(); i++)
+			{
+				if (reader.getAttributeLocalName(i).equals(qName))
+				{
+					return i;
+				}
+			}
+			return -1;
+		}
+		
+		@Override
+		public int getIndex(String uri, String localName)
+		{
+			return getIndex(localName);
+		}
+		
+		@Override
+		public int getLength()
+		{
+			return reader.getAttributeCount();
+		}
+		
+		@Override
+		public String getLocalName(int index)
+		{
+			return reader.getAttributeLocalName(index);
+		}
+		
+		@Override
+		public String getQName(int index)
+		{
+			return reader.getAttributeLocalName(index);
+		}
+		
+		@Override
+		public String getType(int index)
+		{
+			return reader.getAttributeType(index);
+		}
+		
+		@Override
+		public String getType(String qName)
+		{
+			int i = getIndex(qName);
+			return i < 0 ? null : getType(i);
+		}
+		
+		@Override
+		public String getType(String uri, String localName)
+		{
+			return getType(localName);
+		}
+		
+		@Override
+		public String getURI(int index)
+		{
+			String uri = reader.getAttributeNamespace(index);
+			return uri == null ? "" : uri;
+		}
+		
+		@Override
+		public String getValue(int index)
+		{
+			return reader.getAttributeValue(index);
+		}
+		
+		@Override
+		public String getValue(String qName)
+		{
+			return reader.getAttributeValue(null, qName);
+		}
+		
+		@Override
+		public String getValue(String uri, String localName)
+		{
+			return reader.getAttributeValue(null, localName);
+		}
+	}
+	
+	/**
+	 * Parses a Cubase track XML file
+	 * @param file
+	 * @param handler receives the (relevant) elements. Get the result from it afterwards
+	 * @throws IOException if the file can't be read
+	 * @throws XMLStreamException if the file is not well-formed XML
+	 * @throws SAXException if the handler throws it
+	 */
+	public void parse(File file, CubaseTrackXMLSaxParseHandler handler) throws IOException, XMLStreamException, SAXException
+	{
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16))
+		{
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			try
+			{
+				StreamAttributes attributes = new StreamAttributes(reader);
+				handler.startDocument();
+				while (reader.hasNext())
+				{
+					int event = reader.next();
+					if (event == XMLStreamConstants.START_ELEMENT)
+					{
+						String name = reader.getLocalName();
+						handler.startElement("", name, name, attributes);
+						if (handler.canSkipChildren())
+						{
+							skipChildren(reader);
+							handler.endElement("", name, name);
+						}
+					}
+					else if (event == XMLStreamConstants.END_ELEMENT)
+					{
+						String name = reader.getLocalName();
+						handler.endElement("", name, name);
+					}
+				}
+				handler.endDocument();
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+	}
+	
+	/**
+	 * Moves the reader from a start element to its matching end element
+	 * @param reader positioned at a start element
+	 * @throws XMLStreamException
+	 */
+	private static void skipChildren(XMLStreamReader reader) throws XMLStreamException
+	{
+		int depth = 1;
+		while (depth > 0)
+		{
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+			{
+				depth += 1;
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT)
+			{
+				depth -= 1;
+			}
+		}
+	}
+}
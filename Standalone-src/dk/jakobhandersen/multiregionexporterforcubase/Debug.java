@@ -16,27 +16,247 @@
 
 package dk.jakobhandersen.multiregionexporterforcubase;
 
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
 /**
- * Class that handles print calls for debugging
+ * Class that handles logging for debugging.
+ * 
+ * Messages have a LogLevel, and messages below the current level are ignored by a single comparison, before anything is formatted.
+ * So hot paths (like the parser) should pass a format string with "{}" placeholders and the values as arguments
+ * instead of concatenating a String: Debug.log(LogLevel.DEBUG, "Starting to parse {}", element).
+ * 
+ * Logging itself doesn't print anything. The message is put in a LogRingBuffer and a background thread (LogWriter)
+ * formats it and writes it to System.out and to a rotating log file in the user's home folder.
+ * The level is INFO unless set with setLevel() or the system property multiregionexporter.loglevel (e.g. -Dmultiregionexporter.loglevel=debug).
  * @author Jakob Hougaard Andersen
  *
  */
 public class Debug 
 {
+	/**
+	 * (Thread) Takes the messages from the buffer and writes them to System.out and the log file
+	 * @author Jakob Hougaard Andersen
+	 *
+	 */
+	private static class LogWriter extends Thread
+	{
+		/**
+		 * Reused for formatting each message
+		 */
+		private StringBuilder message = new StringBuilder(256);
+		
+		/**
+		 * Reused for the lines of the log file
+		 */
+		private StringBuilder line = new StringBuilder(256);
+		
+		/**
+		 * Formats the time of the lines of the log file
+		 */
+		private SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		
+		/**
+		 * Reused for formatting the time
+		 */
+		private Date date = new Date();
+		
+		/**
+		 * Constructor
+		 */
+		private LogWriter()
+		{
+			super("Log writer");
+			setDaemon(true);
+		}
+		
+		public void run()
+		{
+			while (true)
+			{
+				if (! drain())
+				{
+					buffer.awaitMessage();
+				}
+			}
+		}
+		
+		/**
+		 * Writes all waiting messages
+		 * @return true if any messages were written
+		 */
+		private synchronized boolean drain()
+		{
+			boolean any = false;
+			long dropped = buffer.getAndResetDropped();
+			if (dropped > 0)
+			{
+				write(LogLevel.WARNING, System.currentTimeMillis(), dropped + " log message(s) dropped since the log buffer was full");
+				any = true;
+			}
+			while (true)
+			{
+				message.setLength(0);
+				LogLevel level = buffer.poll(message);
+				if (level == null)
+				{
+					break;
+				}
+				write(level, buffer.getPolledTime(), message);
+				any = true;
+			}
+			if (any)
+			{
+				logFile.flush();
+			}
+			return any;
+		}
+		
+		/**
+		 * Writes a message to System.out and the log file
+		 * @param level
+		 * @param time
+		 * @param text
+		 */
+		private void write(LogLevel level, long time, CharSequence text)
+		{
+			System.out.println(text);
+			date.setTime(time);
+			line.setLength(0);
+			line.append(timeFormat.format(date)).append(' ').append(level).append(' ').append(text);
+			logFile.writeLine(line);
+		}
+	}
+	
 	/**
 	 * Is the debug printing enabled
 	 */
 	private static boolean enabled = true;
 	
 	/**
-	 * Prints by System.out.println() if enabled
-	 * @param text the text to print
+	 * Number of messages that can wait to be written
+	 */
+	private static final int bufferCapacity = 8192;
+	
+	/**
+	 * Maximum size of each log file in bytes
+	 */
+	private static final long maxLogFileSize = 5 * 1024 * 1024;
+	
+	/**
+	 * Number of old (rotated) log files to keep
+	 */
+	private static final int maxOldLogFiles = 3;
+	
+	/**
+	 * Messages below this level are ignored. Stored as the ordinal of the LogLevel, so checking it is a single comparison
+	 */
+	private static volatile int maxLevel = LogLevel.INFO.ordinal();
+	
+	/**
+	 * Messages waiting to be written
+	 */
+	private static LogRingBuffer buffer = new LogRingBuffer(bufferCapacity);
+	
+	/**
+	 * The log file
+	 */
+	private static RotatingLogFile logFile = new RotatingLogFile(new File(System.getProperty("user.home") + File.separator + ".multiregionexporterforcubase" 
+			+ File.separator + "logs" + File.separator + "exporter.log"), maxLogFileSize, maxOldLogFiles);
+	
+	/**
+	 * Writes the messages in the background
+	 */
+	private static LogWriter writer = new LogWriter();
+	
+	static
+	{
+		String level = System.getProperty("multiregionexporter.loglevel");
+		if (level != null)
+		{
+			try
+			{
+				setLevel(LogLevel.valueOf(level.toUpperCase()));
+			}
+			catch (IllegalArgumentException e)
+			{
+				System.err.println("Unknown log level: " + level);
+			}
+		}
+		buffer.setReader(writer);
+		writer.start();
+		//Write the last messages when the application exits
+		Runtime.getRuntime().addShutdownHook(new Thread()
+		{
+			public void run()
+			{
+				writer.drain();
+				logFile.close();
+			}
+		});
+	}
+	
+	/**
+	 * @param level
+	 * @return true if messages of the given level are logged. Can be used to skip preparing arguments of messages that would be ignored
+	 */
+	public static boolean isEnabled(LogLevel level)
+	{
+		return enabled && level.ordinal() <= maxLevel;
+	}
+	
+	/**
+	 * Logs a message of level INFO
+	 * @param text the text to log
 	 */
 	public static void log(String text)
 	{
-		if (enabled)
+		log(LogLevel.INFO, text, null, null);
+	}
+	
+	/**
+	 * Logs a message
+	 * @param level
+	 * @param text the text to log
+	 */
+	public static void log(LogLevel level, String text)
+	{
+		log(level, text, null, null);
+	}
+	
+	/**
+	 * Logs a message with one argument, which is only formatted if the level is enabled
+	 * @param level
+	 * @param format the text to log, where "{}" is replaced by the argument
+	 * @param argument
+	 */
+	public static void log(LogLevel level, String format, Object argument)
+	{
+		log(level, format, argument, null);
+	}
+	
+	/**
+	 * Logs a message with two arguments, which are only formatted if the level is enabled
+	 * @param level
+	 * @param format the text to log, where the first "{}" is replaced by the first argument and the second "{}" by the second argument
+	 * @param firstArgument
+	 * @param secondArgument
+	 */
+	public static void log(LogLevel level, String format, Object firstArgument, Object secondArgument)
+	{
+		if (enabled && level.ordinal() <= maxLevel)
 		{
-			System.out.println(text);
+			buffer.add(level, format, firstArgument, secondArgument);
 		}
 	}
+	
+	/**
+	 * Sets the least important level of messages to log
+	 * @param level
+	 */
+	public static void setLevel(LogLevel level)
+	{
+		maxLevel = level.ordinal();
+	}
 }
@@ -25,6 +25,11 @@ import java.util.Map;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -83,11 +88,27 @@ public class ExporterEngine
 	 */
 	private int renamedAudioBitesInLastXML = 0;
 	
+	/**
+	 * AudioBites of a track XML file that was read while the audio file was still being loaded.
+	 * They are checked against the length of the audio file (processAudioBitesFromParser()) when it has been loaded. Null if none are waiting
+	 */
+	private List<AudioBite> pendingAudioBites = null;
+	
+	/**
+	 * File name of the track XML file that pendingAudioBites were read from
+	 */
+	private String pendingXmlFileName = null;
+	
 	/**
 	 * If useCubaseNames == false, this string will be used for naming the output audio files
 	 */
 	private String fixedName = "region";
 	
+	/**
+	 * Decides the order in which the output workers output the regions
+	 */
+	private SchedulingPolicy schedulingPolicy = Constants.defaultSchedulingPolicy;
+	
 	/**
 	 * Path to sox program on the user's computer
 	 */
@@ -105,19 +126,47 @@ public class ExporterEngine
 	
 	
 	/**
-	 * Reference to the currently running AudioSplitter, if any
+	 * Runs the work of the engine. The state of the engine (the fields of this class) is only changed on its state owner thread,
+	 * so operations finishing at the same time can't get in the way of each other
+	 */
+	private TaskRunner taskRunner = new TaskRunner();
+	
+	/**
+	 * Token of the running AudioOutputter or StreamingOutputter. Null when not outputting.
+	 * Volatile (like the other tokens) since cleanUp() may cancel it from any thread
+	 */
+	private volatile CancellationToken outputToken = null;
+	
+	/**
+	 * Progress of the current (or last) outputting of files. Updated by the AudioOutputter and read by the user interface
 	 */
-	private AudioOutputter currentlyRunningSplitter = null;
+	private OutputProgress outputProgress = new OutputProgress();
 	
 	/**
-	 * Reference to the currently running WaveformGenerator, if any
+	 * Token of the running WaveformGenerator, if any
 	 */
-	private WaveformGenerator currentlyRunningWaveformGenerator = null;
+	private volatile CancellationToken waveformToken = null;
 	
 	/**
-	 * Reference to the currently running InputAudioFileBuilder, if any
+	 * Token of the running InputAudioFileBuilder, if any
 	 */
-	private InputAudioFileBuilder currentlyRunningInputAudioFileBuilder = null;
+	private volatile CancellationToken audioFileToken = null;
+	
+	/**
+	 * Token of the track XML file being read, if any
+	 */
+	private volatile CancellationToken xmlToken = null;
+	
+	/**
+	 * Plays regions of currentInputAudioFile. Null if no audio file is loaded or it can't be auditioned.
+	 */
+	private AudioAuditioner audioAuditioner = null;
+	
+	/**
+	 * Should a waveform preview be generated and audition be prepared when an audio file is loaded?
+	 * Not needed when running without graphical user interface
+	 */
+	private boolean previewEnabled = true;
 	
 	/**
 	 * Number of horizontal pixels
@@ -146,9 +195,19 @@ public class ExporterEngine
 	
 	
 	/**
-	 * List of currently started Processes that need to be destroyed if the application is closed.
+	 * Hands out the buffers that audio and process output pass through, within a total memory budget (see setMemoryBudget())
 	 */
-	private List<Process> startedProcesses;
+	private MemoryGovernor memoryGovernor = new MemoryGovernor(Constants.memoryBudget);
+	
+	/**
+	 * Starts and keeps track of the external processes, so they can be destroyed if the application is closed.
+	 */
+	private ProcessSupervisor processSupervisor = new ProcessSupervisor(Constants.maxRunningProcesses);
+	
+	/**
+	 * Limits the disk bandwidth used by outputting files and generating waveforms (part of the QoS mode, see setBandwidthLimit())
+	 */
+	private BandwidthThrottle throttle = new BandwidthThrottle();
 	
 	/**
 	 * reference to the UserInterface, set in constructor
@@ -161,6 +220,11 @@ public class ExporterEngine
 	 */
 	private String temporaryFolderPath; 
 	
+	/**
+	 * Snapshots of parsed track XML files, so an unchanged file doesn't need to be parsed again
+	 */
+	private TrackSnapshotCache trackSnapshotCache;
+	
 	/**
 	 * Constructor
 	 */
@@ -168,110 +232,114 @@ public class ExporterEngine
 	{
 		audioBites = new ArrayList<AudioBite>();
 		this.userInterface = userInterface;
-		startedProcesses = new ArrayList<Process>();
 		setPaths();
 	}
 	
 	
 	/**
-	 * Called from the AudioOutputter when this is done
-	 * @param successes the number of successfully created files
-	 * @param total the number of the files that were supposed to be created
-	 * @param caller the AudioSplitter calling this function
+	 * Called from the UserInterface to play a region (including trailing time) of the loaded audio file.
+	 * Anything already playing is stopped.
+	 * @param bite the AudioBite to play
 	 */
-	public void audioOutputterDoneCallback(int successes, int total, AudioOutputter caller)
+	public void auditionAudioBite(final AudioBite bite)
 	{
-		//Is this correct use of 'synchronized'? I am not so experienced with muti-threading..
-		synchronized (this)
+		taskRunner.runOnStateOwner(new Runnable()
 		{
-			if (successes == total)
+			public void run()
 			{
-				sendMessageToUser(UserMessageType.SUCCESS, successes + " audio file(s) successfully created in folder: "+outputFolder);
-			}
-			else
-			{
-				sendMessageToUser(UserMessageType.ERROR, "Error(s) occurred while creating " + (total - successes) + " audio file(s).");
-				sendMessageToUser(UserMessageType.STATE, successes + " audio files successfully created in folder: "+outputFolder);
-			}
-			if (caller != currentlyRunningSplitter)
-			{
-				Debug.log("Error in AudioSplitterCallback(). caller != currentlyRunningSplitter");
+				if (bite == null)
+				{
+					return;
+				}
+				if (audioAuditioner == null)
+				{
+					sendMessageToUser(UserMessageType.WARNING, "Regions can only be auditioned from uncompressed WAV and AIFF files");
+					return;
+				}
+				audioAuditioner.play(bite.getStartSec(), bite.getFunctionalEndSec());
 			}
-			currentlyRunningSplitter = null;
-			sendEventToInterface(EngineEvent.DONE_OUTPUTTING_FILES);
-		}
+		});
 	}
 	
 	/**
-	 * Called from AudioOutputter to inform user about progress of output process
-	 * @param percentage percentage done (0 to 100)
+	 * Called from AudioOutputter when it is done with a file (successfully or not).
+	 * Only updates outputProgress, so it returns without waiting for the user interface.
 	 */
-	public void audioOutputterPercentageCallback(int percentage)
+	public void audioOutputterFileDoneCallback()
 	{
-		userInterface.setOuputPercentage(percentage);
+		outputProgress.fileDone();
 	}
 	
 	/**
-	 * Called from AudioOutputter to inform user about progress of output process
+	 * Called from AudioOutputter to inform user about progress of output process.
+	 * Only updates outputProgress, so it returns without waiting for the user interface.
 	 * @param text what is the outputter doing now?
 	 */
 	public void audioOutputterProcessTextCallback(String text)
 	{
-		userInterface.setOutputProcessText(text);
+		outputProgress.setProcessText(text);
+	}
+	
+	/**
+	 * Called from the UserInterface (or the HeadlessExporter) to stop outputting files.
+	 * The running outputter is cancelled right away from the calling thread, without waiting for the state owner thread.
+	 * Its threads are interrupted, which makes them destroy their running SoX/FFMPEG processes including any processes started by those,
+	 * and delete the files the processes were writing. Files already done are kept. 
+	 * DONE_OUTPUTTING_FILES is sent when the outputter has ended, so a new export can't start while its processes are still being destroyed.
+	 * This takes at most Constants.cancelTimeout ms
+	 */
+	public void cancelOutput()
+	{
+		CancellationToken token = outputToken;
+		if (token != null)
+		{
+			Debug.log("Cancelling output");
+			token.cancel();
+		}
 	}
 	
 	/**
 	 * Method to be called when closing the application.
-	 * Interrupts running threads an destroys registered running processes and deletes temporary files
+	 * Cancels running tasks, destroys running processes (including processes started by them) and deletes temporary files.
+	 * Waits up to Constants.cancelTimeout ms for the cancelled tasks to delete the files their processes were writing.
+	 * Can be called from any thread, and doesn't wait for the state owner thread (which may be waiting for a user interface that is closing)
 	 */
 	public void cleanUp()
 	{
 		try
 		{
-			Debug.log("Deleting temporary files folder");
-			if (Utils.deleteDirectory(new File(temporaryFolderPath)))
+			Debug.log("Cancelling running tasks");
+			cancel(outputToken);
+			cancel(waveformToken);
+			cancel(audioFileToken);
+			cancel(xmlToken);
+			taskRunner.shutdown();
+			closeAudioAuditioner();
+			int destroyed = processSupervisor.destroyAll();
+			if (destroyed > 0)
 			{
-				Debug.log("Successfully deleted all temporary files");
+				Debug.log("Stopped "+ destroyed + " process(es)");
 			}
 			else
 			{
-				Debug.log("Error deleting one or more temporary files");
+				Debug.log("No started processes to stop");
 			}
-			
-			if (currentlyRunningSplitter != null)
+			if (! taskRunner.awaitTermination(Constants.cancelTimeout))
 			{
-				Debug.log("Trying to interrupt currentlyRunningSplitter");
-				currentlyRunningSplitter.interrupt();
+				Debug.log(LogLevel.WARNING, "Cancelled tasks still running after " + Constants.cancelTimeout + " ms");
 			}
+			Debug.log(processSupervisor.getSummary());
+			Debug.log(throttle.getSummary());
+			Debug.log(memoryGovernor.getSummary());
 			
-			if (currentlyRunningWaveformGenerator != null)
-			{
-				Debug.log("Trying to interrupt currentlyRunningWaveformGenerator");
-				currentlyRunningWaveformGenerator.interrupt();
-			}
-			
-			if (currentlyRunningInputAudioFileBuilder != null)
+			Debug.log("Deleting temporary files folder");
+			if (Utils.deleteDirectory(new File(temporaryFolderPath)))
 			{
-				Debug.log("Trying to interrupt currentlyRunningInputAudioFileBuilder");
-				currentlyRunningInputAudioFileBuilder.interrupt();
+				Debug.log("Successfully deleted all temporary files");
 			}
-			if (startedProcesses != null)
+			else
 			{
-				if (startedProcesses.size() > 0)
-				{
-					Debug.log("Stopping "+ startedProcesses.size() + " process(es)");
-					for (Process p : startedProcesses)
-					{
-						if (p != null)
-						{
-							p.destroyForcibly();
-						}
-					}
-				}
-				else
-				{
-					Debug.log("No started processes to stop");
-				}
+				Debug.log(LogLevel.ERROR, "Error deleting one or more temporary files");
 			}
 		}
 		catch (Exception e)
@@ -285,118 +353,175 @@ public class ExporterEngine
 	 */
 	public void createFilesOverwriteAccepted()
 	{
-		createFiles();
+		taskRunner.runOnStateOwner(new Runnable()
+		{
+			public void run()
+			{
+				createFiles();
+			}
+		});
 	}
 	
 	/**
-	 * Function called by InputAudioFileBuilder when it is done building the InputAudioFile
-	 * @param caller the InputAudioFileBuilder calling this function
-	 * @param builtFile the built InputAudioFile
+	 * @return the disk bandwidth limit in bytes per second. 0 if there is no limit
 	 */
-	public void inputAudioFileBuilderCallback(InputAudioFileBuilder caller,InputAudioFile builtFile)
+	public long getBandwidthLimit()
 	{
-		//Is this correct use of 'synchronized'? I am not so experienced with muti-threading..
-		synchronized (this)
-		{
-			if (caller != currentlyRunningInputAudioFileBuilder)
-			{
-				Debug.log("Error. Somehow, InputAudioFileBuilderCallback() was called from other caller than currentlyRunningInputAudioFileBuilder");
-				return;
-			}
-			Debug.log("Done building InputAudioFile");
-			currentlyRunningInputAudioFileBuilder = null;
-			if (builtFile == null)
-			{
-				sendEventToInterface(EngineEvent.ERROR_READING_AUDIO_FILE);
-				sendMessageToUser(UserMessageType.ERROR, "Could not read audio file");
-			}
-			else if (builtFile.getIsValid())
-			{
-				currentInputAudioFile = builtFile;
-				userInterface.audioFileRead(currentInputAudioFile);
-				sendEventToInterface(EngineEvent.READY_FOR_XML);
-				sendMessageToUser(UserMessageType.STATE, "Audio file loaded: " + currentInputAudioFile.getFilename());
-				createWaveform();
-			}
-			else
-			{
-				sendEventToInterface(EngineEvent.ERROR_READING_AUDIO_FILE);
-				sendMessageToUser(UserMessageType.ERROR, "Could not read audio file: "+ builtFile.getFilename());
-			}
-		}
+		return throttle.getLimit();
 	}
 	
 	/**
-	 * Creates a new InputAudioFileBuilder and makes it create a new InputAudioFile as a representation of the specified audio file.
-	 * The InputAudioFileBuilder later calls InputAudioFileBuilderCallback() when it is done building the InputAudioFile
-	 * @param fileName full path to an audio file
+	 * @return the MemoryGovernor that buffers for audio and process output must be taken from
 	 */
-	public void readInputAudioFile(String fileName)
+	public MemoryGovernor getMemoryGovernor()
 	{
-		clearCurrentAudioFile();
-		clearAudioBites();
-		currentlyRunningInputAudioFileBuilder = new InputAudioFileBuilder(fileName, soxiPath, this);
-		currentlyRunningInputAudioFileBuilder.start();
-		sendEventToInterface(EngineEvent.READING_AUDIO_FILE);
-		//sendMessageToUser(UserMessageType.STATE, "Loading audio file...");
+		return memoryGovernor;
 	}
-
+	
 	/**
-	 * Reads a Cubase track file (XML) and parses the content.
-	 * Calls processAudioBitesFromParser() if the file was successfully parsed 
-	 * @param file full path to the XML file to be read
+	 * @return progress of the current (or last) outputting of files
+	 */
+	public OutputProgress getOutputProgress()
+	{
+		return outputProgress;
+	}
+	
+	/**
+	 * @return the ProcessSupervisor that all external processes must be started with
 	 */
-	public void readXML(String file)
+	public ProcessSupervisor getProcessSupervisor()
 	{
-		clearAudioBites();
-		clearOutputFolder();
-		if (currentInputAudioFile != null)
+		return processSupervisor;
+	}
+	
+	/**
+	 * @return the TaskRunner running the work of the engine. The user interface may run its own CPU heavy work on its compute executor
+	 */
+	public TaskRunner getTaskRunner()
+	{
+		return taskRunner;
+	}
+	
+	/**
+	 * @return the BandwidthThrottle that outputters and waveform generators take their disk traffic from
+	 */
+	public BandwidthThrottle getThrottle()
+	{
+		return throttle;
+	}
+	
+	/**
+	 * @return true if SoX/FFMPEG processes are run at low priority
+	 */
+	public boolean isLowPriority()
+	{
+		return processSupervisor.isLowPriority();
+	}
+	
+	/**
+	 * Parses a Cubase track XML file with the parser that suits the file best (see Constants.byteScannerMinFileSize and Constants.useStaxTrackParser)
+	 * @param f the XML file
+	 * @param handler receives the elements. Get the result from it afterwards
+	 * @throws Exception if the file can't be read or parsed
+	 */
+	public static void parseTrackXML(File f, CubaseTrackXMLSaxParseHandler handler) throws Exception
+	{
+		if (f.length() >= Constants.byteScannerMinFileSize)
 		{
-			SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
-		    try 
-		    {
-		        SAXParser saxParser = saxParserFactory.newSAXParser();
-		        CubaseTrackXMLSaxParseHandler handler = new CubaseTrackXMLSaxParseHandler();
-		        File f = new File(file);
-		        saxParser.parse(f, handler);
-		        processAudioBitesFromParser(handler.getAudioBites(), file);
-		    } 
-		    catch (FileNotFoundException e)
-		    {
-		    	sendMessageToUser(UserMessageType.ERROR, "File not found: " + file);
-		    }
-		    catch (Exception e) 
-		    {
-		    	sendMessageToUser(UserMessageType.ERROR, "An error occurred while trying to parse XML file: " + file);
-		    	Debug.log("Exception caught while trying to parse XML file:");
-		        e.printStackTrace();
-		    }
+			new CubaseTrackXMLByteScanner().parse(f, handler);
+		}
+		else if (Constants.useStaxTrackParser)
+		{
+			new CubaseTrackXMLStaxParser().parse(f, handler);
 		}
 		else
 		{
-			sendMessageToUser(UserMessageType.ERROR, "An audio file must be loaded before track XML can be loaded");
+			SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+			SAXParser saxParser = saxParserFactory.newSAXParser();
+			saxParser.parse(f, handler);
 		}
 	}
+	
+	/**
+	 * Starts an InputAudioFileBuilder that creates a new InputAudioFile as a representation of the specified audio file.
+	 * Anything still being done with a previously loaded audio file (loading, waveform, track XML) is cancelled.
+	 * A track XML file can be read (see readXML()) while the audio file is being loaded.
+	 * @param fileName full path to an audio file
+	 * @return future receiving the loaded InputAudioFile when the engine is done taking it over. Receives null if the file could not be read
+	 */
+	public CompletableFuture<InputAudioFile> readInputAudioFile(final String fileName)
+	{
+		return taskRunner.startOnStateOwner(new Supplier<CompletableFuture<InputAudioFile>>()
+		{
+			public CompletableFuture<InputAudioFile> get()
+			{
+				cancel(audioFileToken);
+				cancelTrackXML();
+				cancelWaveform();
+				clearCurrentAudioFile();
+				clearAudioBites();
+				final CancellationToken token = new CancellationToken();
+				audioFileToken = token;
+				sendEventToInterface(EngineEvent.READING_AUDIO_FILE);
+				sendEventToInterface(EngineEvent.READY_FOR_XML);
+				//sendMessageToUser(UserMessageType.STATE, "Loading audio file...");
+				return taskRunner.submitProcess(new InputAudioFileBuilder(fileName, soxiPath, ExporterEngine.this), token).handleAsync(new BiFunction<InputAudioFile, Throwable, InputAudioFile>()
+				{
+					public InputAudioFile apply(InputAudioFile builtFile, Throwable error)
+					{
+						return audioFileBuilt(token, builtFile, error);
+					}
+				}, taskRunner.getStateOwner());
+			}
+		});
+	}
 
 	/**
-	 * Method for registering a running Process that needs to be stopped if program is closed before it is done.
-	 * @param p Process to register
+	 * Reads a Cubase track file (XML) and parses the content on the compute executor, so the user interface stays responsive.
+	 * A track file still being read is cancelled.
+	 * 
+	 * Can also be called while the audio file is being loaded, so the parsing overlaps the reading of the audio file properties.
+	 * The regions can only be checked against the length of the audio file when both are done, so processAudioBitesFromParser()
+	 * is called by whichever of trackXMLRead() and audioFileBuilt() finishes last.
+	 * @param file full path to the XML file to be read
 	 */
-	public void registerStartedProcess(Process p)
+	public void readXML(final String file)
 	{
-		//Is this correct use of 'synchronized'? I am not so experienced with muti-threading..
-		synchronized(startedProcesses)
+		taskRunner.runOnStateOwner(new Runnable()
 		{
-			if (startedProcesses == null)
+			public void run()
 			{
-				startedProcesses = new ArrayList<Process>();
+				cancelTrackXML();
+				clearAudioBites();
+				clearOutputFolder();
+				if (currentInputAudioFile == null && audioFileToken == null)
+				{
+					sendMessageToUser(UserMessageType.ERROR, "An audio file must be loaded before track XML can be loaded");
+					return;
+				}
+				final CancellationToken token = new CancellationToken();
+				xmlToken = token;
+				taskRunner.submitCompute(new CancellableTask<List<AudioBite>>()
+				{
+					public List<AudioBite> run(CancellationToken token) throws Exception
+					{
+						return loadTrackXML(new File(file));
+					}
+				}, token).handleAsync(new BiFunction<List<AudioBite>, Throwable, Void>()
+				{
+					public Void apply(List<AudioBite> bites, Throwable error)
+					{
+						trackXMLRead(token, file, bites, error);
+						return null;
+					}
+				}, taskRunner.getStateOwner());
 			}
-			startedProcesses.add(p);
-		}
+		});
 	}
 
 	/**
 	 * Sends a message to the user. Printed in the Log window.
+	 * Can be called from any thread.
 	 * @param type type of message - determines how it is shown.
 	 * @param message the actual message
 	 */
@@ -405,103 +530,205 @@ public class ExporterEngine
 		userInterface.sendMessageToUser(type, message);
 	}
 
+	/**
+	 * Called from the UserInterface (or the HeadlessExporter) to limit the disk bandwidth used by outputting files and generating waveforms,
+	 * so an export can run in the background without disturbing e.g. a DAW streaming from the same disk (part of the QoS mode).
+	 * Applied right away from the calling thread, so it also affects a running export
+	 * @param bytesPerSecond 0 for no limit
+	 */
+	public void setBandwidthLimit(long bytesPerSecond)
+	{
+		throttle.setLimit(bytesPerSecond);
+		Debug.log(LogLevel.INFO, "Disk bandwidth limit set to {} bytes/s", bytesPerSecond);
+	}
+	
 	/**
 	 * Called from UserInterface when convert to mp3 is changed/set
 	 * @param convert
 	 */
-	public void setConvertWithFfmpeg(boolean convert)
+	public void setConvertWithFfmpeg(final boolean convert)
 	{
-		convertWithFfmpeg = convert;
-		Debug.log("Convert with ffmpeg set to "+convertWithFfmpeg);
+		taskRunner.runOnStateOwner(new Runnable()
+		{
+			public void run()
+			{
+				convertWithFfmpeg = convert;
+				Debug.log("Convert with ffmpeg set to "+convertWithFfmpeg);
+			}
+		});
 	}
 	
 	/**
 	 * Called from UserInterface when mp3 conversion settings are changed/set
 	 * @param argument bitrate argument used in FFMPEG for mp3 conversion
 	 */
-	public void setConvertWithFfmpegArguments(String arguments)
+	public void setConvertWithFfmpegArguments(final String arguments)
 	{
-		convertWithFfmpegArguments = arguments;
-		Debug.log("Convert with ffmpeg arguments set to: "+convertWithFfmpegArguments);
+		taskRunner.runOnStateOwner(new Runnable()
+		{
+			public void run()
+			{
+				convertWithFfmpegArguments = arguments;
+				Debug.log("Convert with ffmpeg arguments set to: "+convertWithFfmpegArguments);
+			}
+		});
 	}
 	
-	public void setConvertWithFfmpegFileEnding(String fileEnding)
+	public void setConvertWithFfmpegFileEnding(final String fileEnding)
 	{
-	    convertWithFfmpegFileEnding = fileEnding.replace(".", "");
-	    Debug.log("Convert with ffmpeg file ending set to: "+convertWithFfmpegFileEnding);
+		taskRunner.runOnStateOwner(new Runnable()
+		{
+			public void run()
+			{
+				convertWithFfmpegFileEnding = fileEnding.replace(".", "");
+				Debug.log("Convert with ffmpeg file ending set to: "+convertWithFfmpegFileEnding);
+			}
+		});
+	}
+	
+	/**
+	 * Called from the UserInterface (or the HeadlessExporter) to run SoX/FFMPEG processes at low CPU and disk priority (part of the QoS mode).
+	 * Applied right away from the calling thread, so it also changes the priority of the processes of a running export
+	 * @param lowPriority
+	 */
+	public void setLowPriority(boolean lowPriority)
+	{
+		processSupervisor.setLowPriority(lowPriority);
+	}
+	
+	/**
+	 * Called from the UserInterface (or the HeadlessExporter) to set the memory budget for the buffers that audio and process output pass through,
+	 * e.g. to give each of several instances on a shared machine a hard ceiling.
+	 * Applied right away from the calling thread, so it also affects a running export
+	 * @param bytes
+	 */
+	public void setMemoryBudget(long bytes)
+	{
+		memoryGovernor.setBudget(bytes);
+		Debug.log(LogLevel.INFO, "Memory budget set to {} bytes", bytes);
 	}
 	
 	/**
 	 * Sets the output folder and at the same time starts the output process.
 	 * @param path path to the folder in which the output file should be written
 	 */
-	public void setOutputFolder(String path)
+	public void setOutputFolder(final String path)
 	{
-		if (currentlyRunningSplitter != null)
-		{
-			sendMessageToUser(UserMessageType.ERROR, "Can't output files now since the exporter is already in the process of outputting");
-			return;
-		}
-		try
+		taskRunner.runOnStateOwner(new Runnable()
 		{
-			File f = new File(path);
-			if((f != null) && f.exists() && f.isDirectory())
+			public void run()
 			{
-				outputFolder = path;
-				outputFolderSet = true;
-				boolean[] folderContainsFilesResult = outputFolderContainsFilesAlready();
-				if (folderContainsFilesResult[1])//If it is the special case where input audio file will be overwritten
+				if (outputToken != null)
 				{
-					sendEventToInterface(EngineEvent.INPUT_FILE_TO_BE_OVERWRITTEN);
-					return;//Not allowed, do no further processing
+					sendMessageToUser(UserMessageType.ERROR, "Can't output files now since the exporter is already in the process of outputting");
+					return;
 				}
-				if (folderContainsFilesResult[0])//If other 'normal' files will be overwritten
+				try
 				{
-					sendEventToInterface(EngineEvent.FILES_TO_BE_OVERWRITTEN);
+					File f = new File(path);
+					if((f != null) && f.exists() && f.isDirectory())
+					{
+						outputFolder = path;
+						outputFolderSet = true;
+						boolean[] folderContainsFilesResult = outputFolderContainsFilesAlready();
+						if (folderContainsFilesResult[1])//If it is the special case where input audio file will be overwritten
+						{
+							sendEventToInterface(EngineEvent.INPUT_FILE_TO_BE_OVERWRITTEN);
+							return;//Not allowed, do no further processing
+						}
+						if (folderContainsFilesResult[0])//If other 'normal' files will be overwritten
+						{
+							sendEventToInterface(EngineEvent.FILES_TO_BE_OVERWRITTEN);
+						}
+						else
+						{
+							createFiles();
+						}
+					}
+					else
+					{
+						sendMessageToUser(UserMessageType.ERROR, "Could not find destination folder: "+ path);
+					}
 				}
-				else
+				catch (Exception e)
 				{
-					createFiles();
+					sendMessageToUser(UserMessageType.ERROR, "An error occurred while trying to output files");
+					Debug.log(LogLevel.ERROR, "Exception caught while trying to output files:");
+					e.printStackTrace();
 				}
 			}
-			else
+		});
+	}
+	
+	/**
+	 * Sets whether a waveform preview should be generated and audition be prepared when an audio file is loaded.
+	 * Should be set to false when running without graphical user interface
+	 * @param enabled
+	 */
+	public void setPreviewEnabled(final boolean enabled)
+	{
+		taskRunner.runOnStateOwner(new Runnable()
+		{
+			public void run()
 			{
-				sendMessageToUser(UserMessageType.ERROR, "Could not find destination folder: "+ path);
+				previewEnabled = enabled;
 			}
-		}
-		catch (Exception e)
+		});
+	}
+	
+	/**
+	 * Called from UserInterface when the order in which regions are output is changed
+	 * @param policy
+	 */
+	public void setSchedulingPolicy(final SchedulingPolicy policy)
+	{
+		taskRunner.runOnStateOwner(new Runnable()
 		{
-			sendMessageToUser(UserMessageType.ERROR, "An error occurred while trying to output files");
-			Debug.log("Exception caught while trying to output files:");
-			e.printStackTrace();
-		}
+			public void run()
+			{
+				schedulingPolicy = policy;
+				Debug.log("Scheduling policy set to "+policy.getDisplayName());
+			}
+		});
 	}
 	
 	/**
 	 * Sets the amount of time (seconds) that each AudioBite is extended in length compared to the actual event/region in Cubase
 	 * @param seconds
 	 */
-	public void setTrailingTime(double seconds)
+	public void setTrailingTime(final double seconds)
 	{
-		if (trailingTime != seconds)
+		taskRunner.runOnStateOwner(new Runnable()
 		{
-			trailingTime = seconds;
-			if (audioBites.size() >0)
+			public void run()
 			{
-				setFunctionalEndAndOutputRangeMarkers();
+				if (trailingTime != seconds)
+				{
+					trailingTime = seconds;
+					if (audioBites.size() >0)
+					{
+						setFunctionalEndAndOutputRangeMarkers();
+					}
+				}
+				Debug.log("Trailing time set to "+seconds+" seconds");
 			}
-		}
-		Debug.log("Trailing time set to "+seconds+" seconds");
+		});
 	}
 	
 	/**
 	 * Sets the height in pixels of waveform view
 	 * @param height
 	 */
-	public void setWaveformHeight(int height)
+	public void setWaveformHeight(final int height)
 	{
-		waveformHeight = height;
-		Debug.log("Waveform height set to "+height);
+		taskRunner.runOnStateOwner(new Runnable()
+		{
+			public void run()
+			{
+				waveformHeight = height;
+				Debug.log("Waveform height set to "+height);
+			}
+		});
 	}
 	
 	
@@ -509,36 +736,101 @@ public class ExporterEngine
 	 * Sets the width in pixels of waveform view
 	 * @param width
 	 */
-	public void setWaveformWidth(int width)
+	public void setWaveformWidth(final int width)
 	{
-		waveformWidth = width;
-		Debug.log("Waveform width set to "+width);
+		taskRunner.runOnStateOwner(new Runnable()
+		{
+			public void run()
+			{
+				waveformWidth = width;
+				Debug.log("Waveform width set to "+width);
+			}
+		});
 	}
 	
 	/**
-	 * Method for unregistering a Process previously registered as running.
-	 * @param p Process to unregister
+	 * Called from the UserInterface to stop playing a region
 	 */
-	public void unregisterStartedProcess(Process p)
+	public void stopAudition()
 	{
-		//Is this correct use of 'synchronized'? I am not so experienced with muti-threading..
-		synchronized(startedProcesses)
-		{ 
-			if (startedProcesses != null)
+		taskRunner.runOnStateOwner(new Runnable()
+		{
+			public void run()
 			{
-				startedProcesses.remove(p);
+				if (audioAuditioner != null)
+				{
+					audioAuditioner.stop();
+				}
 			}
-		}
+		});
 	}
 	
+	/**
+	 * Reads a Cubase track XML file and outputs its regions to a folder while reading, using a StreamingOutputter.
+	 * Meant for use without user interaction, since there is no preview of the regions and existing files in the folder are overwritten.
+	 * @param xmlFile full path to the XML file to be read
+	 * @param path path to the folder in which the output files should be written
+	 * @return future receiving true when all files have been successfully created, or false if outputting failed or could not be started
+	 */
+	public CompletableFuture<Boolean> streamXMLToOutputFolder(final String xmlFile, final String path)
+	{
+		return taskRunner.startOnStateOwner(new Supplier<CompletableFuture<Boolean>>()
+		{
+			public CompletableFuture<Boolean> get()
+			{
+				if (outputToken != null)
+				{
+					sendMessageToUser(UserMessageType.ERROR, "Can't output files now since the exporter is already in the process of outputting");
+					return CompletableFuture.completedFuture(false);
+				}
+				if (currentInputAudioFile == null)
+				{
+					sendMessageToUser(UserMessageType.ERROR, "An audio file must be loaded before track XML can be loaded");
+					return CompletableFuture.completedFuture(false);
+				}
+				File folder = new File(path);
+				if (! (folder.exists() && folder.isDirectory()))
+				{
+					sendMessageToUser(UserMessageType.ERROR, "Could not find destination folder: "+ path);
+					return CompletableFuture.completedFuture(false);
+				}
+				File f = new File(xmlFile);
+				if (! f.isFile())
+				{
+					sendMessageToUser(UserMessageType.ERROR, "File not found: " + xmlFile);
+					return CompletableFuture.completedFuture(false);
+				}
+				cancelTrackXML();
+				clearAudioBites();
+				outputFolder = path;
+				outputFolderSet = true;
+				sendMessageToUser(UserMessageType.STATE, "Reading regions from " + xmlFile + " and extracting them to destination folder: " + outputFolder + " ...");
+				outputProgress.reset(0);
+				AudioOutputter outputter = new AudioOutputter(currentInputAudioFile, new ArrayList<AudioBite>(), outputFolder, soxPath, ffmpegPath, temporaryFolderPath, convertWithFfmpeg, convertWithFfmpegArguments, convertWithFfmpegFileEnding, useCubaseNames, fixedName, ExporterEngine.this, schedulingPolicy, taskRunner);
+				CancellationToken token = new CancellationToken();
+				outputToken = token;
+				//The StreamingOutputter waits for its TimingReader, which runs on the compute executor.
+				//So it runs on the process executor, since it would otherwise deadlock if it took the last compute thread
+				CompletableFuture<Integer> outputting = taskRunner.submitProcessUntilEnded(new StreamingOutputter(currentInputAudioFile, f, outputter, trailingTime, biteOutsideAudioTolerance, ExporterEngine.this, taskRunner), token, Constants.cancelTimeout);
+				sendEventToInterface(EngineEvent.OUTPUTTING_FILES);
+				return whenOutputDone(outputting, token);
+			}
+		});
+	}
 	
 	/**
 	 * Called from UserInterface if the user wants to use output audio file naming based on event names/descriptions in Cubase (in track XML file)
 	 */
 	public void useCubaseNames()
 	{
-		useCubaseNames = true;
-		Debug.log("Using cubase names/descriptions");
+		taskRunner.runOnStateOwner(new Runnable()
+		{
+			public void run()
+			{
+				useCubaseNames = true;
+				Debug.log("Using cubase names/descriptions");
+			}
+		});
 	}
 	
 	
@@ -546,54 +838,133 @@ public class ExporterEngine
 	 * Called from UserInterface if the user wants to use a fixed string for naming output audio files
 	 * @param n the name to be used (will be followed by "_0001", "_0002" etc)
 	 */
-	public void useFixedName(String n)
+	public void useFixedName(final String n)
 	{
-		fixedName = Utils.getValidFileNameString(n);
-		if (fixedName.isEmpty() || fixedName == "")
+		taskRunner.runOnStateOwner(new Runnable()
 		{
-			fixedName = "invalid_file_name";
+			public void run()
+			{
+				fixedName = Utils.getValidFileNameString(n);
+				if (fixedName.isEmpty() || fixedName == "")
+				{
+					fixedName = "invalid_file_name";
+				}
+				Debug.log("Using fixed name: "+fixedName);
+				useCubaseNames = false;
+			}
+		});
+	}
+	
+	/**
+	 * Called by WaveformGenerator while generating, each time a new chunk of peaks is ready to be shown.
+	 * The WaveformGenerator limits how often this is called.
+	 * @param token the token of the calling WaveformGenerator
+	 * @param f the audio file the WaveformGenerator reads
+	 * @param peaks the partly generated peaks
+	 */
+	public void waveformGeneratorProgressCallback(CancellationToken token, InputAudioFile f, WaveformPeaks peaks)
+	{
+		//Don't show partial waveform of an audio file that is no longer loaded.
+		//The user interface checks f as well, since another file can be loaded while this update is on its way
+		if (token == waveformToken)
+		{
+			userInterface.waveformProgress(f, peaks);
 		}
-		Debug.log("Using fixed name: "+fixedName);
-		useCubaseNames = false;
 	}
 	
 	/**
-	 * Called by WaveformGenerator when it is done generating
-	 * @param caller the calling WaveformGenerator
-	 * @param success was it successful?
-	 * @param inputAudioFile the InputAudioFile the waveform was created on the basis of (might not be the same as currentInputAudioFile).
+	 * Takes over an InputAudioFile built by an InputAudioFileBuilder. Run on the state owner thread
+	 * @param token the token of the InputAudioFileBuilder
+	 * @param builtFile the built InputAudioFile. Null if cancelled
+	 * @param error exception thrown by the InputAudioFileBuilder, if any
+	 * @return the new currentInputAudioFile, or null if it could not be read
 	 */
-	public void waveformGeneratorCallback(WaveformGenerator caller, boolean success,InputAudioFile inputAudioFile, String waveformPng)
+	private InputAudioFile audioFileBuilt(CancellationToken token, InputAudioFile builtFile, Throwable error)
 	{
-		//Is this correct use of 'synchronized'? I am not so experienced with muti-threading..
-		synchronized (this)
+		if (token != audioFileToken)//Another audio file has been loaded since, or the engine is closing
 		{
-			if (caller != currentlyRunningWaveformGenerator)
-			{
-				Debug.log("Error in WaveformGeneratorCallback(). caller != currentlyRunningWaveformGenerator");
-			}
-			currentlyRunningWaveformGenerator = null;
-			if (inputAudioFile != currentInputAudioFile)//If we have read a new audio file since caller was started
-			{
-				Utils.deleteFile(waveformPng);
-				createWaveform();
-				return;
-			}
-			else
-			{
-				Debug.log("Done generating waveform");
-				sendEventToInterface(EngineEvent.DONE_GENERATING_WAVEFORM);
-				if(success)
-				{
-					userInterface.waveformCreated(waveformPng);
-				}
-				else
-				{
-					sendMessageToUser(UserMessageType.WARNING, "Could somehow not create waveform preview");
-				}
-			}
+			return null;
+		}
+		Debug.log("Done building InputAudioFile");
+		audioFileToken = null;
+		if (error != null)
+		{
+			Debug.log(LogLevel.ERROR, "Exception caught while building InputAudioFile:");
+			error.printStackTrace();
+			builtFile = null;
+		}
+		if (builtFile == null || ! builtFile.getIsValid())
+		{
+			//A track file read while loading can't be used
+			cancelTrackXML();
+			sendEventToInterface(EngineEvent.NOT_READY_FOR_XML);
+		}
+		if (builtFile == null)
+		{
+			sendEventToInterface(EngineEvent.ERROR_READING_AUDIO_FILE);
+			sendMessageToUser(UserMessageType.ERROR, "Could not read audio file");
+			return null;
+		}
+		if (! builtFile.getIsValid())
+		{
+			sendEventToInterface(EngineEvent.ERROR_READING_AUDIO_FILE);
+			sendMessageToUser(UserMessageType.ERROR, "Could not read audio file: "+ builtFile.getFilename());
+			return null;
+		}
+		currentInputAudioFile = builtFile;
+		userInterface.audioFileRead(currentInputAudioFile);
+		sendEventToInterface(EngineEvent.READY_FOR_XML);
+		sendMessageToUser(UserMessageType.STATE, "Audio file loaded: " + currentInputAudioFile.getFilename());
+		if (previewEnabled)
+		{
+			createWaveform();
+			openAudioAuditioner();
+		}
+		if (pendingAudioBites != null)//A track file was read while loading. This is the join point
+		{
+			List<AudioBite> bites = pendingAudioBites;
+			String xmlFileName = pendingXmlFileName;
+			pendingAudioBites = null;
+			pendingXmlFileName = null;
+			processAudioBitesFromParser(bites, xmlFileName);
+		}
+		return currentInputAudioFile;
+	}
+	
+	/**
+	 * Cancels a token, if not null
+	 * @param token
+	 */
+	private static void cancel(CancellationToken token)
+	{
+		if (token != null)
+		{
+			token.cancel();
+		}
+	}
+	
+	/**
+	 * Cancels the reading of a track XML file, if any, and forgets AudioBites waiting for the audio file to be loaded
+	 */
+	private void cancelTrackXML()
+	{
+		cancel(xmlToken);
+		xmlToken = null;
+		pendingAudioBites = null;
+		pendingXmlFileName = null;
+	}
+	
+	/**
+	 * Cancels the running WaveformGenerator, if any, and tells the UserInterface that no waveform is being generated
+	 */
+	private void cancelWaveform()
+	{
+		if (waveformToken != null)
+		{
+			waveformToken.cancel();
+			waveformToken = null;
+			sendEventToInterface(EngineEvent.DONE_GENERATING_WAVEFORM);
 		}
-		
 	}
 	
 	/**
@@ -612,6 +983,7 @@ public class ExporterEngine
 	 */
 	private void clearCurrentAudioFile()
 	{
+		closeAudioAuditioner();
 		currentInputAudioFile = null;
 		sendEventToInterface(EngineEvent.CLEAR_AUDIO_FILE);
 		sendEventToInterface(EngineEvent.NOT_READY_FOR_XML);
@@ -630,10 +1002,27 @@ public class ExporterEngine
 	}
 	
 	/**
-	 * Creates the files by starting a new AudioSplitter
+	 * Closes audioAuditioner, if open
+	 */
+	private void closeAudioAuditioner()
+	{
+		if (audioAuditioner != null)
+		{
+			audioAuditioner.close();
+			audioAuditioner = null;
+		}
+	}
+	
+	/**
+	 * Creates the files by starting a new AudioOutputter
 	 */
 	private void createFiles()
 	{
+		if (outputToken != null)
+		{
+			sendMessageToUser(UserMessageType.ERROR, "Can't output files now since the exporter is already in the process of outputting");
+			return;
+		}
 		if (! outputFolderSet)
 		{
 			sendMessageToUser(UserMessageType.ERROR, "Trying to create files without output folder being set. Cancelling.");
@@ -658,15 +1047,20 @@ public class ExporterEngine
         {
         	sendMessageToUser(UserMessageType.WARNING,renamedAudioBitesInLastXML +" files were renamed since their Cubase names are not unique");
         }
-		currentlyRunningSplitter = new AudioOutputter(currentInputAudioFile,audioBites,outputFolder,soxPath, ffmpegPath,temporaryFolderPath, convertWithFfmpeg, convertWithFfmpegArguments, convertWithFfmpegFileEnding, useCubaseNames, fixedName, this);
-		
-		currentlyRunningSplitter.start();
+		outputProgress.reset(audioBites.size());
+		//The AudioOutputter gets its own copy of the list, since audioBites is changed if another track file is loaded
+		AudioOutputter outputter = new AudioOutputter(currentInputAudioFile,new ArrayList<AudioBite>(audioBites),outputFolder,soxPath, ffmpegPath,temporaryFolderPath, convertWithFfmpeg, convertWithFfmpegArguments, convertWithFfmpegFileEnding, useCubaseNames, fixedName, this, schedulingPolicy, taskRunner);
+		CancellationToken token = new CancellationToken();
+		outputToken = token;
+		CompletableFuture<Integer> outputting = taskRunner.submitProcessUntilEnded(outputter, token, Constants.cancelTimeout);
+		//Sent before the completion is chained, since whenOutputDone() runs inline on the state owner thread if the outputter has already finished
 		sendEventToInterface(EngineEvent.OUTPUTTING_FILES);
-	
+		whenOutputDone(outputting, token);
 	}
 	
 	/**
-	 * Creates a downsampled version of the current input audio file to be used for extracting waveform data.
+	 * Starts a WaveformGenerator that reads the waveform peaks of the current input audio file.
+	 * A WaveformGenerator still running is cancelled.
 	 */
 	private void createWaveform()
 	{
@@ -675,17 +1069,19 @@ public class ExporterEngine
 			sendMessageToUser(UserMessageType.ERROR,"Can't create waveform since there is no currently no reference to an audio file !(?)");
 			return;
 		}
-		if (currentlyRunningWaveformGenerator == null)
+		cancelWaveform();
+		final CancellationToken token = new CancellationToken();
+		final InputAudioFile file = currentInputAudioFile;
+		waveformToken = token;
+		taskRunner.submitProcess(new WaveformGenerator(file, ffmpegPath, waveformWidth, this), token).handleAsync(new BiFunction<WaveformPeaks, Throwable, Void>()
 		{
-			currentlyRunningWaveformGenerator = new WaveformGenerator(currentInputAudioFile, ffmpegPath, temporaryFolderPath, waveformWidth, waveformHeight, this);
-			currentlyRunningWaveformGenerator.start();
-			sendEventToInterface(EngineEvent.GENERATING_WAVEFORM);
-		}
-		else//else, this function will be called when currentlyRunningWaveformGenerator calls back
-		{
-			Debug.log("Already creating waveform. Waiting until current process is done");
-		}
-		
+			public Void apply(WaveformPeaks peaks, Throwable error)
+			{
+				waveformDone(token, file, peaks, error);
+				return null;
+			}
+		}, taskRunner.getStateOwner());
+		sendEventToInterface(EngineEvent.GENERATING_WAVEFORM);
 	}
 	
 	/**
@@ -696,6 +1092,97 @@ public class ExporterEngine
 		userInterface.deleteRangeMarkers();
 	}
 	
+	/**
+	 * @param error exception received by a CompletableFuture stage
+	 * @return true if error means that the task was cancelled
+	 */
+	private static boolean isCancellation(Throwable error)
+	{
+		if (error instanceof CompletionException && error.getCause() != null)
+		{
+			error = error.getCause();
+		}
+		return error instanceof CancellationException;
+	}
+	
+	/**
+	 * Reads the AudioBites of a Cubase track XML file, from its snapshot if there is one that is up to date.
+	 * Otherwise the file is parsed and a snapshot is saved. Run on the compute executor, so it doesn't touch the state of the engine
+	 * @param f the XML file
+	 * @return the AudioBites found in the file
+	 * @throws Exception if the file can't be read or parsed
+	 */
+	private List<AudioBite> loadTrackXML(File f) throws Exception
+	{
+		List<AudioBite> bites = null;
+		if (Constants.useTrackSnapshotCache)
+		{
+			bites = trackSnapshotCache.load(f);
+		}
+		if (bites != null)
+		{
+			Debug.log("Track file read from snapshot");
+			return bites;
+		}
+		CubaseTrackXMLSaxParseHandler handler = new CubaseTrackXMLSaxParseHandler();
+		parseTrackXML(f, handler);
+		bites = handler.getAudioBites();
+		if (Constants.useTrackSnapshotCache && handler.getSampleRateSet())
+		{
+			trackSnapshotCache.save(f, bites, handler.getSampleRate());
+		}
+		return bites;
+	}
+	
+	/**
+	 * Called when an AudioOutputter or StreamingOutputter is done. Run on the state owner thread
+	 * @param token the token of the outputter
+	 * @param successes the number of successfully created files. Null if the outputter failed or was cancelled
+	 * @param error exception thrown by the outputter, if any
+	 * @return true if all files were successfully created
+	 */
+	private boolean outputDone(CancellationToken token, Integer successes, Throwable error)
+	{
+		if (token != outputToken)//The engine is closing
+		{
+			return false;
+		}
+		outputToken = null;
+		if (error != null)
+		{
+			if (isCancellation(error))
+			{
+				Debug.log(processSupervisor.getSummary());
+				Debug.log(throttle.getSummary());
+				Debug.log(memoryGovernor.getSummary());
+				sendMessageToUser(UserMessageType.WARNING, "Outputting cancelled. " + outputProgress.getDoneFiles() + " of " + outputProgress.getTotalFiles() + " audio file(s) were done. Files already created in " + outputFolder + " are kept");
+			}
+			else
+			{
+				sendMessageToUser(UserMessageType.ERROR, "An error occurred while trying to output files");
+				Debug.log(LogLevel.ERROR, "Exception caught while trying to output files:");
+				error.printStackTrace();
+			}
+			sendEventToInterface(EngineEvent.DONE_OUTPUTTING_FILES);
+			return false;
+		}
+		Debug.log(processSupervisor.getSummary());
+		Debug.log(throttle.getSummary());
+		Debug.log(memoryGovernor.getSummary());
+		int total = outputProgress.getTotalFiles();
+		if (successes == total)
+		{
+			sendMessageToUser(UserMessageType.SUCCESS, successes + " audio file(s) successfully created in folder: "+outputFolder);
+		}
+		else
+		{
+			sendMessageToUser(UserMessageType.ERROR, "Error(s) occurred while creating " + (total - successes) + " audio file(s).");
+			sendMessageToUser(UserMessageType.STATE, successes + " audio files successfully created in folder: "+outputFolder);
+		}
+		sendEventToInterface(EngineEvent.DONE_OUTPUTTING_FILES);
+		return successes == total;
+	}
+	
 	/**
 	 * Checks if the chosen output folder contains any files with the same name as any of the audio files to be written.
 	 * @return boolean[2]. First boolean indicates whether output folder contains file(s) to be overwritten. The second boolean indicates whether it is the special case where input audio file will be overwritten.
@@ -759,7 +1246,7 @@ public class ExporterEngine
 			}
 			catch(Exception e)
 			{
-				Debug.log("Exception caught while trying to check for existing files:");
+				Debug.log(LogLevel.ERROR, "Exception caught while trying to check for existing files:");
 				e.printStackTrace();
 			}
 		}
@@ -767,6 +1254,23 @@ public class ExporterEngine
 	}
 	
 	
+	/**
+	 * Opens audioAuditioner for currentInputAudioFile, so regions can be auditioned without delay.
+	 * Only uncompressed WAV and AIFF files are supported. For other files audioAuditioner stays null.
+	 */
+	private void openAudioAuditioner()
+	{
+		closeAudioAuditioner();
+		try
+		{
+			audioAuditioner = new AudioAuditioner(currentInputAudioFile.getFilename());
+		}
+		catch (Exception e)
+		{
+			Debug.log("Audio file can't be auditioned: " + e.getMessage());
+		}
+	}
+	
 	/**
 	 * Takes over from readXML() and does further work with the AudioBites found in the XML file.
 	 * @param bites List of the AudioBites found in Cubase track XML file
@@ -869,6 +1373,8 @@ public class ExporterEngine
 		soxiPath = pathToResourcesFolder + fileSeparator + "sox" + fileSeparator + "soxi";
 		ffmpegPath = pathToResourcesFolder + fileSeparator + "ffmpeg" + fileSeparator + "ffmpeg";
 		
+		trackSnapshotCache = new TrackSnapshotCache(new File(System.getProperty("user.home") + fileSeparator + ".multiregionexporterforcubase" + fileSeparator + "snapshots"));
+		
 		
 		try
 		{
@@ -877,7 +1383,7 @@ public class ExporterEngine
 		}
 		catch(Exception e)
 		{
-			Debug.log("Exception caught while trying to create temoprary folder:");
+			Debug.log(LogLevel.ERROR, "Exception caught while trying to create temoprary folder:");
 			e.printStackTrace();
 		}
 		
@@ -887,6 +1393,49 @@ public class ExporterEngine
 		Debug.log("FFMPEG path set to: "+ffmpegPath);
 	}
 	
+	/**
+	 * Called when a track XML file has been read on the compute executor. Run on the state owner thread
+	 * @param token the token of the reading
+	 * @param file full path to the XML file
+	 * @param bites the AudioBites found in the file. Null if reading failed
+	 * @param error exception thrown while reading, if any
+	 */
+	private void trackXMLRead(CancellationToken token, String file, List<AudioBite> bites, Throwable error)
+	{
+		if (token != xmlToken)//Another track file or audio file has been loaded since, or the engine is closing
+		{
+			return;
+		}
+		xmlToken = null;
+		if (error instanceof CompletionException && error.getCause() != null)
+		{
+			error = error.getCause();
+		}
+		if (error == null)
+		{
+			if (currentInputAudioFile == null)//Still loading the audio file. audioFileBuilt() takes over
+			{
+				Debug.log("Track file read. Waiting for audio file to be loaded");
+				pendingAudioBites = bites;
+				pendingXmlFileName = file;
+			}
+			else
+			{
+				processAudioBitesFromParser(bites, file);
+			}
+		}
+		else if (error instanceof FileNotFoundException)
+		{
+			sendMessageToUser(UserMessageType.ERROR, "File not found: " + file);
+		}
+		else if (! isCancellation(error))
+		{
+			sendMessageToUser(UserMessageType.ERROR, "An error occurred while trying to parse XML file: " + file);
+			Debug.log(LogLevel.ERROR, "Exception caught while trying to parse XML file:");
+			error.printStackTrace();
+		}
+	}
+	
 	/**
 	 * Validates naming of AudioBites (two files can't share same name)
 	 * @return number of bites that were renamed
@@ -919,7 +1468,7 @@ public class ExporterEngine
 				AudioBite bite = nameToBiteMap.remove(s);
 				if (bite == null)
 				{
-					Debug.log("Error: Could not find AudioBite in nameToBiteMap though its name was in reacurringNames");
+					Debug.log(LogLevel.ERROR, "Could not find AudioBite in nameToBiteMap though its name was in reacurringNames");
 				}
 				else
 				{
@@ -947,4 +1496,47 @@ public class ExporterEngine
 		return numRenamedAudioBites;
 	}
 	
+	/**
+	 * Called when a WaveformGenerator is done generating. Run on the state owner thread
+	 * @param token the token of the WaveformGenerator
+	 * @param f the audio file the WaveformGenerator read
+	 * @param peaks the generated peaks. Null if they could not be generated
+	 * @param error exception thrown by the WaveformGenerator, if any
+	 */
+	private void waveformDone(CancellationToken token, InputAudioFile f, WaveformPeaks peaks, Throwable error)
+	{
+		if (token != waveformToken)//Another audio file has been loaded since, or the engine is closing
+		{
+			return;
+		}
+		waveformToken = null;
+		Debug.log("Done generating waveform");
+		sendEventToInterface(EngineEvent.DONE_GENERATING_WAVEFORM);
+		if (peaks != null)
+		{
+			userInterface.waveformCreated(f, peaks);
+		}
+		else
+		{
+			sendMessageToUser(UserMessageType.WARNING, "Could somehow not create waveform preview");
+		}
+	}
+	
+	/**
+	 * Passes the result of an AudioOutputter or StreamingOutputter on to outputDone() on the state owner thread
+	 * @param outputting future receiving the number of successfully created files
+	 * @param token the token of the outputter
+	 * @return future receiving true if all files were successfully created
+	 */
+	private CompletableFuture<Boolean> whenOutputDone(CompletableFuture<Integer> outputting, final CancellationToken token)
+	{
+		return outputting.handleAsync(new BiFunction<Integer, Throwable, Boolean>()
+		{
+			public Boolean apply(Integer successes, Throwable error)
+			{
+				return outputDone(token, successes, error);
+			}
+		}, taskRunner.getStateOwner());
+	}
+	
 }
@@ -0,0 +1,224 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * UserInterface for running the exporter from the command line, without graphical user interface.
+ * Loads an audio file and streams the regions of a track XML file directly to an output folder (see ExporterEngine.streamXMLToOutputFolder()),
+ * so it can be used in batch jobs.
+ * -lowpriority and -bwlimit turn on the QoS mode, so a batch job can run in the background without disturbing e.g. a DAW.
+ * -membudget sets a hard ceiling on the buffer memory (see MemoryGovernor), for running several exports on a shared machine.
+ * 
+ * Usage: -export audioFile trackXmlFile outputFolder [-trailing seconds] [-fixedname name] [-order list|longest|offset] [-lowpriority] [-bwlimit MBps] [-membudget MB]
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class HeadlessExporter implements UserInterface
+{
+	/**
+	 * The ExporterEngine doing the work
+	 */
+	private ExporterEngine engine;
+	
+	/**
+	 * Has an error message been sent to the user?
+	 */
+	private volatile boolean errorOccurred = false;
+	
+	/**
+	 * Constructor
+	 */
+	public HeadlessExporter()
+	{
+		engine = new ExporterEngine(this);
+		engine.setPreviewEnabled(false);
+	}
+	
+	/**
+	 * Runs an export as given by the command line arguments
+	 * @param args the command line arguments, starting with "-export"
+	 * @return exit code for the process. 0 if all files were successfully created
+	 */
+	public static int run(String[] args)
+	{
+		if (args.length < 4)
+		{
+			System.err.println("Usage: -export audioFile trackXmlFile outputFolder [-trailing seconds] [-fixedname name] [-order list|longest|offset] [-lowpriority] [-bwlimit MBps] [-membudget MB]");
+			return 2;
+		}
+		final HeadlessExporter exporter = new HeadlessExporter();
+		//If the export is aborted (Ctrl+C), the running processes and the files they were writing are cleaned up before the JVM exits
+		Thread abortHook = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				Debug.log(LogLevel.WARNING, "Export aborted");
+				exporter.engine.cleanUp();
+			}
+		}, "Export abort");
+		Runtime.getRuntime().addShutdownHook(abortHook);
+		try
+		{
+			for (int i = 4; i < args.length; i++)
+			{
+				if (args[i].equals("-trailing") && i + 1 < args.length)
+				{
+					i += 1;
+					exporter.engine.setTrailingTime(Double.parseDouble(args[i]));
+				}
+				else if (args[i].equals("-fixedname") && i + 1 < args.length)
+				{
+					i += 1;
+					exporter.engine.useFixedName(args[i]);
+				}
+				else if (args[i].equals("-order") && i + 1 < args.length)
+				{
+					i += 1;
+					SchedulingPolicy policy = SchedulingPolicy.fromArgument(args[i]);
+					if (policy == null)
+					{
+						System.err.println("Unknown order: " + args[i]);
+						return 2;
+					}
+					exporter.engine.setSchedulingPolicy(policy);
+				}
+				else if (args[i].equals("-lowpriority"))
+				{
+					exporter.engine.setLowPriority(true);
+				}
+				else if (args[i].equals("-bwlimit") && i + 1 < args.length)
+				{
+					i += 1;
+					exporter.engine.setBandwidthLimit((long)(Double.parseDouble(args[i]) * 1000000));
+				}
+				else if (args[i].equals("-membudget") && i + 1 < args.length)
+				{
+					i += 1;
+					exporter.engine.setMemoryBudget((long)(Double.parseDouble(args[i]) * 1000000));
+				}
+				else
+				{
+					System.err.println("Unknown argument: " + args[i]);
+					return 2;
+				}
+			}
+			return exporter.export(args[1], args[2], args[3]);
+		}
+		catch (Exception e)
+		{
+			Debug.log(LogLevel.ERROR, "Exception caught while running export:");
+			e.printStackTrace();
+			return 1;
+		}
+		finally
+		{
+			try
+			{
+				Runtime.getRuntime().removeShutdownHook(abortHook);
+			}
+			catch (IllegalStateException e)
+			{
+				//Already shutting down. The hook cleans up
+			}
+			exporter.engine.cleanUp();
+		}
+	}
+	
+	@Override
+	public void audioFileRead(InputAudioFile f)
+	{
+		
+	}
+	
+	@Override
+	public boolean computerIsMac()
+	{
+		return System.getProperty("os.name").toLowerCase().startsWith("mac");
+	}
+	
+	@Override
+	public void deleteRangeMarkers()
+	{
+		
+	}
+	
+	@Override
+	public void receiveEvent(EngineEvent e)
+	{
+		
+	}
+	
+	@Override
+	public void sendMessageToUser(UserMessageType type, String message)
+	{
+		switch (type)
+		{
+		case ERROR:
+			errorOccurred = true;
+			System.err.println("Error: " + message);
+			break;
+			
+		case WARNING:
+			System.err.println("Warning: " + message);
+			break;
+			
+		default:
+			System.out.println(message);
+			break;
+		}
+	}
+	
+	@Override
+	public void setRangeMarkers(List<AudioBite> bites)
+	{
+		
+	}
+	
+	@Override
+	public void waveformCreated(InputAudioFile f, WaveformPeaks peaks)
+	{
+		
+	}
+	
+	@Override
+	public void waveformProgress(InputAudioFile f, WaveformPeaks peaks)
+	{
+		
+	}
+	
+	/**
+	 * Loads the audio file and outputs the regions of the track XML file, waiting until it is done
+	 * @param audioFile
+	 * @param xmlFile
+	 * @param outputFolder
+	 * @return exit code for the process
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	private int export(String audioFile, String xmlFile, String outputFolder) throws InterruptedException, ExecutionException
+	{
+		if (engine.readInputAudioFile(audioFile).get() == null)
+		{
+			return 1;
+		}
+		boolean success = engine.streamXMLToOutputFolder(xmlFile, outputFolder).get();
+		return (success && ! errorOccurred) ? 0 : 1;
+	}
+}
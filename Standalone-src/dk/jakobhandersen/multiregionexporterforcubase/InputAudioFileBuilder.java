@@ -22,12 +22,12 @@ import java.util.ArrayList;
 
 
 /**
- * A class based on Thread that builds an InputAudioFile
+ * A task (run by a TaskRunner) that builds an InputAudioFile
  * Uses SoXi to read audio properties
  * @author Jakob Hougaard Andersen
  *
  */
-public class InputAudioFileBuilder extends Thread
+public class InputAudioFileBuilder implements CancellableTask<InputAudioFile>
 {
 	/**
 	 * Full path to the audio file
@@ -35,7 +35,7 @@ public class InputAudioFileBuilder extends Thread
 	private String audioFileName;
 	
 	/**
-	 * The MultiRegionExporterForCubase to be called when done
+	 * The ExporterEngine whose ProcessSupervisor starts the SoXi processes
 	 */
 	private ExporterEngine caller;
 	
@@ -48,7 +48,7 @@ public class InputAudioFileBuilder extends Thread
 	 * Constructor
 	 * @param audioFileName full path to the audio file
 	 * @param soxiPath path to SoXi shortcut
-	 * @param caller the MultiRegionExporterForCubase to be called when done
+	 * @param caller the ExporterEngine whose ProcessSupervisor starts the SoXi processes
 	 */
 	public InputAudioFileBuilder(String audioFileName, String soxiPath, ExporterEngine caller)
 	{
@@ -57,34 +57,38 @@ public class InputAudioFileBuilder extends Thread
 		this.soxiPath = soxiPath;
 	}
 	
-	public void run()
+	/**
+	 * Reads the properties of the audio file with SoXi
+	 * @return the built InputAudioFile. Marked as not valid if the file could not be read
+	 */
+	@Override
+	public InputAudioFile run(CancellationToken token)
 	{
-		Debug.log("Running InputAudioFileBuilder thread");
+		Debug.log("Running InputAudioFileBuilder task");
 		try
 		{
 			//Get duration
 			double duration = 0;
 			ArrayList<String> cmdAndArgs = getSoxiCommand("-D");
-			if (this.isInterrupted())
+			if (token.isCancelled())
 			{
-				Debug.log("Thread interrupted. Exiting.");
-				return;
+				Debug.log("Task cancelled. Exiting.");
+				return null;
 			}
+			ProcessSupervisor supervisor = caller.getProcessSupervisor();
 			ProcessBuilder pb = new ProcessBuilder(cmdAndArgs);
-			Process p = pb.start();
-			caller.registerStartedProcess(p);
-			int result = p.waitFor();
+			Process p = supervisor.start(pb);
+			int result = supervisor.waitFor(p);
 			String output = null;
 			if (result == 0)
 			{
-				output = getOutputFromProcess(p);
+				output = getOutputFromProcess(p, token);
 			}
-			if (this.isInterrupted())
+			if (token.isCancelled())
 			{
-				Debug.log("Thread interrupted. Exiting.");
-				return;
+				Debug.log("Task cancelled. Exiting.");
+				return null;
 			}
-			caller.unregisterStartedProcess(p);
 			if (output != null && (! output.isEmpty()))
 			{
 				duration = Double.parseDouble(output);
@@ -97,34 +101,31 @@ public class InputAudioFileBuilder extends Thread
 			if (duration <= 0)
 			{
 				//The input audio file is not valid for further processing...
-				caller.inputAudioFileBuilderCallback(this, new InputAudioFile(audioFileName,false));
-				return;
+				return new InputAudioFile(audioFileName,false);
 			}
 			
 			
 			//Get channels
 			int channels = 0;
 			cmdAndArgs = getSoxiCommand("-c");
-			if (this.isInterrupted())
+			if (token.isCancelled())
 			{
-				Debug.log("Thread interrupted. Exiting.");
-				return;
+				Debug.log("Task cancelled. Exiting.");
+				return null;
 			}
 			pb = new ProcessBuilder(cmdAndArgs);
-			p = pb.start();
-			caller.registerStartedProcess(p);
-			result = p.waitFor();
+			p = supervisor.start(pb);
+			result = supervisor.waitFor(p);
 			output = null;
 			if (result == 0)
 			{
-				output = getOutputFromProcess(p);
+				output = getOutputFromProcess(p, token);
 			}
-			if (this.isInterrupted())
+			if (token.isCancelled())
 			{
-				Debug.log("Thread interrupted. Exiting.");
-				return;
+				Debug.log("Task cancelled. Exiting.");
+				return null;
 			}
-			caller.unregisterStartedProcess(p);
 			if (output != null && (! output.isEmpty()))
 			{
 				channels = Integer.parseInt(output);
@@ -137,26 +138,24 @@ public class InputAudioFileBuilder extends Thread
 			//Get sample rate
 			float sampleRate = 0;
 			cmdAndArgs = getSoxiCommand("-r");
-			if (this.isInterrupted())
+			if (token.isCancelled())
 			{
-				Debug.log("Thread interrupted. Exiting.");
-				return;
+				Debug.log("Task cancelled. Exiting.");
+				return null;
 			}
 			pb = new ProcessBuilder(cmdAndArgs);
-			p = pb.start();
-			caller.registerStartedProcess(p);
-			result = p.waitFor();
+			p = supervisor.start(pb);
+			result = supervisor.waitFor(p);
 			output = null;
 			if (result == 0)
 			{
-				output = getOutputFromProcess(p);
+				output = getOutputFromProcess(p, token);
 			}
-			if (this.isInterrupted())
+			if (token.isCancelled())
 			{
-				Debug.log("Thread interrupted. Exiting.");
-				return;
+				Debug.log("Task cancelled. Exiting.");
+				return null;
 			}
-			caller.unregisterStartedProcess(p);
 			if (output != null && (! output.isEmpty()))
 			{
 				sampleRate = Float.parseFloat(output);
@@ -169,26 +168,24 @@ public class InputAudioFileBuilder extends Thread
 			//Get bit depth
 			int bitDepth = 0;
 			cmdAndArgs = getSoxiCommand("-b");
-			if (this.isInterrupted())
+			if (token.isCancelled())
 			{
-				Debug.log("Thread interrupted. Exiting.");
-				return;
+				Debug.log("Task cancelled. Exiting.");
+				return null;
 			}
 			pb = new ProcessBuilder(cmdAndArgs);
-			p = pb.start();
-			caller.registerStartedProcess(p);
-			result = p.waitFor();
+			p = supervisor.start(pb);
+			result = supervisor.waitFor(p);
 			output = null;
 			if (result == 0)
 			{
-				output = getOutputFromProcess(p);
+				output = getOutputFromProcess(p, token);
 			}
-			if (this.isInterrupted())
+			if (token.isCancelled())
 			{
-				Debug.log("Thread interrupted. Exiting.");
-				return;
+				Debug.log("Task cancelled. Exiting.");
+				return null;
 			}
-			caller.unregisterStartedProcess(p);
 			if (output != null && (! output.isEmpty()))
 			{
 				bitDepth = Integer.parseInt(output);
@@ -198,14 +195,19 @@ public class InputAudioFileBuilder extends Thread
 				Debug.log("Could not get bit depth from file");
 			}
 			
-			caller.inputAudioFileBuilderCallback(this, new InputAudioFile(audioFileName,duration,bitDepth,sampleRate,channels,true));
+			return new InputAudioFile(audioFileName,duration,bitDepth,sampleRate,channels,true);
 			
 		}
+		catch (InterruptedException e)
+		{
+			Debug.log("Task cancelled. Exiting.");
+			return null;
+		}
 		catch (Exception e)
 		{
-			Debug.log("Exception caught while trying to get audio info from soxi:");
+			Debug.log(LogLevel.ERROR, "Exception caught while trying to get audio info from soxi:");
 			e.printStackTrace();
-			caller.inputAudioFileBuilderCallback(this, new InputAudioFile(audioFileName,false));
+			return new InputAudioFile(audioFileName,false);
 		}
 		
 	}
@@ -213,9 +215,10 @@ public class InputAudioFileBuilder extends Thread
 	/**
 	 * Gets the output from the SoXi processes
 	 * @param p the Process from which to get output
-	 * @return the output at a String
+	 * @param token
+	 * @return the output at a String. Null if token is cancelled while reading
 	 */
-	private String getOutputFromProcess(Process p)
+	private String getOutputFromProcess(Process p, CancellationToken token)
 	{
 		BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
 		StringBuilder builder = new StringBuilder();
@@ -225,7 +228,7 @@ public class InputAudioFileBuilder extends Thread
 			while ( (line = reader.readLine()) != null) 
 			{
 			   builder.append(line);
-			   if (this.isInterrupted())
+			   if (token.isCancelled())
 			   {
 				   return null;
 			   }
@@ -233,7 +236,7 @@ public class InputAudioFileBuilder extends Thread
 		} 
 		catch (IOException e) 
 		{
-			Debug.log("Exception caught while trying to read output from process:");
+			Debug.log(LogLevel.ERROR, "Exception caught while trying to read output from process:");
 			e.printStackTrace();
 		}
 		String result = builder.toString();
@@ -0,0 +1,254 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue of log messages, written by any thread and read by the single log writer thread (see Debug).
+ * 
+ * The messages are kept unformatted (format string and up to two arguments) in preallocated slots, so logging neither locks nor allocates.
+ * A writer claims a slot by advancing the tail with compare-and-set and publishes it by setting the slot's sequence number,
+ * which is also what tells it whether the slot has been read yet. If the queue is full, the message is dropped and counted
+ * rather than making the logging thread wait.
+ * The reading thread parks in awaitMessage() when the queue is empty, and the writer of the next message unparks it,
+ * so an idle application has no thread polling the queue.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class LogRingBuffer
+{
+	/**
+	 * Number of slots minus one (the number of slots is a power of two)
+	 */
+	private int mask;
+	
+	/**
+	 * Sequence number of each slot. Equal to the position that may be written next into the slot,
+	 * or to that position plus one when the slot holds a message ready to be read
+	 */
+	private AtomicLongArray sequences;
+	
+	/**
+	 * Next position to be claimed by a writer
+	 */
+	private AtomicLong tail = new AtomicLong(0);
+	
+	/**
+	 * Next position to be read. Only used by the reading thread
+	 */
+	private long head = 0;
+	
+	/**
+	 * Time of the message last returned by poll(). Only used by the reading thread
+	 */
+	private long polledTime = 0;
+	
+	/**
+	 * The thread reading the messages. Set with setReader()
+	 */
+	private volatile Thread reader = null;
+	
+	/**
+	 * True while the reader has found the queue empty and parks (or is about to). Cleared by the writer that unparks it
+	 */
+	private AtomicBoolean readerWaiting = new AtomicBoolean(false);
+	
+	/**
+	 * Number of messages dropped because the queue was full
+	 */
+	private AtomicLong dropped = new AtomicLong(0);
+	
+	/**
+	 * Level of the message in each slot
+	 */
+	private LogLevel[] levels;
+	
+	/**
+	 * Time (System.currentTimeMillis()) of the message in each slot
+	 */
+	private long[] times;
+	
+	/**
+	 * Format string of the message in each slot
+	 */
+	private String[] formats;
+	
+	/**
+	 * First argument of the message in each slot
+	 */
+	private Object[] firstArguments;
+	
+	/**
+	 * Second argument of the message in each slot
+	 */
+	private Object[] secondArguments;
+	
+	/**
+	 * Constructor
+	 * @param capacity number of messages that can wait in the queue. Rounded up to a power of two
+	 */
+	public LogRingBuffer(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mask = size - 1;
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+		{
+			sequences.set(i, i);
+		}
+		levels = new LogLevel[size];
+		times = new long[size];
+		formats = new String[size];
+		firstArguments = new Object[size];
+		secondArguments = new Object[size];
+	}
+	
+	/**
+	 * Adds a message. May be called from any thread
+	 * @param level
+	 * @param format message, where each "{}" is replaced by the next argument
+	 * @param firstArgument may be null
+	 * @param secondArgument may be null
+	 * @return false if the queue was full and the message was dropped
+	 */
+	public boolean add(LogLevel level, String format, Object firstArgument, Object secondArgument)
+	{
+		long position;
+		int slot;
+		while (true)
+		{
+			position = tail.get();
+			slot = (int)(position & mask);
+			long difference = sequences.get(slot) - position;
+			if (difference == 0)
+			{
+				if (tail.compareAndSet(position, position + 1))
+				{
+					break;
+				}
+			}
+			else if (difference < 0)
+			{
+				//The slot has not been read since the last round. The queue is full
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+		levels[slot] = level;
+		times[slot] = System.currentTimeMillis();
+		formats[slot] = format;
+		firstArguments[slot] = firstArgument;
+		secondArguments[slot] = secondArgument;
+		//Publishes the message. A full (volatile) write, so either this writer sees readerWaiting set or the reader sees the message before parking
+		sequences.set(slot, position + 1);
+		if (readerWaiting.get() && readerWaiting.compareAndSet(true, false))
+		{
+			LockSupport.unpark(reader);
+		}
+		return true;
+	}
+	
+	/**
+	 * Parks the reading thread until a message is added, unless there already is one. May return early (spuriously), so callers poll in a loop.
+	 * Must only be called by the thread set with setReader()
+	 */
+	public void awaitMessage()
+	{
+		readerWaiting.set(true);
+		if (sequences.get((int)(head & mask)) != head + 1)
+		{
+			LockSupport.park(this);
+		}
+		readerWaiting.set(false);
+	}
+	
+	/**
+	 * Returns the number of dropped messages since the last call and starts counting from zero
+	 * @return
+	 */
+	public long getAndResetDropped()
+	{
+		return dropped.getAndSet(0);
+	}
+	
+	/**
+	 * @return time (System.currentTimeMillis()) of the message last returned by poll()
+	 */
+	public long getPolledTime()
+	{
+		return polledTime;
+	}
+	
+	/**
+	 * Sets the thread that reads the messages, which add() unparks when it is waiting in awaitMessage()
+	 * @param reader
+	 */
+	public void setReader(Thread reader)
+	{
+		this.reader = reader;
+	}
+	
+	/**
+	 * Takes the next message, if there is one, and formats it. Must only be called by one thread
+	 * @param out the formatted message is appended to this
+	 * @return the level of the message, or null if the queue is empty
+	 */
+	public LogLevel poll(StringBuilder out)
+	{
+		int slot = (int)(head & mask);
+		if (sequences.get(slot) != head + 1)
+		{
+			return null;
+		}
+		LogLevel level = levels[slot];
+		polledTime = times[slot];
+		appendFormatted(out, formats[slot], firstArguments[slot], secondArguments[slot]);
+		formats[slot] = null;
+		firstArguments[slot] = null;
+		secondArguments[slot] = null;
+		sequences.lazySet(slot, head + mask + 1);//Frees the slot for the next round
+		head += 1;
+		return level;
+	}
+	
+	/**
+	 * Appends a message with each "{}" replaced by the next argument
+	 * @param out
+	 * @param format
+	 * @param firstArgument
+	 * @param secondArgument
+	 */
+	private static void appendFormatted(StringBuilder out, String format, Object firstArgument, Object secondArgument)
+	{
+		int argument = 0;
+		int from = 0;
+		int i = format.indexOf("{}");
+		while (i >= 0 && argument < 2)
+		{
+			out.append(format, from, i);
+			out.append(argument == 0 ? firstArgument : secondArgument);
+			argument += 1;
+			from = i + 2;
+			i = format.indexOf("{}", from);
+		}
+		out.append(format, from, format.length());
+	}
+}
@@ -0,0 +1,494 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.Color;
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
+import org.eclipse.swt.widgets.TableItem;
+import org.eclipse.wb.swt.SWTResourceManager;
+
+/**
+ * The log window of the user interface: a virtual SWT table showing the messages sent to the user.
+ * 
+ * Messages can be added from any thread with append(), which only puts the message in a lock-free queue and never waits for the user interface thread.
+ * The queue is bounded by reserving a place with compare-and-set on a counter before adding the message.
+ * If the user interface thread falls so far behind that the queue is full, messages are dropped and counted, and the count is shown in the log window instead.
+ * The queue is emptied on the user interface thread at most once per frame (frameTime), where the messages are wrapped and added to a ring buffer of lines.
+ * The table is virtual, so table items are only created for the lines that are actually shown. 
+ * When the ring buffer is full the oldest lines are dropped, so a long export can't make the log grow without limit.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class LogWindow
+{
+	/**
+	 * Maximum number of (wrapped) lines kept in the log window
+	 */
+	private static final int maxLines = 5000;
+	
+	/**
+	 * Minimum time in ms between two updates of the table
+	 */
+	private static final int frameTime = 40;
+	
+	/**
+	 * Maximum number of messages waiting to be added to the table
+	 */
+	private static final int maxPendingMessages = 2048;
+	
+	/**
+	 * A message waiting to be added to the log window
+	 * @author Jakob Hougaard Andersen
+	 *
+	 */
+	private static class PendingMessage
+	{
+		/**
+		 * Type of the message
+		 */
+		final UserMessageType type;
+		
+		/**
+		 * The message
+		 */
+		final String message;
+		
+		/**
+		 * Constructor
+		 * @param type
+		 * @param message
+		 */
+		PendingMessage(UserMessageType type, String message)
+		{
+			this.type = type;
+			this.message = message;
+		}
+	}
+	
+	/**
+	 * The table showing the lines
+	 */
+	private Table table;
+	
+	/**
+	 * The display of the table. Kept so append() can schedule updates from any thread.
+	 */
+	private Display display;
+	
+	/**
+	 * Maximum width in pixels of a line before it is wrapped
+	 */
+	private int maxLineWidth;
+	
+	/**
+	 * Messages appended but not yet added to the table. Written from any thread, read on the user interface thread.
+	 */
+	private ConcurrentLinkedQueue<PendingMessage> pendingMessages = new ConcurrentLinkedQueue<PendingMessage>();
+	
+	/**
+	 * Number of places in pendingMessages taken (reserved by append() before adding, freed when a message is taken out). At most maxPendingMessages.
+	 */
+	private AtomicInteger pendingCount = new AtomicInteger(0);
+	
+	/**
+	 * Number of messages dropped because pendingMessages was full, since the last update of the table
+	 */
+	private AtomicLong droppedMessages = new AtomicLong(0);
+	
+	/**
+	 * True while an update of the table is scheduled, so only one is scheduled at a time
+	 */
+	private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	
+	/**
+	 * Text of the lines. Ring buffer starting at firstLine. Only used on the user interface thread.
+	 */
+	private String[] lineTexts = new String[maxLines];
+	
+	/**
+	 * Message type of the lines (same indexing as lineTexts)
+	 */
+	private UserMessageType[] lineTypes = new UserMessageType[maxLines];
+	
+	/**
+	 * Index in lineTexts of the oldest line
+	 */
+	private int firstLine = 0;
+	
+	/**
+	 * Number of lines in the ring buffer
+	 */
+	private int lineCount = 0;
+	
+	/**
+	 * Empties pendingMessages into the table. Runs on the user interface thread.
+	 */
+	private Runnable flush = new Runnable()
+	{
+		public void run()
+		{
+			//Cleared before the queue is read, so a message appended while flushing schedules a new flush
+			flushScheduled.set(false);
+			if (table.isDisposed())
+			{
+				return;
+			}
+			addPendingMessages();
+		}
+	};
+	
+	/**
+	 * Constructor
+	 * @param parent
+	 * @param isMac
+	 */
+	public LogWindow(Composite parent, boolean isMac)
+	{
+		table = new Table(parent, SWT.VIRTUAL | SWT.BORDER | SWT.FULL_SELECTION | SWT.NO_SCROLL | SWT.V_SCROLL);
+		display = table.getDisplay();
+		table.setToolTipText("Log window");
+		table.setHeaderVisible(true);
+		table.setLinesVisible(true);
+		if (isMac)
+		{
+			table.setFont(SWTResourceManager.getFont("Arial", 10, SWT.NORMAL));
+			maxLineWidth = 750;
+		}
+		else
+		{
+			table.setFont(SWTResourceManager.getFont("Arial", 7, SWT.NORMAL));
+			maxLineWidth = 700;
+		}
+		
+		TableColumn tblclmnMessage = new TableColumn(table, SWT.NONE);
+		tblclmnMessage.setResizable(false);
+		tblclmnMessage.setWidth(588);
+		tblclmnMessage.setText("Log window");
+		
+		table.addListener(SWT.SetData, new Listener()
+		{
+			public void handleEvent(Event e)
+			{
+				TableItem item = (TableItem)e.item;
+				int index = e.index;
+				if (index >= 0 && index < lineCount)
+				{
+					int i = (firstLine + index) % maxLines;
+					item.setText(lineTexts[i]);
+					item.setForeground(getColorForUserMessageType(lineTypes[i]));
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Adds a message to the log window. Can be called from any thread and returns without waiting for the user interface or taking a lock.
+	 * The message is dropped (and counted) if maxPendingMessages are already waiting.
+	 * @param type
+	 * @param message
+	 */
+	public void append(UserMessageType type, String message)
+	{
+		if (reservePendingPlace())
+		{
+			pendingMessages.offer(new PendingMessage(type, message));
+		}
+		else
+		{
+			droppedMessages.incrementAndGet();
+		}
+		if (flushScheduled.compareAndSet(false, true) && !display.isDisposed())
+		{
+			display.asyncExec(new Runnable()
+			{
+				public void run()
+				{
+					if (!table.isDisposed())
+					{
+						table.getDisplay().timerExec(frameTime, flush);
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Reserves a place in pendingMessages
+	 * @return false if maxPendingMessages places are already taken
+	 */
+	private boolean reservePendingPlace()
+	{
+		while (true)
+		{
+			int count = pendingCount.get();
+			if (count >= maxPendingMessages)
+			{
+				return false;
+			}
+			if (pendingCount.compareAndSet(count, count + 1))
+			{
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Takes the oldest message out of pendingMessages and frees its place
+	 * @return the message, or null if none are waiting
+	 */
+	private PendingMessage pollPendingMessage()
+	{
+		PendingMessage m = pendingMessages.poll();
+		if (m != null)
+		{
+			pendingCount.decrementAndGet();
+		}
+		return m;
+	}
+	
+	/**
+	 * Removes all lines (and any messages not shown yet). Must be called on the user interface thread.
+	 */
+	public void clear()
+	{
+		//Taken out one at a time, so places reserved by appends that have not added their message yet stay counted
+		while (pollPendingMessage() != null)
+		{
+		}
+		droppedMessages.set(0);
+		firstLine = 0;
+		lineCount = 0;
+		for (int i = 0; i < maxLines; i++)
+		{
+			lineTexts[i] = null;
+			lineTypes[i] = null;
+		}
+		table.clearAll();
+		table.setItemCount(0);
+	}
+	
+	/**
+	 * @return the SWT control of the log window
+	 */
+	public Table getControl()
+	{
+		return table;
+	}
+	
+	/**
+	 * Sets the position and size of the log window
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 */
+	public void setBounds(int x, int y, int width, int height)
+	{
+		table.setBounds(x, y, width, height);
+	}
+	
+	/**
+	 * Wraps the pending messages into lines, adds them to the ring buffer and updates the table once.
+	 * If messages were dropped, a line telling how many is added after them
+	 */
+	private void addPendingMessages()
+	{
+		PendingMessage m = pollPendingMessage();
+		long dropped = droppedMessages.getAndSet(0);
+		if (m == null && dropped == 0)
+		{
+			return;
+		}
+		boolean linesDropped = false;
+		GC gc = new GC(table);
+		try
+		{
+			while (m != null)
+			{
+				linesDropped |= addLines(gc, m.type, m.message);
+				m = pollPendingMessage();
+			}
+			if (dropped > 0)
+			{
+				linesDropped |= addLines(gc, UserMessageType.WARNING, dropped + " message(s) not shown since the log window could not keep up");
+			}
+		}
+		finally
+		{
+			gc.dispose();
+		}
+		if (linesDropped)
+		{
+			//All lines have moved up, so the items already filled in are no longer right
+			table.clearAll();
+		}
+		table.setItemCount(lineCount);
+		table.setTopIndex(Math.max(0, lineCount - 1));
+	}
+	
+	/**
+	 * Wraps a message into lines and adds them to the ring buffer, dropping the oldest lines if it is full
+	 * @param gc used for measuring the text
+	 * @param type
+	 * @param message
+	 * @return true if any old lines were dropped
+	 */
+	private boolean addLines(GC gc, UserMessageType type, String message)
+	{
+		boolean linesDropped = false;
+		List<String> lines = getWrappedString(gc, getStartStringForUserMessageType(type) + message, maxLineWidth);
+		for (int i = 0; i < lines.size(); i++)
+		{
+			if (lineCount == maxLines)
+			{
+				//Drop the oldest line
+				firstLine = (firstLine + 1) % maxLines;
+				lineCount -= 1;
+				linesDropped = true;
+			}
+			int index = (firstLine + lineCount) % maxLines;
+			lineTexts[index] = lines.get(i);
+			lineTypes[index] = type;
+			lineCount += 1;
+		}
+		return linesDropped;
+	}
+	
+	/**
+	 * Get relevant color of user message of type t
+	 * @param t
+	 * @return
+	 */
+	private Color getColorForUserMessageType(UserMessageType t)
+	{
+	    if (!Display.isSystemDarkTheme())
+	    {
+	        Color ret = SWTResourceManager.getColor(SWT.COLOR_BLACK);
+	        switch (t)
+	        {
+	        case ERROR:
+	            ret = SWTResourceManager.getColor(SWT.COLOR_DARK_RED);
+	            break;
+	            
+	        case WARNING:
+	            ret = SWTResourceManager.getColor(SWT.COLOR_DARK_BLUE);
+	            break;
+	            
+	        case SUCCESS:
+	            ret = SWTResourceManager.getColor(SWT.COLOR_DARK_GREEN);
+	            break;
+	        
+	            default: break;
+	        }
+	        return ret;
+	    }
+	    else //If we use dark mode on mac os
+	    {
+	        Color ret = SWTResourceManager.getColor(SWT.COLOR_WHITE);
+            switch (t)
+            {
+            case ERROR:
+                ret = SWTResourceManager.getColor(SWT.COLOR_RED);
+                break;
+                
+            case WARNING:
+                ret = SWTResourceManager.getColor(SWT.COLOR_YELLOW);
+                break;
+                
+            case SUCCESS:
+                ret = SWTResourceManager.getColor(SWT.COLOR_GREEN);
+                break;
+            
+                default: break;
+            }
+            return ret;
+	    }
+		
+	}
+
+	/**
+	 * Get relevant start string for user message of type t
+	 * @param t 
+	 * @return 
+	 */
+	private String getStartStringForUserMessageType(UserMessageType t)
+	{
+		String ret = "";
+		switch (t)
+		{
+		case ERROR:
+			ret = "ERROR: ";
+			break;
+			
+		case WARNING:
+			ret = "WARNING: ";
+		
+			default: break;
+		}
+		return ret;
+	}
+	
+	/**
+	 * Returns wrapped string (List<String>)
+	 * The break positions are found by binary search, so a long message only needs a few measurements per line.
+	 * @param gc used for measuring the text
+	 * @param fullString
+	 * @param maxWidth
+	 * @return
+	 */
+	private static List<String> getWrappedString(GC gc, String fullString, int maxWidth)
+	{
+		List<String> splitStrings = new ArrayList<String>();
+		String restString = fullString;
+		while (restString.length() > 1 && gc.stringExtent(restString).x > maxWidth)
+		{
+			//Find the longest start of restString that fits (at least one character)
+			int lo = 1;
+			int hi = restString.length() - 1;
+			while (lo < hi)
+			{
+				int mid = (lo + hi + 1) >>> 1;
+				if (gc.stringExtent(restString.substring(0, mid)).x <= maxWidth)
+				{
+					lo = mid;
+				}
+				else
+				{
+					hi = mid - 1;
+				}
+			}
+			splitStrings.add(restString.substring(0, lo));
+			restString = restString.substring(lo);
+		}
+		splitStrings.add(restString);
+		return splitStrings;
+	}
+}
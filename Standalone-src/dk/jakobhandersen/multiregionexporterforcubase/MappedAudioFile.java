@@ -0,0 +1,429 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read access to the sample data of an uncompressed WAV or AIFF(-C) file through memory mapping.
+ * 
+ * Only the header is read when the file is opened. The sample data is mapped on demand for the frames needed
+ * and converted to 16 bit signed little endian, which every audio output line supports.
+ * Supported sample formats: 8, 16, 24 and 32 bit integer PCM and 32 bit float.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class MappedAudioFile
+{
+	/**
+	 * The open file
+	 */
+	private FileChannel channel;
+	
+	/**
+	 * Position in the file of the first byte of sample data
+	 */
+	private long dataOffset;
+	
+	/**
+	 * Number of frames in the file
+	 */
+	private long frames;
+	
+	/**
+	 * Number of channels
+	 */
+	private int channels;
+	
+	/**
+	 * Sample rate in Hz
+	 */
+	private float sampleRate;
+	
+	/**
+	 * Bytes per sample (1 to 4)
+	 */
+	private int bytesPerSample;
+	
+	/**
+	 * Are the samples 32 bit float?
+	 */
+	private boolean isFloat;
+	
+	/**
+	 * Are 8 bit samples unsigned (as in WAV)?
+	 */
+	private boolean isUnsigned8Bit;
+	
+	/**
+	 * Byte order of the samples
+	 */
+	private ByteOrder byteOrder;
+	
+	/**
+	 * Opens an audio file and reads its header
+	 * @param fileName full path
+	 * @throws IOException if the file can't be read or is not an uncompressed WAV or AIFF file in a supported sample format
+	 */
+	public MappedAudioFile(String fileName) throws IOException
+	{
+		channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		try
+		{
+			ByteBuffer id = read(0, 12, ByteOrder.BIG_ENDIAN);
+			int riff = id.getInt(0);
+			int form = id.getInt(8);
+			if (riff == fourCC("RIFF") && form == fourCC("WAVE"))
+			{
+				readWavHeader();
+			}
+			else if (riff == fourCC("FORM") && (form == fourCC("AIFF") || form == fourCC("AIFC")))
+			{
+				readAiffHeader(form == fourCC("AIFC"));
+			}
+			else
+			{
+				throw new IOException("Not a WAV or AIFF file");
+			}
+			long available = (channel.size() - dataOffset) / getBytesPerFrame();
+			frames = Math.min(frames, available);
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Closes the file
+	 */
+	public void close()
+	{
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			Debug.log(LogLevel.ERROR, "Exception caught while closing MappedAudioFile:");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @return number of bytes per frame in the file
+	 */
+	public int getBytesPerFrame()
+	{
+		return bytesPerSample * channels;
+	}
+	
+	/**
+	 * @return number of channels
+	 */
+	public int getChannels()
+	{
+		return channels;
+	}
+	
+	/**
+	 * @return number of frames in the file
+	 */
+	public long getFrames()
+	{
+		return frames;
+	}
+	
+	/**
+	 * @return sample rate in Hz
+	 */
+	public float getSampleRate()
+	{
+		return sampleRate;
+	}
+	
+	/**
+	 * Maps a range of frames of the sample data
+	 * @param startFrame
+	 * @param frameCount
+	 * @return read-only buffer with the raw frames, in the byte order of the file
+	 * @throws IOException
+	 */
+	public ByteBuffer map(long startFrame, int frameCount) throws IOException
+	{
+		long bytes = (long)frameCount * getBytesPerFrame();
+		ByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + (startFrame * getBytesPerFrame()), bytes);
+		return b.order(byteOrder);
+	}
+	
+	/**
+	 * Converts frames from a buffer returned by map() to 16 bit signed little endian with up to outputChannels channels.
+	 * If the file has more channels than outputChannels, only the first ones are used.
+	 * @param src buffer returned by map(). Read from its current position, which is advanced
+	 * @param frameCount number of frames to convert
+	 * @param outputChannels number of channels in the output (at most getChannels())
+	 * @param dst receives the converted frames from index 0
+	 */
+	public void convertTo16Bit(ByteBuffer src, int frameCount, int outputChannels, byte[] dst)
+	{
+		int skip = (channels - outputChannels) * bytesPerSample;
+		int d = 0;
+		for (int f = 0; f < frameCount; f++)
+		{
+			for (int c = 0; c < outputChannels; c++)
+			{
+				int v;
+				switch (bytesPerSample)
+				{
+				case 1:
+					v = src.get();
+					if (isUnsigned8Bit)
+					{
+						v = (v & 0xff) - 128;
+					}
+					v = v << 8;
+					break;
+					
+				case 2:
+					v = src.getShort();
+					break;
+					
+				case 3:
+					int b0 = src.get() & 0xff;
+					int b1 = src.get() & 0xff;
+					int b2 = src.get() & 0xff;
+					if (byteOrder == ByteOrder.LITTLE_ENDIAN)
+					{
+						v = (byte)b2 << 8 | b1;
+					}
+					else
+					{
+						v = (byte)b0 << 8 | b1;
+					}
+					break;
+					
+				default:
+					if (isFloat)
+					{
+						float s = src.getFloat() * 32767f;
+						v = (int)Math.max(-32768f, Math.min(32767f, s));
+					}
+					else
+					{
+						v = src.getInt() >> 16;
+					}
+					break;
+				}
+				dst[d] = (byte)v;
+				dst[d + 1] = (byte)(v >> 8);
+				d += 2;
+			}
+			if (skip > 0)
+			{
+				src.position(src.position() + skip);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the integer value of a four character chunk id
+	 * @param s
+	 * @return
+	 */
+	private static int fourCC(String s)
+	{
+		return (s.charAt(0) << 24) | (s.charAt(1) << 16) | (s.charAt(2) << 8) | s.charAt(3);
+	}
+	
+	/**
+	 * Reads bytes from the file
+	 * @param position
+	 * @param length
+	 * @param order
+	 * @return buffer with the bytes, positioned at 0
+	 * @throws IOException if the end of the file is reached
+	 */
+	private ByteBuffer read(long position, int length, ByteOrder order) throws IOException
+	{
+		ByteBuffer b = ByteBuffer.allocate(length).order(order);
+		while (b.hasRemaining())
+		{
+			if (channel.read(b, position + b.position()) < 0)
+			{
+				throw new IOException("Unexpected end of file");
+			}
+		}
+		b.flip();
+		return b;
+	}
+	
+	/**
+	 * Reads the AIFF or AIFF-C chunks needed (COMM and SSND)
+	 * @param isAifc
+	 * @throws IOException
+	 */
+	private void readAiffHeader(boolean isAifc) throws IOException
+	{
+		byteOrder = ByteOrder.BIG_ENDIAN;
+		boolean foundComm = false;
+		boolean foundData = false;
+		long pos = 12;
+		long size = channel.size();
+		while (pos + 8 <= size && !(foundComm && foundData))
+		{
+			ByteBuffer h = read(pos, 8, ByteOrder.BIG_ENDIAN);
+			int id = h.getInt();
+			long length = h.getInt() & 0xffffffffL;
+			if (id == fourCC("COMM"))
+			{
+				ByteBuffer c = read(pos + 8, isAifc ? 22 : 18, ByteOrder.BIG_ENDIAN);
+				channels = c.getShort();
+				frames = c.getInt() & 0xffffffffL;
+				int bits = c.getShort();
+				sampleRate = (float)readExtended(c);
+				bytesPerSample = (bits + 7) / 8;
+				if (isAifc)
+				{
+					int compression = c.getInt();
+					if (compression == fourCC("sowt"))
+					{
+						byteOrder = ByteOrder.LITTLE_ENDIAN;
+					}
+					else if (compression == fourCC("fl32") || compression == fourCC("FL32"))
+					{
+						isFloat = true;
+					}
+					else if (compression != fourCC("NONE"))
+					{
+						throw new IOException("Unsupported AIFF-C compression");
+					}
+				}
+				foundComm = true;
+			}
+			else if (id == fourCC("SSND"))
+			{
+				ByteBuffer s = read(pos + 8, 4, ByteOrder.BIG_ENDIAN);
+				dataOffset = pos + 16 + (s.getInt() & 0xffffffffL);
+				foundData = true;
+			}
+			pos += 8 + length + (length & 1);
+		}
+		checkFormat(foundComm, foundData);
+	}
+	
+	/**
+	 * Reads an 80 bit IEEE 754 extended precision number (used for the AIFF sample rate)
+	 * @param b positioned at the number. Advanced by 10 bytes
+	 * @return
+	 */
+	private static double readExtended(ByteBuffer b)
+	{
+		int exponent = b.getShort() & 0xffff;
+		long mantissa = b.getLong();
+		double sign = (exponent & 0x8000) != 0 ? -1 : 1;
+		exponent &= 0x7fff;
+		if (exponent == 0 && mantissa == 0)
+		{
+			return 0;
+		}
+		//The mantissa has an explicit integer bit, so the value is mantissa * 2^(exponent - 16383 - 63)
+		return sign * (mantissa >>> 1) * Math.pow(2, exponent - 16383 - 62);
+	}
+	
+	/**
+	 * Reads the WAV chunks needed (fmt and data)
+	 * @throws IOException
+	 */
+	private void readWavHeader() throws IOException
+	{
+		byteOrder = ByteOrder.LITTLE_ENDIAN;
+		boolean foundFmt = false;
+		boolean foundData = false;
+		long pos = 12;
+		long size = channel.size();
+		while (pos + 8 <= size && !(foundFmt && foundData))
+		{
+			ByteBuffer h = read(pos, 8, ByteOrder.BIG_ENDIAN);
+			int id = h.getInt();
+			long length = Integer.reverseBytes(h.getInt()) & 0xffffffffL;
+			if (id == fourCC("fmt "))
+			{
+				ByteBuffer f = read(pos + 8, (int)Math.min(length, 40), ByteOrder.LITTLE_ENDIAN);
+				int formatTag = f.getShort() & 0xffff;
+				channels = f.getShort();
+				sampleRate = f.getInt();
+				f.getInt(); //Byte rate
+				f.getShort(); //Block align
+				int bits = f.getShort();
+				if (formatTag == 0xfffe && f.remaining() >= 10)
+				{
+					//WAVE_FORMAT_EXTENSIBLE: the real format tag is the start of the sub format GUID
+					f.position(f.position() + 8);
+					formatTag = f.getShort() & 0xffff;
+				}
+				bytesPerSample = (bits + 7) / 8;
+				isUnsigned8Bit = bits <= 8;
+				if (formatTag == 3)
+				{
+					isFloat = true;
+				}
+				else if (formatTag != 1)
+				{
+					throw new IOException("Unsupported WAV format");
+				}
+				foundFmt = true;
+			}
+			else if (id == fourCC("data"))
+			{
+				dataOffset = pos + 8;
+				frames = length;
+				foundData = true;
+			}
+			pos += 8 + length + (length & 1);
+		}
+		if (foundFmt && foundData)
+		{
+			//The data length was stored in frames until the format was known
+			frames = frames / Math.max(1, getBytesPerFrame());
+		}
+		checkFormat(foundFmt, foundData);
+	}
+	
+	/**
+	 * Checks that the header was found and describes a supported format
+	 * @param foundFormat
+	 * @param foundData
+	 * @throws IOException if not
+	 */
+	private void checkFormat(boolean foundFormat, boolean foundData) throws IOException
+	{
+		if (!foundFormat || !foundData)
+		{
+			throw new IOException("Missing format or data chunk");
+		}
+		if (channels < 1 || sampleRate <= 0 || bytesPerSample < 1 || bytesPerSample > 4 || (isFloat && bytesPerSample != 4))
+		{
+			throw new IOException("Unsupported sample format");
+		}
+	}
+}
@@ -0,0 +1,694 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands out the buffers that audio passes through (like the read buffer of the WaveformGenerator) within a total memory budget,
+ * so an instance of the exporter has a hard ceiling on its buffer memory no matter how many channels the audio has.
+ * The small chunks that ProcessSupervisor.drain() reads the stderr of processes into are not taken from here, since a drain must never wait.
+ * 
+ * Buffers come in size classes (powers of two from minClassSize to maxClassSize), and acquire() returns a buffer of the smallest class
+ * that holds the requested size. release() gives a buffer back for reuse: first to a small cache of the releasing thread
+ * (threadCacheSize buffers per class), which the same thread can take from again without taking the lock of the MemoryGovernor,
+ * and otherwise to a shared pool. When more than half the budget is held, buffers are released to the shared pool instead,
+ * so they are shared between the threads rather than kept by one.
+ * This way an export running steadily reuses the same few buffers for every region and allocates none.
+ * Requests larger than maxClassSize get a buffer of the exact size, which is not kept after release.
+ * 
+ * All buffers count towards the budget, also the ones kept for reuse. When a new buffer would exceed the budget, kept buffers are dropped
+ * (left to the garbage collector), including the ones in the caches of other threads, and if that is not enough acquire() waits
+ * for buffers to be released. A single request larger than the budget is let through when no other buffer is in use, so it can't wait forever.
+ * 
+ * The buffers are byte arrays rather than direct ByteBuffers, since everything they are used with (process pipes, the SourceDataLine and
+ * PeakKernels) reads and writes byte arrays, and a direct buffer would only add a copy.
+ * 
+ * When DEBUG messages are logged, the buffers handed out are tracked: a buffer that is garbage collected without being released is
+ * logged as a leak together with where it was acquired, and no longer counted towards the budget.
+ * 
+ * The high-water mark (the most memory held at once) is kept for the summary written to the log after an export.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class MemoryGovernor
+{
+	/**
+	 * log2 of the smallest size class
+	 */
+	private static final int minClassShift = 12;
+	
+	/**
+	 * log2 of the largest size class
+	 */
+	private static final int maxClassShift = 22;
+	
+	/**
+	 * Size of the smallest size class (4 KB)
+	 */
+	public static final int minClassSize = 1 << minClassShift;
+	
+	/**
+	 * Size of the largest size class (4 MB). Larger buffers are not kept for reuse
+	 */
+	public static final int maxClassSize = 1 << maxClassShift;
+	
+	/**
+	 * Number of size classes
+	 */
+	private static final int classes = maxClassShift - minClassShift + 1;
+	
+	/**
+	 * Maximum number of buffers of each class kept in the cache of a thread
+	 */
+	private static final int threadCacheSize = 2;
+	
+	/**
+	 * The budget in bytes. Guarded by this, like the following fields unless noted otherwise
+	 */
+	private long budget;
+	
+	/**
+	 * Bytes of all buffers allocated and not dropped (handed out, in the shared pool or in a thread cache)
+	 */
+	private long held = 0;
+	
+	/**
+	 * Most bytes held at once
+	 */
+	private long highWaterMark = 0;
+	
+	/**
+	 * The shared pool: released buffers kept for reuse, by size class
+	 */
+	private ArrayDeque<byte[]>[] pool = newLists();
+	
+	/**
+	 * The caches of all threads that have released buffers. The cache of a thread that has ended is emptied and removed
+	 * the next time a thread registers its cache or buffers are needed
+	 */
+	private List<ThreadCache> threadCaches = new ArrayList<ThreadCache>();
+	
+	/**
+	 * The cache of the current thread. Not guarded by this
+	 */
+	private ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>();
+	
+	/**
+	 * Number of threads waiting in acquire(). While positive, buffers are released to the shared pool, so the waiting threads can get them.
+	 * Volatile since it is read without the lock
+	 */
+	private volatile int waiting = 0;
+	
+	/**
+	 * Is more than half the budget held? Then buffers are released to the shared pool.
+	 * Volatile since it is read without the lock
+	 */
+	private volatile boolean underPressure = false;
+	
+	/**
+	 * Leak tracking (when DEBUG messages are logged): the lease of each buffer handed out. Arrays use identity for equals() and hashCode(),
+	 * and the buffers are only weakly referenced
+	 */
+	private Map<byte[], Lease> leasesByBuffer = new WeakHashMap<byte[], Lease>();
+	
+	/**
+	 * Leak tracking: all leases not ended yet, so they stay reachable until their buffers are released or garbage collected
+	 */
+	private Set<Lease> leases = Collections.newSetFromMap(new IdentityHashMap<Lease, Boolean>());
+	
+	/**
+	 * Leak tracking: number of leases not ended yet. While positive, buffers are released to the shared pool so their leases are ended.
+	 * Volatile since it is read without the lock
+	 */
+	private volatile int trackedBuffers = 0;
+	
+	/**
+	 * Leak tracking: receives the leases of buffers that were garbage collected without being released
+	 */
+	private ReferenceQueue<byte[]> leaked = new ReferenceQueue<byte[]>();
+	
+	/**
+	 * Number of buffers allocated
+	 */
+	private long allocations = 0;
+	
+	/**
+	 * Number of buffers taken from the shared pool (or the cache of another thread)
+	 */
+	private long poolHits = 0;
+	
+	/**
+	 * Number of buffers taken from the cache of the acquiring thread. Not guarded by this
+	 */
+	private LongAdder threadCacheHits = new LongAdder();
+	
+	/**
+	 * Number of leaked buffers found
+	 */
+	private long leaks = 0;
+	
+	/**
+	 * Number of acquire() calls that had to wait for the budget
+	 */
+	private long waits = 0;
+	
+	/**
+	 * Total nanoseconds spent waiting for the budget
+	 */
+	private long totalWaitTime = 0;
+	
+	/**
+	 * Constructor
+	 * @param budget the budget in bytes
+	 */
+	public MemoryGovernor(long budget)
+	{
+		this.budget = Math.max(0, budget);
+	}
+	
+	/**
+	 * Gets a buffer of at least the given size, first waiting while a new buffer would exceed the budget.
+	 * The buffer must be given back with release() when done (in a finally block), and not used after that.
+	 * Its length may be larger than requested, and its contents are undefined
+	 * @param size number of bytes needed
+	 * @return the buffer
+	 * @throws InterruptedException if interrupted while waiting (which the TaskRunner does when a task is cancelled)
+	 */
+	public byte[] acquire(int size) throws InterruptedException
+	{
+		int sizeClass = getSizeClass(size);
+		byte[] buffer = null;
+		if (sizeClass >= 0)
+		{
+			ThreadCache cache = threadCache.get();
+			if (cache != null)
+			{
+				buffer = cache.poll(sizeClass);
+			}
+		}
+		if (buffer != null)
+		{
+			threadCacheHits.increment();
+			if (Debug.isEnabled(LogLevel.DEBUG))
+			{
+				track(buffer);
+			}
+			return buffer;
+		}
+		return acquireShared(size, sizeClass);
+	}
+	
+	/**
+	 * @return the budget in bytes
+	 */
+	public synchronized long getBudget()
+	{
+		return budget;
+	}
+	
+	/**
+	 * @return the most bytes held at once (handed out plus kept for reuse)
+	 */
+	public synchronized long getHighWaterMark()
+	{
+		return highWaterMark;
+	}
+	
+	/**
+	 * @return bytes of the buffers handed out and not released yet
+	 */
+	public synchronized long getInUse()
+	{
+		return held - getKeptBytes();
+	}
+	
+	/**
+	 * @return one line describing the budget, the high-water mark and the buffers handed out
+	 */
+	public synchronized String getSummary()
+	{
+		pollLeaks();
+		return String.format(Locale.ROOT, "Memory governor: budget %.2f MB, high-water mark %.2f MB, %d buffer(s) allocated, %d reused from thread caches, %d from the shared pool, %d wait(s) for the budget (%.1f s)%s",
+				budget / 1e6, highWaterMark / 1e6, allocations, threadCacheHits.sum(), poolHits, waits, totalWaitTime / 1e9,
+				leases.isEmpty() && leaks == 0 ? "" : ". Leak tracking: " + leaks + " leaked buffer(s), " + leases.size() + " buffer(s) not released yet");
+	}
+	
+	/**
+	 * Gives back a buffer from acquire(), keeping it for reuse if the budget allows
+	 * @param buffer
+	 */
+	public void release(byte[] buffer)
+	{
+		int sizeClass = getSizeClass(buffer.length);
+		if (sizeClass >= 0 && buffer.length == getClassSize(sizeClass) && waiting == 0 && trackedBuffers == 0 && !underPressure)
+		{
+			ThreadCache cache = getThreadCache();
+			if (cache.offer(sizeClass, buffer))
+			{
+				return;
+			}
+		}
+		releaseShared(buffer, sizeClass);
+	}
+	
+	/**
+	 * Sets the budget. Can be called at any time. Buffers kept for reuse are dropped if they no longer fit,
+	 * and buffers already handed out are kept until released
+	 * @param budget the budget in bytes
+	 */
+	public synchronized void setBudget(long budget)
+	{
+		this.budget = Math.max(0, budget);
+		trim(0);
+		updatePressure();
+		notifyAll();
+	}
+	
+	/**
+	 * Gets a buffer from the shared pool, the caches of other threads or a new allocation, waiting for the budget if needed
+	 * @param size number of bytes needed
+	 * @param sizeClass size class of size. -1 if larger than maxClassSize
+	 * @return the buffer
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private synchronized byte[] acquireShared(int size, int sizeClass) throws InterruptedException
+	{
+		pollLeaks();
+		byte[] buffer = takeKept(sizeClass);
+		if (buffer == null)
+		{
+			int bytes = (sizeClass >= 0) ? getClassSize(sizeClass) : size;
+			//Kept buffers are only dropped right before allocating, so a buffer released while waiting can still be reused
+			long inUse = held - getKeptBytes();
+			if (inUse > 0 && inUse + bytes > budget)
+			{
+				long start = System.nanoTime();
+				waits += 1;
+				waiting += 1;
+				try
+				{
+					while (buffer == null && inUse > 0 && inUse + bytes > budget)
+					{
+						wait();
+						pollLeaks();
+						buffer = takeKept(sizeClass);
+						inUse = held - getKeptBytes();
+					}
+				}
+				finally
+				{
+					waiting -= 1;
+					totalWaitTime += System.nanoTime() - start;
+				}
+			}
+			if (buffer == null)
+			{
+				trim(bytes);
+				held += bytes;
+				highWaterMark = Math.max(highWaterMark, held);
+				allocations += 1;
+				buffer = new byte[bytes];
+			}
+		}
+		updatePressure();
+		if (Debug.isEnabled(LogLevel.DEBUG))
+		{
+			track(buffer);
+		}
+		return buffer;
+	}
+	
+	/**
+	 * @param sizeClass
+	 * @return number of bytes in buffers of the size class
+	 */
+	private static int getClassSize(int sizeClass)
+	{
+		return 1 << (minClassShift + sizeClass);
+	}
+	
+	/**
+	 * @return number of bytes in the buffers kept for reuse (in the shared pool and the thread caches). Called with the lock held
+	 */
+	private long getKeptBytes()
+	{
+		long kept = 0;
+		for (int c = 0; c < classes; c++)
+		{
+			kept += (long)pool[c].size() << (minClassShift + c);
+		}
+		for (ThreadCache cache : threadCaches)
+		{
+			kept += cache.getBytes();
+		}
+		return kept;
+	}
+	
+	/**
+	 * @param size
+	 * @return the smallest size class holding size bytes. -1 if larger than maxClassSize
+	 */
+	private static int getSizeClass(int size)
+	{
+		if (size <= minClassSize)
+		{
+			return 0;
+		}
+		if (size > maxClassSize)
+		{
+			return -1;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - minClassShift;
+	}
+	
+	/**
+	 * @return the cache of the current thread, registering a new one if the thread has none
+	 */
+	private ThreadCache getThreadCache()
+	{
+		ThreadCache cache = threadCache.get();
+		if (cache == null)
+		{
+			cache = new ThreadCache(Thread.currentThread());
+			threadCache.set(cache);
+			synchronized (this)
+			{
+				removeEndedThreadCaches();
+				threadCaches.add(cache);
+			}
+		}
+		return cache;
+	}
+	
+	/**
+	 * Creates an empty list for each size class
+	 * @return the lists
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static ArrayDeque<byte[]>[] newLists()
+	{
+		ArrayDeque<byte[]>[] lists = new ArrayDeque[classes];
+		for (int c = 0; c < classes; c++)
+		{
+			lists[c] = new ArrayDeque<byte[]>();
+		}
+		return lists;
+	}
+	
+	/**
+	 * Leak tracking: logs the buffers garbage collected without being released, and stops counting them towards the budget.
+	 * Called with the lock held
+	 */
+	private void pollLeaks()
+	{
+		Lease lease;
+		while ((lease = (Lease)leaked.poll()) != null)
+		{
+			if (leases.remove(lease))
+			{
+				trackedBuffers = leases.size();
+				leaks += 1;
+				held -= lease.bytes;
+				Debug.log(LogLevel.WARNING, "Buffer of {} bytes was garbage collected without being released. Acquired by thread {} at:", lease.bytes, lease.threadName);
+				lease.origin.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Gives back a buffer to the shared pool (or drops it, if it is larger than maxClassSize or doesn't fit in the budget), and wakes up waiting threads
+	 * @param buffer
+	 * @param sizeClass size class of buffer. -1 if larger than maxClassSize
+	 */
+	private synchronized void releaseShared(byte[] buffer, int sizeClass)
+	{
+		Lease lease = leasesByBuffer.remove(buffer);
+		if (lease != null)
+		{
+			leases.remove(lease);
+			trackedBuffers = leases.size();
+			lease.clear();
+		}
+		if (sizeClass >= 0 && buffer.length == getClassSize(sizeClass) && held <= budget)
+		{
+			pool[sizeClass].push(buffer);
+		}
+		else
+		{
+			held -= buffer.length;
+		}
+		updatePressure();
+		notifyAll();
+	}
+	
+	/**
+	 * Empties and removes the caches of threads that have ended. Called with the lock held
+	 */
+	private void removeEndedThreadCaches()
+	{
+		Iterator<ThreadCache> it = threadCaches.iterator();
+		while (it.hasNext())
+		{
+			ThreadCache cache = it.next();
+			if (cache.hasEnded())
+			{
+				held -= cache.clear();
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Takes a kept buffer of a size class from the shared pool or from the cache of another thread. Called with the lock held
+	 * @param sizeClass -1 for none
+	 * @return the buffer. Null if none is kept
+	 */
+	private byte[] takeKept(int sizeClass)
+	{
+		if (sizeClass < 0)
+		{
+			return null;
+		}
+		byte[] buffer = pool[sizeClass].poll();
+		for (int i = 0; buffer == null && i < threadCaches.size(); i++)
+		{
+			buffer = threadCaches.get(i).poll(sizeClass);
+		}
+		if (buffer != null)
+		{
+			poolHits += 1;
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Leak tracking: starts a lease for a buffer being handed out
+	 * @param buffer
+	 */
+	private synchronized void track(byte[] buffer)
+	{
+		Lease lease = new Lease(buffer, leaked);
+		leases.add(lease);
+		trackedBuffers = leases.size();
+		leasesByBuffer.put(buffer, lease);
+	}
+	
+	/**
+	 * Drops buffers kept for reuse (in the shared pool and the thread caches) until a new buffer of the given size fits in the budget,
+	 * or nothing more is kept. Called with the lock held
+	 * @param bytes size of the new buffer. 0 to just get within the budget
+	 */
+	private void trim(long bytes)
+	{
+		removeEndedThreadCaches();
+		for (int c = classes - 1; c >= 0 && held + bytes > budget; c--)
+		{
+			while (held + bytes > budget && pool[c].poll() != null)
+			{
+				held -= getClassSize(c);
+			}
+		}
+		for (int i = 0; i < threadCaches.size() && held + bytes > budget; i++)
+		{
+			ThreadCache cache = threadCaches.get(i);
+			long dropped;
+			while (held + bytes > budget && (dropped = cache.dropLargest()) > 0)
+			{
+				held -= dropped;
+			}
+		}
+	}
+	
+	/**
+	 * Updates underPressure after the held bytes or the budget have changed. Called with the lock held
+	 */
+	private void updatePressure()
+	{
+		underPressure = held > budget / 2;
+	}
+	
+	/**
+	 * Leak tracking: a buffer handed out. Enqueued if the buffer is garbage collected before it is released
+	 */
+	private static class Lease extends WeakReference<byte[]>
+	{
+		/**
+		 * Length of the buffer
+		 */
+		private final int bytes;
+		
+		/**
+		 * Name of the thread that acquired the buffer
+		 */
+		private final String threadName;
+		
+		/**
+		 * Where the buffer was acquired
+		 */
+		private final Throwable origin = new Throwable("Buffer acquired here");
+		
+		/**
+		 * Constructor
+		 * @param buffer
+		 * @param queue
+		 */
+		Lease(byte[] buffer, ReferenceQueue<byte[]> queue)
+		{
+			super(buffer, queue);
+			bytes = buffer.length;
+			threadName = Thread.currentThread().getName();
+		}
+	}
+	
+	/**
+	 * The buffers kept for reuse by one thread. Only touched by its thread, except when the MemoryGovernor empties it or takes from it
+	 * to make room, so the lock on it is normally uncontended
+	 */
+	private static class ThreadCache
+	{
+		/**
+		 * The thread. Weakly referenced, so the cache doesn't keep it from being garbage collected
+		 */
+		private final WeakReference<Thread> owner;
+		
+		/**
+		 * The kept buffers, by size class
+		 */
+		private final ArrayDeque<byte[]>[] lists = newLists();
+		
+		/**
+		 * Constructor
+		 * @param owner
+		 */
+		ThreadCache(Thread owner)
+		{
+			this.owner = new WeakReference<Thread>(owner);
+		}
+		
+		/**
+		 * Removes all kept buffers
+		 * @return number of bytes removed
+		 */
+		synchronized long clear()
+		{
+			long bytes = 0;
+			for (int c = 0; c < classes; c++)
+			{
+				bytes += (long)lists[c].size() << (minClassShift + c);
+				lists[c].clear();
+			}
+			return bytes;
+		}
+		
+		/**
+		 * Removes one of the largest kept buffers
+		 * @return number of bytes removed. 0 if nothing is kept
+		 */
+		synchronized long dropLargest()
+		{
+			for (int c = classes - 1; c >= 0; c--)
+			{
+				if (lists[c].poll() != null)
+				{
+					return getClassSize(c);
+				}
+			}
+			return 0;
+		}
+		
+		/**
+		 * @return number of bytes kept
+		 */
+		synchronized long getBytes()
+		{
+			long bytes = 0;
+			for (int c = 0; c < classes; c++)
+			{
+				bytes += (long)lists[c].size() << (minClassShift + c);
+			}
+			return bytes;
+		}
+		
+		/**
+		 * @return true if the thread has ended
+		 */
+		boolean hasEnded()
+		{
+			Thread thread = owner.get();
+			return thread == null || !thread.isAlive();
+		}
+		
+		/**
+		 * Keeps a buffer, if there is room
+		 * @param sizeClass
+		 * @param buffer
+		 * @return true if kept
+		 */
+		synchronized boolean offer(int sizeClass, byte[] buffer)
+		{
+			if (lists[sizeClass].size() >= threadCacheSize)
+			{
+				return false;
+			}
+			lists[sizeClass].push(buffer);
+			return true;
+		}
+		
+		/**
+		 * Takes a kept buffer
+		 * @param sizeClass
+		 * @return the buffer. Null if none of the size class is kept
+		 */
+		synchronized byte[] poll(int sizeClass)
+		{
+			return lists[sizeClass].poll();
+		}
+	}
+}
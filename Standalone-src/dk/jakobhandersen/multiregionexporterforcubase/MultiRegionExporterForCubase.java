@@ -22,8 +22,8 @@ import org.eclipse.swt.widgets.Label;
 
 import java.awt.Desktop;
 import java.net.URI;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.io.File;
 
 import org.eclipse.swt.SWT;
@@ -35,24 +35,17 @@ import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Menu;
 import org.eclipse.swt.widgets.MenuItem;
 import org.eclipse.swt.widgets.MessageBox;
-import org.eclipse.swt.widgets.Table;
-import org.eclipse.swt.widgets.TableItem;
-import org.eclipse.swt.widgets.TableColumn;
-import org.eclipse.swt.graphics.Color;
 import org.eclipse.swt.graphics.Cursor;
 import org.eclipse.swt.graphics.Device;
-import org.eclipse.swt.graphics.GC;
-import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.widgets.FileDialog;
 import org.eclipse.swt.widgets.DirectoryDialog;
 import org.eclipse.swt.widgets.Group;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Text;
 import org.eclipse.swt.events.ModifyListener;
 import org.eclipse.swt.events.ModifyEvent;
 import org.eclipse.swt.widgets.Spinner;
-import org.eclipse.swt.events.PaintListener;
-import org.eclipse.swt.events.PaintEvent;
-import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.custom.CLabel;
 import org.eclipse.swt.events.TraverseListener;
 import org.eclipse.swt.events.TraverseEvent;
@@ -80,10 +73,16 @@ public class MultiRegionExporterForCubase implements UserInterface
 	
 	/**
 	 * Launch the application.
-	 * @param args
+	 * @param args if the first argument is "-export", the application runs without graphical user interface (see HeadlessExporter)
 	 */
 	public static void main(String[] args) 
 	{	
+		if (args.length > 0 && args[0].equals("-export"))
+		{
+			int exitCode = HeadlessExporter.run(args);
+			Debug.log("Exiting system");
+			System.exit(exitCode);
+		}
 		try 
 		{
 			System.setProperty("user.dir", new File(MultiRegionExporterForCubase.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath()).getAbsolutePath());
@@ -110,11 +109,12 @@ public class MultiRegionExporterForCubase implements UserInterface
 	private Button btnLoadAudioFile;
 	private Button btnLoadTrackFile;
 	private Button btnOutputFiles;
-	private Table logWindowTable;
+	private LogWindow logWindow;
 	private CLabel lblAudioFileName;
 	private CLabel lblAudioFileInfo;
 	private CLabel lblTrackFileName;
-	private Label waveformLabel;
+	private WaveformView waveformView;
+	private RegionTable regionTable;
 	private Text txtFixedName;
 	private Text txtConvertWithFfmpegArgs;
 	private Text txtConvertWithFfmpegFileEnding;
@@ -140,25 +140,10 @@ public class MultiRegionExporterForCubase implements UserInterface
 	private InputAudioFile currentInputAudioFile;
 	
 	/**
-	 * Waveform data. Min and max for each horizontal pixel.
-	 */
-	private String currentWaveformPng;
-	
-	/**
-	 * Rectangles representing the range/region markers
-	 */
-	private Rectangle[] rangeMarkers;
-	
-	/**
-	 * Color of the range markers
+	 * Is a redraw of the partly generated waveform already queued on the UI thread?
+	 * Used to coalesce progress updates from the WaveformGenerator so they never pile up.
 	 */
-	private Color rangeMarkerColor = new Color(device,0,255,0);
-
-	
-	/**
-	 * Alpha of the range markers
-	 */
-	private int rangeMarkerAlpha = 110;
+	private AtomicBoolean waveformProgressRedrawPending = new AtomicBoolean(false);
 	
 	/**
 	 * Path to the online documentation
@@ -196,7 +181,7 @@ public class MultiRegionExporterForCubase implements UserInterface
 				dotString += ".";
 			}
 			generatingWaveformText = dotString + "generating waveform" + dotString;
-			waveformLabel.redraw();
+			waveformView.setGeneratingText(generatingWaveformText);
 			i = (i + 1) % 4;
 	        display.timerExec(generatingWaveformTextTimerTime, this);
 		}
@@ -232,8 +217,8 @@ public class MultiRegionExporterForCubase implements UserInterface
 		{
 		    public void run() 
 		    {
-		    	rangeMarkers = null;
-		    	waveformLabel.redraw();
+		    	waveformView.clearRegions();
+		    	regionTable.clear();
 		    }
 		});
 	}
@@ -320,19 +305,39 @@ public class MultiRegionExporterForCubase implements UserInterface
 				case DONE_GENERATING_WAVEFORM:
 					display.timerExec(-1, generatingWaveformTextTimer);
 					generatingWaveformText = "";
-					waveformLabel.redraw();
+					waveformView.setGeneratingText(generatingWaveformText);
 					break;
 					
+				//The dialogs run their own event loop until closed. They are opened after returning,
+				//since the engine thread sending the event waits until this returns
 				case FILES_TO_BE_OVERWRITTEN:
-					doOverwriteDialog();
+					display.asyncExec(new Runnable()
+					{
+						public void run()
+						{
+							doOverwriteDialog();
+						}
+					});
 					break;
 					
 				case INPUT_FILE_TO_BE_OVERWRITTEN:
-					doInputFileOverwriteErrorDialog();
+					display.asyncExec(new Runnable()
+					{
+						public void run()
+						{
+							doInputFileOverwriteErrorDialog();
+						}
+					});
 					break;
 					
 				case OUTPUTTING_FILES:
-					startOutputtingFiles();
+					display.asyncExec(new Runnable()
+					{
+						public void run()
+						{
+							startOutputtingFiles();
+						}
+					});
 					break;
 					
 				case DONE_OUTPUTTING_FILES:
@@ -350,57 +355,7 @@ public class MultiRegionExporterForCubase implements UserInterface
 	@Override
 	public void sendMessageToUser(UserMessageType type, String message) 
 	{
-		Display.getDefault().syncExec(new Runnable() 
-		{
-		    public void run() 
-		    {
-		        /*
-		    	//Non-wrapped solution
-		        TableItem tableItem = new TableItem(logWindowTable, SWT.None);
-				tableItem.setText(getStartStringForUserMessageType(type) + message);
-				tableItem.setForeground(getColorForUserMessageType(type));
-				logWindowTable.showItem(tableItem);*/
-				
-				//Wrapped text solution
-		        int maxLength = 750;
-		        if (!isMac)
-		        {
-		            maxLength = 700;
-		        }
-				List<String> splitStrings = getWrappedString(getStartStringForUserMessageType(type) + message,maxLength,logWindowTable);
-				for (int i = 0; i < splitStrings.size(); i++)
-				{
-					TableItem tableItem = new TableItem(logWindowTable, SWT.NONE);
-					tableItem.setText(splitStrings.get(i));
-					if (isMac)
-					{
-					    tableItem.setFont(SWTResourceManager.getFont("Arial", 10, SWT.NORMAL));
-					}
-					else
-					{
-					    tableItem.setFont(SWTResourceManager.getFont("Arial", 7, SWT.NORMAL));
-					}
-					
-				    tableItem.setForeground(getColorForUserMessageType(type));
-					
-					logWindowTable.showItem(tableItem);
-				}
-		    }
-		});
-		
-	}
-	
-	@Override
-	public void setOuputPercentage(int percentage) 
-	{
-		outputtingDialog.setProgressPercentage(percentage);
-	}
-	
-	
-	@Override
-	public void setOutputProcessText(String text)
-	{
-		outputtingDialog.setProcessText(text);
+		logWindow.append(type, message);
 	}
 	
 	@Override
@@ -412,42 +367,56 @@ public class MultiRegionExporterForCubase implements UserInterface
 		    {
 		    	if (currentInputAudioFile != null)
 		    	{
-			    	rangeMarkers = new Rectangle[bites.size()];
-			    	int waveformWidth = waveformLabel.getBounds().width;
-		    		int waveformHeight = waveformLabel.getBounds().height;
-			    	for (int i = 0; i < bites.size(); i++)
-			    	{
-			    		AudioBite b = bites.get(i);
-			    		double startFraction = b.getStartSec() / currentInputAudioFile.getLength();
-			    		double lengthFraction = (b.getFunctionalEndSec() - b.getStartSec()) / currentInputAudioFile.getLength();
-			    		rangeMarkers[i] = new Rectangle((int)(startFraction * waveformWidth),0,(int)(lengthFraction * waveformWidth),waveformHeight);
-			    	}
+		    		waveformView.setRegions(bites, currentInputAudioFile.getLength());
 		    	}
 		    	else
 		    	{
-		    		Debug.log("Error: Can't set range markers since currentInputAudioFile == null");
-		    		rangeMarkers = null;
+		    		Debug.log(LogLevel.ERROR, "Can't set range markers since currentInputAudioFile == null");
+		    		waveformView.clearRegions();
 		    	}
-		    	waveformLabel.redraw();
+		    	regionTable.setRegions(bites);
 		    }
 		});
 		
 	}
 	
 	@Override
-	public void waveformCreated(String waveformPngFile) 
+	public void waveformCreated(InputAudioFile f, WaveformPeaks peaks) 
 	{
 		Display.getDefault().syncExec(new Runnable() 
 		{
 		    public void run() 
 		    {
-		    	currentWaveformPng = waveformPngFile;
-		    	waveformLabel.redraw();
+		    	if (f == currentInputAudioFile)
+		    	{
+		    		waveformView.setPeaks(peaks);
+		    	}
 		    }
 		});
 		
 	}
 	
+	@Override
+	public void waveformProgress(InputAudioFile f, WaveformPeaks peaks)
+	{
+		//Don't block the WaveformGenerator and only queue a new redraw when the previous one has been done
+		if (waveformProgressRedrawPending.compareAndSet(false, true))
+		{
+			Display.getDefault().asyncExec(new Runnable() 
+			{
+			    public void run() 
+			    {
+			    	waveformProgressRedrawPending.set(false);
+			    	//A redraw queued by a cancelled WaveformGenerator may run after another audio file has been loaded
+			    	if (!waveformView.isDisposed() && f == currentInputAudioFile)
+			    	{
+			    		waveformView.setPeaks(peaks);
+			    	}
+			    }
+			});
+		}
+	}
+	
 	/**
 	 * Clear info on currently loaded audio file
 	 */
@@ -460,12 +429,7 @@ public class MultiRegionExporterForCubase implements UserInterface
 		//clear waveform
 		generatingWaveformText = "";
 		display.timerExec(-1, generatingWaveformTextTimer);
-		if ((currentWaveformPng != null) && (!currentWaveformPng.isEmpty()))
-		{
-			Utils.deleteFile(currentWaveformPng);
-			currentWaveformPng = null;
-		}
-		waveformLabel.redraw();
+		waveformView.clear();
 		
 		//clear currentInputAudioFile
 		currentInputAudioFile = null;
@@ -508,122 +472,6 @@ public class MultiRegionExporterForCubase implements UserInterface
 	    }
 	}
 
-	/**
-	 * Get relevant color of user message of type t
-	 * @param t
-	 * @return
-	 */
-	private Color getColorForUserMessageType(UserMessageType t)
-	{
-	    if (!Display.isSystemDarkTheme())
-	    {
-	        Color ret = SWTResourceManager.getColor(SWT.COLOR_BLACK);
-	        switch (t)
-	        {
-	        case ERROR:
-	            ret = SWTResourceManager.getColor(SWT.COLOR_DARK_RED);
-	            break;
-	            
-	        case WARNING:
-	            ret = SWTResourceManager.getColor(SWT.COLOR_DARK_BLUE);
-	            break;
-	            
-	        case SUCCESS:
-	            ret = SWTResourceManager.getColor(SWT.COLOR_DARK_GREEN);
-	            break;
-	        
-	            default: break;
-	        }
-	        return ret;
-	    }
-	    else //If we use dark mode on mac os
-	    {
-	        Color ret = SWTResourceManager.getColor(SWT.COLOR_WHITE);
-            switch (t)
-            {
-            case ERROR:
-                ret = SWTResourceManager.getColor(SWT.COLOR_RED);
-                break;
-                
-            case WARNING:
-                ret = SWTResourceManager.getColor(SWT.COLOR_YELLOW);
-                break;
-                
-            case SUCCESS:
-                ret = SWTResourceManager.getColor(SWT.COLOR_GREEN);
-                break;
-            
-                default: break;
-            }
-            return ret;
-	    }
-		
-	}
-
-	/**
-	 * Get relevant start string for user message of type t
-	 * @param t 
-	 * @return 
-	 */
-	private String getStartStringForUserMessageType(UserMessageType t)
-	{
-		String ret = "";
-		switch (t)
-		{
-		case ERROR:
-			ret = "ERROR: ";
-			break;
-			
-		case WARNING:
-			ret = "WARNING: ";
-		
-			default: break;
-		}
-		return ret;
-	}
-	
-
-	/**
-	 * Returns wrapped string (List<String>)
-	 * @param fullString
-	 * @param maxWidth
-	 * @param control
-	 * @return
-	 */
-	private List<String> getWrappedString(String fullString,int maxWidth, Control control)
-	{
-		GC gc = new GC(control);
-		int stringWidth = gc.stringExtent(fullString).x;
-		List<String> splitStrings = new ArrayList<String>();
-		if (stringWidth <= maxWidth)
-		{
-			splitStrings.add(fullString);
-			return splitStrings;
-		}
-		String restString = fullString;
-		int restStringWidth = stringWidth;
-		while (restStringWidth > maxWidth)
-		{
-			String biteFromRest;
-			String restFromRest;
-			int startI = restString.length()-1;
-			for (int i = startI; i > 0; i--)
-			{
-				biteFromRest = restString.substring(0,i);
-				restFromRest = restString.substring(i);
-				if (gc.stringExtent(biteFromRest).x <= maxWidth)
-				{
-					splitStrings.add(biteFromRest);
-					restString = restFromRest;
-					restStringWidth = gc.stringExtent(restString).x;
-					break;
-				}
-			}
-		}
-		splitStrings.add(restString);
-		return splitStrings;
-	}
-
 	/**
 	 * Called when load audio file button is pressed
 	 */
@@ -711,8 +559,8 @@ public class MultiRegionExporterForCubase implements UserInterface
 		btnOutputFiles.setEnabled(false);
 		btnLoadTrackFile.setEnabled(false);
 		setPaths();
-		engine.setWaveformWidth(waveformLabel.getBounds().width);
-		engine.setWaveformHeight(waveformLabel.getBounds().height);
+		engine.setWaveformWidth(waveformView.getWidth());
+		engine.setWaveformHeight(waveformView.getControl().getClientArea().height);
 		clearAudioFile();
 		lblTrackFileName.setText("none");
 		setUseCubaseNames();
@@ -752,7 +600,7 @@ public class MultiRegionExporterForCubase implements UserInterface
 	private void startOutputtingFiles()
 	{
 		shell.setCursor(new Cursor(display, SWT.CURSOR_WAIT));
-		outputtingDialog.open();
+		outputtingDialog.open(engine);
 	}
 	
 	/**
@@ -770,7 +618,7 @@ public class MultiRegionExporterForCubase implements UserInterface
 	protected void createContents() 
 	{
 		shell = new Shell();
-		shell.setSize(800, 800);
+		shell.setSize(1160, 800);
 		shell.setText("Multi-region Exporter - for Cubase");
 		shell.setBackgroundMode(SWT.INHERIT_DEFAULT); 
 		
@@ -949,6 +797,37 @@ public class MultiRegionExporterForCubase implements UserInterface
 			});
 		}
 		
+		MenuItem mntmExport = new MenuItem(appMenuBar, SWT.CASCADE);
+		mntmExport.setText("Export");
+		
+		Menu exportMenu = new Menu(mntmExport);
+		mntmExport.setMenu(exportMenu);
+		
+		MenuItem mntmRegionOrder = new MenuItem(exportMenu, SWT.CASCADE);
+		mntmRegionOrder.setText("Region order");
+		
+		Menu regionOrderMenu = new Menu(mntmRegionOrder);
+		mntmRegionOrder.setMenu(regionOrderMenu);
+		
+		for (final SchedulingPolicy policy : SchedulingPolicy.values())
+		{
+			final MenuItem mntmPolicy = new MenuItem(regionOrderMenu, SWT.RADIO);
+			mntmPolicy.setText(policy.getDisplayName());
+			mntmPolicy.setSelection(policy == Constants.defaultSchedulingPolicy);
+			mntmPolicy.addSelectionListener(new SelectionAdapter() 
+			{
+				@Override
+				public void widgetSelected(SelectionEvent e) 
+				{
+					//Radio menu items are also selected when they are deselected
+					if (mntmPolicy.getSelection())
+					{
+						engine.setSchedulingPolicy(policy);
+					}
+				}
+			});
+		}
+		
 		MenuItem mntmMultiregionExporterFor = new MenuItem(appMenuBar, SWT.CASCADE);
 		mntmMultiregionExporterFor.setText("Help");
 		
@@ -991,21 +870,13 @@ public class MultiRegionExporterForCubase implements UserInterface
 		mntmOnlineDocumentation.setText("Online Documentation");
 		
 		
-		logWindowTable = new Table(shell, SWT.BORDER | SWT.FULL_SELECTION | SWT.NO_SCROLL | SWT.V_SCROLL);
-		logWindowTable.setToolTipText("Log window");
-		logWindowTable.setHeaderVisible(true);
-		logWindowTable.setLinesVisible(true);
-		logWindowTable.setBounds(170, 565, 592, 173);
+		logWindow = new LogWindow(shell, isMac);
+		logWindow.setBounds(170, 565, 592, 173);
 		if (!isMac)
         {
-		    logWindowTable.setBounds(170, 565, 592, 160);
+		    logWindow.setBounds(170, 565, 592, 160);
         }
 		
-		TableColumn tblclmnMessage = new TableColumn(logWindowTable, SWT.NONE);
-		tblclmnMessage.setResizable(false);
-		tblclmnMessage.setWidth(588);
-		tblclmnMessage.setText("Log window");
-		
 		
 		Button btnClearLog = new Button(shell, this.standardButtonStyle);
 		btnClearLog.setBounds(68, 715, 94, 28);
@@ -1019,8 +890,7 @@ public class MultiRegionExporterForCubase implements UserInterface
 			@Override
 			public void widgetSelected(SelectionEvent e) 
 			{
-				logWindowTable.clearAll();
-				logWindowTable.setItemCount(0);
+				logWindow.clear();
 			}
 		});
 		btnClearLog.setText("Clear log");
@@ -1302,49 +1172,37 @@ public class MultiRegionExporterForCubase implements UserInterface
 		
 		
 		
-		waveformLabel = new Label(shell, SWT.NONE);
-		waveformLabel.setToolTipText("Waveform and region preview. \r\nNote that the visual waveform and region markers are not totally accurate\r\n- they are only approximations.\r\nSo don't worry if the waveform looks strange or if the regions don't quite match.\r\nThe actual export will be precise and, where possible, lossless.");
-		waveformLabel.addPaintListener(new PaintListener() 
+		waveformView = new WaveformView(shell);
+		waveformView.getControl().setToolTipText("Waveform and region preview. \r\nZoom with the mouse wheel, scroll with shift + mouse wheel and double-click to show the whole file.\r\nNote that the visual waveform and region markers are not totally accurate\r\n- they are only approximations.\r\nSo don't worry if the waveform looks strange or if the regions don't quite match.\r\nThe actual export will be precise and, where possible, lossless.");
+		waveformView.getControl().setBounds(172, 176, 590, 71);
+		
+		regionTable = new RegionTable(shell, engine.getTaskRunner());
+		regionTable.getControl().setToolTipText("Regions found in the track file. Click a column header to sort.\r\nDouble-click (or press Enter on) a region to audition it, press Escape to stop.");
+		regionTable.getControl().addListener(SWT.DefaultSelection, new Listener()
 		{
-			public void paintControl(PaintEvent e) 
+			public void handleEvent(Event e)
 			{
-				GC gc = e.gc;
-				if ((currentWaveformPng != null) && (!currentWaveformPng.isEmpty()))
-				{
-					Image image = new Image(display,currentWaveformPng);
-					gc.drawImage(image, 0,0);
-					image.dispose();
-				}
-				if ((generatingWaveformText != null) &&  (!generatingWaveformText.isEmpty()))
-				{
-					gc.setFont(SWTResourceManager.getFont("Arial", 14, SWT.NORMAL));
-					int textWidth = gc.stringExtent(generatingWaveformText).x;
-					int textHeight = gc.stringExtent(generatingWaveformText).y;
-					int xPos = (waveformLabel.getBounds().width / 2) - (textWidth / 2);
-					int yPos = (waveformLabel.getBounds().height / 2) - (textHeight / 2);
-					gc.drawText(generatingWaveformText, xPos, yPos, true);
-				}
-				if (rangeMarkers != null)
+				engine.auditionAudioBite(regionTable.getSelectedRegion());
+			}
+		});
+		regionTable.getControl().addListener(SWT.KeyDown, new Listener()
+		{
+			public void handleEvent(Event e)
+			{
+				if (e.keyCode == SWT.ESC)
 				{
-					Color prevBackgroundColor = gc.getBackground();
-					int prevGCAplha = gc.getAlpha();
-					gc.setBackground(rangeMarkerColor);
-					gc.setAlpha(rangeMarkerAlpha);
-					for (int i = 0; i < rangeMarkers.length; i++)
-					{
-						gc.fillRectangle(rangeMarkers[i]);
-					}
-					gc.setBackground(prevBackgroundColor);
-					gc.setAlpha(prevGCAplha);
+					engine.stopAudition();
 				}
-				gc.dispose();
 			}
 		});
-		waveformLabel.setBackground(SWTResourceManager.getColor(SWT.COLOR_WIDGET_NORMAL_SHADOW));
-		waveformLabel.setBounds(172, 176, 590, 71);
+		regionTable.setBounds(777, 106, 360, 632);
+		if (!isMac)
+		{
+			regionTable.setBounds(777, 106, 360, 619);
+		}
 		
 		shell.setImage(SWTResourceManager.getImage(MultiRegionExporterForCubase.class, "/Assets/Logo256.png"));
-		shell.setTabList(new Control[]{btnLoadAudioFile, btnLoadTrackFile, btnOutputFiles, grpOptions, logWindowTable, btnClearLog, grpAudioFile, grpTrackFile});
+		shell.setTabList(new Control[]{btnLoadAudioFile, btnLoadTrackFile, btnOutputFiles, grpOptions, logWindow.getControl(), btnClearLog, grpAudioFile, grpTrackFile, regionTable.getFilterControl(), regionTable.getControl()});
 		
 	}
 }
@@ -0,0 +1,55 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes daemon threads with numbered names for the executors of the application, so they never keep it from exiting
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class NamedThreadFactory implements ThreadFactory
+{
+	/**
+	 * Name of the threads, followed by a number
+	 */
+	private String name;
+	
+	/**
+	 * Number of the next thread
+	 */
+	private AtomicInteger number = new AtomicInteger(1);
+	
+	/**
+	 * Constructor
+	 * @param name name of the threads. Followed by a number
+	 */
+	public NamedThreadFactory(String name)
+	{
+		this.name = name;
+	}
+	
+	@Override
+	public Thread newThread(Runnable r)
+	{
+		Thread t = new Thread(r, name + " " + number.getAndIncrement());
+		t.setDaemon(true);
+		return t;
+	}
+}
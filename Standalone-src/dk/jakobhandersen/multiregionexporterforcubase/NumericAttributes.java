@@ -0,0 +1,36 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import org.xml.sax.Attributes;
+
+/**
+ * Attributes that can parse an attribute value as a number directly, without creating a String first.
+ * CubaseTrackXMLSaxParseHandler uses this for numeric values when the parser provides it (see CubaseTrackXMLByteScanner).
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public interface NumericAttributes extends Attributes
+{
+	/**
+	 * Parses an attribute value as a double, in the same way as Double.parseDouble()
+	 * @param qName name of the attribute
+	 * @return the value, or NaN if the attribute is missing or empty
+	 * @throws NumberFormatException if the value is not a number
+	 */
+	public double getDoubleValue(String qName);
+}
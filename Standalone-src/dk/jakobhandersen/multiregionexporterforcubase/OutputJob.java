@@ -0,0 +1,77 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+/**
+ * A region waiting to be output by an output worker
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class OutputJob
+{
+	/**
+	 * The region. Null for an end marker, telling the output worker taking it to stop
+	 */
+	private AudioBite bite;
+	
+	/**
+	 * Index of the region in output order. Used for naming when Cubase names are not used
+	 */
+	private int index;
+	
+	/**
+	 * Estimated time in seconds it takes to output the region (see OutputScheduler.estimateCost())
+	 */
+	private double cost;
+	
+	/**
+	 * Constructor
+	 * @param bite the region. Null for an end marker
+	 * @param index
+	 * @param cost
+	 */
+	public OutputJob(AudioBite bite, int index, double cost)
+	{
+		this.bite = bite;
+		this.index = index;
+		this.cost = cost;
+	}
+	
+	/**
+	 * @return the region. Null for an end marker
+	 */
+	public AudioBite getBite()
+	{
+		return bite;
+	}
+	
+	/**
+	 * @return estimated time in seconds it takes to output the region
+	 */
+	public double getCost()
+	{
+		return cost;
+	}
+	
+	/**
+	 * @return index of the region in output order
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+}
@@ -0,0 +1,121 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The progress of outputting files, shared between the thread(s) doing the work and the user interface.
+ * 
+ * The workers update it without locking or waiting for the user interface, and the OutputtingDialog reads it on its own timer.
+ * So a worker never stalls on a repaint, and updates coming faster than the dialog redraws are simply merged.
+ * Files are counted as done rather than reported as a percentage, so it also works when several files are output at the same time.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class OutputProgress
+{
+	/**
+	 * Total number of files to output
+	 */
+	private AtomicInteger totalFiles = new AtomicInteger(0);
+	
+	/**
+	 * Number of files done (successfully or not)
+	 */
+	private AtomicInteger doneFiles = new AtomicInteger(0);
+	
+	/**
+	 * Text describing what is being done right now
+	 */
+	private AtomicReference<String> processText = new AtomicReference<String>("");
+	
+	/**
+	 * Adds to the total number of files. Used when the files are found while outputting (see StreamingOutputter)
+	 * @param files number of files to add
+	 */
+	public void addFiles(int files)
+	{
+		totalFiles.addAndGet(files);
+	}
+	
+	/**
+	 * Counts one more file as done
+	 */
+	public void fileDone()
+	{
+		doneFiles.incrementAndGet();
+	}
+	
+	/**
+	 * @return number of files done (successfully or not)
+	 */
+	public int getDoneFiles()
+	{
+		return doneFiles.get();
+	}
+	
+	/**
+	 * @return percentage of the files that are done (0 to 100)
+	 */
+	public int getPercentage()
+	{
+		int total = totalFiles.get();
+		if (total <= 0)
+		{
+			return 0;
+		}
+		return (int)Math.min(100, ((long)doneFiles.get() * 100) / total);
+	}
+	
+	/**
+	 * @return text describing what is being done right now
+	 */
+	public String getProcessText()
+	{
+		return processText.get();
+	}
+	
+	/**
+	 * @return total number of files to output
+	 */
+	public int getTotalFiles()
+	{
+		return totalFiles.get();
+	}
+	
+	/**
+	 * Starts over with nothing done
+	 * @param totalFiles number of files to output
+	 */
+	public void reset(int totalFiles)
+	{
+		this.doneFiles.set(0);
+		this.totalFiles.set(totalFiles);
+		this.processText.set("");
+	}
+	
+	/**
+	 * Sets the text describing what is being done right now
+	 * @param text
+	 */
+	public void setProcessText(String text)
+	{
+		processText.set(text);
+	}
+}
@@ -0,0 +1,213 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Decides the order in which regions are handed to the output workers, as given by a SchedulingPolicy.
+ * 
+ * The time it takes to output a region is estimated from its functional length, the number of channels and the codecs involved:
+ * each region costs a SoX process (plus an FFMPEG process when converting), SoX copies the samples of the region,
+ * FFMPEG encodes them, and when the input file is compressed SoX has to decode it from the start up to the region.
+ * The estimates only need to be right relative to each other, since they are used for ordering.
+ * 
+ * Used as a Comparator on OutputJobs: sorting a list of jobs with it gives the output order, and a priority queue using it
+ * hands out the first job in output order among the ones waiting. End markers (jobs without an AudioBite) come after all regions.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class OutputScheduler implements Comparator<OutputJob>
+{
+	/**
+	 * Estimated seconds it takes to start and end an external process
+	 */
+	private static final double processCost = 0.03;
+	
+	/**
+	 * Estimated seconds it takes SoX to copy one second of one channel of audio
+	 */
+	private static final double copyCost = 0.0005;
+	
+	/**
+	 * Estimated seconds it takes to decode one second of one channel of compressed audio
+	 */
+	private static final double decodeCost = 0.002;
+	
+	/**
+	 * Estimated seconds it takes FFMPEG to encode one second of one channel of audio
+	 */
+	private static final double encodeCost = 0.004;
+	
+	/**
+	 * File extensions (lower case) of the uncompressed formats SoX can seek in without decoding
+	 */
+	private static final String[] uncompressedExtensions = {"wav", "aif", "aiff", "aifc"};
+	
+	/**
+	 * The policy deciding the order
+	 */
+	private SchedulingPolicy policy;
+	
+	/**
+	 * Number of channels of the input audio file
+	 */
+	private int channels;
+	
+	/**
+	 * Is the input audio file compressed, so SoX has to decode it up to each region?
+	 */
+	private boolean compressedInput;
+	
+	/**
+	 * Are the regions converted with FFMPEG after splitting?
+	 */
+	private boolean convertWithFfmpeg;
+	
+	/**
+	 * Constructor
+	 * @param policy the policy deciding the order
+	 * @param inputFile the audio input file the regions are extracted from
+	 * @param convertWithFfmpeg are the regions converted with FFMPEG after splitting?
+	 */
+	public OutputScheduler(SchedulingPolicy policy, InputAudioFile inputFile, boolean convertWithFfmpeg)
+	{
+		this.policy = policy;
+		this.channels = Math.max(1, inputFile.getChannels());
+		this.compressedInput = true;
+		String extension = inputFile.getFileExtension();
+		for (int i = 0; i < uncompressedExtensions.length; i++)
+		{
+			if (extension != null && uncompressedExtensions[i].equals(extension.toLowerCase(Locale.ROOT)))
+			{
+				this.compressedInput = false;
+			}
+		}
+		this.convertWithFfmpeg = convertWithFfmpeg;
+	}
+	
+	/**
+	 * Estimates the time a number of workers take to output jobs when each worker takes the next job as soon as it is done with its previous one
+	 * @param jobs the jobs in the order they are handed out
+	 * @param workers number of workers
+	 * @return estimated time in seconds until all jobs are done (the makespan)
+	 */
+	public static double estimateMakespan(List<OutputJob> jobs, int workers)
+	{
+		PriorityQueue<Double> doneTimes = new PriorityQueue<Double>();
+		for (int i = 0; i < Math.max(1, workers); i++)
+		{
+			doneTimes.add(Double.valueOf(0));
+		}
+		double makespan = 0;
+		for (OutputJob job : jobs)
+		{
+			double done = doneTimes.poll().doubleValue() + job.getCost();
+			doneTimes.add(Double.valueOf(done));
+			makespan = Math.max(makespan, done);
+		}
+		return makespan;
+	}
+	
+	@Override
+	public int compare(OutputJob a, OutputJob b)
+	{
+		if (a.getBite() == null || b.getBite() == null)
+		{
+			return Boolean.compare(a.getBite() == null, b.getBite() == null);
+		}
+		int result = 0;
+		switch (policy)
+		{
+		case LONGEST_FIRST:
+			result = Double.compare(b.getCost(), a.getCost());
+			break;
+			
+		case OFFSET_ORDER:
+			result = Double.compare(a.getBite().getStartSec(), b.getBite().getStartSec());
+			break;
+			
+		default:
+			break;
+		}
+		if (result == 0)
+		{
+			result = Integer.compare(a.getIndex(), b.getIndex());
+		}
+		return result;
+	}
+	
+	/**
+	 * Creates the job of a region, with its estimated cost
+	 * @param bite the region. Its start and functional end must be set
+	 * @param index index of the region in output order. Used for naming when Cubase names are not used
+	 * @return the job
+	 */
+	public OutputJob createJob(AudioBite bite, int index)
+	{
+		return new OutputJob(bite, index, estimateCost(bite));
+	}
+	
+	/**
+	 * Estimates the time it takes to output a region
+	 * @param bite the region. Its start and functional end must be set
+	 * @return estimated time in seconds
+	 */
+	public double estimateCost(AudioBite bite)
+	{
+		double length = Math.max(0, bite.getFunctionalEndSec() - bite.getStartSec());
+		double cost = processCost + (length * channels * copyCost);
+		if (compressedInput)
+		{
+			cost += (bite.getFunctionalEndSec() * channels * decodeCost);
+		}
+		if (convertWithFfmpeg)
+		{
+			cost += processCost + (length * channels * encodeCost);
+		}
+		return cost;
+	}
+	
+	/**
+	 * @return the policy deciding the order
+	 */
+	public SchedulingPolicy getPolicy()
+	{
+		return policy;
+	}
+	
+	/**
+	 * Creates the jobs of a list of regions and sorts them in output order. The index of each job is its index in the list
+	 * @param bites the regions
+	 * @return the jobs in output order
+	 */
+	public List<OutputJob> order(List<AudioBite> bites)
+	{
+		List<OutputJob> jobs = new ArrayList<OutputJob>(bites.size());
+		for (int i = 0; i < bites.size(); i++)
+		{
+			jobs.add(createJob(bites.get(i), i));
+		}
+		Collections.sort(jobs, this);
+		return jobs;
+	}
+}
@@ -24,9 +24,14 @@ import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.wb.swt.SWTResourceManager;
 import org.eclipse.swt.widgets.ProgressBar;
+import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.Spinner;
+import org.eclipse.swt.events.SelectionAdapter;
+import org.eclipse.swt.events.SelectionEvent;
 
 /**
  * SWT dialog - Showing that the application is busy outputting the files.
+ * Also lets the user cancel, and switch the QoS mode (low process priority and a disk bandwidth limit) while the files are written.
  * @author Jakob Hougaard Andersen
  *
  */
@@ -39,6 +44,56 @@ public class OutputtingDialog extends Dialog
 	private Label lblHeader;
 	private ProgressBar progressBar;
 	private Label lblProcessText;
+	private Button btnCancel;
+	private Button btnLowPriority;
+	private Label lblBandwidthLimit;
+	private Spinner spinnerBandwidthLimit;
+	
+	/**
+	 * The engine outputting the files. Cancelled and given the QoS settings directly from the dialog
+	 */
+	private ExporterEngine engine;
+	
+	/**
+	 * Bytes in the MB of the bandwidth limit spinner
+	 */
+	private final int bytesPerMegabyte = 1000000;
+	
+	/**
+	 * Milliseconds between each check of progress
+	 */
+	private final int progressTimerTime = 50;
+	
+	/**
+	 * The progress shown
+	 */
+	private OutputProgress progress;
+	
+	/**
+	 * Timer copying the state of progress to the progress bar and the process text. 
+	 * Only touches the widgets if something has changed.
+	 */
+	private Runnable progressTimer = new Runnable()
+	{
+		public void run()
+		{
+			if (shell == null || shell.isDisposed())
+			{
+				return;
+			}
+			int percentage = progress.getPercentage();
+			if (progressBar.getSelection() != percentage)
+			{
+				progressBar.setSelection(percentage);
+			}
+			String text = progress.getProcessText();
+			if (!text.equals(lblProcessText.getText()))
+			{
+				lblProcessText.setText(text);
+			}
+			display.timerExec(progressTimerTime, this);
+		}
+	};
 
 
 	/**
@@ -71,10 +126,15 @@ public class OutputtingDialog extends Dialog
 	
 	/**
 	 * Open the dialog.
+	 * The progress of the engine is checked regularly while the dialog is open.
+	 * Pressing the cancel button cancels the output of the engine, but the dialog stays open until it is closed by close()
+	 * @param engine the engine outputting the files
 	 * @return the result
 	 */
-	public Object open() 
+	public Object open(ExporterEngine engine) 
 	{
+		this.engine = engine;
+		this.progress = engine.getOutputProgress();
 		display = getParent().getDisplay();
 		createContents();
 		
@@ -83,6 +143,7 @@ public class OutputtingDialog extends Dialog
 		
 		shell.open();
 		shell.layout();
+		progressTimer.run();
 		
 		while (!shell.isDisposed()) 
 		{
@@ -94,38 +155,6 @@ public class OutputtingDialog extends Dialog
 		return result;
 	}
 	
-	/**
-	 * Set the text describing what the outputting process is doing right now
-	 * @param text shown in label below progress bar
-	 */
-	public void setProcessText(String text)
-	{
-		Display.getDefault().syncExec(new Runnable() 
-		{
-		    public void run() 
-		    {
-		    		lblProcessText.setText(text);
-		    }
-		});
-		
-	}
-	
-	
-	/**
-	 * Set the progress percentage of progress bar
-	 * @param percentage (0 to 100)
-	 */
-	public void setProgressPercentage(int percentage)
-	{
-		Display.getDefault().syncExec(new Runnable() 
-		{
-		    public void run() 
-		    {
-		    		progressBar.setSelection(percentage);
-		    }
-		});
-	}
-
 	/**
 	 * Create contents of the dialog.
 	 */
@@ -133,7 +162,7 @@ public class OutputtingDialog extends Dialog
 	{
 		shell = new Shell(getParent(), getStyle());
 		int width = 450;
-		int height = 200;
+		int height = 270;
 		shell.setSize(width, height);
 		Rectangle b = getParent().getBounds();
 		int xPos = (b.width / 2) - (width / 2) + b.x;
@@ -158,6 +187,53 @@ public class OutputtingDialog extends Dialog
 		lblProcessText.setFont(SWTResourceManager.getFont("Arial", 12, SWT.NORMAL));
 		lblProcessText.setBounds(33, 115, 377, 25);
 		
+		btnLowPriority = new Button(shell, SWT.CHECK);
+		btnLowPriority.setBounds(33, 150, 170, 22);
+		btnLowPriority.setText("Low process priority");
+		btnLowPriority.setToolTipText("Run SoX/FFMPEG at low CPU and disk priority, e.g. to keep a DAW running smoothly");
+		btnLowPriority.setSelection(engine.isLowPriority());
+		btnLowPriority.addSelectionListener(new SelectionAdapter() 
+		{
+			@Override
+			public void widgetSelected(SelectionEvent e) 
+			{
+				engine.setLowPriority(btnLowPriority.getSelection());
+			}
+		});
+		
+		lblBandwidthLimit = new Label(shell, SWT.NONE);
+		lblBandwidthLimit.setBounds(210, 153, 130, 20);
+		lblBandwidthLimit.setText("Disk limit (MB/s):");
+		
+		spinnerBandwidthLimit = new Spinner(shell, SWT.BORDER);
+		spinnerBandwidthLimit.setBounds(345, 150, 65, 22);
+		spinnerBandwidthLimit.setMinimum(0);
+		spinnerBandwidthLimit.setMaximum(10000);
+		spinnerBandwidthLimit.setToolTipText("Maximum disk bandwidth used for outputting files. 0 for no limit");
+		spinnerBandwidthLimit.setSelection((int)(engine.getBandwidthLimit() / bytesPerMegabyte));
+		spinnerBandwidthLimit.addSelectionListener(new SelectionAdapter() 
+		{
+			@Override
+			public void widgetSelected(SelectionEvent e) 
+			{
+				engine.setBandwidthLimit((long)spinnerBandwidthLimit.getSelection() * bytesPerMegabyte);
+			}
+		});
+		
+		btnCancel = new Button(shell, SWT.NONE);
+		btnCancel.addSelectionListener(new SelectionAdapter() 
+		{
+			@Override
+			public void widgetSelected(SelectionEvent e) 
+			{
+				btnCancel.setEnabled(false);
+				btnCancel.setText("Cancelling...");
+				engine.cancelOutput();
+			}
+		});
+		btnCancel.setBounds(175, 190, 100, 28);
+		btnCancel.setText("Cancel");
+		
 		shell.setCursor(new Cursor(display, SWT.CURSOR_WAIT));
 	}
 }
@@ -0,0 +1,220 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * The inner loops of peak and level analysis: deinterleaving of raw PCM plus min, max and sum of squares per channel.
+ * There is one kernel for each sample format (16, 24 and 32 bit signed little endian).
+ *
+ * Each kernel first copies one channel into a contiguous int array and then reduces that array in a separate, branch-free loop.
+ * Keeping the reduction free of strides and conditionals lets the JIT compiler vectorise it on the running CPU,
+ * so the same code runs at close to memory speed without depending on any incubator modules.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class PeakKernels
+{
+	/**
+	 * Runs shorter than this number of frames are handled by accumulateScalar(), since deinterleaving doesn't pay off for them
+	 */
+	private static final int minFramesForDeinterleave = 32;
+	
+	/**
+	 * View for reading little endian 16 bit samples directly from a byte array
+	 */
+	private static final VarHandle shortLE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * View for reading little endian 32 bit samples directly from a byte array
+	 */
+	private static final VarHandle intLE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Accumulates min, max and sum of squares for each channel over a run of interleaved frames.
+	 * The values are in the integer range of the sample format.
+	 * @param buffer raw interleaved PCM, signed little endian
+	 * @param offset index of the first byte of the first frame
+	 * @param frames number of frames to process
+	 * @param channels number of channels
+	 * @param bytesPerSample 2, 3 or 4
+	 * @param min per channel minimum. Updated in place
+	 * @param max per channel maximum. Updated in place
+	 * @param sumOfSquares per channel sum of squared samples. Updated in place
+	 * @param scratch work array with room for at least 'frames' values
+	 */
+	public static void accumulate(byte[] buffer, int offset, int frames, int channels, int bytesPerSample, int[] min, int[] max, double[] sumOfSquares, int[] scratch)
+	{
+		if (frames < minFramesForDeinterleave)
+		{
+			accumulateScalar(buffer, offset, frames, channels, bytesPerSample, min, max, sumOfSquares);
+			return;
+		}
+		int stride = channels * bytesPerSample;
+		for (int c = 0; c < channels; c++)
+		{
+			int start = offset + (c * bytesPerSample);
+			switch (bytesPerSample)
+			{
+			case 2:
+				deinterleave16(buffer, start, stride, frames, scratch);
+				reduceNarrow(scratch, frames, c, min, max, sumOfSquares);
+				break;
+
+			case 3:
+				deinterleave24(buffer, start, stride, frames, scratch);
+				reduceNarrow(scratch, frames, c, min, max, sumOfSquares);
+				break;
+
+			default:
+				deinterleave32(buffer, start, stride, frames, scratch);
+				reduceWide(scratch, frames, c, min, max, sumOfSquares);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Accumulates min, max and sum of squares for each channel over a run of interleaved frames, one sample at a time.
+	 * This is the straightforward reference version of accumulate() and gives the same results.
+	 * Used by accumulate() for very short runs.
+	 * @see #accumulate(byte[], int, int, int, int, int[], int[], double[], int[])
+	 */
+	public static void accumulateScalar(byte[] buffer, int offset, int frames, int channels, int bytesPerSample, int[] min, int[] max, double[] sumOfSquares)
+	{
+		int pos = offset;
+		for (int f = 0; f < frames; f++)
+		{
+			for (int c = 0; c < channels; c++)
+			{
+				int v;
+				switch (bytesPerSample)
+				{
+				case 2:
+					v = (buffer[pos] & 0xff) | (buffer[pos + 1] << 8);
+					break;
+
+				case 3:
+					v = (buffer[pos] & 0xff) | ((buffer[pos + 1] & 0xff) << 8) | (buffer[pos + 2] << 16);
+					break;
+
+				default:
+					v = (buffer[pos] & 0xff) | ((buffer[pos + 1] & 0xff) << 8) | ((buffer[pos + 2] & 0xff) << 16) | (buffer[pos + 3] << 24);
+					break;
+				}
+				if (v < min[c])
+				{
+					min[c] = v;
+				}
+				if (v > max[c])
+				{
+					max[c] = v;
+				}
+				sumOfSquares[c] += (double)v * (double)v;
+				pos += bytesPerSample;
+			}
+		}
+	}
+
+	/**
+	 * Copies one channel of 16 bit samples into a contiguous int array
+	 */
+	private static void deinterleave16(byte[] buffer, int start, int stride, int frames, int[] out)
+	{
+		int pos = start;
+		for (int i = 0; i < frames; i++)
+		{
+			out[i] = (short)shortLE.get(buffer, pos);
+			pos += stride;
+		}
+	}
+
+	/**
+	 * Copies one channel of 24 bit samples into a contiguous int array
+	 */
+	private static void deinterleave24(byte[] buffer, int start, int stride, int frames, int[] out)
+	{
+		int pos = start;
+		for (int i = 0; i < frames; i++)
+		{
+			out[i] = (buffer[pos] & 0xff) | ((buffer[pos + 1] & 0xff) << 8) | (buffer[pos + 2] << 16);
+			pos += stride;
+		}
+	}
+
+	/**
+	 * Copies one channel of 32 bit samples into a contiguous int array
+	 */
+	private static void deinterleave32(byte[] buffer, int start, int stride, int frames, int[] out)
+	{
+		int pos = start;
+		for (int i = 0; i < frames; i++)
+		{
+			out[i] = (int)intLE.get(buffer, pos);
+			pos += stride;
+		}
+	}
+
+	/**
+	 * Reduces samples of up to 24 bits. The squares are summed as longs, which can't overflow for runs shorter than 2^16 frames.
+	 */
+	private static void reduceNarrow(int[] samples, int n, int channel, int[] min, int[] max, double[] sumOfSquares)
+	{
+		int lo = min[channel];
+		int hi = max[channel];
+		long sq = 0;
+		int i = 0;
+		while (i < n)
+		{
+			int end = Math.min(n, i + 65535);
+			for (; i < end; i++)
+			{
+				int v = samples[i];
+				lo = Math.min(lo, v);
+				hi = Math.max(hi, v);
+				sq += (long)v * (long)v;
+			}
+			sumOfSquares[channel] += (double)sq;
+			sq = 0;
+		}
+		min[channel] = lo;
+		max[channel] = hi;
+	}
+
+	/**
+	 * Reduces 32 bit samples. The squares are summed as doubles since they don't fit in a long.
+	 */
+	private static void reduceWide(int[] samples, int n, int channel, int[] min, int[] max, double[] sumOfSquares)
+	{
+		int lo = min[channel];
+		int hi = max[channel];
+		double sq = 0;
+		for (int i = 0; i < n; i++)
+		{
+			int v = samples[i];
+			lo = Math.min(lo, v);
+			hi = Math.max(hi, v);
+			sq += (double)v * (double)v;
+		}
+		min[channel] = lo;
+		max[channel] = hi;
+		sumOfSquares[channel] += sq;
+	}
+}
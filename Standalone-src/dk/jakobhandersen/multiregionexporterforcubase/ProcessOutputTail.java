@@ -0,0 +1,155 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the last bytes written to an output stream (stdout or stderr) of an external process, in a ring buffer of fixed size.
+ * 
+ * Filled by ProcessSupervisor.drain() on a separate thread while the process runs, so the process never stalls on a full pipe,
+ * and read afterwards to show what the process wrote before it failed. Memory use stays the same no matter how much the process writes,
+ * and the ring buffer is only allocated when the process writes something, so nothing is allocated for the usual quiet process.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class ProcessOutputTail
+{
+	/**
+	 * Number of bytes kept
+	 */
+	private int capacity;
+	
+	/**
+	 * The ring buffer. Null until something is written. Guarded by this
+	 */
+	private byte[] buffer = null;
+	
+	/**
+	 * Total number of bytes written. The next byte goes to buffer[totalBytes % buffer.length]. Guarded by this
+	 */
+	private long totalBytes = 0;
+	
+	/**
+	 * Counted down when the stream has ended
+	 */
+	private CountDownLatch ended = new CountDownLatch(1);
+	
+	/**
+	 * Constructor
+	 * @param capacity number of bytes kept
+	 */
+	public ProcessOutputTail(int capacity)
+	{
+		this.capacity = Math.max(1, capacity);
+	}
+	
+	/**
+	 * Waits until the stream has ended (normally right after the process has ended)
+	 * @param timeoutMillis maximum number of milliseconds to wait
+	 * @return true if the stream has ended
+	 * @throws InterruptedException
+	 */
+	public boolean awaitEnd(long timeoutMillis) throws InterruptedException
+	{
+		return ended.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * @return the last line of getText(). Empty if nothing was written
+	 */
+	public String getLastLine()
+	{
+		String text = getText();
+		int lineStart = text.lastIndexOf('\n') + 1;
+		return text.substring(lineStart).trim();
+	}
+	
+	/**
+	 * Gets the kept output as text. If more was written than kept, the first (partial) line is left out
+	 * @return the kept output, without leading and trailing white space
+	 */
+	public String getText()
+	{
+		byte[] bytes;
+		boolean truncated;
+		synchronized (this)
+		{
+			if (buffer == null)
+			{
+				return "";
+			}
+			int length = (int)Math.min(totalBytes, buffer.length);
+			truncated = totalBytes > buffer.length;
+			bytes = new byte[length];
+			int start = (int)((totalBytes - length) % buffer.length);
+			int firstPart = Math.min(length, buffer.length - start);
+			System.arraycopy(buffer, start, bytes, 0, firstPart);
+			System.arraycopy(buffer, 0, bytes, firstPart, length - firstPart);
+		}
+		//The tools write their messages in the encoding of the system
+		String text = new String(bytes, Charset.defaultCharset()).replace("\r", "");
+		if (truncated)
+		{
+			text = text.substring(text.indexOf('\n') + 1);
+		}
+		return text.trim();
+	}
+	
+	/**
+	 * @return total number of bytes written to the stream so far (also the ones no longer kept)
+	 */
+	public synchronized long getTotalBytes()
+	{
+		return totalBytes;
+	}
+	
+	/**
+	 * Marks the stream as ended. Called by the thread draining it
+	 */
+	public void markEnded()
+	{
+		ended.countDown();
+	}
+	
+	/**
+	 * Adds bytes read from the stream. Only the last bytes (up to the capacity) are kept
+	 * @param b
+	 * @param off
+	 * @param len
+	 */
+	public synchronized void write(byte[] b, int off, int len)
+	{
+		if (buffer == null)
+		{
+			buffer = new byte[capacity];
+		}
+		if (len > buffer.length)
+		{
+			off += len - buffer.length;
+			totalBytes += len - buffer.length;
+			len = buffer.length;
+		}
+		int pos = (int)(totalBytes % buffer.length);
+		int firstPart = Math.min(len, buffer.length - pos);
+		System.arraycopy(b, off, buffer, pos, firstPart);
+		System.arraycopy(b, off + firstPart, buffer, 0, len - firstPart);
+		totalBytes += len;
+	}
+}
@@ -0,0 +1,631 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Starts and keeps track of all external processes (SoX, SoXi, FFMPEG) of the ExporterEngine.
+ * 
+ * The number of processes running at the same time is limited by a semaphore (see Constants.maxRunningProcesses),
+ * so starting hundreds of short SoX jobs can't flood the computer. The running processes are kept in a concurrent map
+ * keyed by their ProcessHandle, and each is removed (and its permit released) by Process.onExit(), which is completed
+ * by the single process reaper thread of the JVM. So no thread is needed per process for the bookkeeping, and
+ * all processes can be destroyed from one place when the application is closed.
+ * Processes are destroyed together with their descendants, so nothing started by SoX or FFMPEG is left running either.
+ * 
+ * In low priority mode (part of the QoS mode of the ExporterEngine) processes are started through nice, and on Linux ionice,
+ * so they get the CPU time and disk access left over by other programs like a DAW. Switching the mode changes the priority of the
+ * running processes too (with renice and ionice). Where these programs are not found (e.g. on Windows), the processes run at normal priority.
+ * 
+ * Wall time and CPU time of the processes are summed up. The CPU time comes from ProcessHandle.Info, which the operating system
+ * only reports while a process is alive, so it is sampled while waiting for the process (see waitFor()).
+ * Processes ending before the first sample count towards the wall time only.
+ * 
+ * Output streams of the processes that are not needed should be redirected to ProcessBuilder.Redirect.DISCARD,
+ * and the ones that are should be read while the process runs (see drain()), since a process stalls when a pipe it writes to is full.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class ProcessSupervisor
+{
+	/**
+	 * A running process
+	 * @author Jakob Hougaard Andersen
+	 *
+	 */
+	private static class RunningProcess
+	{
+		/**
+		 * Name of the program (the first element of the command)
+		 */
+		private String name;
+		
+		/**
+		 * System.nanoTime() when the process was started
+		 */
+		private long startTime;
+		
+		/**
+		 * The latest sample of the CPU time used by the process, in nanoseconds. -1 if not sampled
+		 */
+		private volatile long cpuTime = -1;
+		
+		/**
+		 * Constructor
+		 * @param name
+		 */
+		private RunningProcess(String name)
+		{
+			this.name = name;
+			this.startTime = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * Milliseconds before the first sample of the CPU time of a process being waited for.
+	 * The time between samples is doubled after each sample, up to maxCpuSampleInterval, so short processes get sampled too
+	 */
+	private static final long firstCpuSampleInterval = 5;
+	
+	/**
+	 * Maximum number of milliseconds between samples of the CPU time of a process being waited for
+	 */
+	private static final long maxCpuSampleInterval = 200;
+	
+	/**
+	 * Maximum number of milliseconds waitFor() waits for a process and its descendants to end after destroying them because the waiting thread was interrupted
+	 */
+	private static final long destroyedProcessTimeout = 100;
+	
+	/**
+	 * Milliseconds between checks of whether destroyed descendants have ended.
+	 * They are not children of this process, so ProcessHandle.onExit() would only poll them every few hundred milliseconds
+	 */
+	private static final long destroyedDescendantPollInterval = 2;
+	
+	/**
+	 * Niceness of processes in low priority mode (0 is normal, 19 is the lowest priority)
+	 */
+	private static final int lowPriorityNiceness = 10;
+	
+	/**
+	 * ionice priority (within the best-effort class) of processes in low priority mode (0 is the highest, 7 is the lowest).
+	 * The idle class is not used since a DAW streaming continuously could then keep the processes from ever reading
+	 */
+	private static final int lowPriorityIoLevel = 7;
+	
+	/**
+	 * ionice priority (within the best-effort class) of processes at normal priority
+	 */
+	private static final int normalIoLevel = 4;
+	
+	/**
+	 * Size of the chunks read by drain(). Each running drain has its own chunk, so the total is bounded by the number of running processes
+	 */
+	private static final int drainChunkSize = 8192;
+	
+	/**
+	 * Threads reading the output of processes (see drain())
+	 */
+	private ExecutorService drainExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("Process output"));
+	
+	/**
+	 * Path to nice. Null if not found
+	 */
+	private String nicePath = findProgram("nice");
+	
+	/**
+	 * Path to renice. Null if not found
+	 */
+	private String renicePath = findProgram("renice");
+	
+	/**
+	 * Path to ionice. Null if not found or not on Linux
+	 */
+	private String ionicePath = System.getProperty("os.name").toLowerCase(Locale.ROOT).startsWith("linux") ? findProgram("ionice") : null;
+	
+	/**
+	 * Are processes started at low priority?
+	 */
+	private volatile boolean lowPriority = false;
+	
+	/**
+	 * Permits for running processes
+	 */
+	private Semaphore permits;
+	
+	/**
+	 * The running processes
+	 */
+	private Map<ProcessHandle, RunningProcess> running = new ConcurrentHashMap<ProcessHandle, RunningProcess>();
+	
+	/**
+	 * Number of processes started
+	 */
+	private AtomicInteger startedProcesses = new AtomicInteger(0);
+	
+	/**
+	 * Number of processes ended
+	 */
+	private AtomicInteger endedProcesses = new AtomicInteger(0);
+	
+	/**
+	 * Number of ended processes with a CPU time sample
+	 */
+	private AtomicInteger cpuSampledProcesses = new AtomicInteger(0);
+	
+	/**
+	 * Summed wall time of the ended processes in nanoseconds
+	 */
+	private AtomicLong totalWallTime = new AtomicLong(0);
+	
+	/**
+	 * Summed CPU time of the ended processes (that had a CPU time sample) in nanoseconds
+	 */
+	private AtomicLong totalCpuTime = new AtomicLong(0);
+	
+	/**
+	 * Constructor
+	 * @param maxRunningProcesses maximum number of processes running at the same time
+	 */
+	public ProcessSupervisor(int maxRunningProcesses)
+	{
+		permits = new Semaphore(Math.max(1, maxRunningProcesses), true);
+	}
+	
+	/**
+	 * Destroys all running processes, and any processes started by them (see destroyTree())
+	 * @return the number of processes destroyed (not counting descendants)
+	 */
+	public int destroyAll()
+	{
+		int destroyed = 0;
+		for (ProcessHandle handle : running.keySet())
+		{
+			if (destroyTree(handle))
+			{
+				destroyed += 1;
+			}
+		}
+		return destroyed;
+	}
+	
+	/**
+	 * Forcibly destroys a process and all of its descendants (processes started by it, their children and so on).
+	 * The descendants are destroyed first, since they are re-parented and can no longer be found once the process is gone.
+	 * Returns right away. The operating system ends the processes shortly after
+	 * @param handle the process
+	 * @return true if the process itself was asked to end
+	 */
+	public static boolean destroyTree(ProcessHandle handle)
+	{
+		Iterator<ProcessHandle> descendants = handle.descendants().iterator();
+		while (descendants.hasNext())
+		{
+			descendants.next().destroyForcibly();
+		}
+		return handle.destroyForcibly();
+	}
+	
+	/**
+	 * Reads an output stream of a process on a separate thread until it ends, keeping the last bytes in a ProcessOutputTail.
+	 * The stream is closed when it ends.
+	 * The chunk read into is not taken from the MemoryGovernor: a drain must never wait, since the process stalls on a full pipe,
+	 * and it would then never release what the thread reading its other stream may be waiting for.
+	 * @param in stdout or stderr of a process started with start()
+	 * @param capacity number of bytes to keep
+	 * @return the ProcessOutputTail being filled
+	 */
+	public ProcessOutputTail drain(final InputStream in, int capacity)
+	{
+		final ProcessOutputTail tail = new ProcessOutputTail(capacity);
+		Runnable reader = new Runnable()
+		{
+			public void run()
+			{
+				byte[] chunk = new byte[drainChunkSize];
+				try
+				{
+					int read;
+					while ((read = in.read(chunk)) != -1)
+					{
+						tail.write(chunk, 0, read);
+					}
+				}
+				catch (IOException e)
+				{
+					//The stream is closed when the process is destroyed. What was read so far is kept
+				}
+				finally
+				{
+					closeQuietly(in);
+					tail.markEnded();
+				}
+			}
+		};
+		try
+		{
+			drainExecutor.execute(reader);
+		}
+		catch (RejectedExecutionException e)
+		{
+			closeQuietly(in);
+			tail.markEnded();
+		}
+		return tail;
+	}
+	
+	/**
+	 * @return the handles of the running processes. A live view that can be read from any thread
+	 */
+	public Set<ProcessHandle> getRunningProcesses()
+	{
+		return running.keySet();
+	}
+	
+	/**
+	 * @return one line describing the processes run so far: number, summed wall time and summed CPU time
+	 */
+	public String getSummary()
+	{
+		return String.format("%d process(es) started, %d ended, %d running. Wall time %.1f s. CPU time %.1f s (measured for %d process(es))",
+				startedProcesses.get(), endedProcesses.get(), running.size(), totalWallTime.get() / 1e9, totalCpuTime.get() / 1e9, cpuSampledProcesses.get());
+	}
+	
+	/**
+	 * @return true if processes are started at low priority
+	 */
+	public boolean isLowPriority()
+	{
+		return lowPriority;
+	}
+	
+	/**
+	 * Sets whether processes are started at low priority, and changes the priority of the running processes (and their descendants).
+	 * Can be called from any thread at any time.
+	 * Note that most systems don't allow an ordinary user to raise the priority again, so processes lowered before may stay low
+	 * @param lowPriority
+	 */
+	public synchronized void setLowPriority(boolean lowPriority)
+	{
+		if (lowPriority == this.lowPriority)
+		{
+			return;
+		}
+		this.lowPriority = lowPriority;
+		if (nicePath == null)
+		{
+			Debug.log(LogLevel.WARNING, "Processes can't be run at low priority on this system");
+			return;
+		}
+		int changed = 0;
+		for (ProcessHandle handle : running.keySet())
+		{
+			setPriority(handle);
+			Iterator<ProcessHandle> descendants = handle.descendants().iterator();
+			while (descendants.hasNext())
+			{
+				setPriority(descendants.next());
+			}
+			changed += 1;
+		}
+		Debug.log("Processes are started at " + (lowPriority ? "low" : "normal") + " priority. Priority of " + changed + " running process(es) changed");
+	}
+	
+	/**
+	 * Starts a process, waiting for a permit first if the maximum number of processes are running.
+	 * In low priority mode the command of pb is changed to run through nice/ionice
+	 * @param pb set up with the command of the process
+	 * @return the started process
+	 * @throws InterruptedException if interrupted while waiting for a permit
+	 * @throws IOException if the process could not be started
+	 */
+	public Process start(ProcessBuilder pb) throws InterruptedException, IOException
+	{
+		permits.acquire();
+		String name = pb.command().isEmpty() ? "?" : pb.command().get(0);
+		if (lowPriority && nicePath != null)
+		{
+			pb.command(getLowPriorityCommand(pb.command()));
+		}
+		final Process p;
+		try
+		{
+			p = pb.start();
+		}
+		catch (IOException | RuntimeException e)
+		{
+			permits.release();
+			throw e;
+		}
+		final ProcessHandle handle = p.toHandle();
+		final RunningProcess rp = new RunningProcess(name);
+		running.put(handle, rp);
+		startedProcesses.incrementAndGet();
+		p.onExit().whenComplete(new BiConsumer<Process, Throwable>()
+		{
+			public void accept(Process ended, Throwable error)
+			{
+				ended(handle, rp);
+			}
+		});
+		return p;
+	}
+	
+	/**
+	 * Waits for a process started with start() to end, sampling its CPU time while waiting
+	 * @param p the process
+	 * @return the exit value of the process
+	 * @throws InterruptedException if interrupted while waiting (which the TaskRunner does when a task is cancelled).
+	 * The process and its descendants are then destroyed, and waited for up to destroyedProcessTimeout ms in total,
+	 * so the caller can clean up files written by them
+	 */
+	public int waitFor(Process p) throws InterruptedException
+	{
+		RunningProcess rp = running.get(p.toHandle());
+		long interval = firstCpuSampleInterval;
+		try
+		{
+			while (! p.waitFor(interval, TimeUnit.MILLISECONDS))
+			{
+				if (rp != null)
+				{
+					sampleCpuTime(p.toHandle(), rp);
+				}
+				interval = Math.min(interval * 2, maxCpuSampleInterval);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			long start = System.nanoTime();
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(destroyedProcessTimeout);
+			List<ProcessHandle> descendants = new ArrayList<ProcessHandle>();
+			Iterator<ProcessHandle> it = p.toHandle().descendants().iterator();
+			while (it.hasNext())
+			{
+				descendants.add(it.next());
+			}
+			destroyTree(p.toHandle());
+			//The interrupt status was cleared by the exception, so these waits work
+			if (p.waitFor(destroyedProcessTimeout, TimeUnit.MILLISECONDS) && awaitEnded(descendants, deadline))
+			{
+				Debug.log(LogLevel.DEBUG, "Process {} destroyed after {} ms", rp != null ? rp.name : "?", Long.valueOf((System.nanoTime() - start) / 1000000));
+			}
+			else
+			{
+				Debug.log(LogLevel.WARNING, "Process {} not ended {} ms after being destroyed", rp != null ? rp.name : "?", Long.valueOf(destroyedProcessTimeout));
+			}
+			throw e;
+		}
+		return p.exitValue();
+	}
+	
+	/**
+	 * Checks if a process has ended. A process that has ended but not yet been reaped by its parent (a zombie) counts as ended,
+	 * since it has closed its files. That is the state of destroyed descendants until the process they are re-parented to gets around to reaping them,
+	 * which on Linux can take seconds. Zombies are only recognized on Linux (through /proc)
+	 * @param handle the process
+	 * @return true if the process has ended
+	 */
+	static boolean hasEnded(ProcessHandle handle)
+	{
+		if (! handle.isAlive())
+		{
+			return true;
+		}
+		File stat = new File("/proc/" + handle.pid() + "/stat");
+		if (stat.isFile())
+		{
+			try
+			{
+				//The state follows the program name, which is in parentheses and may itself contain parentheses
+				String line = new String(Files.readAllBytes(stat.toPath()), StandardCharsets.US_ASCII);
+				int nameEnd = line.lastIndexOf(')');
+				return nameEnd >= 0 && nameEnd + 2 < line.length() && line.charAt(nameEnd + 2) == 'Z';
+			}
+			catch (IOException e)
+			{
+				//Ended (and reaped) while reading
+				return ! handle.isAlive();
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Waits for destroyed processes that are not children of this process to end (see hasEnded())
+	 * @param handles the processes
+	 * @param deadline System.nanoTime() to give up at
+	 * @return true if all of them ended before deadline
+	 */
+	private static boolean awaitEnded(List<ProcessHandle> handles, long deadline)
+	{
+		for (ProcessHandle handle : handles)
+		{
+			while (! hasEnded(handle))
+			{
+				if (System.nanoTime() >= deadline)
+				{
+					return false;
+				}
+				try
+				{
+					Thread.sleep(destroyedDescendantPollInterval);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Closes a stream, ignoring errors
+	 * @param in
+	 */
+	private static void closeQuietly(InputStream in)
+	{
+		try
+		{
+			in.close();
+		}
+		catch (IOException e)
+		{
+			//Nothing to do
+		}
+	}
+	
+	/**
+	 * Searches the directories of the PATH environment variable for a program
+	 * @param name
+	 * @return the full path of the program. Null if not found
+	 */
+	private static String findProgram(String name)
+	{
+		String path = System.getenv("PATH");
+		if (path == null)
+		{
+			return null;
+		}
+		for (String dir : path.split(File.pathSeparator))
+		{
+			File f = new File(dir, name);
+			if (f.isFile() && f.canExecute())
+			{
+				return f.getPath();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Called (on the process reaper thread) when a process has ended. Releases its permit and adds up its times
+	 * @param handle
+	 * @param rp
+	 */
+	private void ended(ProcessHandle handle, RunningProcess rp)
+	{
+		if (running.remove(handle) == null)
+		{
+			return;
+		}
+		permits.release();
+		long wallTime = System.nanoTime() - rp.startTime;
+		endedProcesses.incrementAndGet();
+		totalWallTime.addAndGet(wallTime);
+		long cpuTime = rp.cpuTime;
+		if (cpuTime >= 0)
+		{
+			cpuSampledProcesses.incrementAndGet();
+			totalCpuTime.addAndGet(cpuTime);
+		}
+		Debug.log(LogLevel.DEBUG, "Process {} ended after {} ms", rp.name, Long.valueOf(wallTime / 1000000));
+	}
+	
+	/**
+	 * Prefixes a command with nice (and ionice, if found), so it runs at low priority.
+	 * Both exec the command, so the started process is still the process of the command
+	 * @param command
+	 * @return the new command
+	 */
+	private List<String> getLowPriorityCommand(List<String> command)
+	{
+		List<String> result = new ArrayList<String>();
+		if (ionicePath != null)
+		{
+			result.add(ionicePath);
+			result.add("-c");
+			result.add("2");
+			result.add("-n");
+			result.add(Integer.toString(lowPriorityIoLevel));
+		}
+		result.add(nicePath);
+		result.add("-n");
+		result.add(Integer.toString(lowPriorityNiceness));
+		result.addAll(command);
+		return result;
+	}
+	
+	/**
+	 * Changes the priority of a running process to match the current mode, with renice and ionice. Doesn't wait for them
+	 * @param handle
+	 */
+	private void setPriority(ProcessHandle handle)
+	{
+		String pid = Long.toString(handle.pid());
+		try
+		{
+			if (renicePath != null)
+			{
+				ProcessBuilder pb = new ProcessBuilder(renicePath, "-n", Integer.toString(lowPriority ? lowPriorityNiceness : 0), "-p", pid);
+				pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+				pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+				pb.start();
+			}
+			if (ionicePath != null)
+			{
+				ProcessBuilder pb = new ProcessBuilder(ionicePath, "-c", "2", "-n", Integer.toString(lowPriority ? lowPriorityIoLevel : normalIoLevel), "-p", pid);
+				pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+				pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+				pb.start();
+			}
+		}
+		catch (IOException e)
+		{
+			Debug.log(LogLevel.WARNING, "Could not change priority of process " + pid + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Takes a sample of the CPU time used by a running process
+	 * @param handle
+	 * @param rp
+	 */
+	private void sampleCpuTime(ProcessHandle handle, RunningProcess rp)
+	{
+		Optional<Duration> cpu = handle.info().totalCpuDuration();
+		if (cpu.isPresent())
+		{
+			rp.cpuTime = cpu.get().toNanos();
+		}
+	}
+}
@@ -0,0 +1,196 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Turns the regions (AudioBites) into the pixel runs that are covered by at least one range marker.
+ * 
+ * When the regions are set, overlapping and touching regions are merged into disjoint coverage spans by a sweep over the sorted start and end times.
+ * When rasterizing, the spans within the visible range are converted to pixel columns and spans that end up in the same or neighbouring 
+ * columns are merged into one run, skipping ahead by binary search. So each covered pixel run is drawn once, 
+ * and the work depends on the pixel width rather than the number of regions.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class RangeMarkerRasterizer
+{
+	/**
+	 * Start times in seconds of the merged coverage spans. Sorted and not overlapping.
+	 */
+	private double[] spanStarts = new double[0];
+	
+	/**
+	 * End times in seconds of the merged coverage spans (same order as spanStarts). Also sorted since the spans don't overlap.
+	 */
+	private double[] spanEnds = new double[0];
+	
+	/**
+	 * Number of merged spans
+	 */
+	private int spanCount = 0;
+	
+	/**
+	 * Removes all regions
+	 */
+	public void clear()
+	{
+		spanStarts = new double[0];
+		spanEnds = new double[0];
+		spanCount = 0;
+	}
+	
+	/**
+	 * @return number of merged coverage spans
+	 */
+	public int getSpanCount()
+	{
+		return spanCount;
+	}
+	
+	/**
+	 * Finds the pixel runs covered by regions within a visible time range.
+	 * @param visibleStartSec time in seconds at the left edge
+	 * @param visibleEndSec time in seconds at the right edge
+	 * @param width width in pixels
+	 * @param runStarts receives the first pixel of each run. Must have room for (width / 2) + 1 runs
+	 * @param runEnds receives the pixel after the last pixel of each run. Same size as runStarts
+	 * @return number of runs
+	 */
+	public int rasterize(double visibleStartSec, double visibleEndSec, int width, int[] runStarts, int[] runEnds)
+	{
+		if (spanCount == 0 || width <= 0 || visibleEndSec <= visibleStartSec)
+		{
+			return 0;
+		}
+		double pixelsPerSec = width / (visibleEndSec - visibleStartSec);
+		double secPerPixel = 1 / pixelsPerSec;
+		int runs = 0;
+		int i = firstIndexAbove(spanEnds, visibleStartSec);
+		while (i < spanCount && spanStarts[i] < visibleEndSec && runs < runStarts.length)
+		{
+			int x0 = Math.max(0, (int)((spanStarts[i] - visibleStartSec) * pixelsPerSec));
+			int x1 = Math.max(x0 + 1, (int)((spanEnds[i] - visibleStartSec) * pixelsPerSec));
+			int last = i;
+			//Merge all following spans that start before the end of this run. Since the span ends are sorted, the last of them ends latest.
+			while (true)
+			{
+				int next = firstIndexAbove(spanStarts, visibleStartSec + (x1 * secPerPixel)) - 1;
+				if (next <= last)
+				{
+					break;
+				}
+				last = next;
+				x1 = Math.max(x1, (int)((spanEnds[last] - visibleStartSec) * pixelsPerSec));
+			}
+			x1 = Math.min(x1, width);
+			if (runs > 0 && x0 <= runEnds[runs - 1])
+			{
+				//Touches the previous run
+				runEnds[runs - 1] = Math.max(runEnds[runs - 1], x1);
+			}
+			else if (x1 > x0)
+			{
+				runStarts[runs] = x0;
+				runEnds[runs] = x1;
+				runs += 1;
+			}
+			i = last + 1;
+		}
+		return runs;
+	}
+	
+	/**
+	 * Sets the regions and merges them into coverage spans
+	 * @param bites the AudioBites, with functional end set
+	 */
+	public void setRegions(List<AudioBite> bites)
+	{
+		int n = bites.size();
+		double[] starts = new double[n];
+		double[] ends = new double[n];
+		for (int i = 0; i < n; i++)
+		{
+			AudioBite b = bites.get(i);
+			starts[i] = b.getStartSec();
+			ends[i] = Math.max(b.getStartSec(), b.getFunctionalEndSec());
+		}
+		Arrays.sort(starts);
+		Arrays.sort(ends);
+		
+		//Sweep over starts and ends in time order, keeping track of how many regions cover the current time.
+		//Starts are taken before ends at the same time, so touching regions are merged.
+		double[] mergedStarts = new double[n];
+		double[] mergedEnds = new double[n];
+		int count = 0;
+		int depth = 0;
+		int s = 0;
+		int e = 0;
+		while (e < n)
+		{
+			if (s < n && starts[s] <= ends[e])
+			{
+				if (depth == 0)
+				{
+					mergedStarts[count] = starts[s];
+				}
+				depth += 1;
+				s += 1;
+			}
+			else
+			{
+				depth -= 1;
+				if (depth == 0)
+				{
+					mergedEnds[count] = ends[e];
+					count += 1;
+				}
+				e += 1;
+			}
+		}
+		spanStarts = mergedStarts;
+		spanEnds = mergedEnds;
+		spanCount = count;
+	}
+	
+	/**
+	 * Binary search in the first spanCount elements of an ascending array
+	 * @param sorted
+	 * @param value
+	 * @return index of the first element larger than value (spanCount if none)
+	 */
+	private int firstIndexAbove(double[] sorted, double value)
+	{
+		int lo = 0;
+		int hi = spanCount;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid] > value)
+			{
+				hi = mid;
+			}
+			else
+			{
+				lo = mid + 1;
+			}
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,107 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+/**
+ * Describes why the file of a region could not be created: which program failed, its exit value and the end of what it wrote to stderr
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class RegionOutputError
+{
+	/**
+	 * Name of the region
+	 */
+	private String regionName;
+	
+	/**
+	 * Name of the program that failed (e.g. "sox" or "ffmpeg")
+	 */
+	private String program;
+	
+	/**
+	 * Exit value of the program
+	 */
+	private int exitValue;
+	
+	/**
+	 * The end of the output of the program on stderr
+	 */
+	private ProcessOutputTail errorOutput;
+	
+	/**
+	 * Constructor
+	 * @param regionName name of the region
+	 * @param program name of the program that failed
+	 * @param exitValue exit value of the program
+	 * @param errorOutput the end of the output of the program on stderr
+	 */
+	public RegionOutputError(String regionName, String program, int exitValue, ProcessOutputTail errorOutput)
+	{
+		this.regionName = regionName;
+		this.program = program;
+		this.exitValue = exitValue;
+		this.errorOutput = errorOutput;
+	}
+	
+	/**
+	 * @return the end of the output of the program on stderr
+	 */
+	public ProcessOutputTail getErrorOutput()
+	{
+		return errorOutput;
+	}
+	
+	/**
+	 * @return exit value of the program
+	 */
+	public int getExitValue()
+	{
+		return exitValue;
+	}
+	
+	/**
+	 * @return name of the program that failed
+	 */
+	public String getProgram()
+	{
+		return program;
+	}
+	
+	/**
+	 * @return name of the region
+	 */
+	public String getRegionName()
+	{
+		return regionName;
+	}
+	
+	/**
+	 * @return one line for the user: region, program, exit value and the last line the program wrote to stderr
+	 */
+	@Override
+	public String toString()
+	{
+		String lastLine = errorOutput.getLastLine();
+		String s = "Region " + regionName + ": " + program + " failed (exit value " + exitValue + ")";
+		if (! lastLine.isEmpty())
+		{
+			s += ": " + lastLine;
+		}
+		return s;
+	}
+}
@@ -0,0 +1,601 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.ModifyEvent;
+import org.eclipse.swt.events.ModifyListener;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
+import org.eclipse.swt.widgets.TableItem;
+import org.eclipse.swt.widgets.Text;
+import org.eclipse.wb.swt.SWTResourceManager;
+
+/**
+ * Table listing the regions (AudioBites) with name, start, end, functional end and the type of XML element they come from.
+ * 
+ * The table is virtual, so only the visible rows are filled in, and it works on a snapshot of the regions kept in plain arrays.
+ * The rows are shown through an array of region indices: sorting (click a column header) sorts an index array as a task on the compute executor of a TaskRunner,
+ * and the name filter narrows the current index array when more text is typed instead of starting over.
+ * This keeps the table responsive with very large numbers of regions.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class RegionTable
+{
+	/**
+	 * Height in pixels of the filter field above the table
+	 */
+	private static final int filterHeight = 22;
+	
+	/**
+	 * Column index of the name column
+	 */
+	private static final int nameColumn = 0;
+	
+	/**
+	 * Column index of the start column
+	 */
+	private static final int startColumn = 1;
+	
+	/**
+	 * Column index of the end column
+	 */
+	private static final int endColumn = 2;
+	
+	/**
+	 * Column index of the functional end column
+	 */
+	private static final int functionalEndColumn = 3;
+	
+	/**
+	 * Column index of the element type column
+	 */
+	private static final int typeColumn = 4;
+	
+	/**
+	 * Snapshot of the regions shown, one array per column. Never changed after it has been created, so it can be read by the sorting task.
+	 * @author Jakob Hougaard Andersen
+	 *
+	 */
+	private static class Regions
+	{
+		/**
+		 * The regions
+		 */
+		final AudioBite[] bites;
+		
+		/**
+		 * Names of the regions
+		 */
+		final String[] names;
+		
+		/**
+		 * Names in lower case, for sorting and filtering
+		 */
+		final String[] lowerCaseNames;
+		
+		/**
+		 * Start times in seconds
+		 */
+		final double[] starts;
+		
+		/**
+		 * End times in seconds
+		 */
+		final double[] ends;
+		
+		/**
+		 * Functional end times in seconds (including trailing time)
+		 */
+		final double[] functionalEnds;
+		
+		/**
+		 * Type of the XML element each region comes from
+		 */
+		final ElementType[] types;
+		
+		/**
+		 * Constructor
+		 * @param bites
+		 */
+		Regions(List<AudioBite> bites)
+		{
+			int n = bites.size();
+			this.bites = bites.toArray(new AudioBite[n]);
+			names = new String[n];
+			lowerCaseNames = new String[n];
+			starts = new double[n];
+			ends = new double[n];
+			functionalEnds = new double[n];
+			types = new ElementType[n];
+			for (int i = 0; i < n; i++)
+			{
+				AudioBite b = bites.get(i);
+				names[i] = b.getName();
+				lowerCaseNames[i] = names[i].toLowerCase(Locale.ROOT);
+				starts[i] = b.getStartSec();
+				ends[i] = b.getEndSec();
+				functionalEnds[i] = b.getFunctionalEndSec();
+				types[i] = b.getElementType();
+			}
+		}
+		
+		/**
+		 * Compares two regions by a column
+		 * @param column
+		 * @param a region index
+		 * @param b region index
+		 * @return negative, zero or positive as for a Comparator
+		 */
+		int compare(int column, int a, int b)
+		{
+			switch (column)
+			{
+			case nameColumn:
+				return lowerCaseNames[a].compareTo(lowerCaseNames[b]);
+				
+			case startColumn:
+				return Double.compare(starts[a], starts[b]);
+				
+			case endColumn:
+				return Double.compare(ends[a], ends[b]);
+				
+			case functionalEndColumn:
+				return Double.compare(functionalEnds[a], functionalEnds[b]);
+				
+			default:
+				return types[a].compareTo(types[b]);
+			}
+		}
+	}
+	
+	/**
+	 * Task sorting the region indices of a Regions snapshot by a column. Stops when its token is cancelled (a newer sort has been started)
+	 * @author Jakob Hougaard Andersen
+	 *
+	 */
+	private static class RegionSorter implements CancellableTask<int[]>
+	{
+		/**
+		 * The regions to sort
+		 */
+		private Regions regions;
+		
+		/**
+		 * Column to sort by
+		 */
+		private int column;
+		
+		/**
+		 * Sort ascending?
+		 */
+		private boolean ascending;
+		
+		/**
+		 * The token of the running sort
+		 */
+		private CancellationToken token;
+		
+		/**
+		 * Constructor
+		 * @param regions
+		 * @param column
+		 * @param ascending
+		 */
+		RegionSorter(Regions regions, int column, boolean ascending)
+		{
+			this.regions = regions;
+			this.column = column;
+			this.ascending = ascending;
+		}
+		
+		/**
+		 * Sorts the region indices
+		 * @return the region indices in sorted order
+		 * @throws CancellationException if token is cancelled
+		 */
+		@Override
+		public int[] run(CancellationToken token) throws CancellationException
+		{
+			this.token = token;
+			int n = regions.names.length;
+			int[] order = new int[n];
+			for (int i = 0; i < n; i++)
+			{
+				order[i] = i;
+			}
+			sort(order, new int[n], 0, n);
+			if (!ascending)
+			{
+				for (int i = 0, j = n - 1; i < j; i++, j--)
+				{
+					int t = order[i];
+					order[i] = order[j];
+					order[j] = t;
+				}
+			}
+			return order;
+		}
+		
+		/**
+		 * Stable merge sort of order[from..to) by column
+		 * @param order
+		 * @param work work array of the same length
+		 * @param from
+		 * @param to
+		 * @throws CancellationException if token is cancelled
+		 */
+		private void sort(int[] order, int[] work, int from, int to) throws CancellationException
+		{
+			if (to - from < 16)
+			{
+				//Insertion sort for short ranges
+				for (int i = from + 1; i < to; i++)
+				{
+					int v = order[i];
+					int j = i - 1;
+					while (j >= from && regions.compare(column, order[j], v) > 0)
+					{
+						order[j + 1] = order[j];
+						j -= 1;
+					}
+					order[j + 1] = v;
+				}
+				return;
+			}
+			token.throwIfCancelled();
+			int mid = (from + to) >>> 1;
+			sort(order, work, from, mid);
+			sort(order, work, mid, to);
+			if (regions.compare(column, order[mid - 1], order[mid]) <= 0)
+			{
+				return; //Already in order
+			}
+			System.arraycopy(order, from, work, from, to - from);
+			int i = from;
+			int j = mid;
+			for (int k = from; k < to; k++)
+			{
+				if (j >= to || (i < mid && regions.compare(column, work[i], work[j]) <= 0))
+				{
+					order[k] = work[i++];
+				}
+				else
+				{
+					order[k] = work[j++];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The display of the table. Kept so the sorting task can reach it
+	 */
+	private Display display;
+	
+	/**
+	 * Runs the sorting tasks
+	 */
+	private TaskRunner taskRunner;
+	
+	/**
+	 * The filter field
+	 */
+	private Text filterText;
+	
+	/**
+	 * The table
+	 */
+	private Table table;
+	
+	/**
+	 * The regions shown (empty if none)
+	 */
+	private Regions regions = new Regions(new ArrayList<AudioBite>());
+	
+	/**
+	 * All region indices in the current sort order
+	 */
+	private int[] sortedOrder = new int[0];
+	
+	/**
+	 * Region index of each row of the table (the part of sortedOrder that matches the filter). Only the first rowCount are used
+	 */
+	private int[] rows = new int[0];
+	
+	/**
+	 * Number of rows shown
+	 */
+	private int rowCount = 0;
+	
+	/**
+	 * The (lower case) filter rows were last filtered with
+	 */
+	private String appliedFilter = "";
+	
+	/**
+	 * Column sorted by (-1 if not sorted, i.e. in the order received)
+	 */
+	private int sortColumn = -1;
+	
+	/**
+	 * Sort ascending?
+	 */
+	private boolean sortAscending = true;
+	
+	/**
+	 * Token of the currently running sort, if any. Only used on the user interface thread
+	 */
+	private CancellationToken sortToken = null;
+	
+	/**
+	 * Constructor
+	 * @param parent
+	 * @param taskRunner runs the sorting on its compute executor
+	 */
+	public RegionTable(Composite parent, TaskRunner taskRunner)
+	{
+		display = parent.getDisplay();
+		this.taskRunner = taskRunner;
+		filterText = new Text(parent, SWT.BORDER | SWT.SEARCH | SWT.ICON_CANCEL);
+		filterText.setMessage("Filter by name");
+		filterText.setToolTipText("Only show regions whose name contains this text");
+		filterText.addModifyListener(new ModifyListener() 
+		{
+			public void modifyText(ModifyEvent e) 
+			{
+				applyFilter();
+			}
+		});
+		
+		table = new Table(parent, SWT.VIRTUAL | SWT.BORDER | SWT.FULL_SELECTION | SWT.V_SCROLL | SWT.H_SCROLL);
+		table.setHeaderVisible(true);
+		table.setLinesVisible(true);
+		table.setFont(SWTResourceManager.getFont("Arial", 10, SWT.NORMAL));
+		String[] titles = {"Name", "Start", "End", "Func. end", "Type"};
+		int[] widths = {110, 60, 60, 60, 110};
+		for (int c = 0; c < titles.length; c++)
+		{
+			TableColumn column = new TableColumn(table, c == nameColumn || c == typeColumn ? SWT.LEFT : SWT.RIGHT);
+			column.setText(titles[c]);
+			column.setWidth(widths[c]);
+			final int columnIndex = c;
+			column.addListener(SWT.Selection, new Listener()
+			{
+				public void handleEvent(Event e)
+				{
+					sortBy(columnIndex);
+				}
+			});
+		}
+		
+		table.addListener(SWT.SetData, new Listener()
+		{
+			public void handleEvent(Event e)
+			{
+				TableItem item = (TableItem)e.item;
+				int row = e.index;
+				if (row >= 0 && row < rowCount)
+				{
+					int i = rows[row];
+					item.setText(new String[] {
+							regions.names[i],
+							formatSeconds(regions.starts[i]),
+							formatSeconds(regions.ends[i]),
+							formatSeconds(regions.functionalEnds[i]),
+							regions.types[i].toString()});
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Removes all regions
+	 */
+	public void clear()
+	{
+		setRegions(new ArrayList<AudioBite>());
+	}
+	
+	/**
+	 * @return the SWT control of the table
+	 */
+	public Table getControl()
+	{
+		return table;
+	}
+	
+	/**
+	 * @return the SWT control of the filter field
+	 */
+	public Text getFilterControl()
+	{
+		return filterText;
+	}
+	
+	/**
+	 * @return the region of the selected row, or null if no row is selected
+	 */
+	public AudioBite getSelectedRegion()
+	{
+		int row = table.getSelectionIndex();
+		if (row < 0 || row >= rowCount)
+		{
+			return null;
+		}
+		return regions.bites[rows[row]];
+	}
+	
+	/**
+	 * Sets the position and size of the filter field and the table below it
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 */
+	public void setBounds(int x, int y, int width, int height)
+	{
+		filterText.setBounds(x, y, width, filterHeight);
+		table.setBounds(x, y + filterHeight + 4, width, height - filterHeight - 4);
+	}
+	
+	/**
+	 * Sets the regions shown. Must be called on the user interface thread.
+	 * @param bites the AudioBites, with functional end set
+	 */
+	public void setRegions(List<AudioBite> bites)
+	{
+		regions = new Regions(bites);
+		int n = regions.names.length;
+		sortedOrder = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			sortedOrder[i] = i;
+		}
+		appliedFilter = null;
+		applyFilter();
+		if (sortColumn >= 0)
+		{
+			startSort();
+		}
+	}
+	
+	/**
+	 * Updates rows according to the filter field. 
+	 * If the filter has only been extended since last time, only the rows already shown are checked.
+	 */
+	private void applyFilter()
+	{
+		String filter = filterText.getText().toLowerCase(Locale.ROOT);
+		int[] source;
+		int sourceCount;
+		if (appliedFilter != null && filter.startsWith(appliedFilter))
+		{
+			//Narrowing: every match is already among the current rows
+			source = rows;
+			sourceCount = rowCount;
+		}
+		else
+		{
+			source = sortedOrder;
+			sourceCount = sortedOrder.length;
+		}
+		int[] filtered = (source == rows) ? rows : new int[sourceCount];
+		int count = 0;
+		for (int r = 0; r < sourceCount; r++)
+		{
+			int i = source[r];
+			if (filter.isEmpty() || regions.lowerCaseNames[i].contains(filter))
+			{
+				filtered[count++] = i;
+			}
+		}
+		rows = filtered;
+		rowCount = count;
+		appliedFilter = filter;
+		table.clearAll();
+		table.setItemCount(rowCount);
+	}
+	
+	/**
+	 * Formats a time in seconds for the table
+	 * @param seconds
+	 * @return
+	 */
+	private static String formatSeconds(double seconds)
+	{
+		return String.format(Locale.ROOT, "%.3f", seconds);
+	}
+	
+	/**
+	 * Sorts by a column. Sorting by the same column again reverses the order.
+	 * @param column
+	 */
+	private void sortBy(int column)
+	{
+		if (column == sortColumn)
+		{
+			sortAscending = !sortAscending;
+		}
+		else
+		{
+			sortColumn = column;
+			sortAscending = true;
+		}
+		table.setSortColumn(table.getColumn(column));
+		table.setSortDirection(sortAscending ? SWT.UP : SWT.DOWN);
+		startSort();
+	}
+	
+	/**
+	 * Starts sorting the current regions by sortColumn on the compute executor. A sort already running is cancelled.
+	 */
+	private void startSort()
+	{
+		if (sortToken != null)
+		{
+			sortToken.cancel();
+		}
+		final CancellationToken token = new CancellationToken();
+		sortToken = token;
+		final Regions sortedRegions = regions;
+		//A cancelled sort completes exceptionally, so its result is never passed on
+		taskRunner.submitCompute(new RegionSorter(sortedRegions, sortColumn, sortAscending), token).thenAccept(new Consumer<int[]>()
+		{
+			public void accept(int[] order)
+			{
+				sortDone(token, sortedRegions, order);
+			}
+		});
+	}
+	
+	/**
+	 * Called from the sorting task when it is done
+	 * @param token the token of the sort
+	 * @param sortedRegions the regions that were sorted
+	 * @param order the sorted region indices
+	 */
+	private void sortDone(CancellationToken token, Regions sortedRegions, int[] order)
+	{
+		display.asyncExec(new Runnable() 
+		{
+		    public void run() 
+		    {
+		    	//Ignore results of abandoned sorts and of regions that have since been replaced
+		    	if (table.isDisposed() || token != sortToken || sortedRegions != regions)
+		    	{
+		    		return;
+		    	}
+		    	sortToken = null;
+		    	sortedOrder = order;
+		    	appliedFilter = null;
+		    	applyFilter();
+		    }
+		});
+	}
+}
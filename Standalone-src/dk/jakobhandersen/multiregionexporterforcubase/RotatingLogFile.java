@@ -0,0 +1,156 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Log file that is rotated when it grows too large: the file is renamed to name.1 (name.1 to name.2 and so on)
+ * and a new file is started. Only a fixed number of old files are kept.
+ * Not thread safe. Only used by the log writer thread of Debug.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class RotatingLogFile
+{
+	/**
+	 * The current log file
+	 */
+	private File file;
+	
+	/**
+	 * Maximum size in bytes of each file
+	 */
+	private long maxSize;
+	
+	/**
+	 * Number of old files to keep
+	 */
+	private int maxOldFiles;
+	
+	/**
+	 * Writer for the current file. Null if it could not be opened
+	 */
+	private Writer writer = null;
+	
+	/**
+	 * Number of bytes in the current file (counting characters as bytes, which is close enough for rotation)
+	 */
+	private long size = 0;
+	
+	/**
+	 * Constructor. The file is opened (appending) on the first write
+	 * @param file
+	 * @param maxSize maximum size in bytes of each file
+	 * @param maxOldFiles number of old files to keep
+	 */
+	public RotatingLogFile(File file, long maxSize, int maxOldFiles)
+	{
+		this.file = file;
+		this.maxSize = maxSize;
+		this.maxOldFiles = maxOldFiles;
+	}
+	
+	/**
+	 * Closes the file
+	 */
+	public void close()
+	{
+		if (writer != null)
+		{
+			try
+			{
+				writer.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			writer = null;
+		}
+	}
+	
+	/**
+	 * Writes buffered lines to the file
+	 */
+	public void flush()
+	{
+		if (writer != null)
+		{
+			try
+			{
+				writer.flush();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				close();
+			}
+		}
+	}
+	
+	/**
+	 * Writes a line to the file, rotating it first if it has grown too large
+	 * @param line
+	 */
+	public void writeLine(CharSequence line)
+	{
+		try
+		{
+			if (writer == null)
+			{
+				file.getParentFile().mkdirs();
+				size = file.length();
+				writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+			}
+			if (size + line.length() > maxSize)
+			{
+				rotate();
+			}
+			writer.append(line).append(System.lineSeparator());
+			size += line.length() + 1;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			close();
+		}
+	}
+	
+	/**
+	 * Closes the current file, renames the old files and starts a new file
+	 * @throws IOException
+	 */
+	private void rotate() throws IOException
+	{
+		close();
+		new File(file.getPath() + "." + maxOldFiles).delete();
+		for (int i = maxOldFiles - 1; i >= 1; i--)
+		{
+			new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+		}
+		file.renameTo(new File(file.getPath() + ".1"));
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, false), StandardCharsets.UTF_8));
+		size = 0;
+	}
+}
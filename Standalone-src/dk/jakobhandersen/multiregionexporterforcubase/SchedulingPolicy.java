@@ -0,0 +1,95 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+/**
+ * Enumeration that defines the order in which the regions are handed to the output workers (see OutputScheduler)
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public enum SchedulingPolicy
+{
+	/**
+	 * The order of the regions in the track file
+	 */
+	LIST_ORDER("List order", "list"),
+	
+	/**
+	 * Longest processing time first: the regions estimated to take the longest are started first,
+	 * so a single long region doesn't start last and keep one worker busy after all the others are done
+	 */
+	LONGEST_FIRST("Longest first", "longest"),
+	
+	/**
+	 * Ascending start time in the audio file, so the input file is read from start to end
+	 */
+	OFFSET_ORDER("Offset order", "offset");
+	
+	/**
+	 * Name shown to the user
+	 */
+	private String displayName;
+	
+	/**
+	 * Value of the -order command line argument selecting this policy
+	 */
+	private String argument;
+	
+	/**
+	 * Constructor
+	 * @param displayName
+	 * @param argument
+	 */
+	private SchedulingPolicy(String displayName, String argument)
+	{
+		this.displayName = displayName;
+		this.argument = argument;
+	}
+	
+	/**
+	 * Finds the policy selected by a command line argument
+	 * @param argument
+	 * @return the policy. Null if no policy has the argument
+	 */
+	public static SchedulingPolicy fromArgument(String argument)
+	{
+		for (SchedulingPolicy policy : values())
+		{
+			if (policy.argument.equalsIgnoreCase(argument))
+			{
+				return policy;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return value of the -order command line argument selecting this policy
+	 */
+	public String getArgument()
+	{
+		return argument;
+	}
+	
+	/**
+	 * @return name shown to the user
+	 */
+	public String getDisplayName()
+	{
+		return displayName;
+	}
+}
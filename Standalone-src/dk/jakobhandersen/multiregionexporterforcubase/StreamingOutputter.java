@@ -0,0 +1,490 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xml.sax.SAXException;
+
+/**
+ * A task (run by a TaskRunner) that parses a Cubase track XML file and outputs the regions while parsing, for use when the output folder is known up front.
+ * 
+ * Each region is passed on as soon as its element has been read (see AudioBiteReceiver) and goes through a bounded queue
+ * to a number of OutputWorker tasks, which extract (and convert) the files with an AudioOutputter. So parsing and outputting overlap,
+ * and the parser waits when the output workers fall behind instead of keeping all regions in memory.
+ * 
+ * Regions given in seconds (linear time domain) can be output right away. Regions in MIDI ticks or samples need the tempo and sample rate
+ * of the project, which may be placed anywhere in the file. These are read by a TimingReader task in a separate pass that skips
+ * the contents of all tracks, and the first such region waits for it.
+ * 
+ * The TimingReader and OutputWorker tasks share the CancellationToken of this task, so cancelling it stops them all.
+ * 
+ * The output workers take the regions in the order of the scheduling policy of the AudioOutputter, but only among the regions read so far
+ * (up to Constants.streamingQueueCapacity). Names and indices are given in the order the regions appear in the file,
+ * so a region whose name is already used gets the next free "_000n" suffix,
+ * and the first region with a name keeps it. With a fixed name, the files are numbered in file order.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class StreamingOutputter implements CancellableTask<Integer>, AudioBiteReceiver
+{
+	/**
+	 * Task reading the tempo and project sample rate of the track XML file.
+	 * Its result is the handler that read the timing, or null if reading failed
+	 * @author Jakob Hougaard Andersen
+	 *
+	 */
+	private class TimingReader implements CancellableTask<CubaseTrackXMLSaxParseHandler>
+	{
+		@Override
+		public CubaseTrackXMLSaxParseHandler run(CancellationToken token)
+		{
+			Debug.log("Running TimingReader task");
+			try
+			{
+				CubaseTrackXMLSaxParseHandler handler = new CubaseTrackXMLSaxParseHandler();
+				handler.setTimingOnly(true);
+				ExporterEngine.parseTrackXML(xmlFile, handler);
+				return handler;
+			}
+			catch (Exception e)
+			{
+				Debug.log(LogLevel.ERROR, "Exception caught while trying to read tempo and sample rate from XML file:");
+				e.printStackTrace();
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * Task taking regions from the queue and outputting them, until it takes an end marker (an OutputJob without AudioBite).
+	 * Takes a permit from the ConcurrencyController of the AudioOutputter before each region
+	 * @author Jakob Hougaard Andersen
+	 *
+	 */
+	private class OutputWorker implements CancellableTask<Void>
+	{
+		@Override
+		public Void run(CancellationToken token)
+		{
+			Debug.log("Running StreamingOutputter output task");
+			while (true)
+			{
+				OutputJob job;
+				try
+				{
+					concurrency.acquire();
+				}
+				catch (InterruptedException e)
+				{
+					Debug.log("Task cancelled. Exiting.");
+					return null;
+				}
+				try
+				{
+					job = queue.take();
+				}
+				catch (InterruptedException e)
+				{
+					concurrency.release();
+					Debug.log("Task cancelled. Exiting.");
+					return null;
+				}
+				if (job.getBite() == null)
+				{
+					concurrency.release();
+					return null;
+				}
+				queueSpace.release();
+				try
+				{
+					if (outputter.outputJob(job))
+					{
+						successes.incrementAndGet();
+					}
+				}
+				catch (InterruptedException e)
+				{
+					Debug.log("Task cancelled. Exiting.");
+					return null;
+				}
+				catch (IOException e)
+				{
+					Debug.log(LogLevel.ERROR, "Exception caught while trying write audio file for AudioBite with name "+ job.getBite().getName() +":");
+					e.printStackTrace();
+				}
+				caller.audioOutputterFileDoneCallback();
+			}
+		}
+	}
+	
+	/**
+	 * The audio input file (AudioInputFile) that should be split.
+	 */
+	private InputAudioFile inputFile;
+	
+	/**
+	 * The Cubase track XML file
+	 */
+	private File xmlFile;
+	
+	/**
+	 * Used (without being started) for writing the files of the individual regions
+	 */
+	private AudioOutputter outputter;
+	
+	/**
+	 * The time in seconds that is added to the length of each region
+	 */
+	private double trailingTime;
+	
+	/**
+	 * The amount of seconds the regions are allowed to be outside audio file range
+	 */
+	private double biteOutsideAudioTolerance;
+	
+	/**
+	 * The ExporterEngine to report progress to
+	 */
+	private ExporterEngine caller;
+	
+	/**
+	 * Runs the TimingReader and OutputWorker tasks
+	 */
+	private TaskRunner taskRunner;
+	
+	/**
+	 * Decides how many output workers output at the same time. Belongs to the AudioOutputter
+	 */
+	private ConcurrencyController concurrency;
+	
+	/**
+	 * The token this task is cancelled through. Set when run() starts
+	 */
+	private CancellationToken token;
+	
+	/**
+	 * Regions on their way from the parser to the output workers. The output workers take the first region in output order (see OutputScheduler)
+	 * among the ones waiting, so the scheduling policy is followed within the regions read ahead of the output workers
+	 */
+	private BlockingQueue<OutputJob> queue;
+	
+	/**
+	 * Free places in the queue (the queue itself is unbounded). End markers don't take up a place
+	 */
+	private Semaphore queueSpace = new Semaphore(Constants.streamingQueueCapacity);
+	
+	/**
+	 * Number of successfully written files
+	 */
+	private AtomicInteger successes = new AtomicInteger(0);
+	
+	/**
+	 * Result of the TimingReader reading the tempo and sample rate while the regions are being parsed
+	 */
+	private CompletableFuture<CubaseTrackXMLSaxParseHandler> timing;
+	
+	/**
+	 * Has timing been waited for? Only used by the parsing thread
+	 */
+	private boolean timingRead = false;
+	
+	/**
+	 * Project sample rate. Only valid if sampleRateSet
+	 */
+	private double sampleRate;
+	
+	/**
+	 * Has the project sample rate been read?
+	 */
+	private boolean sampleRateSet = false;
+	
+	/**
+	 * The tempo setting of the project. Null if it could not be read
+	 */
+	private TempoSetting tempoSetting = null;
+	
+	/**
+	 * Names of the regions queued so far
+	 */
+	private Set<String> usedNames = new HashSet<String>();
+	
+	/**
+	 * Number of regions queued so far
+	 */
+	private int queuedBites = 0;
+	
+	/**
+	 * Number of regions that were renamed since their name was already used
+	 */
+	private int renamedBites = 0;
+	
+	/**
+	 * Number of regions outside the range of the audio file
+	 */
+	private int outsideBites = 0;
+	
+	/**
+	 * Number of regions that could not be set up (e.g. since the sample rate was not found)
+	 */
+	private int unSetupBites = 0;
+	
+	/**
+	 * Constructor
+	 * @param inputFile the audio input file (AudioInputFile) that should be split.
+	 * @param xmlFile the Cubase track XML file to read the regions from
+	 * @param outputter an AudioOutputter set up with the output folder and settings. Used for writing the files, but not started
+	 * @param trailingTime the time in seconds that is added to the length of each region
+	 * @param biteOutsideAudioTolerance the amount of seconds the regions are allowed to be outside audio file range
+	 * @param caller the ExporterEngine to report progress to
+	 * @param taskRunner runs the TimingReader and OutputWorker tasks
+	 */
+	public StreamingOutputter(InputAudioFile inputFile, File xmlFile, AudioOutputter outputter, double trailingTime, double biteOutsideAudioTolerance, ExporterEngine caller, TaskRunner taskRunner)
+	{
+		this.inputFile = inputFile;
+		this.xmlFile = xmlFile;
+		this.outputter = outputter;
+		this.trailingTime = trailingTime;
+		this.biteOutsideAudioTolerance = biteOutsideAudioTolerance;
+		this.caller = caller;
+		this.taskRunner = taskRunner;
+		this.concurrency = outputter.getConcurrencyController();
+		this.queue = new PriorityBlockingQueue<OutputJob>(Constants.streamingQueueCapacity, outputter.getScheduler());
+	}
+	
+	/**
+	 * Called by the parse handler for each region read. Calculates its times and name and puts it in the queue,
+	 * which waits if the queue is full.
+	 */
+	@Override
+	public void audioBiteParsed(AudioBite bite) throws SAXException
+	{
+		if (token.isCancelled())
+		{
+			throw new SAXException("Cancelled");
+		}
+		if (! bite.isInSeconds())
+		{
+			waitForTiming();
+			if (tempoSetting == null || (! sampleRateSet))
+			{
+				unSetupBites += 1;
+				return;
+			}
+		}
+		bite.calculateStartAndEndSec(sampleRate, tempoSetting);
+		if (! bite.isSetup())
+		{
+			unSetupBites += 1;
+			return;
+		}
+		if (bite.getEndSec() > (inputFile.getLength() + biteOutsideAudioTolerance))
+		{
+			outsideBites += 1;
+			return;
+		}
+		bite.setFunctionalEndSec(Math.min(bite.getEndSec() + trailingTime, inputFile.getLength()));
+		
+		if (usedNames.contains(bite.getName()))
+		{
+			int nameAddition = 2;
+			String initialName = bite.getName();
+			String currentName = initialName + "_" + String.format("%04d", nameAddition);
+			while (usedNames.contains(currentName))
+			{
+				nameAddition += 1;
+				currentName = initialName + "_" + String.format("%04d", nameAddition);
+			}
+			bite.setName(currentName);
+			renamedBites += 1;
+		}
+		usedNames.add(bite.getName());
+		
+		if (outputter.getOutputFileName(bite, queuedBites).compareTo(inputFile.getFilename()) == 0)
+		{
+			caller.sendMessageToUser(UserMessageType.ERROR, "Skipping region " + bite.getName() + " since its file would overwrite the input audio file");
+			return;
+		}
+		
+		caller.getOutputProgress().addFiles(1);
+		try
+		{
+			queueSpace.acquire();
+			queue.put(outputter.getScheduler().createJob(bite, queuedBites));
+		}
+		catch (InterruptedException e)
+		{
+			throw new SAXException("Cancelled");
+		}
+		queuedBites += 1;
+		caller.audioOutputterProcessTextCallback("Reading regions and extracting files (" + queuedBites + " found)");
+	}
+	
+	/**
+	 * Parses the track XML file on the calling thread while the output workers output the regions found.
+	 * If cancelled, it returns when the output workers have destroyed their processes and deleted the files they were writing
+	 * (or after Constants.cancelTimeout ms)
+	 * @return the number of successfully created files
+	 * @throws CancellationException if token is cancelled
+	 * @throws Exception thrown by an output worker or the TimingReader. The other output workers finish their regions first
+	 */
+	@Override
+	public Integer run(CancellationToken token) throws Exception
+	{
+		Debug.log("Running StreamingOutputter task");
+		this.token = token;
+		timing = taskRunner.submitCompute(new TimingReader(), token);
+		CompletableFuture<?>[] outputWorkers = new CompletableFuture<?>[concurrency.getCeiling()];
+		for (int i = 0; i < outputWorkers.length; i++)
+		{
+			outputWorkers[i] = taskRunner.submitProcessUntilEnded(new OutputWorker(), token, Constants.cancelTimeout);
+		}
+		
+		boolean parsed = false;
+		try
+		{
+			CubaseTrackXMLSaxParseHandler handler = new CubaseTrackXMLSaxParseHandler();
+			handler.setAudioBiteReceiver(this);
+			ExporterEngine.parseTrackXML(xmlFile, handler);
+			parsed = true;
+		}
+		catch (Exception e)
+		{
+			if (token.isCancelled())
+			{
+				TaskRunner.awaitEnded(outputWorkers);
+				Debug.log("Task cancelled. Exiting.");
+				throw new CancellationException();
+			}
+			caller.sendMessageToUser(UserMessageType.ERROR, "An error occurred while trying to parse XML file: " + xmlFile.getPath());
+			Debug.log(LogLevel.ERROR, "Exception caught while trying to parse XML file:");
+			e.printStackTrace();
+		}
+		
+		//Let the output workers finish the queued regions
+		try
+		{
+			for (int i = 0; i < outputWorkers.length; i++)
+			{
+				queue.put(new OutputJob(null, 0, 0));
+			}
+			CompletableFuture.allOf(outputWorkers).get();
+			timing.get();
+		}
+		catch (InterruptedException | ExecutionException | CancellationException e)
+		{
+			TaskRunner.awaitEnded(outputWorkers);
+			Throwable failure = TaskRunner.getFailure(e);
+			if (failure == null)
+			{
+				Debug.log("Task cancelled. Exiting.");
+				throw new CancellationException();
+			}
+			Debug.log(LogLevel.ERROR, "Output worker or timing reader failed: {}", failure);
+			outputter.reportRegionErrors();
+			if (failure instanceof Error)
+			{
+				throw (Error)failure;
+			}
+			throw (Exception)failure;
+		}
+		
+		if (parsed)
+		{
+			caller.sendMessageToUser(UserMessageType.STATE, "Track file read: " + xmlFile.getPath());
+		}
+		if (outsideBites > 0)
+		{
+			caller.sendMessageToUser(UserMessageType.WARNING, outsideBites + " region(s) in track file are outside the range of audio file.");
+		}
+		if (unSetupBites > 0)
+		{
+			caller.sendMessageToUser(UserMessageType.WARNING, unSetupBites + " region(s) in track file could not be set up.");
+		}
+		if (renamedBites > 0)
+		{
+			caller.sendMessageToUser(UserMessageType.WARNING, renamedBites + " files were renamed since their Cubase names are not unique");
+		}
+		if (successes.get() == queuedBites)
+		{
+			caller.audioOutputterProcessTextCallback("Finished successfully");
+		}
+		else
+		{
+			caller.audioOutputterProcessTextCallback("Finished with error(s)");
+		}
+		if (outputter.getFfmpegError())
+		{
+			caller.sendMessageToUser(UserMessageType.ERROR, "Error(s) occurred while converting with FFmpeg. Check arguments and filename extension");
+		}
+		outputter.reportRegionErrors();
+		return successes.get();
+	}
+	
+	/**
+	 * Waits for timing (the first time it is called) and takes over the tempo and sample rate it read
+	 * @throws SAXException if cancelled while waiting, or if the TimingReader failed (with its exception as cause)
+	 */
+	private void waitForTiming() throws SAXException
+	{
+		if (timingRead)
+		{
+			return;
+		}
+		CubaseTrackXMLSaxParseHandler result;
+		try
+		{
+			result = timing.get();
+		}
+		catch (InterruptedException | ExecutionException | CancellationException e)
+		{
+			Throwable failure = TaskRunner.getFailure(e);
+			if (failure instanceof Exception)
+			{
+				throw new SAXException("Tempo and sample rate could not be read", (Exception)failure);
+			}
+			else if (failure instanceof Error)
+			{
+				throw (Error)failure;
+			}
+			throw new SAXException("Cancelled");
+		}
+		timingRead = true;
+		if (result == null)
+		{
+			Debug.log(LogLevel.ERROR, "Tempo and sample rate could not be read");
+			return;
+		}
+		tempoSetting = result.getTempoSetting();
+		sampleRateSet = result.getSampleRateSet();
+		sampleRate = result.getSampleRate();
+		if (! sampleRateSet)
+		{
+			Debug.log(LogLevel.ERROR, "No sample rate set");
+		}
+	}
+}
@@ -0,0 +1,424 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs the work of the ExporterEngine on shared executors and hands back the results as CompletableFutures.
+ * 
+ * There are three executors:
+ * - The state owner: a single thread that owns the state of the ExporterEngine. All changes of the state are done on this thread,
+ *   so the engine needs no locking and operations finishing at the same time are simply applied one after the other.
+ * - The process executor: a growing pool of threads for tasks that mostly wait for external processes (SoX, SoXi, FFMPEG).
+ *   Such tasks use almost no CPU, so there is no point in limiting their number to the number of processors.
+ * - The compute executor: a pool with one thread per processor for tasks that keep the CPU busy, like parsing XML.
+ * 
+ * Each task is given a CancellationToken. When the token is cancelled, the future of the task completes with a CancellationException
+ * right away, and the thread running the task is interrupted so blocking waits end.
+ * Tasks submitted with submitProcessUntilEnded() are interrupted the same way, but their future completes when the task has actually ended
+ * (or a timeout has passed), so whoever waits for it knows that the task has cleaned up after itself.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class TaskRunner
+{
+	/**
+	 * One run of a task on an executor.
+	 * Keeps track of the running thread, so it is only interrupted while it is actually running the task.
+	 * @author Jakob Hougaard Andersen
+	 *
+	 * @param <T> type of the result
+	 */
+	private static class TaskExecution<T> implements Runnable
+	{
+		/**
+		 * The task to run
+		 */
+		private CancellableTask<T> task;
+		
+		/**
+		 * The token the task is cancelled through
+		 */
+		private CancellationToken token;
+		
+		/**
+		 * Receives the result
+		 */
+		private CompletableFuture<T> future = new CompletableFuture<T>();
+		
+		/**
+		 * Maximum number of milliseconds the future waits for the task to end after token is cancelled.
+		 * Negative if the future completes right away
+		 */
+		private long endTimeout;
+		
+		/**
+		 * The thread running the task. Null before and after running. Guarded by this
+		 */
+		private Thread runningThread = null;
+		
+		/**
+		 * Listener added to token while the task is waiting or running
+		 */
+		private Runnable cancelListener = new Runnable()
+		{
+			public void run()
+			{
+				cancelled();
+			}
+		};
+		
+		/**
+		 * Constructor
+		 * @param task
+		 * @param token
+		 * @param endTimeout maximum number of milliseconds the future waits for the task to end after token is cancelled. Negative to not wait
+		 */
+		private TaskExecution(CancellableTask<T> task, CancellationToken token, long endTimeout)
+		{
+			this.task = task;
+			this.token = token;
+			this.endTimeout = endTimeout;
+		}
+		
+		public void run()
+		{
+			synchronized (this)
+			{
+				if (future.isDone())//Cancelled before it was started
+				{
+					return;
+				}
+				runningThread = Thread.currentThread();
+			}
+			try
+			{
+				token.throwIfCancelled();
+				future.complete(task.run(token));
+			}
+			catch (Throwable t)
+			{
+				future.completeExceptionally(t);
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					runningThread = null;
+					Thread.interrupted();//Don't let an interrupt from cancelled() reach the next task run by this thread
+				}
+				token.removeListener(cancelListener);
+			}
+		}
+		
+		/**
+		 * Called when token is cancelled. Completes the future (right away, or after endTimeout if the task hasn't ended by then)
+		 * and interrupts the running thread
+		 */
+		private void cancelled()
+		{
+			if (endTimeout < 0)
+			{
+				future.completeExceptionally(new CancellationException());
+			}
+			else
+			{
+				CompletableFuture.delayedExecutor(endTimeout, TimeUnit.MILLISECONDS).execute(new Runnable()
+				{
+					public void run()
+					{
+						if (future.completeExceptionally(new CancellationException()))
+						{
+							Debug.log(LogLevel.WARNING, "Cancelled task {} still running after {} ms", task.getClass().getSimpleName(), Long.valueOf(endTimeout));
+						}
+					}
+				});
+			}
+			synchronized (this)
+			{
+				if (runningThread != null)
+				{
+					runningThread.interrupt();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The single thread owning the state of the ExporterEngine
+	 */
+	private ExecutorService stateOwnerExecutor;
+	
+	/**
+	 * The thread of stateOwnerExecutor. Set when it is started
+	 */
+	private volatile Thread stateOwnerThread = null;
+	
+	/**
+	 * Runs tasks on the state owner thread, or right away if already on it. Given to CompletableFuture.whenCompleteAsync() etc.
+	 */
+	private Executor stateOwner = new Executor()
+	{
+		@Override
+		public void execute(Runnable r)
+		{
+			runOnStateOwner(r);
+		}
+	};
+	
+	/**
+	 * Threads for tasks waiting for external processes
+	 */
+	private ExecutorService processExecutor;
+	
+	/**
+	 * Threads for CPU heavy tasks
+	 */
+	private ExecutorService computeExecutor;
+	
+	/**
+	 * Constructor
+	 */
+	public TaskRunner()
+	{
+		stateOwnerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Engine state owner");
+				t.setDaemon(true);
+				stateOwnerThread = t;
+				return t;
+			}
+		});
+		processExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("Process task"));
+		computeExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new NamedThreadFactory("Compute task"));
+	}
+	
+	/**
+	 * Waits for the tasks on the process and compute executors to end after shutdown().
+	 * The state owner thread is not waited for, since it may be waiting for the user interface
+	 * @param timeout maximum number of milliseconds to wait in total
+	 * @return true if all the tasks ended in time
+	 */
+	public boolean awaitTermination(long timeout)
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		try
+		{
+			return processExecutor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+					&& computeExecutor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * @return Executor running tasks on the state owner thread (or right away if already on it)
+	 */
+	public Executor getStateOwner()
+	{
+		return stateOwner;
+	}
+	
+	/**
+	 * @return true if the calling thread is the state owner thread
+	 */
+	public boolean isStateOwner()
+	{
+		return Thread.currentThread() == stateOwnerThread;
+	}
+	
+	/**
+	 * Runs a task on the state owner thread, or right away if already on it.
+	 * Exceptions thrown by the task are logged, since nobody waits for it
+	 * @param r
+	 */
+	public void runOnStateOwner(final Runnable r)
+	{
+		if (isStateOwner())
+		{
+			runLogged(r);
+			return;
+		}
+		try
+		{
+			stateOwnerExecutor.execute(new Runnable()
+			{
+				public void run()
+				{
+					runLogged(r);
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			Debug.log(LogLevel.WARNING, "Engine task ignored since the engine has been shut down");
+		}
+	}
+	
+	/**
+	 * Stops the executors. Running tasks are interrupted and waiting tasks are dropped
+	 */
+	public void shutdown()
+	{
+		stateOwnerExecutor.shutdownNow();
+		processExecutor.shutdownNow();
+		computeExecutor.shutdownNow();
+	}
+	
+	/**
+	 * Starts an operation on the state owner thread (or right away if already on it).
+	 * Lets an operation be requested from any thread while its result is still handed back as a single future
+	 * @param start starts the operation and returns the future receiving its result
+	 * @return future receiving the result of the operation. Completes exceptionally if start throws
+	 */
+	public <T> CompletableFuture<T> startOnStateOwner(Supplier<CompletableFuture<T>> start)
+	{
+		return CompletableFuture.supplyAsync(start, stateOwner).thenCompose(Function.<CompletableFuture<T>>identity());
+	}
+	
+	/**
+	 * Runs a CPU heavy task on the compute executor
+	 * @param task
+	 * @param token the token the task is cancelled through
+	 * @return future receiving the result
+	 */
+	public <T> CompletableFuture<T> submitCompute(CancellableTask<T> task, CancellationToken token)
+	{
+		return submit(task, token, computeExecutor, -1);
+	}
+	
+	/**
+	 * Runs a task that mostly waits for external processes on the process executor
+	 * @param task
+	 * @param token the token the task is cancelled through
+	 * @return future receiving the result
+	 */
+	public <T> CompletableFuture<T> submitProcess(CancellableTask<T> task, CancellationToken token)
+	{
+		return submit(task, token, processExecutor, -1);
+	}
+	
+	/**
+	 * Runs a task that mostly waits for external processes on the process executor.
+	 * When token is cancelled, the thread is interrupted as usual, but the future completes when the task has ended, or after endTimeout ms.
+	 * Used for tasks that destroy their processes and delete the files they were writing when cancelled
+	 * @param task
+	 * @param token the token the task is cancelled through
+	 * @param endTimeout maximum number of milliseconds to wait for the task to end after token is cancelled
+	 * @return future receiving the result
+	 */
+	public <T> CompletableFuture<T> submitProcessUntilEnded(CancellableTask<T> task, CancellationToken token, long endTimeout)
+	{
+		return submit(task, token, processExecutor, Math.max(0, endTimeout));
+	}
+	
+	/**
+	 * Finds out why waiting for the future of a task (or a future combining several, like CompletableFuture.allOf()) failed
+	 * @param e exception thrown by get() on the future
+	 * @return the exception thrown by the task, or null if the task was cancelled or the waiting thread was interrupted
+	 */
+	public static Throwable getFailure(Exception e)
+	{
+		Throwable cause = e;
+		while ((cause instanceof ExecutionException || cause instanceof CompletionException) && cause.getCause() != null)
+		{
+			cause = cause.getCause();
+		}
+		if (cause instanceof InterruptedException || cause instanceof CancellationException)
+		{
+			return null;
+		}
+		return cause;
+	}
+	
+	/**
+	 * Waits for futures to complete without being interrupted, ignoring their results.
+	 * Used by cancelled tasks to wait for the tasks they started with submitProcessUntilEnded(), which complete within their endTimeout.
+	 * The interrupt status of the calling thread is kept
+	 * @param futures
+	 */
+	public static void awaitEnded(CompletableFuture<?>[] futures)
+	{
+		CompletableFuture.allOf(futures).handle(new BiFunction<Void, Throwable, Void>()
+		{
+			public Void apply(Void result, Throwable error)
+			{
+				return null;
+			}
+		}).join();
+	}
+	
+	/**
+	 * Runs a Runnable, logging any exception thrown by it
+	 * @param r
+	 */
+	private void runLogged(Runnable r)
+	{
+		try
+		{
+			r.run();
+		}
+		catch (Exception e)
+		{
+			Debug.log(LogLevel.ERROR, "Exception caught while running engine task:");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Runs a task on an executor
+	 * @param task
+	 * @param token
+	 * @param executor
+	 * @param endTimeout maximum number of milliseconds the future waits for the task to end after token is cancelled. Negative to not wait
+	 * @return future receiving the result
+	 */
+	private <T> CompletableFuture<T> submit(CancellableTask<T> task, CancellationToken token, ExecutorService executor, long endTimeout)
+	{
+		TaskExecution<T> execution = new TaskExecution<T>(task, token, endTimeout);
+		token.addListener(execution.cancelListener);
+		try
+		{
+			executor.execute(execution);
+		}
+		catch (RejectedExecutionException e)
+		{
+			token.removeListener(execution.cancelListener);
+			execution.future.completeExceptionally(e);
+		}
+		return execution.future;
+	}
+}
@@ -67,7 +67,7 @@ public class TempoSetting
 	{
 		rehearsalTempo = tempo;
 		rehearsalTempoSet = true;
-		Debug.log("Rehearsal tempo set to "+ rehearsalTempo);
+		Debug.log(LogLevel.DEBUG, "Rehearsal tempo set to {}", rehearsalTempo);
 	}
 	
 	/**
@@ -77,7 +77,7 @@ public class TempoSetting
 	public void setRehearsalMode(int mode)
 	{
 		rehearsalMode = mode;
-		Debug.log("Rehearsal mode set to "+ rehearsalMode);
+		Debug.log(LogLevel.DEBUG, "Rehearsal mode set to {}", rehearsalMode);
 	}
 	
 	/**
@@ -87,10 +87,10 @@ public class TempoSetting
 	{
 		if (currentlySettingUpTempoEvent != null)
 		{
-			Debug.log("Error: startSettingUpTempoEvent was called while currentlySettingUpTempoEvent != null");
+			Debug.log(LogLevel.ERROR, "startSettingUpTempoEvent was called while currentlySettingUpTempoEvent != null");
 		}
 		currentlySettingUpTempoEvent = new TempoEvent();
-		Debug.log("Starting set up of new tempo event");
+		Debug.log(LogLevel.DEBUG, "Starting set up of new tempo event");
 	}
 	
 	/**
@@ -101,7 +101,7 @@ public class TempoSetting
 	{
 	    if (currentlySettingUpTempoEvent == null)
         {
-            Debug.log("Error: currentEventSetBPM was called while currentlySettingUpTempoEvent == null");
+            Debug.log(LogLevel.ERROR, "currentEventSetBPM was called while currentlySettingUpTempoEvent == null");
         } 
 	    else
 	    {
@@ -117,7 +117,7 @@ public class TempoSetting
     {
         if (currentlySettingUpTempoEvent == null)
         {
-            Debug.log("Error: currentEventSetMidiTickPosition was called while currentlySettingUpTempoEvent == null");
+            Debug.log(LogLevel.ERROR, "currentEventSetMidiTickPosition was called while currentlySettingUpTempoEvent == null");
         } 
         else
         {
@@ -133,7 +133,7 @@ public class TempoSetting
     {
         if (currentlySettingUpTempoEvent == null)
         {
-            Debug.log("Error: currentEventSetRamp was called while currentlySettingUpTempoEvent == null");
+            Debug.log(LogLevel.ERROR, "currentEventSetRamp was called while currentlySettingUpTempoEvent == null");
         } 
         else
         {
@@ -148,18 +148,18 @@ public class TempoSetting
 	{
 		if (currentlySettingUpTempoEvent == null)
 		{
-			Debug.log("Error: endSettingUpTempoEvent was called while currentlySettingUpTempoEvent == null");
+			Debug.log(LogLevel.ERROR, "endSettingUpTempoEvent was called while currentlySettingUpTempoEvent == null");
 		}
 		else if (!currentlySettingUpTempoEvent.isSetUpFromXML())
 		{
-			Debug.log("Error: endSettingUpTempoEvent was called but currentlySettingUpTempoEvent is not completely set up");
+			Debug.log(LogLevel.ERROR, "endSettingUpTempoEvent was called but currentlySettingUpTempoEvent is not completely set up");
 		}
 		else
 		{
 			tempoEvents.add(currentlySettingUpTempoEvent);
 		}
 		currentlySettingUpTempoEvent = null;
-		Debug.log("Ended set up of new tempo event");
+		Debug.log(LogLevel.DEBUG, "Ended set up of new tempo event");
 	}
 	
 	/**
@@ -219,7 +219,7 @@ public class TempoSetting
 	           {
 	               if (t.getMidiTickPosition() != 0)//Should always be 0 on first event. Just check to be sure...
 	               {
-	                   Debug.log("Error: midi tick position of first tempo event was not zero!");
+	                   Debug.log(LogLevel.ERROR, "Midi tick position of first tempo event was not zero!");
 	               }
 	               t.setSecPosition(0);
 	           }
@@ -0,0 +1,346 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Cache of parsed Cubase track XML files, so opening the same file again doesn't require parsing it again.
+ * 
+ * For each parsed file a compact binary snapshot is written to the cache folder. It holds the sample rate, a table of the distinct names
+ * and a fixed size record for each region (start and end in seconds, name index and element type), in the order given by the parser.
+ * A snapshot is a few tens of bytes per region, and loading it only creates the AudioBites, which takes milliseconds even for huge files.
+ * 
+ * The snapshot file is named after a hash of the XML file's path. A snapshot is only used if the path, size and modification time
+ * of the XML file match the ones in its header, together with a checksum of the beginning, middle and end of the file
+ * (checksumming all of a huge file would take longer than parsing it with CubaseTrackXMLByteScanner).
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class TrackSnapshotCache
+{
+	/**
+	 * First bytes of a snapshot file ("MRSN")
+	 */
+	private static final int magic = 0x4d52534e;
+	
+	/**
+	 * Format version. Increase when the format (or the parsing result) changes, so older snapshots are ignored
+	 */
+	private static final int version = 1;
+	
+	/**
+	 * Size in bytes of each region record: start, end, name index and element type
+	 */
+	private static final int biteRecordSize = 8 + 8 + 4 + 1;
+	
+	/**
+	 * Size in bytes of each of the parts of the XML file included in the checksum
+	 */
+	private static final int checksumBlockSize = 64 * 1024;
+	
+	/**
+	 * Maximum number of snapshots kept in the folder. The least recently used ones are deleted
+	 */
+	private static final int maxSnapshots = 32;
+	
+	/**
+	 * The folder holding the snapshots
+	 */
+	private File folder;
+	
+	/**
+	 * Constructor
+	 * @param folder the folder to hold the snapshots. Created when the first snapshot is saved
+	 */
+	public TrackSnapshotCache(File folder)
+	{
+		this.folder = folder;
+	}
+	
+	/**
+	 * Loads the parsing result of an XML file from its snapshot, if there is a valid one
+	 * @param xmlFile the Cubase track XML file
+	 * @return the AudioBites, as returned by CubaseTrackXMLSaxParseHandler.getAudioBites(), or null if there is no valid snapshot
+	 */
+	public List<AudioBite> load(File xmlFile)
+	{
+		File snapshot = getSnapshotFile(xmlFile);
+		if (snapshot == null || (! snapshot.isFile()))
+		{
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ))
+		{
+			//Read in one go rather than memory mapped, since a mapped file can't be replaced on Windows until the mapping is garbage collected
+			ByteBuffer b = ByteBuffer.allocate((int)channel.size());
+			while (b.hasRemaining())
+			{
+				if (channel.read(b) < 0)
+				{
+					break;
+				}
+			}
+			b.flip();
+			if (b.getInt() != magic || b.getInt() != version)
+			{
+				return null;
+			}
+			long size = b.getLong();
+			long modified = b.getLong();
+			long checksum = b.getLong();
+			String path = getString(b);
+			if (size != xmlFile.length() || modified != xmlFile.lastModified() || (! path.equals(xmlFile.getAbsolutePath())) 
+					|| checksum != getChecksum(xmlFile))
+			{
+				Debug.log("Snapshot of track file is outdated");
+				return null;
+			}
+			b.getDouble();//Sample rate. Not needed, since the times are already in seconds
+			String[] names = new String[b.getInt()];
+			for (int i = 0; i < names.length; i++)
+			{
+				names[i] = getString(b);
+			}
+			int count = b.getInt();
+			if (b.remaining() != count * biteRecordSize)
+			{
+				Debug.log("Snapshot of track file is damaged");
+				return null;
+			}
+			ElementType[] elementTypes = ElementType.values();
+			List<AudioBite> bites = new ArrayList<AudioBite>(count);
+			for (int i = 0; i < count; i++)
+			{
+				AudioBite bite = new AudioBite();
+				double startSec = b.getDouble();
+				double endSec = b.getDouble();
+				bite.setStartAndEndSec(startSec, endSec);
+				bite.setName(names[b.getInt()]);
+				bite.setElementType(elementTypes[b.get()]);
+				bites.add(bite);
+			}
+			snapshot.setLastModified(System.currentTimeMillis());//Mark as recently used
+			return bites;
+		}
+		catch (Exception e)
+		{
+			Debug.log(LogLevel.ERROR, "Exception caught while trying to read snapshot of track file:");
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Saves the parsing result of an XML file as a snapshot. Must be called before the AudioBites are changed (e.g. renamed).
+	 * @param xmlFile the Cubase track XML file
+	 * @param bites the AudioBites, as returned by CubaseTrackXMLSaxParseHandler.getAudioBites()
+	 * @param sampleRate the project sample rate read from the file
+	 */
+	public void save(File xmlFile, List<AudioBite> bites, double sampleRate)
+	{
+		File snapshot = getSnapshotFile(xmlFile);
+		if (snapshot == null || bites == null)
+		{
+			return;
+		}
+		File temp = null;
+		try
+		{
+			long size = xmlFile.length();
+			long modified = xmlFile.lastModified();
+			long checksum = getChecksum(xmlFile);
+			
+			Map<String,Integer> nameIndices = new HashMap<String,Integer>();
+			List<byte[]> names = new ArrayList<byte[]>();
+			int namesSize = 0;
+			for (AudioBite bite : bites)
+			{
+				if (! nameIndices.containsKey(bite.getName()))
+				{
+					nameIndices.put(bite.getName(), names.size());
+					byte[] name = bite.getName().getBytes(StandardCharsets.UTF_8);
+					names.add(name);
+					namesSize += 4 + name.length;
+				}
+			}
+			byte[] path = xmlFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+			
+			ByteBuffer b = ByteBuffer.allocate(4 + 4 + 8 + 8 + 8 + 4 + path.length + 8 + 4 + namesSize + 4 + (bites.size() * biteRecordSize));
+			b.putInt(magic);
+			b.putInt(version);
+			b.putLong(size);
+			b.putLong(modified);
+			b.putLong(checksum);
+			b.putInt(path.length);
+			b.put(path);
+			b.putDouble(sampleRate);
+			b.putInt(names.size());
+			for (byte[] name : names)
+			{
+				b.putInt(name.length);
+				b.put(name);
+			}
+			b.putInt(bites.size());
+			for (AudioBite bite : bites)
+			{
+				b.putDouble(bite.getStartSec());
+				b.putDouble(bite.getEndSec());
+				b.putInt(nameIndices.get(bite.getName()));
+				b.put((byte)bite.getElementType().ordinal());
+			}
+			b.flip();
+			
+			folder.mkdirs();
+			temp = File.createTempFile("snapshot", ".tmp", folder);
+			try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE))
+			{
+				while (b.hasRemaining())
+				{
+					channel.write(b);
+				}
+			}
+			//Replace in one step, so a snapshot is never seen half written
+			Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			temp = null;
+			Debug.log("Snapshot of track file saved: " + snapshot.getPath());
+			deleteOldSnapshots();
+		}
+		catch (Exception e)
+		{
+			Debug.log(LogLevel.ERROR, "Exception caught while trying to save snapshot of track file:");
+			e.printStackTrace();
+		}
+		finally
+		{
+			if (temp != null)
+			{
+				temp.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Deletes the least recently used snapshots, if there are more than maxSnapshots
+	 */
+	private void deleteOldSnapshots()
+	{
+		File[] files = folder.listFiles();
+		if (files == null || files.length <= maxSnapshots)
+		{
+			return;
+		}
+		long[] modified = new long[files.length];
+		for (int i = 0; i < files.length; i++)
+		{
+			modified[i] = files[i].lastModified();
+		}
+		Arrays.sort(modified);
+		long limit = modified[files.length - maxSnapshots];
+		for (File f : files)
+		{
+			if (f.lastModified() < limit && f.getName().endsWith(".snapshot"))
+			{
+				f.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Calculates a checksum of the beginning, middle and end of a file
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	private static long getChecksum(File f) throws IOException
+	{
+		CRC32C crc = new CRC32C();
+		try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			long[] positions = {0, Math.max(0, (size / 2) - (checksumBlockSize / 2)), Math.max(0, size - checksumBlockSize)};
+			ByteBuffer block = ByteBuffer.allocate(checksumBlockSize);
+			for (long position : positions)
+			{
+				block.clear();
+				while (block.hasRemaining())
+				{
+					int read = channel.read(block, position + block.position());
+					if (read < 0)
+					{
+						break;
+					}
+				}
+				block.flip();
+				crc.update(block);
+			}
+		}
+		return crc.getValue();
+	}
+	
+	/**
+	 * Gets the snapshot file of an XML file, named after a hash of its path
+	 * @param xmlFile
+	 * @return the snapshot file (which may not exist), or null if it could not be determined
+	 */
+	private File getSnapshotFile(File xmlFile)
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(xmlFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (int i = 0; i < 16; i++)
+			{
+				name.append(String.format("%02x", hash[i]));
+			}
+			return new File(folder, name.toString() + ".snapshot");
+		}
+		catch (Exception e)
+		{
+			Debug.log(LogLevel.ERROR, "Exception caught while trying to name snapshot of track file:");
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads a string written as its length followed by its UTF-8 bytes
+	 * @param b
+	 * @return
+	 */
+	private static String getString(ByteBuffer b)
+	{
+		byte[] bytes = new byte[b.getInt()];
+		b.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -57,18 +57,6 @@ public interface UserInterface
 	 */
 	public void sendMessageToUser(UserMessageType type, String message);
 	
-	/**
-	 * Tells user interface how the outputting of files is progressing
-	 * @param percentage (0 to 100) used in progress bar
-	 */
-	public void setOuputPercentage(int percentage);
-	
-	/**
-	 * Tells user interface what the AudioOutputter is doing right now
-	 * @param text description shown to user
-	 */
-	public void setOutputProcessText(String text);
-	
 	/**
 	 * Set the markers showing the different regions.
 	 * This is done by reading info in the received AudioBites
@@ -78,7 +66,17 @@ public interface UserInterface
 	
 	/**
 	 * Receive data from created waveform
-	 * @param waveformData
+	 * @param f the audio file the peaks are of. Peaks of any other file than the one last passed to audioFileRead() must be dropped
+	 * @param peaks the finished waveform peaks
+	 */
+	public void waveformCreated(InputAudioFile f, WaveformPeaks peaks);
+	
+	/**
+	 * Receive partly generated waveform data while the waveform is being generated.
+	 * Might be called from a non-UI thread and should not block it.
+	 * Updates may arrive after another audio file has been loaded, so they are only for f.
+	 * @param f the audio file the peaks are of. Peaks of any other file than the one last passed to audioFileRead() must be dropped
+	 * @param peaks the waveform peaks. Only the columns up to peaks.getCompletedColumns() are ready.
 	 */
-	public void waveformCreated(String waveformPngFile);
+	public void waveformProgress(InputAudioFile f, WaveformPeaks peaks);
 }
@@ -57,13 +57,13 @@ public class Utils
 			boolean success =  dir.delete();
 			if (! success)
 			{
-				Debug.log("Error deleting file while deleting directory : " + dir.getName()); 
+				Debug.log(LogLevel.ERROR, "Error deleting file while deleting directory : " + dir.getName()); 
 			}
 			return success;
 		}
 		catch (Exception e)
 		{
-			Debug.log("Exception caught while trying to delete directory:");
+			Debug.log(LogLevel.ERROR, "Exception caught while trying to delete directory:");
 			e.printStackTrace();
 			return false;
 		}
@@ -93,7 +93,7 @@ public class Utils
 		}
 		catch (Exception e)
 		{
-			Debug.log("Exception caught while trying to delete file "+fileName+": ");
+			Debug.log(LogLevel.ERROR, "Exception caught while trying to delete file "+fileName+": ");
 			e.printStackTrace();
 			return false;
 		}
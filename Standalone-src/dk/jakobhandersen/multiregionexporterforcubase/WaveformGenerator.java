@@ -16,23 +16,35 @@
 
 package dk.jakobhandersen.multiregionexporterforcubase;
 import java.util.ArrayList;
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
- * Class based on Thread that handles the reading of waveform data.
- * Uses FFMPEG to generate png file
+ * A task (run by a TaskRunner) that handles the reading of waveform data.
+ * Uses FFMPEG to decode the audio file to raw PCM, which is read through a pipe and reduced to min/max peaks (WaveformPeaks).
+ * The peaks are published to the ExporterEngine in chunks while reading, so the waveform can be drawn progressively.
  * @author Jakob Hougaard Andersen
  */
-public class WaveformGenerator extends Thread
+public class WaveformGenerator implements CancellableTask<WaveformPeaks>
 {
+	/**
+	 * Minimum number of milliseconds between each progress callback to the ExporterEngine.
+	 * Limits the amount of repainting in the user interface so that it doesn't slow down the reading.
+	 */
+	private static final long progressCallbackInterval = 100;
+	
+	/**
+	 * Number of audio frames read from FFMPEG in each chunk
+	 */
+	private static final int readBufferFrames = 16384;
+	
 	/**
 	 * The input file (InputAudioFile) pointing to the file to be read
 	 */
 	private InputAudioFile inputFile;
 	
 	/**
-	 * The MultiRegionExporterForCubase to be called when done
+	 * The ExporterEngine to publish progress to
 	 */
 	private ExporterEngine caller;
 	
@@ -42,119 +54,276 @@ public class WaveformGenerator extends Thread
 	private String ffmpegPath;
 	
 	/**
-	 * Path to the temporary files folder
-	 */
-	private String temporaryFolderPath;
-	
-	/**
-	 * Width in pixels of waveform display
+	 * Width in pixels of waveform display. The peaks will have at least this many columns
 	 */
 	private int waveformWidth;
 	
 	/**
-	 * Height in pixels of waveform display
+	 * The peaks being generated
 	 */
-	private int waveformHeight;
+	private WaveformPeaks peaks = null;
 
 	
 	/**
 	 * Constructor
-	 * @param inputFile the input file (InputAudioFile) pointing to the file to be downsampled
-	 * @param waveformFile output destination
-	 * @param soxPath path to SoX
+	 * @param inputFile the input file (InputAudioFile) pointing to the file to be read
+	 * @param ffmpegPath path to FFMPEG
 	 * @param waveformWidth width in pixels of waveform display
-	 * @param caller the MultiRegionExporterForCubase to be called when done
+	 * @param caller the ExporterEngine to publish progress to
 	 */
-	public WaveformGenerator(InputAudioFile inputFile, String ffmpegPath, String temporaryFolderPath, int waveformWidth, int waveformHeight, ExporterEngine caller)
+	public WaveformGenerator(InputAudioFile inputFile, String ffmpegPath, int waveformWidth, ExporterEngine caller)
 	{
 		this.inputFile = inputFile;
 		this.caller = caller;
 		this.ffmpegPath = ffmpegPath;
-		this.temporaryFolderPath = temporaryFolderPath;
 		this.waveformWidth = waveformWidth;
-		this.waveformHeight = waveformHeight;
 	}
 	
-	public void run() 
+	/**
+	 * Generates the peaks. The FFMPEG process is destroyed if token is cancelled
+	 * @return the generated peaks. Null if they could not be generated
+	 */
+	@Override
+	public WaveformPeaks run(CancellationToken token) 
 	{
-		Debug.log("Running WaveformGenerator thread");
+		Debug.log("Running WaveformGenerator task");
 		boolean success = false;
-		String waveformPngFile = null;
 		try
 		{
-			if (inputFile.getLength() > 0)
+			int channels = inputFile.getChannels();
+			long totalFrames = (long)Math.ceil(inputFile.getLength() * inputFile.getSampleRate());
+			if (totalFrames > 0 && channels > 0 && waveformWidth > 0)
 			{
+				int bytesPerSample = getBytesPerSample();
 				
-				ArrayList<String> cmdAndArgs = getFFMPEGCommand(inputFile.getFilename());
+				ProcessBuilder pb = new ProcessBuilder(getFFMPEGCommand(inputFile.getFilename(), bytesPerSample));
 				
-				waveformPngFile = cmdAndArgs.get(8);
+				ProcessSupervisor supervisor = caller.getProcessSupervisor();
 				
-				ProcessBuilder pb = new ProcessBuilder(cmdAndArgs);
+				final Process p = supervisor.start(pb);
 				
-				Process p = pb.start();
+				//The decoded audio is read from stdout here. The log output on stderr is drained on another thread so it can't fill up the pipe and stall FFMPEG,
+				//and its end is logged if decoding fails
+				ProcessOutputTail errorOutput = supervisor.drain(p.getErrorStream(), Constants.processErrorTailBytes);
 				
-				caller.registerStartedProcess(p);
+				//Reading from the pipe can't be interrupted, so the process (and anything it started) is destroyed to end it
+				Runnable destroyProcess = new Runnable()
+				{
+					public void run()
+					{
+						ProcessSupervisor.destroyTree(p.toHandle());
+					}
+				};
+				token.addListener(destroyProcess);
 				
-				int result = p.waitFor();
+				try
+				{
+					readPeaks(p.getInputStream(), channels, bytesPerSample, totalFrames, token);
+				}
+				finally
+				{
+					token.removeListener(destroyProcess);
+				}
 				
-				caller.unregisterStartedProcess(p);
+				int result = supervisor.waitFor(p);
 				
 				if (result == 0)
 				{
 					success = true;
 				}
+				else if (! token.isCancelled())
+				{
+					errorOutput.awaitEnd(Constants.processOutputEndTimeout);
+					Debug.log(LogLevel.ERROR, "FFMPEG failed to decode audio for waveform (exit value " + result + "). Output on stderr:\n" + errorOutput.getText());
+				}
 			}
 		}
 		catch (Exception e)
 		{
-			Debug.log("Exception caught while trying to create waveform:");
+			if (token.isCancelled())
+			{
+				Debug.log("Task cancelled. Exiting.");
+				return null;
+			}
+			Debug.log(LogLevel.ERROR, "Exception caught while trying to create waveform:");
 			e.printStackTrace();
 		}
 		
-		caller.waveformGeneratorCallback(this,success, inputFile,waveformPngFile);
+		return success ? peaks : null;
 	}
 	
+	/**
+	 * Get the number of bytes per sample in the raw PCM that FFMPEG should decode to.
+	 * Follows the bit depth of the input file, so no precision is lost and no extra conversion is done.
+	 * @return 2, 3 or 4
+	 */
+	private int getBytesPerSample()
+	{
+		int bitDepth = inputFile.getBitDepth();
+		if (bitDepth > 24)
+		{
+			return 4;
+		}
+		else if (bitDepth > 16)
+		{
+			return 3;
+		}
+		return 2;
+	}
 	
 	/**
-	 * Get the command to be sent to FFMPEG for generation of waveform png
+	 * Get the command to be sent to FFMPEG for decoding the audio file to raw PCM on stdout
 	 * @param inputFileName path to audio file for waveform
+	 * @param bytesPerSample 2, 3 or 4 (16, 24 or 32 bit signed little endian)
 	 * @return the command
 	 */
-	private ArrayList<String> getFFMPEGCommand(String inputFileName)
+	private ArrayList<String> getFFMPEGCommand(String inputFileName, int bytesPerSample)
 	{
+		String format = "s" + (bytesPerSample * 8) + "le";
+		
 		ArrayList<String> cmdAndArgs = new ArrayList<String>();
 		
 		cmdAndArgs.add(ffmpegPath);
 		
+		cmdAndArgs.add("-nostdin");
+		
 		cmdAndArgs.add("-i");
 		
 		cmdAndArgs.add(inputFileName);
 		
-		cmdAndArgs.add("-y");
+		cmdAndArgs.add("-vn");
+		
+		cmdAndArgs.add("-f");
 		
-		cmdAndArgs.add("-filter_complex");
+		cmdAndArgs.add(format);
 		
-		//Note that below the scaling is set to square-root in an attempt to make waveform more clear when shown on a low resolution.
-		//This, however, also makes the visual representation dynamics less 'true'.
-		cmdAndArgs.add("showwavespic=split_channels=1:s="+waveformWidth+"x"+waveformHeight+":colors=0x000000:scale=sqrt");
+		cmdAndArgs.add("-acodec");
 		
-		cmdAndArgs.add("-frames:v");
+		cmdAndArgs.add("pcm_" + format);
 		
-		cmdAndArgs.add("1");
+		cmdAndArgs.add("-");
 		
-		try 
+		return cmdAndArgs;
+	}
+	
+	/**
+	 * Reads the raw interleaved PCM from FFMPEG and fills in new peaks column by column.
+	 * The frames of each read chunk are handed to PeakKernels in runs that lie within a single column.
+	 * Publishes the completed columns to the ExporterEngine at most every progressCallbackInterval milliseconds.
+	 * The read buffer is taken from the MemoryGovernor of the ExporterEngine. It may be larger than asked for (it is rounded up to a size class),
+	 * and all of it is used.
+	 * Package-private so the checks in Standalone-test can feed it PCM without FFMPEG.
+	 * @param in stdout of the FFMPEG process
+	 * @param channels number of channels
+	 * @param bytesPerSample 2, 3 or 4
+	 * @param totalFrames expected number of frames (calculated from length and sample rate of the input file)
+	 * @param token
+	 * @return the peaks
+	 * @throws IOException
+	 * @throws InterruptedException if token is cancelled while reading
+	 */
+	WaveformPeaks readPeaks(InputStream in, int channels, int bytesPerSample, long totalFrames, CancellationToken token) throws IOException, InterruptedException
+	{
+		peaks = new WaveformPeaks(channels, WaveformPeaks.getColumnsFor(totalFrames, channels, waveformWidth));
+		int columns = peaks.getColumns(0);
+		int frameSize = channels * bytesPerSample;
+		MemoryGovernor memoryGovernor = caller.getMemoryGovernor();
+		byte[] buffer = memoryGovernor.acquire(frameSize * readBufferFrames);
+		try
+		{
+			int[] scratch = new int[buffer.length / frameSize];
+			int bufferedBytes = 0;
+			
+			float scale = 1.0f / (float)(1L << (bytesPerSample * 8 - 1));
+			int[] columnMin = new int[channels];
+			int[] columnMax = new int[channels];
+			double[] columnSumOfSquares = new double[channels];
+			long columnStartFrame = 0;
+			int column = 0;
+			long frame = 0;
+			long nextColumnStartFrame = totalFrames / columns;
+			long lastCallbackTime = System.currentTimeMillis();
+			
+			int read;
+			while ((read = in.read(buffer, bufferedBytes, buffer.length - bufferedBytes)) != -1)
+			{
+				if (token.isCancelled())
+				{
+					throw new InterruptedException();
+				}
+				caller.getThrottle().acquire(read);
+				bufferedBytes += read;
+				int wholeFrames = bufferedBytes / frameSize;
+				int f = 0;
+				while (f < wholeFrames)
+				{
+					if (frame >= nextColumnStartFrame && column < columns - 1)
+					{
+						storeColumn(column, columnMin, columnMax, columnSumOfSquares, frame - columnStartFrame, scale);
+						column += 1;
+						columnStartFrame = frame;
+						nextColumnStartFrame = ((column + 1) * totalFrames) / columns;
+					}
+					int run = wholeFrames - f;
+					if (column < columns - 1)
+					{
+						run = (int)Math.min(run, nextColumnStartFrame - frame);
+					}
+					PeakKernels.accumulate(buffer, f * frameSize, run, channels, bytesPerSample, columnMin, columnMax, columnSumOfSquares, scratch);
+					f += run;
+					frame += run;
+				}
+			
+				//Keep any incomplete frame for next read
+				int usedBytes = wholeFrames * frameSize;
+				System.arraycopy(buffer, usedBytes, buffer, 0, bufferedBytes - usedBytes);
+				bufferedBytes -= usedBytes;
+			
+				long now = System.currentTimeMillis();
+				if (now - lastCallbackTime >= progressCallbackInterval)
+				{
+					peaks.setCompletedColumns(column);
+					caller.waveformGeneratorProgressCallback(token, inputFile, peaks);
+					lastCallbackTime = now;
+				}
+			}
+			
+			if (frame > columnStartFrame)
+			{
+				storeColumn(column, columnMin, columnMax, columnSumOfSquares, frame - columnStartFrame, scale);
+			}
+			peaks.setCompletedColumns(columns);
+			return peaks;
+		}
+		finally
 		{
-			File f = File.createTempFile("MREFC_temp_waveform_file",".png", new File(temporaryFolderPath));
-			cmdAndArgs.add(f.getAbsolutePath());
+			memoryGovernor.release(buffer);
 		}
-		catch (IOException e) 
+	}
+	
+	/**
+	 * Stores the min, max and RMS of the current column in peaks and resets the accumulators for the next column
+	 * @param column
+	 * @param columnMin per channel minimum. Reset to 0 afterwards
+	 * @param columnMax per channel maximum. Reset to 0 afterwards
+	 * @param columnSumOfSquares per channel sum of squares. Reset to 0 afterwards
+	 * @param columnFrames number of frames accumulated in the column
+	 * @param scale factor from the integer sample range to -1 to 1
+	 */
+	private void storeColumn(int column, int[] columnMin, int[] columnMax, double[] columnSumOfSquares, long columnFrames, float scale)
+	{
+		for (int c = 0; c < columnMin.length; c++)
 		{
-			Debug.log("Exception caucht while trying to create temporary file for waveform generation:");
-			e.printStackTrace();
+			float rms = 0;
+			if (columnFrames > 0)
+			{
+				rms = (float)Math.sqrt(columnSumOfSquares[c] / (double)columnFrames) * scale;
+			}
+			peaks.setColumn(c, column, columnMin[c] * scale, columnMax[c] * scale, rms);
+			columnMin[c] = 0;
+			columnMax[c] = 0;
+			columnSumOfSquares[c] = 0;
 		}
-		
-		
-		return cmdAndArgs;
 	}
 	
 }
@@ -0,0 +1,257 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+/**
+ * Holds the waveform peak data (min, max and RMS for each column and channel) of an InputAudioFile.
+ * The columns divide the audio file into equally long time slices. 
+ * 
+ * The data is kept as a pyramid of levels: level 0 has the finest resolution and each following level has half as many columns,
+ * each covering two columns of the level below. This way a waveform view can pick the level that matches its zoom
+ * and only has to look at about one column per pixel no matter how long the file is.
+ * 
+ * The data is filled in from left to right by the WaveformGenerator while the user interface reads it,
+ * so the columns up to getCompletedColumns() can be drawn before the whole file has been read.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class WaveformPeaks
+{
+	/**
+	 * Maximum number of level 0 values (columns times channels). Keeps memory use at a few tens of MB regardless of file length.
+	 */
+	private static final int maxBaseValues = 1 << 21;
+	
+	/**
+	 * Minimum number of audio frames in a level 0 column. There is no point in a finer resolution than this for a waveform preview.
+	 */
+	private static final int minFramesPerColumn = 32;
+	
+	/**
+	 * Number of audio channels
+	 */
+	private int channels;
+
+	/**
+	 * Number of columns on level 0
+	 */
+	private int columns;
+
+	/**
+	 * Minimum sample value (-1 to 1) of each column. Indexed as [level][channel * getColumns(level) + column]
+	 */
+	private float[][] min;
+
+	/**
+	 * Maximum sample value (-1 to 1) of each column. Indexed as [level][channel * getColumns(level) + column]
+	 */
+	private float[][] max;
+
+	/**
+	 * Mean of the squared sample values (0 to 1) of each column. Indexed as [level][channel * getColumns(level) + column]
+	 */
+	private float[][] power;
+
+	/**
+	 * Number of level 0 columns (counted from the left) that are done and safe to read.
+	 * Volatile since it is written by the WaveformGenerator thread and read by the user interface thread.
+	 * Column data is always written before this value is increased.
+	 */
+	private volatile int completedColumns = 0;
+
+	/**
+	 * Constructor
+	 * @param channels number of audio channels
+	 * @param columns number of columns on level 0
+	 */
+	public WaveformPeaks(int channels, int columns)
+	{
+		this.channels = channels;
+		this.columns = columns;
+		int levels = 1;
+		while ((columns >> levels) > 0)
+		{
+			levels += 1;
+		}
+		min = new float[levels][];
+		max = new float[levels][];
+		power = new float[levels][];
+		for (int level = 0; level < levels; level++)
+		{
+			int size = channels * getColumns(level);
+			min[level] = new float[size];
+			max[level] = new float[size];
+			power[level] = new float[size];
+		}
+	}
+	
+	/**
+	 * Calculates a suitable number of level 0 columns for an audio file
+	 * @param totalFrames number of frames in the audio file
+	 * @param channels number of channels in the audio file
+	 * @param minColumns the result will not be smaller than this (typically the width of the waveform view)
+	 * @return number of columns
+	 */
+	public static int getColumnsFor(long totalFrames, int channels, int minColumns)
+	{
+		long columns = totalFrames / minFramesPerColumn;
+		columns = Math.min(columns, maxBaseValues / Math.max(channels, 1));
+		return (int)Math.max(columns, minColumns);
+	}
+
+	/**
+	 * @return
+	 */
+	public int getChannels()
+	{
+		return channels;
+	}
+
+	/**
+	 * Finds the column on a level covering a position in the file.
+	 * The level 0 column is found first, since the last column of a higher level may cover fewer level 0 columns than the others
+	 * @param level
+	 * @param position position in the file, from 0 (start) to 1 (end)
+	 * @return the column. May be outside the columns of the level if position is outside 0 to 1
+	 */
+	public int getColumnAt(int level, double position)
+	{
+		return (int)Math.floor(position * columns) >> level;
+	}
+	
+	/**
+	 * @param level
+	 * @return number of columns on the given level
+	 */
+	public int getColumns(int level)
+	{
+		return (columns + (1 << level) - 1) >> level;
+	}
+
+	/**
+	 * @param level
+	 * @return number of columns (counted from the left) on the given level that are ready to be drawn
+	 */
+	public int getCompletedColumns(int level)
+	{
+		int completed = completedColumns;
+		if (completed >= columns)
+		{
+			return getColumns(level);
+		}
+		return completed >> level;
+	}
+	
+	/**
+	 * @return number of levels
+	 */
+	public int getLevels()
+	{
+		return min.length;
+	}
+
+	/**
+	 * @param level
+	 * @param channel
+	 * @param column
+	 * @return maximum sample value (-1 to 1) of the column
+	 */
+	public float getMax(int level, int channel, int column)
+	{
+		return max[level][channel * getColumns(level) + column];
+	}
+
+	/**
+	 * @param level
+	 * @param channel
+	 * @param column
+	 * @return minimum sample value (-1 to 1) of the column
+	 */
+	public float getMin(int level, int channel, int column)
+	{
+		return min[level][channel * getColumns(level) + column];
+	}
+
+	/**
+	 * @param level
+	 * @param channel
+	 * @param column
+	 * @return RMS level (0 to 1) of the column
+	 */
+	public float getRms(int level, int channel, int column)
+	{
+		return (float)Math.sqrt(power[level][channel * getColumns(level) + column]);
+	}
+
+	/**
+	 * @return true if all columns are done
+	 */
+	public boolean isComplete()
+	{
+		return completedColumns >= columns;
+	}
+
+	/**
+	 * Marks the level 0 columns up to (but not including) the given column as done.
+	 * Must only be called by the thread filling in the data.
+	 * @param completed number of level 0 columns (counted from the left) that are done
+	 */
+	public void setCompletedColumns(int completed)
+	{
+		if (completed > columns)
+		{
+			completed = columns;
+		}
+		if (completed > completedColumns)
+		{
+			completedColumns = completed;
+		}
+	}
+
+	/**
+	 * Sets the min, max and RMS values of a level 0 column and merges them into the columns covering it on the other levels.
+	 * The power of a column on a higher level is the mean of the level 0 columns it covers, which for the last column may be fewer than 2^level.
+	 * Must only be called by the thread filling in the data, and only once per column.
+	 * @param channel
+	 * @param column level 0 column
+	 * @param minValue (-1 to 1)
+	 * @param maxValue (-1 to 1)
+	 * @param rmsValue (0 to 1)
+	 */
+	public void setColumn(int channel, int column, float minValue, float maxValue, float rmsValue)
+	{
+		float p = rmsValue * rmsValue;
+		for (int level = 0; level < min.length; level++)
+		{
+			int i = channel * getColumns(level) + (column >> level);
+			if (level == 0)
+			{
+				min[0][i] = minValue;
+				max[0][i] = maxValue;
+				power[0][i] = p;
+			}
+			else
+			{
+				min[level][i] = Math.min(min[level][i], minValue);
+				max[level][i] = Math.max(max[level][i], maxValue);
+				int firstCovered = (column >> level) << level;
+				int covered = Math.min(1 << level, columns - firstCovered);
+				power[level][i] += p / (float)covered;
+			}
+		}
+	}
+}
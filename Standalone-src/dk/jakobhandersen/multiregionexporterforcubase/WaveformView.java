@@ -0,0 +1,621 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+import java.util.List;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.Color;
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.Rectangle;
+import org.eclipse.swt.widgets.Canvas;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.ScrollBar;
+import org.eclipse.wb.swt.SWTResourceManager;
+
+/**
+ * SWT canvas showing the waveform (WaveformPeaks) of the loaded audio file with the regions (AudioBites) marked on top.
+ * The view can be zoomed with the mouse wheel (around the mouse position) and scrolled with the scroll bar, 
+ * shift + mouse wheel or horizontal scrolling. Double-click shows the whole file again.
+ * 
+ * Only the visible part is drawn: the waveform is read from the WaveformPeaks level that has about one column per pixel,
+ * and the range markers are merged into covered pixel runs by the RangeMarkerRasterizer. 
+ * So drawing takes time according to the width of the view - not the length of the file or the number of regions.
+ * 
+ * The drawing is cached in two off-screen images: the waveform layer and the composite layer (waveform with range markers on top).
+ * They are only redrawn when the peaks, the regions, the visible range or the size change, so a normal repaint is a single image copy.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class WaveformView
+{
+	/**
+	 * Resolution of the scroll bar (the whole file)
+	 */
+	private static final int scrollBarResolution = 1000000;
+	
+	/**
+	 * How much one step of the mouse wheel zooms
+	 */
+	private static final double zoomStepFactor = 1.25;
+	
+	/**
+	 * How many pixels a level 0 column of the peaks may be stretched to at the most, when zooming in.
+	 */
+	private static final int maxPixelsPerColumn = 4;
+	
+	/**
+	 * The canvas that is drawn on
+	 */
+	private Canvas canvas;
+	
+	/**
+	 * The waveform data, if any
+	 */
+	private WaveformPeaks peaks;
+	
+	/**
+	 * Length in seconds of the loaded audio file
+	 */
+	private double audioLength = 0;
+	
+	/**
+	 * Merges the regions into covered pixel runs for drawing the range markers
+	 */
+	private RangeMarkerRasterizer rangeMarkerRasterizer = new RangeMarkerRasterizer();
+	
+	/**
+	 * First pixel of each range marker run. Reused between redraws
+	 */
+	private int[] markerRunStarts = new int[0];
+	
+	/**
+	 * Pixel after the last pixel of each range marker run. Reused between redraws
+	 */
+	private int[] markerRunEnds = new int[0];
+	
+	/**
+	 * Text shown while the waveform is being generated (empty if none)
+	 */
+	private String generatingText = "";
+	
+	/**
+	 * Start of the visible range as a fraction (0 to 1) of the file length
+	 */
+	private double viewStart = 0;
+	
+	/**
+	 * Length of the visible range as a fraction (0 to 1) of the file length
+	 */
+	private double viewSpan = 1;
+	
+	/**
+	 * Color of the waveform
+	 */
+	private Color waveformColor;
+	
+	/**
+	 * Color of the RMS level drawn inside the waveform
+	 */
+	private Color waveformRmsColor;
+	
+	/**
+	 * Color of the range markers
+	 */
+	private Color rangeMarkerColor;
+	
+	/**
+	 * Alpha of the range markers
+	 */
+	private int rangeMarkerAlpha = 110;
+	
+	/**
+	 * Off-screen image with the background and the waveform of the visible range
+	 */
+	private Image waveformLayer;
+	
+	/**
+	 * Off-screen image with waveformLayer and the range markers on top. This is what is copied to the screen.
+	 */
+	private Image compositeLayer;
+	
+	/**
+	 * Is waveformLayer up to date?
+	 */
+	private boolean waveformLayerValid = false;
+	
+	/**
+	 * Is compositeLayer up to date?
+	 */
+	private boolean compositeLayerValid = false;
+	
+	/**
+	 * The x position where the completed part of the waveform ends in waveformLayer
+	 */
+	private int waveformLayerDrawnWidth = 0;
+	
+	/**
+	 * Constructor
+	 * @param parent
+	 */
+	public WaveformView(Composite parent)
+	{
+		Display display = parent.getDisplay();
+		waveformColor = new Color(display,0,0,0);
+		waveformRmsColor = new Color(display,70,70,70);
+		rangeMarkerColor = new Color(display,0,255,0);
+		
+		//Everything is drawn from the off-screen layers, so the canvas doesn't need to clear its background first
+		canvas = new Canvas(parent, SWT.H_SCROLL | SWT.NO_BACKGROUND);
+		canvas.setBackground(SWTResourceManager.getColor(SWT.COLOR_WIDGET_NORMAL_SHADOW));
+		canvas.addListener(SWT.Paint, new Listener()
+		{
+			public void handleEvent(Event e)
+			{
+				paint(e.gc);
+			}
+		});
+		canvas.addListener(SWT.MouseVerticalWheel, new Listener()
+		{
+			public void handleEvent(Event e)
+			{
+				if ((e.stateMask & SWT.SHIFT) != 0)
+				{
+					scrollBy(-e.count * viewSpan * 0.1);
+				}
+				else
+				{
+					zoom(Math.pow(zoomStepFactor, -e.count), e.x);
+				}
+				e.doit = false;
+			}
+		});
+		canvas.addListener(SWT.MouseHorizontalWheel, new Listener()
+		{
+			public void handleEvent(Event e)
+			{
+				scrollBy(-e.count * viewSpan * 0.1);
+				e.doit = false;
+			}
+		});
+		canvas.addListener(SWT.MouseDoubleClick, new Listener()
+		{
+			public void handleEvent(Event e)
+			{
+				showAll();
+			}
+		});
+		canvas.addListener(SWT.Resize, new Listener()
+		{
+			public void handleEvent(Event e)
+			{
+				setView(viewStart, viewSpan);
+			}
+		});
+		canvas.addListener(SWT.Dispose, new Listener()
+		{
+			public void handleEvent(Event e)
+			{
+				disposeLayers();
+				waveformColor.dispose();
+				waveformRmsColor.dispose();
+				rangeMarkerColor.dispose();
+			}
+		});
+		canvas.getHorizontalBar().addListener(SWT.Selection, new Listener()
+		{
+			public void handleEvent(Event e)
+			{
+				setView((double)canvas.getHorizontalBar().getSelection() / (double)scrollBarResolution, viewSpan);
+			}
+		});
+		updateScrollBar();
+	}
+	
+	/**
+	 * Removes waveform and regions and shows the whole (empty) range
+	 */
+	public void clear()
+	{
+		peaks = null;
+		audioLength = 0;
+		generatingText = "";
+		clearRegions();
+		showAll();
+	}
+	
+	/**
+	 * Removes the range markers
+	 */
+	public void clearRegions()
+	{
+		rangeMarkerRasterizer.clear();
+		invalidateCompositeLayer();
+	}
+	
+	/**
+	 * @return the SWT control of this view
+	 */
+	public Canvas getControl()
+	{
+		return canvas;
+	}
+	
+	/**
+	 * @return width in pixels of the drawing area
+	 */
+	public int getWidth()
+	{
+		return canvas.getClientArea().width;
+	}
+	
+	/**
+	 * @return true if the underlying canvas has been disposed
+	 */
+	public boolean isDisposed()
+	{
+		return canvas.isDisposed();
+	}
+	
+	/**
+	 * Sets the length of the audio file the waveform and regions are shown relative to
+	 * @param seconds
+	 */
+	public void setAudioLength(double seconds)
+	{
+		audioLength = seconds;
+		invalidateCompositeLayer();
+	}
+	
+	/**
+	 * Sets the text shown while the waveform is being generated
+	 * @param text empty string for none
+	 */
+	public void setGeneratingText(String text)
+	{
+		generatingText = text;
+		canvas.redraw();
+	}
+	
+	/**
+	 * Sets (or updates) the waveform data
+	 * @param peaks
+	 */
+	public void setPeaks(WaveformPeaks peaks)
+	{
+		this.peaks = peaks;
+		invalidateWaveformLayer();
+	}
+	
+	/**
+	 * Sets the regions shown as range markers. Overlapping regions are merged here, so it is not repeated on every redraw.
+	 * @param bites the AudioBites, with functional end set
+	 * @param audioLength length in seconds of the audio file
+	 */
+	public void setRegions(List<AudioBite> bites, double audioLength)
+	{
+		this.audioLength = audioLength;
+		rangeMarkerRasterizer.setRegions(bites);
+		invalidateCompositeLayer();
+	}
+	
+	/**
+	 * Shows the whole file
+	 */
+	public void showAll()
+	{
+		setView(0, 1);
+	}
+	
+	/**
+	 * Disposes the off-screen layers (if any)
+	 */
+	private void disposeLayers()
+	{
+		if (waveformLayer != null)
+		{
+			waveformLayer.dispose();
+			waveformLayer = null;
+		}
+		if (compositeLayer != null)
+		{
+			compositeLayer.dispose();
+			compositeLayer = null;
+		}
+		waveformLayerValid = false;
+		compositeLayerValid = false;
+	}
+	
+	/**
+	 * Draws the completed part of the waveform for the visible range with the RMS level on top.
+	 * Each channel gets its own horizontal band. 
+	 * The scaling is square-root in an attempt to make waveform more clear when shown on a low resolution.
+	 * This, however, also makes the visual representation dynamics less 'true'.
+	 * @param gc
+	 * @param area client area of the canvas
+	 * @return the x position where the completed part of the waveform ends
+	 */
+	private int drawWaveform(GC gc, Rectangle area)
+	{
+		int channels = peaks.getChannels();
+		if (channels <= 0 || area.width <= 0)
+		{
+			return 0;
+		}
+		
+		//Pick the level with about one column per pixel (or more)
+		double columnsPerPixel = (viewSpan * peaks.getColumns(0)) / area.width;
+		int level = 0;
+		while ((level + 1) < peaks.getLevels() && (columnsPerPixel / (double)(1 << (level + 1))) >= 1)
+		{
+			level += 1;
+		}
+		int completed = peaks.getCompletedColumns(level);
+		
+		//Find the column range of each pixel. The columns are found through the level 0 columns, so all levels line up with the frames of the file
+		int[] firstColumn = new int[area.width];
+		int[] endColumn = new int[area.width];
+		int drawnWidth = 0;
+		for (int x = 0; x < area.width; x++)
+		{
+			int c0 = peaks.getColumnAt(level, viewStart + (viewSpan * x / area.width));
+			int c1 = peaks.getColumnAt(level, viewStart + (viewSpan * (x + 1) / area.width));
+			c1 = Math.min(Math.max(c1, c0 + 1), completed);
+			if (c0 >= c1)
+			{
+				break;
+			}
+			firstColumn[x] = c0;
+			endColumn[x] = c1;
+			drawnWidth = x + 1;
+		}
+		
+		double bandHeight = (double)area.height / (double)channels;
+		double halfHeight = bandHeight / 2;
+		Color prevForegroundColor = gc.getForeground();
+		gc.setForeground(waveformColor);
+		for (int c = 0; c < channels; c++)
+		{
+			double center = (bandHeight * c) + halfHeight;
+			for (int x = 0; x < drawnWidth; x++)
+			{
+				float lo = 0;
+				float hi = 0;
+				for (int i = firstColumn[x]; i < endColumn[x]; i++)
+				{
+					lo = Math.min(lo, peaks.getMin(level, c, i));
+					hi = Math.max(hi, peaks.getMax(level, c, i));
+				}
+				int yTop = (int)Math.round(center - (sqrtScale(hi) * halfHeight));
+				int yBottom = (int)Math.round(center - (sqrtScale(lo) * halfHeight));
+				gc.drawLine(x, yTop, x, yBottom);
+			}
+		}
+		gc.setForeground(waveformRmsColor);
+		for (int c = 0; c < channels; c++)
+		{
+			int center = (int)Math.round((bandHeight * c) + halfHeight);
+			for (int x = 0; x < drawnWidth; x++)
+			{
+				float rms = 0;
+				for (int i = firstColumn[x]; i < endColumn[x]; i++)
+				{
+					rms = Math.max(rms, peaks.getRms(level, c, i));
+				}
+				int rmsHeight = (int)Math.round(sqrtScale(rms) * halfHeight);
+				if (rmsHeight > 0)
+				{
+					gc.drawLine(x, center - rmsHeight, x, center + rmsHeight);
+				}
+			}
+		}
+		gc.setForeground(prevForegroundColor);
+		return drawnWidth;
+	}
+	
+	/**
+	 * Draws the range markers within the visible range. 
+	 * Regions covering the same pixels are drawn as one rectangle, so the number of rectangles is limited by the width of the view.
+	 * @param gc
+	 * @param area client area of the canvas
+	 */
+	private void drawRegions(GC gc, Rectangle area)
+	{
+		if (rangeMarkerRasterizer.getSpanCount() == 0 || audioLength <= 0)
+		{
+			return;
+		}
+		double visibleStartSec = viewStart * audioLength;
+		double visibleEndSec = (viewStart + viewSpan) * audioLength;
+		
+		int maxRuns = (area.width / 2) + 1;
+		if (markerRunStarts.length < maxRuns)
+		{
+			markerRunStarts = new int[maxRuns];
+			markerRunEnds = new int[maxRuns];
+		}
+		int runs = rangeMarkerRasterizer.rasterize(visibleStartSec, visibleEndSec, area.width, markerRunStarts, markerRunEnds);
+		
+		Color prevBackgroundColor = gc.getBackground();
+		int prevGCAplha = gc.getAlpha();
+		gc.setBackground(rangeMarkerColor);
+		gc.setAlpha(rangeMarkerAlpha);
+		for (int i = 0; i < runs; i++)
+		{
+			gc.fillRectangle(markerRunStarts[i], 0, markerRunEnds[i] - markerRunStarts[i], area.height);
+		}
+		gc.setBackground(prevBackgroundColor);
+		gc.setAlpha(prevGCAplha);
+	}
+	
+	/**
+	 * Makes sure that the off-screen layers exist in the right size and are up to date. Only redraws what is invalid.
+	 * @param area client area of the canvas
+	 */
+	private void updateLayers(Rectangle area)
+	{
+		if (waveformLayer != null)
+		{
+			Rectangle b = waveformLayer.getBounds();
+			if (b.width != area.width || b.height != area.height)
+			{
+				disposeLayers();
+			}
+		}
+		if (waveformLayer == null)
+		{
+			waveformLayer = new Image(canvas.getDisplay(), area.width, area.height);
+			compositeLayer = new Image(canvas.getDisplay(), area.width, area.height);
+		}
+		if (!waveformLayerValid)
+		{
+			GC gc = new GC(waveformLayer);
+			gc.setBackground(canvas.getBackground());
+			gc.fillRectangle(0, 0, area.width, area.height);
+			waveformLayerDrawnWidth = 0;
+			if (peaks != null)
+			{
+				waveformLayerDrawnWidth = drawWaveform(gc, area);
+			}
+			gc.dispose();
+			waveformLayerValid = true;
+			compositeLayerValid = false;
+		}
+		if (!compositeLayerValid)
+		{
+			GC gc = new GC(compositeLayer);
+			gc.drawImage(waveformLayer, 0, 0);
+			drawRegions(gc, area);
+			gc.dispose();
+			compositeLayerValid = true;
+		}
+	}
+	
+	/**
+	 * Marks the range marker layer as outdated and requests a repaint
+	 */
+	private void invalidateCompositeLayer()
+	{
+		compositeLayerValid = false;
+		canvas.redraw();
+	}
+	
+	/**
+	 * Marks both layers as outdated and requests a repaint
+	 */
+	private void invalidateWaveformLayer()
+	{
+		waveformLayerValid = false;
+		compositeLayerValid = false;
+		canvas.redraw();
+	}
+	
+	/**
+	 * Paints the view by copying the composite layer to the screen. The 'generating waveform' text is drawn on top, since it is animated.
+	 * @param gc
+	 */
+	private void paint(GC gc)
+	{
+		Rectangle area = canvas.getClientArea();
+		if (area.width <= 0 || area.height <= 0)
+		{
+			return;
+		}
+		updateLayers(area);
+		gc.drawImage(compositeLayer, 0, 0);
+		int drawnWidth = waveformLayerDrawnWidth;
+		if ((generatingText != null) && (!generatingText.isEmpty()))
+		{
+			//Center the text in the part of the waveform that is not generated yet
+			gc.setFont(SWTResourceManager.getFont("Arial", 14, SWT.NORMAL));
+			int textWidth = gc.stringExtent(generatingText).x;
+			int textHeight = gc.stringExtent(generatingText).y;
+			int remainingWidth = area.width - drawnWidth;
+			if (remainingWidth >= textWidth)
+			{
+				int xPos = drawnWidth + (remainingWidth / 2) - (textWidth / 2);
+				int yPos = (area.height / 2) - (textHeight / 2);
+				gc.drawText(generatingText, xPos, yPos, true);
+			}
+		}
+	}
+	
+	/**
+	 * Scrolls the visible range
+	 * @param amount fraction of the file length to scroll (negative is left)
+	 */
+	private void scrollBy(double amount)
+	{
+		setView(viewStart + amount, viewSpan);
+	}
+	
+	/**
+	 * Sets the visible range. Clamps it to the file and to the maximum zoom, then updates scroll bar and redraws.
+	 * @param start start as fraction (0 to 1) of file length
+	 * @param span length as fraction (0 to 1) of file length
+	 */
+	private void setView(double start, double span)
+	{
+		double minSpan = 0.000001;
+		if (peaks != null && peaks.getColumns(0) > 0)
+		{
+			minSpan = Math.max(minSpan, (double)getWidth() / (double)(peaks.getColumns(0) * maxPixelsPerColumn));
+		}
+		viewSpan = Math.min(1, Math.max(span, minSpan));
+		viewStart = Math.min(1 - viewSpan, Math.max(start, 0));
+		updateScrollBar();
+		invalidateWaveformLayer();
+	}
+	
+	/**
+	 * Square-root scaling of a sample value, keeping the sign
+	 * @param v (-1 to 1)
+	 * @return scaled value (-1 to 1)
+	 */
+	private static double sqrtScale(float v)
+	{
+		return (v < 0) ? -Math.sqrt(-v) : Math.sqrt(v);
+	}
+	
+	/**
+	 * Updates the scroll bar to match the visible range. Hidden when the whole file is visible.
+	 */
+	private void updateScrollBar()
+	{
+		ScrollBar bar = canvas.getHorizontalBar();
+		int thumb = Math.max(1, (int)(viewSpan * scrollBarResolution));
+		int selection = (int)(viewStart * scrollBarResolution);
+		bar.setValues(selection, 0, scrollBarResolution, thumb, Math.max(1, thumb / 10), thumb);
+		bar.setVisible(viewSpan < 1);
+	}
+	
+	/**
+	 * Zooms around an x position, so the time at that position stays in place
+	 * @param spanFactor the visible span is multiplied by this (less than 1 zooms in)
+	 * @param x pixel position to zoom around
+	 */
+	private void zoom(double spanFactor, int x)
+	{
+		int width = Math.max(getWidth(), 1);
+		double anchor = viewStart + (viewSpan * x / width);
+		double newSpan = viewSpan * spanFactor;
+		setView(anchor - (newSpan * x / width), newSpan);
+	}
+}
@@ -0,0 +1,196 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Checks that cancelling an AudioOutputter tears down its processes within Constants.cancelTimeout.
+ * SoX is replaced by a stub script that writes a partial output file, starts a grandchild process and then waits.
+ * The outputter is run the way the ExporterEngine runs it (TaskRunner.submitProcessUntilEnded()), and when its future completes
+ * after cancelling, the time must be below Constants.cancelTimeout, none of the processes started by the outputter
+ * (children and grandchildren) may be running, and no partial output files may be left.
+ * Destroyed grandchildren that have not yet been reaped by the process they were re-parented to count as ended (see ProcessSupervisor.hasEnded()).
+ * Also checks that TaskRunner.getFailure() tells a failed worker from a cancelled one, so a failure is not reported as a cancellation.
+ * 
+ * Needs a POSIX shell, so it runs on Mac and Linux.
+ * Run with: java -cp build:<path to swt.jar> dk.jakobhandersen.multiregionexporterforcubase.OutputCancellationTest
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class OutputCancellationTest
+{
+	/**
+	 * Number of cancelled exports
+	 */
+	private static final int rounds = 5;
+	
+	/**
+	 * Maximum number of milliseconds to wait for the stub processes to start
+	 */
+	private static final long startTimeout = 5000;
+	
+	/**
+	 * Stub for SoX. Called as: sox input output trim start length
+	 */
+	private static final String stubScript = "#!/bin/sh\nsleep 60 &\necho partial > \"$2\"\nsleep 60\n";
+	
+	public static void main(String[] args) throws Exception
+	{
+		ExporterEngine engine = new ExporterEngine(new RecordingUserInterface());
+		TaskRunner taskRunner = new TaskRunner();
+		File folder = Files.createTempDirectory("OutputCancellationTest").toFile();
+		File stub = new File(folder, "sox");
+		Files.write(stub.toPath(), stubScript.getBytes(StandardCharsets.US_ASCII));
+		stub.setExecutable(true);
+		InputAudioFile input = new InputAudioFile(new File(folder, "input.wav").getPath(), 600, 24, 48000, 2, true);
+		
+		long slowest = 0;
+		for (int round = 0; round < rounds; round++)
+		{
+			File outputFolder = new File(folder, "output" + round);
+			outputFolder.mkdir();
+			slowest = Math.max(slowest, cancelExport(engine, taskRunner, input, stub, outputFolder));
+		}
+		System.out.println("Slowest teardown: " + slowest + " ms (bound " + Constants.cancelTimeout + " ms)");
+		checkFailures();
+		
+		taskRunner.shutdown();
+		Utils.deleteDirectory(folder);
+		TestSupport.finish("OutputCancellationTest");
+	}
+	
+	/**
+	 * Starts an export with the stub, cancels it when the stub processes are running and checks the teardown
+	 * @param engine
+	 * @param taskRunner
+	 * @param input
+	 * @param stub
+	 * @param outputFolder empty folder to output to
+	 * @return milliseconds from cancelling until the future of the outputter completed
+	 * @throws Exception
+	 */
+	private static long cancelExport(ExporterEngine engine, TaskRunner taskRunner, InputAudioFile input, File stub, File outputFolder) throws Exception
+	{
+		List<AudioBite> bites = new ArrayList<AudioBite>();
+		for (int i = 0; i < 20; i++)
+		{
+			AudioBite bite = new AudioBite();
+			bite.setStartAndEndSec(i * 10, i * 10 + 5);
+			bite.setFunctionalEndSec(i * 10 + 5);
+			bites.add(bite);
+		}
+		AudioOutputter outputter = new AudioOutputter(input, bites, outputFolder.getPath(), stub.getPath(), "ffmpeg", outputFolder.getParent(), false, null, null, false, "region", engine, SchedulingPolicy.LIST_ORDER, taskRunner);
+		int workers = Math.min(outputter.getConcurrencyController().getLimit(), bites.size());
+		CancellationToken token = new CancellationToken();
+		CompletableFuture<Integer> outputting = taskRunner.submitProcessUntilEnded(outputter, token, Constants.cancelTimeout);
+		
+		//Each stub writes its partial file after starting its grandchild
+		long startDeadline = System.currentTimeMillis() + startTimeout;
+		while (countFiles(outputFolder) < workers && System.currentTimeMillis() < startDeadline)
+		{
+			Thread.sleep(5);
+		}
+		List<ProcessHandle> descendants = new ArrayList<ProcessHandle>();
+		ProcessHandle.current().descendants().forEach(descendants::add);
+		TestSupport.check(countFiles(outputFolder) == workers, countFiles(outputFolder) + " of " + workers + " stub process(es) started");
+		TestSupport.check(descendants.size() >= 2 * workers, descendants.size() + " descendant process(es) found, expected at least " + (2 * workers));
+		
+		long start = System.nanoTime();
+		token.cancel();
+		boolean cancelled = false;
+		try
+		{
+			outputting.get();
+		}
+		catch (ExecutionException | CancellationException e)
+		{
+			cancelled = TaskRunner.getFailure(e) == null;
+		}
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		
+		int alive = 0;
+		for (ProcessHandle handle : descendants)
+		{
+			if (! ProcessSupervisor.hasEnded(handle))
+			{
+				alive += 1;
+			}
+		}
+		int files = countFiles(outputFolder);
+		TestSupport.check(cancelled, "the outputter was not cancelled");
+		TestSupport.check(elapsed < Constants.cancelTimeout, "teardown took " + elapsed + " ms");
+		TestSupport.check(alive == 0, alive + " of " + descendants.size() + " descendant process(es) still running after teardown");
+		TestSupport.check(files == 0, files + " partial output file(s) left after teardown");
+		TestSupport.check(ProcessHandle.current().children().count() == 0, "child processes running after teardown");
+		return elapsed;
+	}
+	
+	/**
+	 * Checks TaskRunner.getFailure() on the exceptions thrown when waiting for workers the way the outputters do (CompletableFuture.allOf())
+	 */
+	private static void checkFailures()
+	{
+		IllegalStateException thrown = new IllegalStateException("worker failed");
+		CompletableFuture<Void> failed = new CompletableFuture<Void>();
+		failed.completeExceptionally(thrown);
+		CompletableFuture<Void> cancelled = new CompletableFuture<Void>();
+		cancelled.completeExceptionally(new CancellationException());
+		CompletableFuture<Void> done = CompletableFuture.completedFuture(null);
+		
+		TestSupport.check(getFailure(CompletableFuture.allOf(done, failed)) == thrown, "the exception of a failed worker was not found");
+		TestSupport.check(getFailure(CompletableFuture.allOf(done, cancelled)) == null, "a cancelled worker was reported as failed");
+		TestSupport.check(getFailure(cancelled) == null, "a cancelled future was reported as failed");
+		TestSupport.check(TaskRunner.getFailure(new InterruptedException()) == null, "an interrupt was reported as failed");
+	}
+	
+	/**
+	 * @param future completed future
+	 * @return TaskRunner.getFailure() of the exception thrown by future.get(), or null if it did not throw
+	 */
+	private static Throwable getFailure(CompletableFuture<Void> future)
+	{
+		try
+		{
+			future.get();
+			return null;
+		}
+		catch (InterruptedException | ExecutionException | CancellationException e)
+		{
+			return TaskRunner.getFailure(e);
+		}
+	}
+	
+	/**
+	 * @param folder
+	 * @return the number of files in folder
+	 * @throws IOException
+	 */
+	private static int countFiles(File folder) throws IOException
+	{
+		String[] names = folder.list();
+		return names == null ? 0 : names.length;
+	}
+}
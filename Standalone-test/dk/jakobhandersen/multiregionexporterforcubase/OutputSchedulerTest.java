@@ -0,0 +1,141 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the output order of OutputScheduler and compares the estimated makespan (OutputScheduler.estimateMakespan()) 
+ * of longest first scheduling with list order.
+ * 
+ * The first case is the one longest first is meant for: a project of short regions with one long region (a bed, or a range marker
+ * around the whole song) last in the track file. The second is a number of random projects, where the average makespan is compared.
+ * Makespans are given relative to the lower bound max(largest job, total cost / workers), which no order can beat.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class OutputSchedulerTest
+{
+	/**
+	 * Number of workers in the comparisons
+	 */
+	private static final int workers = 4;
+	
+	/**
+	 * Number of random projects
+	 */
+	private static final int randomProjects = 200;
+	
+	public static void main(String[] args)
+	{
+		InputAudioFile input = new InputAudioFile("project.wav", 3600, 24, 48000, 2, true);
+		InputAudioFile compressedInput = new InputAudioFile("project.flac", 3600, 24, 48000, 2, true);
+		OutputScheduler listOrder = new OutputScheduler(SchedulingPolicy.LIST_ORDER, input, true);
+		OutputScheduler longestFirst = new OutputScheduler(SchedulingPolicy.LONGEST_FIRST, input, true);
+		OutputScheduler offsetOrder = new OutputScheduler(SchedulingPolicy.OFFSET_ORDER, compressedInput, false);
+		
+		List<AudioBite> bites = new ArrayList<AudioBite>();
+		for (int i = 0; i < 40; i++)
+		{
+			bites.add(createBite(60 + (i * 5), 4 + (i % 3)));
+		}
+		bites.add(createBite(0, 600));
+		List<OutputJob> list = listOrder.order(bites);
+		List<OutputJob> longest = longestFirst.order(bites);
+		List<OutputJob> offset = offsetOrder.order(bites);
+		
+		TestSupport.check(list.get(list.size() - 1).getIndex() == bites.size() - 1, "list order changed the order");
+		TestSupport.check(longest.get(0).getIndex() == bites.size() - 1, "longest first didn't start with the long region");
+		TestSupport.check(offset.get(0).getIndex() == bites.size() - 1, "offset order didn't start with the region at offset 0");
+		for (int i = 1; i < longest.size(); i++)
+		{
+			TestSupport.check(longest.get(i - 1).getCost() >= longest.get(i).getCost(), "longest first is not sorted by cost at " + i);
+			TestSupport.check(offset.get(i - 1).getBite().getStartSec() <= offset.get(i).getBite().getStartSec(), "offset order is not sorted by start at " + i);
+		}
+		List<OutputJob> withEndMarker = new ArrayList<OutputJob>(longest);
+		withEndMarker.add(0, new OutputJob(null, -1, 0));
+		withEndMarker.sort(longestFirst);
+		TestSupport.check(withEndMarker.get(withEndMarker.size() - 1).getBite() == null, "the end marker is not last");
+		
+		double listMakespan = OutputScheduler.estimateMakespan(list, workers);
+		double longestMakespan = OutputScheduler.estimateMakespan(longest, workers);
+		double bound = lowerBound(list, workers);
+		System.out.println(String.format("Long region last, %d workers: list order %.2f s (%.2fx bound), longest first %.2f s (%.2fx bound)", 
+				workers, listMakespan, listMakespan / bound, longestMakespan, longestMakespan / bound));
+		TestSupport.check(longestMakespan < listMakespan, "longest first is not faster with the long region last");
+		TestSupport.check(longestMakespan <= bound * 1.0000001, "longest first is not optimal with the long region last");
+		
+		Random random = new Random(1);
+		double listSum = 0;
+		double longestSum = 0;
+		double longestWorst = 0;
+		for (int p = 0; p < randomProjects; p++)
+		{
+			bites.clear();
+			int regions = 5 + random.nextInt(100);
+			for (int i = 0; i < regions; i++)
+			{
+				double length = random.nextBoolean() ? (1 + random.nextDouble() * 10) : (1 + random.nextDouble() * random.nextDouble() * 300);
+				bites.add(createBite(random.nextDouble() * 3000, length));
+			}
+			list = listOrder.order(bites);
+			bound = lowerBound(list, workers);
+			double longestRatio = OutputScheduler.estimateMakespan(longestFirst.order(bites), workers) / bound;
+			listSum += OutputScheduler.estimateMakespan(list, workers) / bound;
+			longestSum += longestRatio;
+			longestWorst = Math.max(longestWorst, longestRatio);
+		}
+		System.out.println(String.format("%d random projects, %d workers: list order %.3fx bound, longest first %.3fx bound on average (worst %.3fx)", 
+				randomProjects, workers, listSum / randomProjects, longestSum / randomProjects, longestWorst));
+		TestSupport.check(longestSum < listSum, "longest first is not faster on average");
+		
+		TestSupport.finish("OutputSchedulerTest");
+	}
+	
+	/**
+	 * Creates a set up region
+	 * @param startSec
+	 * @param lengthSec
+	 * @return the region
+	 */
+	private static AudioBite createBite(double startSec, double lengthSec)
+	{
+		AudioBite bite = new AudioBite();
+		bite.setStartAndEndSec(startSec, startSec + lengthSec);
+		bite.setFunctionalEndSec(startSec + lengthSec);
+		return bite;
+	}
+	
+	/**
+	 * @param jobs
+	 * @param workers
+	 * @return a lower bound of the makespan of any order: the largest of the largest job and the total cost divided between the workers
+	 */
+	private static double lowerBound(List<OutputJob> jobs, int workers)
+	{
+		double total = 0;
+		double largest = 0;
+		for (OutputJob job : jobs)
+		{
+			total += job.getCost();
+			largest = Math.max(largest, job.getCost());
+		}
+		return Math.max(largest, total / workers);
+	}
+}
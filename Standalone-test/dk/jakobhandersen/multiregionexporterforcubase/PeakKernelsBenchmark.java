@@ -0,0 +1,168 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that PeakKernels.accumulate() gives the same min and max as the scalar reference accumulateScalar(), and the same sum of squares
+ * up to the rounding of the reference (which sums 24 bit squares as doubles, where the kernel sums them exactly as longs),
+ * for all sample formats and a range of channel counts and run lengths, and then compares their speed on 64 MB of PCM of each format.
+ * 
+ * Run with: java -cp build dk.jakobhandersen.multiregionexporterforcubase.PeakKernelsBenchmark
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class PeakKernelsBenchmark
+{
+	/**
+	 * Size of the PCM buffer used for timing
+	 */
+	private static final int benchmarkBytes = 64 * 1024 * 1024;
+	
+	/**
+	 * Frames handed to the kernels per call when timing (about what WaveformGenerator reads at a time)
+	 */
+	private static final int runFrames = 16384;
+	
+	/**
+	 * Measured rounds per kernel (after as many warm-up rounds)
+	 */
+	private static final int rounds = 5;
+	
+	/**
+	 * Largest allowed relative difference between the sums of squares
+	 */
+	private static final double maxRelativeError = 1e-12;
+	
+	/**
+	 * Prevents the JIT compiler from removing the timed work
+	 */
+	private static volatile double sink;
+	
+	public static void main(String[] args)
+	{
+		Random random = new Random(1);
+		int[] channelCounts = {1, 2, 3, 6, 8};
+		int[] runLengths = {1, 31, 32, 33, 1000, 70000};
+		for (int bytesPerSample = 2; bytesPerSample <= 4; bytesPerSample++)
+		{
+			for (int channels : channelCounts)
+			{
+				for (int frames : runLengths)
+				{
+					byte[] pcm = new byte[frames * channels * bytesPerSample + 5];
+					random.nextBytes(pcm);
+					//Put the extreme values of the format in the first frames
+					if (frames > 2)
+					{
+						pcm[bytesPerSample - 1] = (byte)0x80;
+						pcm[channels * bytesPerSample + bytesPerSample - 1] = (byte)0x7f;
+						for (int b = 0; b < bytesPerSample - 1; b++)
+						{
+							pcm[b] = 0;
+							pcm[channels * bytesPerSample + b] = (byte)0xff;
+						}
+					}
+					compare(pcm, 0, frames, channels, bytesPerSample);
+				}
+			}
+		}
+		
+		for (int bytesPerSample = 2; bytesPerSample <= 4; bytesPerSample++)
+		{
+			benchmark(2, bytesPerSample);
+		}
+		TestSupport.finish("PeakKernelsBenchmark");
+	}
+	
+	/**
+	 * Times accumulate() against accumulateScalar() on benchmarkBytes of random PCM, and prints the throughput of both
+	 * @param channels
+	 * @param bytesPerSample
+	 */
+	private static void benchmark(final int channels, final int bytesPerSample)
+	{
+		final byte[] pcm = new byte[benchmarkBytes];
+		new Random(2).nextBytes(pcm);
+		final int frameSize = channels * bytesPerSample;
+		final int totalFrames = benchmarkBytes / frameSize;
+		final int[] scratch = new int[runFrames];
+		
+		long kernel = TestSupport.bestTime(new Runnable()
+		{
+			public void run()
+			{
+				int[] min = new int[channels];
+				int[] max = new int[channels];
+				double[] sumOfSquares = new double[channels];
+				for (int f = 0; f < totalFrames; f += runFrames)
+				{
+					PeakKernels.accumulate(pcm, f * frameSize, Math.min(runFrames, totalFrames - f), channels, bytesPerSample, min, max, sumOfSquares, scratch);
+				}
+				sink += sumOfSquares[0] + min[0] + max[0];
+			}
+		}, rounds);
+		
+		long scalar = TestSupport.bestTime(new Runnable()
+		{
+			public void run()
+			{
+				int[] min = new int[channels];
+				int[] max = new int[channels];
+				double[] sumOfSquares = new double[channels];
+				for (int f = 0; f < totalFrames; f += runFrames)
+				{
+					PeakKernels.accumulateScalar(pcm, f * frameSize, Math.min(runFrames, totalFrames - f), channels, bytesPerSample, min, max, sumOfSquares);
+				}
+				sink += sumOfSquares[0] + min[0] + max[0];
+			}
+		}, rounds);
+		
+		System.out.println(String.format("%d bit, %d channel(s): kernels %.0f MB/s, scalar %.0f MB/s, speed-up %.2fx",
+				bytesPerSample * 8, channels, benchmarkBytes / (kernel / 1e3), benchmarkBytes / (scalar / 1e3), (double)scalar / kernel));
+	}
+	
+	/**
+	 * Runs both versions on the same PCM and checks that the results are identical
+	 * @param pcm
+	 * @param offset
+	 * @param frames
+	 * @param channels
+	 * @param bytesPerSample
+	 */
+	private static void compare(byte[] pcm, int offset, int frames, int channels, int bytesPerSample)
+	{
+		int[] min = new int[channels];
+		int[] max = new int[channels];
+		double[] sumOfSquares = new double[channels];
+		int[] referenceMin = new int[channels];
+		int[] referenceMax = new int[channels];
+		double[] referenceSumOfSquares = new double[channels];
+		PeakKernels.accumulate(pcm, offset, frames, channels, bytesPerSample, min, max, sumOfSquares, new int[frames]);
+		PeakKernels.accumulateScalar(pcm, offset, frames, channels, bytesPerSample, referenceMin, referenceMax, referenceSumOfSquares);
+		String what = (bytesPerSample * 8) + " bit, " + channels + " channel(s), " + frames + " frame(s)";
+		TestSupport.check(Arrays.equals(min, referenceMin), "min differs for " + what);
+		TestSupport.check(Arrays.equals(max, referenceMax), "max differs for " + what);
+		for (int c = 0; c < channels; c++)
+		{
+			double error = Math.abs(sumOfSquares[c] - referenceSumOfSquares[c]);
+			TestSupport.check(error <= maxRelativeError * Math.abs(referenceSumOfSquares[c]), "sum of squares differs for " + what);
+		}
+	}
+}
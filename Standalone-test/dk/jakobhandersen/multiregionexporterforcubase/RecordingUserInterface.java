@@ -0,0 +1,118 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * UserInterface for the checks in Standalone-test that need an ExporterEngine.
+ * Shows nothing, but records the events and messages sent to it, in the order they arrive.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+class RecordingUserInterface implements UserInterface
+{
+	/**
+	 * The events received
+	 */
+	private List<EngineEvent> events = new ArrayList<EngineEvent>();
+	
+	/**
+	 * The messages received
+	 */
+	private List<String> messages = new ArrayList<String>();
+	
+	/**
+	 * @return a copy of the events received so far
+	 */
+	synchronized List<EngineEvent> getEvents()
+	{
+		return new ArrayList<EngineEvent>(events);
+	}
+	
+	/**
+	 * @return a copy of the messages received so far
+	 */
+	synchronized List<String> getMessages()
+	{
+		return new ArrayList<String>(messages);
+	}
+	
+	/**
+	 * Waits until an event has been received
+	 * @param e the event
+	 * @param timeout longest time to wait in milliseconds
+	 * @return true if the event was received within timeout
+	 * @throws InterruptedException
+	 */
+	synchronized boolean awaitEvent(EngineEvent e, long timeout) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + timeout;
+		long left = timeout;
+		while (!events.contains(e) && left > 0)
+		{
+			wait(left);
+			left = end - System.currentTimeMillis();
+		}
+		return events.contains(e);
+	}
+	
+	@Override
+	public void audioFileRead(InputAudioFile f)
+	{
+	}
+	
+	@Override
+	public boolean computerIsMac()
+	{
+		return System.getProperty("os.name").toLowerCase().contains("mac");
+	}
+	
+	@Override
+	public void deleteRangeMarkers()
+	{
+	}
+	
+	@Override
+	public synchronized void receiveEvent(EngineEvent e)
+	{
+		events.add(e);
+		notifyAll();
+	}
+	
+	@Override
+	public synchronized void sendMessageToUser(UserMessageType type, String message)
+	{
+		messages.add(type + ": " + message);
+	}
+	
+	@Override
+	public void setRangeMarkers(List<AudioBite> bites)
+	{
+	}
+	
+	@Override
+	public void waveformCreated(InputAudioFile f, WaveformPeaks peaks)
+	{
+	}
+	
+	@Override
+	public void waveformProgress(InputAudioFile f, WaveformPeaks peaks)
+	{
+	}
+}
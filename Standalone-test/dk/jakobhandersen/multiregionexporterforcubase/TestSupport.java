@@ -0,0 +1,84 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+/**
+ * Small helpers shared by the checks and benchmarks in Standalone-test.
+ * There is no test framework in the Eclipse workspaces, so each check is a class with a main() method
+ * that prints what it checked and exits with a non-zero code if anything failed (see "Notes on source code.txt").
+ * @author Jakob Hougaard Andersen
+ *
+ */
+class TestSupport
+{
+	/**
+	 * Number of failed checks
+	 */
+	private static int failures = 0;
+	
+	/**
+	 * Number of checks made
+	 */
+	private static int checks = 0;
+	
+	/**
+	 * Records a check, printing the message if it failed
+	 * @param condition true if the check passed
+	 * @param message describes what was checked
+	 */
+	static void check(boolean condition, String message)
+	{
+		checks += 1;
+		if (!condition)
+		{
+			failures += 1;
+			System.out.println("FAILED: " + message);
+		}
+	}
+	
+	/**
+	 * Prints the result and ends the JVM, with exit code 1 if any check failed
+	 * @param name name of the check or benchmark
+	 */
+	static void finish(String name)
+	{
+		System.out.println(name + ": " + (checks - failures) + " of " + checks + " check(s) passed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+	
+	/**
+	 * Measures the best time of a number of rounds of a piece of work, after letting the JIT compiler warm it up
+	 * @param work the work
+	 * @param rounds number of measured rounds
+	 * @return the fastest round in nanoseconds
+	 */
+	static long bestTime(Runnable work, int rounds)
+	{
+		for (int i = 0; i < rounds; i++)
+		{
+			work.run();
+		}
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < rounds; i++)
+		{
+			long start = System.nanoTime();
+			work.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+}
@@ -0,0 +1,97 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Compares the table driven element dispatch of CubaseTrackXMLSaxParseHandler with the equalsIgnoreCase() chains it replaced
+ * (IfChainTrackXMLSaxParseHandler). Both are run by the JDK SAX parser on the same synthetic track XML file (see TrackXMLFixtures),
+ * which first checks that they find the same AudioBites and then times them.
+ * 
+ * Run with: java -cp build dk.jakobhandersen.multiregionexporterforcubase.TrackXMLDispatchBenchmark [tracks]
+ * The default of 100 tracks gives a file of about 50 MB.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class TrackXMLDispatchBenchmark
+{
+	/**
+	 * Measured rounds per handler (after as many warm-up rounds)
+	 */
+	private static final int rounds = 3;
+	
+	public static void main(String[] args) throws Exception
+	{
+		Debug.setLevel(LogLevel.ERROR);
+		int tracks = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+		final File f = File.createTempFile("dispatchbenchmark", ".xml");
+		try
+		{
+			TrackXMLFixtures.writeSyntheticTrackXML(f, tracks, 5);
+			
+			CubaseTrackXMLSaxParseHandler tableHandler = new CubaseTrackXMLSaxParseHandler();
+			TrackXMLFixtures.parseWithSax(f, tableHandler);
+			IfChainTrackXMLSaxParseHandler ifChainHandler = new IfChainTrackXMLSaxParseHandler();
+			TrackXMLFixtures.parseWithSax(f, ifChainHandler);
+			List<String> table = TrackXMLFixtures.describe(tableHandler.getAudioBites());
+			List<String> ifChain = TrackXMLFixtures.describe(ifChainHandler.getAudioBites());
+			TestSupport.check(!table.isEmpty(), "no AudioBites found");
+			TestSupport.check(table.equals(ifChain), "the handlers found different AudioBites (" + table.size() + " and " + ifChain.size() + ")");
+			System.out.println(String.format("%.1f MB, %d AudioBite(s)", f.length() / 1e6, table.size()));
+			
+			long tableTime = TestSupport.bestTime(new Runnable()
+			{
+				public void run()
+				{
+					parse(f, new CubaseTrackXMLSaxParseHandler());
+				}
+			}, rounds);
+			long ifChainTime = TestSupport.bestTime(new Runnable()
+			{
+				public void run()
+				{
+					parse(f, new IfChainTrackXMLSaxParseHandler());
+				}
+			}, rounds);
+			System.out.println(String.format("Table dispatch %.0f ms, if-chains %.0f ms, speed-up %.2fx", tableTime / 1e6, ifChainTime / 1e6, (double)ifChainTime / tableTime));
+		}
+		finally
+		{
+			f.delete();
+		}
+		TestSupport.finish("TrackXMLDispatchBenchmark");
+	}
+	
+	/**
+	 * Parses a file, turning any exception into a RuntimeException
+	 * @param f
+	 * @param handler
+	 */
+	private static void parse(File f, org.xml.sax.helpers.DefaultHandler handler)
+	{
+		try
+		{
+			TrackXMLFixtures.parseWithSax(f, handler);
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+}
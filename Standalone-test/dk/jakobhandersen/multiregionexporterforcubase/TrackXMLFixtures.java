@@ -0,0 +1,184 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Track XML files for the checks and benchmarks of the track XML parsers.
+ * 
+ * writeSyntheticTrackXML() writes a file shaped like a Cubase track export: audio, marker, MIDI and instrument tracks with
+ * MAudioEvents (with and without descriptions and shared PAudioClips), MAudioPartEvents (with an MAudioEvent inside the part that must be ignored),
+ * MRangeMarkerEvents and MMidiPartEvents with 200 notes each, both time domains, track settings objects (which the handler lets the parsers skip), a tempo track and the sample rate.
+ * The MIDI notes make up most of the file, like in real projects.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+class TrackXMLFixtures
+{
+	/**
+	 * Events per track
+	 */
+	private static final int eventsPerTrack = 30;
+	
+	/**
+	 * Notes per MIDI part
+	 */
+	private static final int notesPerPart = 200;
+	
+	/**
+	 * Describes each AudioBite of a handler as one line (position, length, name and element type), for comparing the results of two parsers
+	 * @param bites
+	 * @return one line per AudioBite
+	 */
+	static List<String> describe(List<AudioBite> bites)
+	{
+		List<String> lines = new ArrayList<String>();
+		for (AudioBite b : bites)
+		{
+			lines.add(b.toString() + " " + b.getName() + " " + b.getElementType());
+		}
+		return lines;
+	}
+	
+	/**
+	 * Parses a file with the JDK SAX parser
+	 * @param f
+	 * @param handler
+	 * @throws Exception
+	 */
+	static void parseWithSax(File f, DefaultHandler handler) throws Exception
+	{
+		SAXParserFactory.newInstance().newSAXParser().parse(f, handler);
+	}
+	
+	/**
+	 * Writes a synthetic Cubase style track XML file (see the class description)
+	 * @param f the file to write
+	 * @param tracks number of tracks
+	 * @param seed seed of the random choices, so the same arguments always give the same file
+	 * @throws IOException
+	 */
+	static void writeSyntheticTrackXML(File f, int tracks, long seed) throws IOException
+	{
+		String[] kinds = {"MAudioTrackEvent", "MMarkerTrackEvent", "MMidiTrackEvent", "MInstrumentTrackEvent"};
+		Random random = new Random(seed);
+		try (Writer w = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(f.toPath()), StandardCharsets.UTF_8)))
+		{
+			w.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<tracklist2>\n");
+			w.write("<list name=\"track\" type=\"obj\">\n");
+			int clips = 0;
+			for (int t = 0; t < tracks; t++)
+			{
+				String kind = kinds[random.nextInt(kinds.length)];
+				w.write("<obj class=\"" + kind + "\" ID=\"" + t + "\">\n<int name=\"Flags\" value=\"1\"/>\n");
+				w.write("<member name=\"Domain\">\n<int name=\"Type\" value=\"" + random.nextInt(2) + "\"/>\n<float name=\"Period\" value=\"1\"/>\n</member>\n");
+				w.write("<obj class=\"" + kind.replace("Event", "") + "\" name=\"Track\">\n<string name=\"Name\" value=\"track" + t + "\"/>\n");
+				w.write("<obj class=\"MChannelSettings\" name=\"Channel\">\n<list name=\"Inserts\" type=\"obj\">\n");
+				for (int k = 0; k < 4; k++)
+				{
+					w.write("<obj class=\"MInsertSlot\" ID=\"i" + t + "_" + k + "\"><float name=\"Volume\" value=\"" + k + "\"/><int name=\"Bypass\" value=\"0\"/></obj>\n");
+				}
+				w.write("</list>\n</obj>\n</obj>\n");
+				w.write("<obj class=\"MListNode\" name=\"Node\">\n<list name=\"Events\" type=\"obj\">\n");
+				for (int e = 0; e < eventsPerTrack; e++)
+				{
+					String id = t + "_" + e;
+					String start = decimal(random.nextDouble() * 10000);
+					if (kind.equals("MAudioTrackEvent") && random.nextBoolean())
+					{
+						w.write("<obj class=\"MAudioEvent\" ID=\"e" + id + "\">\n<float name=\"Start\" value=\"" + start + "\"/>\n");
+						w.write("<float name=\"Length\" value=\"" + (1000 + random.nextInt(99000)) + "\"/>\n");
+						if (random.nextBoolean())
+						{
+							w.write("<string name=\"Description\" value=\"desc" + id + "\"/>\n");
+						}
+						int clip = random.nextInt(clips + 1);
+						if (clip == clips)
+						{
+							w.write("<obj class=\"PAudioClip\" name=\"AudioClip\" ID=\"c" + clip + "\">\n<string name=\"Name\" value=\"clip" + clip + "\"/>\n</obj>\n");
+							clips += 1;
+						}
+						else
+						{
+							w.write("<obj name=\"AudioClip\" ID=\"c" + clip + "\"/>\n");
+						}
+						w.write("</obj>\n");
+					}
+					else if (kind.equals("MAudioTrackEvent"))
+					{
+						w.write("<obj class=\"MAudioPartEvent\" ID=\"p" + id + "\">\n<float name=\"Start\" value=\"" + start + "\"/>\n");
+						w.write("<float name=\"Length\" value=\"" + decimal(random.nextDouble() * 1000) + "\"/>\n");
+						w.write("<obj class=\"MAudioPart\" name=\"Part\">\n<string name=\"Name\" value=\"part" + id + "\"/>\n");
+						w.write("<list name=\"x\" type=\"obj\"><obj class=\"MAudioEvent\" ID=\"z\"><float name=\"Start\" value=\"3\"/></obj></list>\n</obj>\n</obj>\n");
+					}
+					else if (kind.equals("MMarkerTrackEvent"))
+					{
+						w.write("<obj class=\"MRangeMarkerEvent\" ID=\"r" + id + "\">\n<float name=\"Start\" value=\"" + start + "\"/>\n");
+						w.write("<float name=\"Length\" value=\"" + decimal(random.nextDouble() * 1000) + "\"/>\n<string name=\"Name\" value=\"range" + id + "\"/>\n</obj>\n");
+					}
+					else
+					{
+						w.write("<obj class=\"MMidiPartEvent\" ID=\"m" + id + "\">\n<float name=\"Start\" value=\"" + start + "\"/>\n");
+						w.write("<float name=\"Length\" value=\"" + decimal(random.nextDouble() * 1000) + "\"/>\n");
+						w.write("<obj class=\"MMidiPart\" name=\"Part\">\n<string name=\"Name\" value=\"midi" + id + "\"/>\n<list name=\"Events\" type=\"obj\">\n");
+						for (int k = 0; k < notesPerPart; k++)
+						{
+							w.write("<obj class=\"MMidiNote\" ID=\"n" + k + "\"><float name=\"Start\" value=\"" + (k * 10) + "\"/><float name=\"Length\" value=\"10\"/>");
+							w.write("<int name=\"Pitch\" value=\"" + (60 + k % 12) + "\"/><int name=\"Velocity\" value=\"100\"/></obj>\n");
+						}
+						w.write("</list>\n</obj>\n</obj>\n");
+					}
+				}
+				w.write("</list>\n</obj>\n</obj>\n");
+			}
+			w.write("</list>\n");
+			w.write("<obj class=\"MTempoTrackEvent\" name=\"Tempo Track\">\n<list name=\"TempoEvent\" type=\"obj\">\n");
+			for (int k = 0; k < 5; k++)
+			{
+				w.write("<obj class=\"MTempoEvent\" ID=\"t" + k + "\">\n<float name=\"BPM\" value=\"" + (100 + k * 10) + "\"/>\n");
+				w.write("<float name=\"PPQ\" value=\"" + (k * 7680) + "\"/>\n<int name=\"Func\" value=\"" + (k % 2) + "\"/>\n</obj>\n");
+			}
+			w.write("</list>\n<float name=\"RehearsalTempo\" value=\"120\"/>\n<int name=\"RehearsalMode\" value=\"0\"/>\n</obj>\n");
+			w.write("<obj class=\"PArrangeSetup\" name=\"Setup\">\n<float name=\"SampleRate\" value=\"48000\"/>\n</obj>\n");
+			w.write("</tracklist2>\n");
+		}
+	}
+	
+	/**
+	 * @param v
+	 * @return v with three decimals
+	 */
+	private static String decimal(double v)
+	{
+		return String.format(Locale.ROOT, "%.3f", v);
+	}
+}
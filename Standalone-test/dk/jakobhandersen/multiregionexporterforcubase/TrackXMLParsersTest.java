@@ -0,0 +1,230 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that CubaseTrackXMLByteScanner and CubaseTrackXMLStaxParser give CubaseTrackXMLSaxParseHandler the same AudioBites as the JDK SAX parser.
+ * 
+ * The main fixture is a small track file with the XML constructs the scanner has to handle itself: a byte order mark, CRLF line ends, 
+ * a DOCTYPE, comments, processing instructions and CDATA sections containing tags, predefined entities, decimal and hexadecimal 
+ * character references, single quoted attributes, white space around '=', a no-break space, tabs in attribute values (normalized to spaces), 
+ * non-ASCII names, unusual number formats and track settings objects that the handler lets the scanner and the StAX parser skip. It is kept in this class rather than in a file so line ends and the byte order mark survive checkouts.
+ * The fixture is also checked with LF line ends and no byte order mark, in UTF-16 (which the scanner hands to the StAX parser) 
+ * and together with a larger synthetic file from TrackXMLFixtures.
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class TrackXMLParsersTest
+{
+	/**
+	 * The edge case fixture, with LF line ends and no byte order mark
+	 */
+	private static final String edgeCases = String.join("\n", 
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>",
+			"<!DOCTYPE tracklist2>",
+			"<!-- <obj class=\"MAudioEvent\"> in a comment -->",
+			"<tracklist2>",
+			"<list name=\"track\" type=\"obj\">",
+			"<obj class=\"MAudioTrackEvent\" ID=\"1\">",
+			"<member name=\"Domain\">",
+			"<int name=\"Type\" value=\"0\"/>",
+			"</member>",
+			"<obj class=\"MAudioTrack\" name=\"Track\"><obj class=\"MChannelSettings\" name=\"Channel\"><float name=\"Start\" value=\"1\"/></obj></obj>",
+			"<obj name=\"Reference\" ID=\"1\"><string name=\"Name\" value=\"x\"/></obj>",
+			"<obj class=\"MListNode\" name=\"Node\">",
+			"<list name=\"Events\" type=\"obj\">",
+			"<obj class=\"MAudioEvent\" ID=\"2\">",
+			"<float name=\"Start\" value=\"1000\"/>",
+			"<float name=\"Length\" value=\"48000\"/>",
+			"<string name='Description' value='a&amp;b &lt;c&gt; &quot;d&apos; &#233;&#xE9;\tx&#10;y'/>",
+			"<obj class=\"PAudioClip\" name=\"AudioClip\" ID=\"3\">",
+			"<string name=\"Name\" value=\"cl\u00EFp\u00E6\u00F8\u00E5\"/>",
+			"</obj>",
+			"</obj>",
+			"<obj class=\"MAudioEvent\" ID=\"4\">",
+			"<float  name = \"Start\"",
+			"  value=\" 2.5e3 \" />",
+			"<float name=\"Length\" value=\"24000.0000000000000000000001\"/>",
+			"<obj name=\"AudioClip\" ID=\"3\"/>",
+			"</obj>",
+			"<obj class=\"MAudioPartEvent\" ID=\"5\">",
+			"<?app <obj class=\"MAudioEvent\"> ?>",
+			"<float name=\"Start\" value=\"4000.5\"/>",
+			"<float name=\"Length\" value=\"960\"/>",
+			"<obj class=\"MAudioPart\" name=\"Part\">",
+			"<string name=\"Name\" value=\"part &#x263A; \u263A \u4E2D\"/>",
+			"<list name=\"Events\" type=\"obj\"><obj class=\"MAudioEvent\" ID=\"6\"><![CDATA[ </obj></obj> ]]><float name=\"Start\" value='a>b\"'/></obj></list>",
+			"</obj>",
+			"</obj>",
+			"</list>",
+			"</obj>",
+			"</obj>",
+			"<obj class=\"MMarkerTrackEvent\" ID=\"7\">",
+			"<member name=\"Domain\">",
+			"<int name=\"Type\" value=\"1\"/>",
+			"</member>",
+			"<obj class=\"MListNode\" name=\"Node\">",
+			"<list name=\"Events\" type=\"obj\">",
+			"<obj class=\"MRangeMarkerEvent\" ID=\"8\">",
+			"<float name=\"Start\" value=\"1.25E+3\"/>",
+			"<float name=\"Length\" value=\".5\"/>",
+			"<string name=\"Name\" value=\"range ]]&gt; &#60;/obj&#62;\"/>",
+			"</obj>",
+			"</list>",
+			"</obj>",
+			"</obj>",
+			"<obj class=\"MMidiTrackEvent\" ID=\"9\">",
+			"<obj class=\"MListNode\" name=\"Node\">",
+			"<list name=\"Events\" type=\"obj\">",
+			"<obj class=\"MMidiPartEvent\" ID=\"10\">",
+			"<float name=\"Start\" value=\"0\"/>",
+			"<float name=\"Length\" value=\"3840\"/>",
+			"<obj class=\"MMidiPart\" name=\"Part\">",
+			"<string name=\"Name\" value=\"midi\u00A0part\"/>",
+			"<list name=\"Events\" type=\"obj\">",
+			"<obj class=\"MMidiNote\" ID=\"11\"><float name=\"Start\" value=\"0\"/><float name=\"Length\" value=\"10\"/><int name=\"Pitch\" value=\"60\"/></obj>",
+			"<obj class=\"MMidiNote\" ID=\"12\"><float name=\"Start\" value=\"10\"/><float name=\"Length\" value=\"10\"/><int name=\"Pitch\" value=\"62\"/></obj>",
+			"</list>",
+			"</obj>",
+			"</obj>",
+			"</list>",
+			"</obj>",
+			"</obj>",
+			"</list>",
+			"<obj class=\"MTempoTrackEvent\" name=\"Tempo Track\">",
+			"<list name=\"TempoEvent\" type=\"obj\">",
+			"<obj class=\"MTempoEvent\" ID=\"13\"><float name=\"BPM\" value=\"120\"/><float name=\"PPQ\" value=\"0\"/></obj>",
+			"<obj class=\"MTempoEvent\" ID=\"14\"><float name=\"BPM\" value=\"90\"/><float name=\"PPQ\" value=\"1920\"/><int name=\"Func\" value=\"1\"/></obj>",
+			"</list>",
+			"</obj>",
+			"<obj class=\"PArrangeSetup\" name=\"Setup\">",
+			"<float name=\"SampleRate\" value=\"44100\"/>",
+			"</obj>",
+			"</tracklist2>",
+			"");
+	
+	/**
+	 * The names the fixture must give (before Utils.getValidFileNameString()), in the order of the AudioBites
+	 */
+	private static final List<String> edgeCaseNames = Arrays.asList(
+			"midi\u00A0part",
+			"a&b <c> \"d' \u00E9\u00E9 x\ny",
+			"cl\u00EFp\u00E6\u00F8\u00E5",
+			"part \u263A \u263A \u4E2D",
+			"range ]]> </obj>");
+	
+	public static void main(String[] args) throws Exception
+	{
+		Debug.setLevel(LogLevel.ERROR);
+		File f = File.createTempFile("parserstest", ".xml");
+		try
+		{
+			write(f, "\uFEFF" + edgeCases.replace("\n", "\r\n"), StandardCharsets.UTF_8);
+			List<AudioBite> bites = compareParsers(f, "BOM and CRLF");
+			List<String> names = new ArrayList<String>();
+			List<String> expectedNames = new ArrayList<String>();
+			for (AudioBite b : bites)
+			{
+				names.add(b.getName());
+			}
+			for (String name : edgeCaseNames)
+			{
+				expectedNames.add(Utils.getValidFileNameString(name));
+			}
+			TestSupport.check(names.equals(expectedNames), "unexpected names " + names);
+			List<String> sax = TrackXMLFixtures.describe(bites);
+			
+			write(f, edgeCases, StandardCharsets.UTF_8);
+			TestSupport.check(TrackXMLFixtures.describe(compareParsers(f, "LF")).equals(sax), "LF line ends changed the result");
+			
+			write(f, edgeCases.replace("encoding=\"UTF-8\"", "encoding=\"UTF-16\""), StandardCharsets.UTF_16);
+			TestSupport.check(TrackXMLFixtures.describe(compareParsers(f, "UTF-16")).equals(sax), "UTF-16 changed the result");
+			
+			TrackXMLFixtures.writeSyntheticTrackXML(f, 20, 7);
+			compareParsers(f, "synthetic");
+		}
+		finally
+		{
+			f.delete();
+		}
+		TestSupport.finish("TrackXMLParsersTest");
+	}
+	
+	/**
+	 * Parses a file with SAX, StAX and the byte scanner and checks that they give the same AudioBites
+	 * @param f
+	 * @param description description of the file for the messages
+	 * @return the AudioBites found by SAX
+	 * @throws Exception
+	 */
+	private static List<AudioBite> compareParsers(File f, String description) throws Exception
+	{
+		CubaseTrackXMLSaxParseHandler saxHandler = new CubaseTrackXMLSaxParseHandler();
+		TrackXMLFixtures.parseWithSax(f, saxHandler);
+		CubaseTrackXMLSaxParseHandler staxHandler = new CubaseTrackXMLSaxParseHandler();
+		new CubaseTrackXMLStaxParser().parse(f, staxHandler);
+		CubaseTrackXMLSaxParseHandler scannerHandler = new CubaseTrackXMLSaxParseHandler();
+		new CubaseTrackXMLByteScanner().parse(f, scannerHandler);
+		List<String> sax = TrackXMLFixtures.describe(saxHandler.getAudioBites());
+		List<String> stax = TrackXMLFixtures.describe(staxHandler.getAudioBites());
+		List<String> scanner = TrackXMLFixtures.describe(scannerHandler.getAudioBites());
+		TestSupport.check(!sax.isEmpty(), description + ": no AudioBites found");
+		TestSupport.check(stax.equals(sax), description + ": StAX differs from SAX: " + firstDifference(sax, stax));
+		TestSupport.check(scanner.equals(sax), description + ": the byte scanner differs from SAX: " + firstDifference(sax, scanner));
+		return saxHandler.getAudioBites();
+	}
+	
+	/**
+	 * @param expected
+	 * @param actual
+	 * @return the first differing line of two lists
+	 */
+	private static String firstDifference(List<String> expected, List<String> actual)
+	{
+		for (int i = 0; i < Math.max(expected.size(), actual.size()); i++)
+		{
+			String e = (i < expected.size()) ? expected.get(i) : "(none)";
+			String a = (i < actual.size()) ? actual.get(i) : "(none)";
+			if (!e.equals(a))
+			{
+				return "expected " + e + ", got " + a;
+			}
+		}
+		return "none";
+	}
+	
+	/**
+	 * Writes a String to a file
+	 * @param f
+	 * @param content
+	 * @param charset
+	 * @throws IOException
+	 */
+	private static void write(File f, String content, Charset charset) throws IOException
+	{
+		Files.write(f.toPath(), content.getBytes(charset));
+	}
+}
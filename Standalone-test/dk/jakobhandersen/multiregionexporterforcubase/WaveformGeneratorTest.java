@@ -0,0 +1,208 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Checks WaveformGenerator.readPeaks() on raw PCM fed from memory instead of FFMPEG.
+ * The min, max and RMS of every column must match those computed directly from the samples.
+ * 
+ * The read buffer from the MemoryGovernor is rounded up to a size class, so for frame sizes that are not a power of two
+ * (24 bit samples, or an odd number of channels) a single read holds more frames than asked for. Those cases are checked
+ * with reads that fill the whole buffer as well as with short reads that split frames, and with FFMPEG decoding more frames
+ * than the length of the input file says. The extra frames all go to the last column, so they are handed to PeakKernels in runs
+ * as long as a whole read.
+ * 
+ * Run with: java -cp build:<path to swt.jar> dk.jakobhandersen.multiregionexporterforcubase.WaveformGeneratorTest
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class WaveformGeneratorTest
+{
+	/**
+	 * Largest allowed relative difference between RMS values (they are stored as floats)
+	 */
+	private static final float maxRmsError = 1e-5f;
+	
+	/**
+	 * Number of frames fed to each generator
+	 */
+	private static final int frames = 150000;
+	
+	/**
+	 * Width of the waveform display
+	 */
+	private static final int waveformWidth = 500;
+	
+	public static void main(String[] args) throws Exception
+	{
+		ExporterEngine engine = new ExporterEngine(new RecordingUserInterface());
+		int[][] formats = {{2, 3}, {1, 3}, {3, 3}, {5, 3}, {3, 2}, {7, 2}, {3, 4}, {2, 2}};
+		for (int[] format : formats)
+		{
+			checkPeaks(engine, format[0], format[1], false, frames);
+			checkPeaks(engine, format[0], format[1], true, frames);
+			checkPeaks(engine, format[0], format[1], false, frames / 2);
+		}
+		TestSupport.finish("WaveformGeneratorTest");
+	}
+	
+	/**
+	 * Feeds readPeaks() generated PCM and checks every level 0 column
+	 * @param engine
+	 * @param channels
+	 * @param bytesPerSample
+	 * @param shortReads if true, the stream returns few bytes at a time, splitting frames between reads
+	 * @param expectedFrames the number of frames readPeaks() is told to expect
+	 */
+	private static void checkPeaks(ExporterEngine engine, int channels, int bytesPerSample, boolean shortReads, int expectedFrames)
+	{
+		String what = channels + " channel(s), " + (bytesPerSample * 8) + " bit" + (shortReads ? ", short reads" : "") + ", " + expectedFrames + " frames expected";
+		int[][] samples = createSamples(channels, bytesPerSample);
+		byte[] pcm = encode(samples, bytesPerSample);
+		InputStream in = shortReads ? new ShortReadStream(pcm) : new ByteArrayInputStream(pcm);
+		
+		WaveformPeaks peaks;
+		try
+		{
+			peaks = new WaveformGenerator(null, null, waveformWidth, engine).readPeaks(in, channels, bytesPerSample, expectedFrames, new CancellationToken());
+		}
+		catch (Exception e)
+		{
+			TestSupport.check(false, "readPeaks() threw " + e + " with " + what);
+			return;
+		}
+		
+		int columns = peaks.getColumns(0);
+		TestSupport.check(peaks.getCompletedColumns(0) == columns, "not all columns completed with " + what);
+		float scale = 1.0f / (float)(1L << (bytesPerSample * 8 - 1));
+		int mismatches = 0;
+		for (int column = 0; column < columns; column++)
+		{
+			int start = (int)(((long)column * expectedFrames) / columns);
+			int end = column == columns - 1 ? frames : (int)(((long)(column + 1) * expectedFrames) / columns);
+			for (int c = 0; c < channels; c++)
+			{
+				int min = 0;
+				int max = 0;
+				double sumOfSquares = 0;
+				for (int f = start; f < end; f++)
+				{
+					int s = samples[c][f];
+					min = Math.min(min, s);
+					max = Math.max(max, s);
+					sumOfSquares += (double)s * s;
+				}
+				float rms = (float)Math.sqrt(sumOfSquares / (end - start)) * scale;
+				boolean matches = peaks.getMin(0, c, column) == min * scale
+						&& peaks.getMax(0, c, column) == max * scale
+						&& Math.abs(peaks.getRms(0, c, column) - rms) <= maxRmsError * Math.max(rms, 1e-3f);
+				if (!matches)
+				{
+					mismatches += 1;
+				}
+			}
+		}
+		TestSupport.check(mismatches == 0, mismatches + " column(s) differ with " + what);
+	}
+	
+	/**
+	 * Creates random samples over the full range of the sample size, with the extremes included
+	 * @param channels
+	 * @param bytesPerSample
+	 * @return the samples, per channel
+	 */
+	private static int[][] createSamples(int channels, int bytesPerSample)
+	{
+		Random random = new Random(channels * 31 + bytesPerSample);
+		int bits = bytesPerSample * 8;
+		int[][] samples = new int[channels][frames];
+		for (int c = 0; c < channels; c++)
+		{
+			for (int f = 0; f < frames; f++)
+			{
+				samples[c][f] = random.nextInt() >> (32 - bits);
+			}
+			samples[c][(c * 7919) % frames] = (int)(-(1L << (bits - 1)));
+			samples[c][(c * 104729 + 1) % frames] = (int)((1L << (bits - 1)) - 1);
+		}
+		return samples;
+	}
+	
+	/**
+	 * Interleaves samples as signed little endian PCM (the format FFMPEG is asked for)
+	 * @param samples per channel
+	 * @param bytesPerSample
+	 * @return the PCM
+	 */
+	private static byte[] encode(int[][] samples, int bytesPerSample)
+	{
+		int channels = samples.length;
+		byte[] pcm = new byte[frames * channels * bytesPerSample];
+		int i = 0;
+		for (int f = 0; f < frames; f++)
+		{
+			for (int c = 0; c < channels; c++)
+			{
+				int s = samples[c][f];
+				for (int b = 0; b < bytesPerSample; b++)
+				{
+					pcm[i++] = (byte)(s >> (b * 8));
+				}
+			}
+		}
+		return pcm;
+	}
+	
+	/**
+	 * Stream returning a varying small number of bytes per read, like a pipe that is read faster than it is filled
+	 */
+	private static class ShortReadStream extends InputStream
+	{
+		private final byte[] data;
+		private final Random random = new Random(1);
+		private int position = 0;
+		
+		ShortReadStream(byte[] data)
+		{
+			this.data = data;
+		}
+		
+		@Override
+		public int read() throws IOException
+		{
+			return position < data.length ? (data[position++] & 0xff) : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (position >= data.length)
+			{
+				return -1;
+			}
+			int n = Math.min(Math.min(len, 1 + random.nextInt(5000)), data.length - position);
+			System.arraycopy(data, position, b, off, n);
+			position += n;
+			return n;
+		}
+	}
+}
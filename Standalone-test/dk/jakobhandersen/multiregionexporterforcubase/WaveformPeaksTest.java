@@ -0,0 +1,114 @@
+//    Multi-region Exporter - for Cubase
+//    By Jakob Hougaard Andersen
+//
+//    This program is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    This program is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package dk.jakobhandersen.multiregionexporterforcubase;
+
+/**
+ * Checks the pyramid of WaveformPeaks: the RMS, min and max of every column on every level must match those computed directly
+ * from the level 0 columns it covers (including the last, partial column of each level), and getColumnAt() must map positions
+ * in the file to the same level 0 columns on every level.
+ * 
+ * Run with: java -cp build dk.jakobhandersen.multiregionexporterforcubase.WaveformPeaksTest
+ * @author Jakob Hougaard Andersen
+ *
+ */
+public class WaveformPeaksTest
+{
+	/**
+	 * Largest allowed difference between RMS values (they are stored as floats)
+	 */
+	private static final float maxRmsError = 1e-5f;
+	
+	public static void main(String[] args)
+	{
+		int[] columnCounts = {1, 2, 5, 7, 64, 100, 1000};
+		for (int columns : columnCounts)
+		{
+			checkLevels(2, columns);
+			checkColumnAt(columns);
+		}
+		TestSupport.finish("WaveformPeaksTest");
+	}
+	
+	/**
+	 * Fills peaks with known values and checks every column of every level against the level 0 columns it covers
+	 * @param channels
+	 * @param columns
+	 */
+	private static void checkLevels(int channels, int columns)
+	{
+		WaveformPeaks peaks = new WaveformPeaks(channels, columns);
+		float[][] min = new float[channels][columns];
+		float[][] max = new float[channels][columns];
+		float[][] rms = new float[channels][columns];
+		for (int col = 0; col < columns; col++)
+		{
+			for (int c = 0; c < channels; c++)
+			{
+				min[c][col] = -((col * 7 + c * 3) % 11) / 11f;
+				max[c][col] = ((col * 5 + c) % 13) / 13f;
+				rms[c][col] = ((col * 3 + c * 2) % 10) / 10f;
+				peaks.setColumn(c, col, min[c][col], max[c][col], rms[c][col]);
+			}
+		}
+		peaks.setCompletedColumns(columns);
+		for (int level = 0; level < peaks.getLevels(); level++)
+		{
+			for (int c = 0; c < channels; c++)
+			{
+				for (int i = 0; i < peaks.getColumns(level); i++)
+				{
+					int first = i << level;
+					int end = Math.min(columns, (i + 1) << level);
+					float expectedMin = 0;
+					float expectedMax = 0;
+					double sumOfPower = 0;
+					for (int col = first; col < end; col++)
+					{
+						expectedMin = Math.min(expectedMin, min[c][col]);
+						expectedMax = Math.max(expectedMax, max[c][col]);
+						sumOfPower += rms[c][col] * rms[c][col];
+					}
+					float expectedRms = (float)Math.sqrt(sumOfPower / (end - first));
+					String what = "level " + level + ", channel " + c + ", column " + i + " of " + peaks.getColumns(level) + " (" + columns + " level 0 columns)";
+					TestSupport.check(peaks.getMin(level, c, i) == expectedMin, "min differs at " + what);
+					TestSupport.check(peaks.getMax(level, c, i) == expectedMax, "max differs at " + what);
+					TestSupport.check(Math.abs(peaks.getRms(level, c, i) - expectedRms) <= maxRmsError, "RMS " + peaks.getRms(level, c, i) + " should be " + expectedRms + " at " + what);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Checks that getColumnAt() gives the column covering the level 0 column of a position on every level
+	 * @param columns
+	 */
+	private static void checkColumnAt(int columns)
+	{
+		WaveformPeaks peaks = new WaveformPeaks(1, columns);
+		for (int col = 0; col < columns; col++)
+		{
+			//The middle of the level 0 column
+			double position = (col + 0.5) / columns;
+			for (int level = 0; level < peaks.getLevels(); level++)
+			{
+				int column = peaks.getColumnAt(level, position);
+				TestSupport.check(column == (col >> level) && column < peaks.getColumns(level),
+						"position " + position + " maps to column " + column + " on level " + level + " (" + columns + " level 0 columns)");
+			}
+		}
+	}
+}